@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+/**
+ * The interface ChunkHandler receives the payload of an incoming blockwise
+ * transfer block by block as it arrives, so that large bodies need not be
+ * kept in memory. Clients register a handler for the response body through
+ * {@link Request#setChunkHandler(ChunkHandler)}; servers return one for a
+ * request body from
+ * {@link ch.ethz.inf.vs.californium.endpoint.LocalResource#getChunkHandler(Request)}.
+ * <p>
+ * When the last block has arrived, the message is delivered as usual, but
+ * without payload.
+ */
+public interface ChunkHandler {
+
+	/**
+	 * Called for each block of a transfer in order.
+	 * 
+	 * @param msg the message that carried the first block, i.e., the request
+	 *        or response that is delivered when the transfer completes
+	 * @param chunk the payload of the block
+	 * @param offset the position of the block in the body
+	 * @param last true for the last block
+	 */
+	void handleChunk(Message msg, byte[] chunk, int offset, boolean last);
+	
+	/**
+	 * The interface Provider selects the handler for an incoming blockwise
+	 * request, e.g., by the resource it addresses.
+	 */
+	public interface Provider {
+		
+		/**
+		 * Returns the handler for the body of a request.
+		 * 
+		 * @param request the request with the first block
+		 * @return the handler, or null to assemble the body in memory
+		 */
+		ChunkHandler getChunkHandler(Request request);
+	}
+}
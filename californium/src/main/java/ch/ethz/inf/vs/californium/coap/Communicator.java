@@ -31,15 +31,19 @@
 package ch.ethz.inf.vs.californium.coap;
 
 import java.io.IOException;
-import java.net.SocketException;
 
 import ch.ethz.inf.vs.californium.layers.AdverseLayer;
+import ch.ethz.inf.vs.californium.layers.DatagramChannelLayer;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.LoopbackLayer;
 import ch.ethz.inf.vs.californium.layers.TokenLayer;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
 import ch.ethz.inf.vs.californium.layers.MatchingLayer;
 import ch.ethz.inf.vs.californium.layers.TransferLayer;
+import ch.ethz.inf.vs.californium.layers.TransportLayer;
 import ch.ethz.inf.vs.californium.layers.UDPLayer;
 import ch.ethz.inf.vs.californium.layers.UpperLayer;
+import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * The class Communicator provides the message passing system and builds the
@@ -67,6 +71,7 @@ public class Communicator extends UpperLayer {
 	private static int udpPort = 0;
 	private static boolean runAsDaemon = true; // JVM will shut down if no user threads are running
 	private static int transferBlockSize = 0;
+	private static TransportLayer customTransport = null;
 
 // Members /////////////////////////////////////////////////////////////////////
 
@@ -75,7 +80,7 @@ public class Communicator extends UpperLayer {
 	protected MatchingLayer matchingLayer;
 	protected TransactionLayer transactionLayer;
 	protected AdverseLayer adverseLayer;
-	protected UDPLayer udpLayer;
+	protected TransportLayer transportLayer;
 	
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -87,15 +92,32 @@ public class Communicator extends UpperLayer {
 	 * @param defaultBlockSize The default block size used for block-wise transfers
 	 *        or -1 to disable outgoing block-wise transfers
 	 */	
-	private Communicator() throws SocketException {
+	private Communicator() throws IOException {
 		
 		// initialize layers
-		tokenLayer = new TokenLayer();
+		// both layers keep their state on the same open exchanges
+		ExchangeStore exchangeStore = new ExchangeStore();
+		
+		tokenLayer = new TokenLayer(exchangeStore);
 		transferLayer = new TransferLayer(transferBlockSize);
-		matchingLayer = new MatchingLayer();
+		matchingLayer = new MatchingLayer(exchangeStore);
 		transactionLayer = new TransactionLayer();
 		adverseLayer = new AdverseLayer();
-		udpLayer = new UDPLayer(udpPort, runAsDaemon);
+		
+		// block sizes follow the loss and RTT learned for each peer
+		transferLayer.setCongestionControl(transactionLayer.getCongestionControl());
+		
+		// select transport, see setupTransport() and UDP_TRANSPORT property
+		String transport = Properties.std.getStr("UDP_TRANSPORT");
+		if (customTransport!=null) {
+			transportLayer = customTransport;
+		} else if (transport.equals("CHANNEL")) {
+			transportLayer = new DatagramChannelLayer(udpPort, runAsDaemon);
+		} else if (transport.equals("LOOPBACK")) {
+			transportLayer = new LoopbackLayer(udpPort, runAsDaemon);
+		} else {
+			transportLayer = new UDPLayer(udpPort, runAsDaemon);
+		}
 
 		// connect layers
 		buildStack();
@@ -109,7 +131,7 @@ public class Communicator extends UpperLayer {
 				if (singleton==null) {
 					try {
 						singleton = new Communicator();
-					} catch (SocketException e) {
+					} catch (IOException e) {
 						LOG.severe(String.format("Failed to create Communicator: %s\n", e.getMessage()));
 						System.exit(-1);
 					}
@@ -147,6 +169,20 @@ public class Communicator extends UpperLayer {
 			}
 		}
 	}
+	public static void setupTransport(TransportLayer transport) {
+		if (transport!=customTransport && singleton==null) {
+			synchronized (Communicator.class) {
+				if (singleton==null) {
+					
+					customTransport = transport;
+					LOG.config(String.format("Custom transport: %s", transport.getClass().getSimpleName()));
+					
+				} else {
+					LOG.severe("Communicator already initialized, setup failed");
+				}
+			}
+		}
+	}
 	public static void setupDeamon(boolean daemon) {
 		if (daemon!=runAsDaemon && singleton==null) {
 			synchronized (Communicator.class) {
@@ -177,10 +213,10 @@ public class Communicator extends UpperLayer {
 		tokenLayer.setLowerLayer(transferLayer);
 		transferLayer.setLowerLayer(matchingLayer);
 		matchingLayer.setLowerLayer(transactionLayer);
-		transactionLayer.setLowerLayer(udpLayer);
+		transactionLayer.setLowerLayer(transportLayer);
 		
 		//transactionLayer.setLowerLayer(adverseLayer);
-		//adverseLayer.setLowerLayer(udpLayer);
+		//adverseLayer.setLowerLayer(transportLayer);
 
 	}
 
@@ -222,7 +258,7 @@ public class Communicator extends UpperLayer {
 	// Queries /////////////////////////////////////////////////////////////////
 
 	public int port() {
-		return udpLayer.getPort();
+		return transportLayer.getPort();
 	}
 
 	public TokenLayer getTokenLayer() {
@@ -242,6 +278,10 @@ public class Communicator extends UpperLayer {
 	}
 	
 	public UDPLayer getUDPLayer() {
-		return this.udpLayer;
+		return transportLayer instanceof UDPLayer ? (UDPLayer) transportLayer : null;
+	}
+	
+	public TransportLayer getTransportLayer() {
+		return this.transportLayer;
 	}
 }
@@ -106,7 +106,35 @@ public class EndpointAddress {
 			return String.format("%s:%d", this.address.getHostAddress(), this.port);
 		}
 	}
-	
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (address != null ? address.hashCode() : 0);
+		result = prime * result + port;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		EndpointAddress other = (EndpointAddress) obj;
+		if (port != other.port)
+			return false;
+		if (address == null) {
+			if (other.address != null)
+				return false;
+		} else if (!address.equals(other.address))
+			return false;
+		return true;
+	}
+
 	/**
 	 * Returns the IP address.
 	 *
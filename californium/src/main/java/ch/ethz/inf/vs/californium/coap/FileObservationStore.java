@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The class FileObservationStore appends the changes of the observing
+ * relationships to a log file. Changes are collected in memory and written
+ * and synced to disk in batches by a background thread, so that a
+ * registration never waits for the disk; a crash loses at most the changes
+ * of the last sync interval, and so does an exit without {@link #close()}.
+ * An interval of 0 writes and syncs every change on the calling thread.
+ * <p>
+ * Each entry is framed by its length and a CRC32 of its contents. On
+ * {@link #restore()}, the log is replayed up to the first torn or corrupted
+ * entry, which is dropped together with anything after it, and the log is
+ * compacted to the live relationships once stale entries of removed or
+ * replaced relationships outnumber them.
+ */
+public class FileObservationStore implements ObservationStore {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(FileObservationStore.class.getName());
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** Identifies the log file and its format version */
+	private static final int MAGIC = 0x43664F32; // "CfO2"
+	
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Identifies a relationship while replaying the log.
+	 */
+	private static final class Key {
+		
+		private final EndpointAddress peer;
+		private final String path;
+		
+		Key(EndpointAddress peer, String path) {
+			this.peer = peer;
+			this.path = path;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * peer.hashCode() + path.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return peer.equals(other.peer) && path.equals(other.path);
+		}
+	}
+	
+	/*
+	 * Encodes an entry and frames it by its length and CRC32.
+	 */
+	private static final class EntryWriter extends ByteArrayOutputStream {
+		
+		final DataOutputStream data = new DataOutputStream(this);
+		final CRC32 crc = new CRC32();
+		
+		EntryWriter() {
+			super(64);
+		}
+		
+		void writeTo(DataOutputStream out) throws IOException {
+			crc.reset();
+			crc.update(buf, 0, count);
+			out.writeInt(count);
+			out.writeInt((int) crc.getValue());
+			out.write(buf, 0, count);
+			reset();
+		}
+	}
+	
+	/*
+	 * Writes and syncs the collected changes periodically.
+	 */
+	private class SyncThread extends Thread {
+		
+		SyncThread() {
+			super("ObservationStoreSync");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					Thread.sleep(syncInterval);
+				} catch (InterruptedException e) {
+					// closing, sync once more
+				}
+				sync();
+			}
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final File file;
+	private final int syncInterval;
+	
+	/** The log opened for appending */
+	private FileChannel channel;
+	
+	/** The encoded changes since the last sync, guarded by this */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+	private EntryWriter entry = new EntryWriter();
+	
+	/** Orders the writes of batches */
+	private final Object syncLock = new Object();
+	
+	private volatile boolean running = false;
+	private SyncThread syncThread;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a store that is opened by {@link #restore()}.
+	 * 
+	 * @param file the log file, which is created if missing
+	 * @param syncInterval the interval between syncs in milliseconds, 0 to
+	 *            sync every change
+	 */
+	public FileObservationStore(File file, int syncInterval) {
+		this.file = file;
+		this.syncInterval = Math.max(0, syncInterval);
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	@Override
+	public List<ObservationRecord> restore() throws IOException {
+		
+		Map<Key, ObservationRecord> live = new LinkedHashMap<Key, ObservationRecord>();
+		
+		// rewrite only if removed or replaced relationships dominate the log
+		if (!file.exists() || file.length()==0 || replay(live)) {
+			compact(live.values());
+		}
+		
+		channel = new FileOutputStream(file, true).getChannel();
+		
+		running = true;
+		if (syncInterval>0) {
+			syncThread = new SyncThread();
+			syncThread.start();
+		}
+		
+		return new ArrayList<ObservationRecord>(live.values());
+	}
+	
+	@Override
+	public void add(ObservationRecord record) {
+		synchronized (this) {
+			try {
+				writeEntry(entry.data, record);
+				entry.writeTo(pendingOut);
+			} catch (IOException e) {
+				// not thrown by a ByteArrayOutputStream
+				throw new IllegalStateException(e);
+			}
+		}
+		if (syncInterval==0) {
+			sync();
+		}
+	}
+	
+	@Override
+	public void remove(EndpointAddress peer, String path) {
+		synchronized (this) {
+			try {
+				entry.data.writeByte(REMOVE);
+				writeAddress(entry.data, peer);
+				entry.data.writeUTF(path);
+				entry.writeTo(pendingOut);
+			} catch (IOException e) {
+				// not thrown by a ByteArrayOutputStream
+				throw new IllegalStateException(e);
+			}
+		}
+		if (syncInterval==0) {
+			sync();
+		}
+	}
+	
+	@Override
+	public void close() {
+		running = false;
+		if (syncThread!=null) {
+			syncThread.interrupt();
+			try {
+				syncThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		sync();
+		synchronized (syncLock) {
+			if (channel!=null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LOG.warning(String.format("Cannot close observation store %s: %s", file, e.getMessage()));
+				}
+				channel = null;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the collected changes and syncs them to disk.
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			
+			byte[] batch;
+			synchronized (this) {
+				if (pending.size()==0) {
+					return;
+				}
+				batch = pending.toByteArray();
+				pending.reset();
+			}
+			
+			if (channel==null) {
+				LOG.warning(String.format("Observation store %s not open, dropping %d bytes", file, batch.length));
+				return;
+			}
+			
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				LOG.severe(String.format("Cannot write observation store %s: %s", file, e.getMessage()));
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	/*
+	 * Reads the log up to its last complete entry and returns whether it needs
+	 * compaction, i.e., has a torn tail or more stale than live entries.
+	 */
+	private boolean replay(Map<Key, ObservationRecord> live) throws IOException {
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		long valid = 0;
+		int entries = 0;
+		
+		try {
+			try {
+				if (in.readInt()!=MAGIC) {
+					throw new IOException("Not an observation store: " + file);
+				}
+			} catch (EOFException e) {
+				LOG.warning(String.format("Dropping truncated observation store %s", file));
+				return true;
+			}
+			valid = 4;
+			
+			long size = file.length();
+			byte[] entry = new byte[256];
+			CRC32 crc = new CRC32();
+			for (;;) {
+				int length;
+				try {
+					length = in.readInt();
+					int checksum = in.readInt();
+					
+					// a corrupted length must not allocate beyond the file
+					if (length<=0 || length>size - valid - 8) break;
+					if (length>entry.length) {
+						entry = new byte[length];
+					}
+					in.readFully(entry, 0, length);
+					
+					crc.reset();
+					crc.update(entry, 0, length);
+					if ((int) crc.getValue()!=checksum) break;
+				} catch (EOFException e) {
+					break;
+				}
+				
+				// any entry that cannot be decoded ends the valid log
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(entry, 0, length));
+				try {
+					byte type = data.readByte();
+					if (type==ADD) {
+						ObservationRecord record = readRecord(data);
+						live.put(new Key(record.getPeer(), record.getPath()), record);
+					} else if (type==REMOVE) {
+						EndpointAddress peer = readAddress(data);
+						live.remove(new Key(peer, data.readUTF()));
+					} else {
+						break;
+					}
+				} catch (IOException e) {
+					break;
+				} catch (RuntimeException e) {
+					break;
+				}
+				
+				valid += 8 + length;
+				++entries;
+			}
+		} finally {
+			in.close();
+		}
+		
+		LOG.info(String.format("Replayed %d changes to %d observing relationships from %s", entries, live.size(), file));
+		
+		if (valid<file.length()) {
+			LOG.warning(String.format("Dropping torn or corrupted entries after %d bytes of observation store %s", valid, file));
+			return true;
+		}
+		
+		return entries - live.size() > live.size();
+	}
+	
+	/*
+	 * Replaces the log with the live relationships.
+	 */
+	private void compact(Iterable<ObservationRecord> live) throws IOException {
+		
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			EntryWriter entry = new EntryWriter();
+			out.writeInt(MAGIC);
+			for (ObservationRecord record : live) {
+				writeEntry(entry.data, record);
+				entry.writeTo(out);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		
+		if (!temp.renameTo(file)) {
+			// cannot replace existing files on some platforms
+			if (!file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Cannot replace observation store " + file);
+			}
+		}
+	}
+	
+	private static void writeEntry(DataOutputStream out, ObservationRecord record) throws IOException {
+		out.writeByte(ADD);
+		writeAddress(out, record.getPeer());
+		out.writeUTF(record.getPath());
+		out.writeUTF(record.getQuery());
+		out.writeByte(record.getToken().length);
+		out.write(record.getToken());
+		out.writeInt(record.getAccept());
+		out.writeLong(record.getStartTime());
+	}
+	
+	private static ObservationRecord readRecord(DataInputStream in) throws IOException {
+		EndpointAddress peer = readAddress(in);
+		String path = in.readUTF();
+		String query = in.readUTF();
+		byte[] token = new byte[in.readUnsignedByte()];
+		in.readFully(token);
+		int accept = in.readInt();
+		long startTime = in.readLong();
+		return new ObservationRecord(peer, path, query, token, accept, startTime);
+	}
+	
+	private static void writeAddress(DataOutputStream out, EndpointAddress peer) throws IOException {
+		byte[] address = peer.getAddress().getAddress();
+		out.writeByte(address.length);
+		out.write(address);
+		out.writeShort(peer.getPort());
+	}
+	
+	private static EndpointAddress readAddress(DataInputStream in) throws IOException {
+		byte[] address = new byte[in.readUnsignedByte()];
+		in.readFully(address);
+		return new EndpointAddress(InetAddress.getByAddress(address), in.readUnsignedShort());
+	}
+}
@@ -35,6 +35,9 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -43,8 +46,6 @@ import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.layers.UpperLayer;
-import ch.ethz.inf.vs.californium.util.DatagramReader;
-import ch.ethz.inf.vs.californium.util.DatagramWriter;
 
 /**
  * The Class Message provides the object representation of a CoAP message.
@@ -114,6 +115,12 @@ public class Message {
 	// the base option length field only
 	public static final int MAX_OPTIONLENGTH_BASE = (1 << OPTIONLENGTH_BASE_BITS) - 2;
 	
+	// maximum number of options that can be encoded in the option count field
+	public static final int MAX_OPTIONCOUNT = (1 << OPTIONCOUNT_BITS) - 1;
+	
+	// length of the fixed-size header in bytes
+	public static final int HEADER_LENGTH = (VERSION_BITS + TYPE_BITS + OPTIONCOUNT_BITS + CODE_BITS + ID_BITS) / Byte.SIZE;
+	
 // Members /////////////////////////////////////////////////////////////////////
 	
 	/** The receiver for this message. */
@@ -148,6 +155,11 @@ public class Message {
 	
 	private int retransmissioned = 0;
 	
+	// keys computed on first use and cleared when peer, MID, type, or token change
+	private MessageKey key = null;
+	private MessageKey transactionKey = null;
+	private MessageKey sequenceKey = null;
+	
 	// indicates if the message requires a token
 	// this is required to handle implicit empty tokens (default value)
 	protected boolean requiresToken = true;
@@ -220,114 +232,216 @@ public class Message {
 	 */
 	public byte[] toByteArray() {
 		
-		// create datagram writer to encode options
-		DatagramWriter optWriter = new DatagramWriter(); 
+		byte[] data = new byte[getEncodedLength()];
+		
+		toByteBuffer(ByteBuffer.wrap(data));
+		
+		return data;
+	}
+
+	/**
+	 * Encodes the message into a caller-supplied array
+	 * 
+	 * @param buffer The array to write the CoAP encoding to
+	 * @param offset The index of the first byte to write
+	 * @param length The number of bytes available from offset on
+	 * @return The number of bytes written
+	 * @throws java.nio.BufferOverflowException if the encoding does not fit
+	 */
+	public int toByteArray(byte[] buffer, int offset, int length) {
+		
+		ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+		
+		toByteBuffer(target);
+		
+		return target.position() - offset;
+	}
+
+	/**
+	 * Encodes the message into a buffer, starting at its position, which is
+	 * advanced by the length of the encoding. The options are written first,
+	 * as the option count in the fixed-size header includes the fencepost
+	 * options.
+	 * 
+	 * @param buffer The buffer to write the CoAP encoding to
+	 * @throws java.nio.BufferOverflowException if the encoding does not fit
+	 */
+	public void toByteBuffer(ByteBuffer buffer) {
+		
+		// reserve fixed-size CoAP header
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_LENGTH) {
+			throw new BufferOverflowException();
+		}
+		buffer.position(start + HEADER_LENGTH);
 		
 		int optionCount = 0;
 		int lastOptionNumber = 0;
-		for (Option opt : getOptions()) {
-			
-			// do not encode options with default values
-			if (opt.isDefaultValue()) continue;
-			
-			// calculate option delta
-			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
-			
-			// ensure that option delta value can be encoded correctly
-			while (optionDelta > MAX_OPTIONDELTA) {
-				
-				// option delta is too large to be encoded:
-				// add fencepost options in order to reduce the option delta
-				
-				// get fencepost option that is next to the last option
-				int fencepostNumber = 
-					OptionNumberRegistry.nextFencepost(lastOptionNumber);
+		for (List<Option> options : optionMap.values()) {
+			for (Option opt : options) {
 				
-				// calculate fencepost delta
-				int fencepostDelta = fencepostNumber - lastOptionNumber;
+				// do not encode options with default values
+				if (opt.isDefaultValue()) continue;
 				
-				// correctness assertions
-				//assert fencepostDelta > 0: "Fencepost liveness";
-				//assert fencepostDelta <= MAX_OPTIONDELTA: "Fencepost safety";
-				if (fencepostDelta <= 0) {
-					LOG.warning(String.format("Fencepost liveness violated: delta = %d", fencepostDelta));
-				}
-				if (fencepostDelta > MAX_OPTIONDELTA) {
-					LOG.warning(String.format("Fencepost safety violated: delta = %d", fencepostDelta));
-				}
-
-				// write fencepost option delta
-				optWriter.write(fencepostDelta, OPTIONDELTA_BITS);
-				
-				// fencepost have an empty value
-				optWriter.write(0, OPTIONLENGTH_BASE_BITS);
-				//System.out.printf("DEBUG: %d\n", fencepostDelta);
-				
-				// increment option count
-				++optionCount;
+				optionCount += writeOption(buffer, opt, lastOptionNumber);
 				
 				// update last option number
-				lastOptionNumber = fencepostNumber;
-				
-				// update option delta
-				optionDelta -= fencepostDelta;
+				lastOptionNumber = opt.getOptionNumber();
 			}
+		}
+		
+		if (optionCount > MAX_OPTIONCOUNT) {
+			LOG.warning(String.format("Truncating option count %d", optionCount));
+		}
+		
+		//write payload
+		if (payload != null) {
+			buffer.put(payload);
+		}
+
+		// write fixed-size CoAP header
+		buffer.put(start, (byte) ((version << 6) | (type.ordinal() << 4) | (optionCount & MAX_OPTIONCOUNT)));
+		buffer.put(start + 1, (byte) code);
+		buffer.put(start + 2, (byte) (messageID >>> 8));
+		buffer.put(start + 3, (byte) messageID);
+	}
+
+	/**
+	 * Writes an option after the option with the given number, preceded by
+	 * fencepost options if the option delta is too large.
+	 * 
+	 * @param buffer The buffer to write the option to
+	 * @param opt The option
+	 * @param lastOptionNumber The number of the previous option, 0 for none
+	 * @return The number of options written, including fenceposts
+	 */
+	protected static int writeOption(ByteBuffer buffer, Option opt, int lastOptionNumber) {
+		
+		int optionCount = 0;
+		
+		// calculate option delta
+		int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+		
+		// ensure that option delta value can be encoded correctly
+		while (optionDelta > MAX_OPTIONDELTA) {
 			
-			// write option delta
-			optWriter.write(optionDelta, OPTIONDELTA_BITS);
+			// option delta is too large to be encoded:
+			// add fencepost options in order to reduce the option delta
 			
-			// write option length
-			int length = opt.getLength();
-			if (length <= MAX_OPTIONLENGTH_BASE) {
-				
-				// use option length base field only to encode
-				// option lengths less or equal than MAX_OPTIONLENGTH_BASE
-				
-				optWriter.write(length, OPTIONLENGTH_BASE_BITS);
-				
-			} else {
-				
-				// use both option length base and extended field
-				// to encode option lengths greater than MAX_OPTIONLENGTH_BASE
-				
-				int baseLength = MAX_OPTIONLENGTH_BASE + 1;
-				optWriter.write(baseLength, OPTIONLENGTH_BASE_BITS);
-				
-				int extLength = length - baseLength;
-				optWriter.write(extLength, OPTIONLENGTH_EXTENDED_BITS);
-				
+			// get fencepost option that is next to the last option
+			int fencepostNumber = 
+				OptionNumberRegistry.nextFencepost(lastOptionNumber);
+			
+			// calculate fencepost delta
+			int fencepostDelta = fencepostNumber - lastOptionNumber;
+			
+			if (fencepostDelta <= 0) {
+				LOG.warning(String.format("Fencepost liveness violated: delta = %d", fencepostDelta));
+			}
+			if (fencepostDelta > MAX_OPTIONDELTA) {
+				LOG.warning(String.format("Fencepost safety violated: delta = %d", fencepostDelta));
 			}
 
-			// write option value
-			optWriter.writeBytes(opt.getRawValue());
+			// write fencepost option delta, fencepost have an empty value
+			buffer.put((byte) (fencepostDelta << OPTIONLENGTH_BASE_BITS));
 			
 			// increment option count
 			++optionCount;
 			
 			// update last option number
-			lastOptionNumber = opt.getOptionNumber();
+			lastOptionNumber = fencepostNumber;
+			
+			// update option delta
+			optionDelta -= fencepostDelta;
 		}
-
 		
-		// create datagram writer to encode message data
-		DatagramWriter writer = new DatagramWriter();
+		// write option delta and length
+		int length = opt.getLength();
+		if (length <= MAX_OPTIONLENGTH_BASE) {
+			
+			// use option length base field only to encode
+			// option lengths less or equal than MAX_OPTIONLENGTH_BASE
+			
+			buffer.put((byte) ((optionDelta << OPTIONLENGTH_BASE_BITS) | length));
+			
+		} else {
+			
+			// use both option length base and extended field
+			// to encode option lengths greater than MAX_OPTIONLENGTH_BASE
+			
+			int baseLength = MAX_OPTIONLENGTH_BASE + 1;
+			int extLength = length - baseLength;
+			if (extLength > 0xFF) {
+				LOG.warning(String.format("Truncating option length %d of option %d", length, opt.getOptionNumber()));
+			}
+			
+			buffer.put((byte) ((optionDelta << OPTIONLENGTH_BASE_BITS) | baseLength));
+			buffer.put((byte) extLength);
+		}
+
+		// write option value
+		if (length > 0) {
+			buffer.put(opt.getRawValue());
+		}
 		
-		// write fixed-size CoAP header
-		writer.write(version, VERSION_BITS);
-		writer.write(type.ordinal(), TYPE_BITS);
-		writer.write(optionCount, OPTIONCOUNT_BITS);
-		writer.write(code, CODE_BITS);
-		writer.write(messageID, ID_BITS);
+		// increment option count
+		++optionCount;
 		
+		return optionCount;
+	}
 	
-		// write options
-		writer.writeBytes(optWriter.toByteArray());
+	/**
+	 * Calculates the encoded length of an option after the option with the
+	 * given number, including fencepost options.
+	 * 
+	 * @param opt The option
+	 * @param lastOptionNumber The number of the previous option, 0 for none
+	 * @return The number of bytes {@link #writeOption(ByteBuffer, Option, int)} writes
+	 */
+	protected static int getEncodedLength(Option opt, int lastOptionNumber) {
 		
-		//write payload
-		writer.writeBytes(payload);
+		int length = 0;
+		int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+		
+		// fencepost options have an empty value
+		while (optionDelta > MAX_OPTIONDELTA) {
+			int fencepostNumber = OptionNumberRegistry.nextFencepost(lastOptionNumber);
+			optionDelta -= fencepostNumber - lastOptionNumber;
+			lastOptionNumber = fencepostNumber;
+			++length;
+		}
+		
+		int valueLength = opt.getLength();
+		return length + (valueLength <= MAX_OPTIONLENGTH_BASE ? 1 : 2) + valueLength;
+	}
 
-		// return encoded message
-		return writer.toByteArray();
+	/**
+	 * Calculates the length of the CoAP encoding of this message, including
+	 * fencepost options, without encoding it
+	 * 
+	 * @return The number of bytes {@link #toByteBuffer(ByteBuffer)} writes
+	 */
+	public int getEncodedLength() {
+		
+		int length = HEADER_LENGTH;
+		
+		int lastOptionNumber = 0;
+		for (List<Option> options : optionMap.values()) {
+			for (Option opt : options) {
+				
+				if (opt.isDefaultValue()) continue;
+				
+				length += getEncodedLength(opt, lastOptionNumber);
+				
+				lastOptionNumber = opt.getOptionNumber();
+			}
+		}
+		
+		if (payload != null) {
+			length += payload.length;
+		}
+		
+		return length;
 	}
 
 	/**
@@ -338,21 +452,46 @@ public class Message {
 	 * 
 	 */
 	public static Message fromByteArray(byte[] byteArray) {
+		return fromByteBuffer(ByteBuffer.wrap(byteArray));
+	}
 
-		//Initialize DatagramReader
-		DatagramReader datagram = new DatagramReader(byteArray);
-		
-		//Read current version
-		int version = datagram.read(VERSION_BITS); // non-blocking
+	/**
+	 * Decodes the message from a range of a caller-supplied array
+	 * 
+	 * @param byteArray An array containing the CoAP encoding of the message
+	 * @param offset The index of the first byte of the message
+	 * @param length The length of the message in bytes
+	 * 
+	 */
+	public static Message fromByteArray(byte[] byteArray, int offset, int length) {
+		return fromByteBuffer(ByteBuffer.wrap(byteArray, offset, length));
+	}
+
+	/**
+	 * Decodes the message from the remaining bytes of a buffer without
+	 * copying the datagram into an intermediate array
+	 * 
+	 * @param buffer A buffer containing the CoAP encoding of the message
+	 *            between its position and limit
+	 * @return The decoded message or null if the encoding is invalid
+	 * 
+	 */
+	public static Message fromByteBuffer(ByteBuffer buffer) {
+
+		if (buffer.remaining() < HEADER_LENGTH) {
+			LOG.info(String.format("Received truncated message: %d bytes\n", buffer.remaining()));
+			return null;
+		}
 		
-		//Read current type
-		messageType type = getTypeByValue(datagram.read(TYPE_BITS));
+		// read fixed-size CoAP header
+		int first = buffer.get() & 0xFF;
 		
-		//Read number of options
-		int optionCount = datagram.read(OPTIONCOUNT_BITS);
+		int version = first >>> 6;
+		messageType type = getTypeByValue((first >>> 4) & 0x03);
+		int optionCount = first & MAX_OPTIONCOUNT;
 		
 		//Read code
-		int code = datagram.read(CODE_BITS);
+		int code = buffer.get() & 0xFF;
 		if (!CodeRegistry.isValid(code)) {
 			LOG.info(String.format("Received invalid message code: %d\n", code));
 			return null;
@@ -372,50 +511,51 @@ public class Message {
 		msg.code = code;
 		
 		//Read message ID
-		msg.messageID = datagram.read(ID_BITS);
+		msg.messageID = ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
 		
-		//Current option nr initialization
-		int currentOption = 0;
-
-		//Loop over all options
-		for (int i=0; i < optionCount; i++) {
-			
-			//Read option delta bits
-			int optionDelta = datagram.read(OPTIONDELTA_BITS);
+		try {
 			
-			currentOption += optionDelta;
-			//System.out.printf("DEBUG MSG: %d\n", optionDelta);
-			if (OptionNumberRegistry.isFencepost(currentOption))
-			{
-				//Read number of options
-				datagram.read(OPTIONLENGTH_BASE_BITS);
+			//Current option nr initialization
+			int currentOption = 0;
+	
+			//Loop over all options
+			for (int i=0; i < optionCount; i++) {
 				
-			} else {
+				//Read option delta and length
+				int optionHeader = buffer.get() & 0xFF;
 				
-				//Read option length
-				int length = datagram.read(OPTIONLENGTH_BASE_BITS);
+				currentOption += optionHeader >>> OPTIONLENGTH_BASE_BITS;
 				
-				if (length > MAX_OPTIONLENGTH_BASE)
-				{
-					//Read extended option length
-					//length = datagram.read(OPTIONLENGTH_EXTENDED_BITS)
-					//		 - (MAX_OPTIONLENGTH_BASE + 1);
+				// fencepost options have an empty value
+				if (!OptionNumberRegistry.isFencepost(currentOption)) {
+					
+					int length = optionHeader & 0x0F;
+					
+					if (length > MAX_OPTIONLENGTH_BASE) {
+						//Read extended option length
+						length += buffer.get() & 0xFF;
+					}
+					
+					//Read option
+					byte[] value = new byte[length];
+					buffer.get(value);
+					
+					Option opt = Option.fromNumber(currentOption);
+					opt.setValue(value);
 					
-					length += datagram.read(OPTIONLENGTH_EXTENDED_BITS);
+					//Add option to message
+					msg.addOption(opt);
 				}
-				//Read option
-				//Option opt = new Option (datagram.readBytes(length), currentOption);
-				Option opt = Option.fromNumber(currentOption);
-				opt.setValue(datagram.readBytes(length));
-				
-				//Add option to message
-				msg.addOption(opt);
 			}
 			
+		} catch (BufferUnderflowException e) {
+			LOG.info(String.format("Received message with truncated options: %d\n", msg.messageID));
+			return null;
 		}
 
 		// Get payload
-		msg.payload = datagram.readBytesLeft();
+		msg.payload = new byte[buffer.remaining()];
+		buffer.get(msg.payload);
 		
 		// incoming message already have a token, including implicit empty token
 		msg.requiresToken = false;
@@ -579,6 +719,8 @@ public class Message {
 	 */
 	public void setMID(int mid) {
 		this.messageID = mid;
+		this.key = null;
+		this.transactionKey = null;
 	}
 
 	public EndpointAddress getPeerAddress() {
@@ -587,6 +729,9 @@ public class Message {
 
 	public void setPeerAddress(EndpointAddress a) {
 		this.peerAddress = a;
+		this.key = null;
+		this.transactionKey = null;
+		this.sequenceKey = null;
 	}
 	
 	/**
@@ -802,23 +947,34 @@ public class Message {
 	}
 
 	/**
-	 * Returns a string that is assumed to uniquely identify a message.
+	 * Returns a key that is assumed to uniquely identify a message. The key
+	 * is computed once and its string form only when logged.
 	 * 
-	 * @return A string identifying the message
+	 * @return A key identifying the message
 	 */
-	public String key() {
-		return String.format("%s|%d|%s", peerAddress!=null ? peerAddress.toString() : "local", messageID, typeString());
+	public MessageKey key() {
+		MessageKey result = key;
+		if (result == null) {
+			result = MessageKey.messageKey(peerAddress, messageID, type);
+			key = result;
+		}
+		return result;
 	}
 	
 	/**
-	 * Returns a string that is assumed to uniquely identify a transaction.
+	 * Returns a key that is assumed to uniquely identify a transaction.
 	 * A transaction matches two buddies that have the same message ID between
 	 * one this and the peer endpoint.
 	 * 
-	 * @return A string identifying the transaction
+	 * @return A key identifying the transaction
 	 */
-	public String transactionKey() {
-		return String.format("%s|%d", peerAddress!=null ? peerAddress.toString() : "local", messageID);
+	public MessageKey transactionKey() {
+		MessageKey result = transactionKey;
+		if (result == null) {
+			result = MessageKey.transactionKey(peerAddress, messageID);
+			transactionKey = result;
+		}
+		return result;
 	}
 
 	/**
@@ -828,10 +984,15 @@ public class Message {
 	 * The transfer matching is done using the token (including the empty
 	 * default token.
 	 * 
-	 * @return A string identifying the transfer
+	 * @return A key identifying the transfer
 	 */
-	public String sequenceKey() {
-		return String.format("%s#%s", peerAddress!=null ? peerAddress.toString() : "local", getTokenString());
+	public MessageKey sequenceKey() {
+		MessageKey result = sequenceKey;
+		if (result == null) {
+			result = MessageKey.sequenceKey(peerAddress, getToken());
+			sequenceKey = result;
+		}
+		return result;
 	}
 
 
@@ -853,6 +1014,7 @@ public class Message {
 	 */
 	public void setType(messageType msgType) {
 		this.type = msgType;
+		this.key = null;
 	}
 
 
@@ -889,6 +1051,7 @@ public class Message {
 		
 		if (optionNumber==OptionNumberRegistry.TOKEN) {
 			requiresToken = false;
+			sequenceKey = null;
 		}
 	}
 
@@ -900,6 +1063,10 @@ public class Message {
 	 */	
 	public void removeOptions(int optionNumber) {
 		optionMap.remove(optionNumber);
+		
+		if (optionNumber==OptionNumberRegistry.TOKEN) {
+			sequenceKey = null;
+		}
 	}
 	
 	/**
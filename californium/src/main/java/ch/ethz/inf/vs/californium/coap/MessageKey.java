@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.util.Arrays;
+
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+
+/**
+ * The class MessageKey identifies a message, transaction, or sequence of
+ * exchanges (see {@link Message#key()}, {@link Message#transactionKey()},
+ * and {@link Message#sequenceKey()}). Keys are immutable and compare the raw
+ * bytes of peer address, port, and message ID, type, or token with a
+ * precomputed hash code, so that they can be used in hash tables without
+ * building strings. The string form is only built when needed for logging.
+ */
+public final class MessageKey {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final byte KIND_MESSAGE = 1;
+	private static final byte KIND_TRANSACTION = 2;
+	private static final byte KIND_SEQUENCE = 3;
+	
+	private static final byte[] NO_ADDRESS = new byte[0];
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The kind, peer address, port, and message ID, type, or token. */
+	private final byte[] bytes;
+	
+	private final int hash;
+	
+	// for the string form
+	private final EndpointAddress peer;
+	private final int mid;
+	private final messageType type;
+	private final byte[] token;
+	
+	private String string;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	private MessageKey(byte kind, EndpointAddress peer, int mid, messageType type, byte[] token) {
+		
+		this.peer = peer;
+		this.mid = mid;
+		this.type = type;
+		this.token = token;
+		
+		byte[] address = peer != null && peer.getAddress() != null ? peer.getAddress().getAddress() : NO_ADDRESS;
+		int port = peer != null ? peer.getPort() : 0;
+		
+		int length = 1 + address.length + 2;
+		if (kind == KIND_SEQUENCE) {
+			length += token.length;
+		} else {
+			length += kind == KIND_MESSAGE ? 3 : 2;
+		}
+		
+		bytes = new byte[length];
+		bytes[0] = kind;
+		System.arraycopy(address, 0, bytes, 1, address.length);
+		int i = 1 + address.length;
+		bytes[i++] = (byte) (port >>> 8);
+		bytes[i++] = (byte) port;
+		
+		if (kind == KIND_SEQUENCE) {
+			System.arraycopy(token, 0, bytes, i, token.length);
+		} else {
+			bytes[i++] = (byte) (mid >>> 8);
+			bytes[i++] = (byte) mid;
+			if (kind == KIND_MESSAGE) {
+				bytes[i] = (byte) (type != null ? type.ordinal() + 1 : 0);
+			}
+		}
+		
+		hash = Arrays.hashCode(bytes);
+	}
+
+// Static Factories ////////////////////////////////////////////////////////////
+	
+	/**
+	 * Creates the key of a single message.
+	 * 
+	 * @param peer the peer address, or null for local messages
+	 * @param mid the message ID
+	 * @param type the message type
+	 * @return the key
+	 */
+	public static MessageKey messageKey(EndpointAddress peer, int mid, messageType type) {
+		return new MessageKey(KIND_MESSAGE, peer, mid, type, null);
+	}
+	
+	/**
+	 * Creates the key of a transaction, i.e., a message and its reply.
+	 * 
+	 * @param peer the peer address, or null for local messages
+	 * @param mid the message ID
+	 * @return the key
+	 */
+	public static MessageKey transactionKey(EndpointAddress peer, int mid) {
+		return new MessageKey(KIND_TRANSACTION, peer, mid, null, null);
+	}
+	
+	/**
+	 * Creates the key of a sequence of exchanges using the same token.
+	 * 
+	 * @param peer the peer address, or null for local messages
+	 * @param token the token
+	 * @return the key
+	 */
+	public static MessageKey sequenceKey(EndpointAddress peer, byte[] token) {
+		return new MessageKey(KIND_SEQUENCE, peer, -1, null, token.clone());
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof MessageKey)) {
+			return false;
+		}
+		MessageKey other = (MessageKey) obj;
+		return hash == other.hash && Arrays.equals(bytes, other.bytes);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		
+		// racy, but always builds the same string
+		String result = string;
+		if (result == null) {
+			
+			String peerString = peer != null ? peer.toString() : "local";
+			
+			switch (bytes[0]) {
+				case KIND_MESSAGE:
+					result = String.format("%s|%d|%s", peerString, mid, typeString(type));
+					break;
+				case KIND_TRANSACTION:
+					result = String.format("%s|%d", peerString, mid);
+					break;
+				default:
+					result = String.format("%s#%s", peerString, Option.hex(token));
+					break;
+			}
+			string = result;
+		}
+		return result;
+	}
+	
+	private static String typeString(messageType type) {
+		if (type != null) switch (type) {
+			case CON : return "CON";
+			case NON : return "NON";
+			case ACK : return "ACK";
+			case RST : return "RST";
+			default  : return "???";
+		}
+		return null;
+	}
+}
@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The class Notification is a response to an observer that shares the
+ * representation with the notifications of the other observers. The options
+ * and the payload of the response of the resource are encoded once into a
+ * {@link Template}; a notification only adds the Token and Observe options
+ * of its observer and is encoded from the template, which must not be
+ * modified while notifications are in flight.
+ * <p>
+ * Options set later, e.g., by the TransferLayer, take precedence over the
+ * ones of the template, but are not encoded as quickly.
+ */
+public class Notification extends Response {
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * The encoded representation shared by the notifications of a change.
+	 */
+	public static final class Template {
+		
+		private final Response source;
+		private final byte[] payload;
+		
+		// options before Observe
+		private final byte[] prefix;
+		private final int prefixCount;
+		private final int lastPrefixNumber;
+		
+		// options after Token, encoded to follow a Token option
+		private final List<Option> suffixOptions;
+		private final byte[] suffix;
+		private final int suffixCount;
+		
+		// parsed lazily for step thresholds
+		private Double value;
+		
+		private Template(Response source, byte[] prefix, int prefixCount, int lastPrefixNumber, List<Option> suffixOptions, byte[] suffix, int suffixCount) {
+			this.source = source;
+			this.payload = source.getPayload() != null ? source.getPayload() : new byte[0];
+			this.prefix = prefix;
+			this.prefixCount = prefixCount;
+			this.lastPrefixNumber = lastPrefixNumber;
+			this.suffixOptions = suffixOptions;
+			this.suffix = suffix;
+			this.suffixCount = suffixCount;
+		}
+		
+		/**
+		 * Encodes the options but Token and Observe and takes the payload of
+		 * the response of a resource.
+		 * 
+		 * @param source the response
+		 * @return the template
+		 */
+		public static Template create(Response source) {
+			
+			List<Option> prefixOptions = new ArrayList<Option>();
+			List<Option> suffixOptions = new ArrayList<Option>();
+			for (Option opt : source.getOptions()) {
+				if (opt.isDefaultValue() || opt.getOptionNumber() == OptionNumberRegistry.OBSERVE || opt.getOptionNumber() == OptionNumberRegistry.TOKEN) {
+					continue;
+				}
+				if (opt.getOptionNumber() < OptionNumberRegistry.OBSERVE) {
+					prefixOptions.add(opt);
+				} else {
+					suffixOptions.add(opt);
+				}
+			}
+			
+			int lastPrefixNumber = 0;
+			int length = 0;
+			for (Option opt : prefixOptions) {
+				length += getEncodedLength(opt, lastPrefixNumber);
+				lastPrefixNumber = opt.getOptionNumber();
+			}
+			ByteBuffer prefix = ByteBuffer.allocate(length);
+			int prefixCount = writeOptions(prefix, prefixOptions, 0);
+			
+			int lastNumber = OptionNumberRegistry.TOKEN;
+			length = 0;
+			for (Option opt : suffixOptions) {
+				length += getEncodedLength(opt, lastNumber);
+				lastNumber = opt.getOptionNumber();
+			}
+			ByteBuffer suffix = ByteBuffer.allocate(length);
+			int suffixCount = writeOptions(suffix, suffixOptions, OptionNumberRegistry.TOKEN);
+			
+			return new Template(source, prefix.array(), prefixCount, lastPrefixNumber, suffixOptions, suffix.array(), suffixCount);
+		}
+		
+		public int getPayloadSize() {
+			return payload.length;
+		}
+		
+		/**
+		 * Returns the payload as number for step thresholds.
+		 * 
+		 * @return the value, or NaN if the payload is not numeric
+		 */
+		public double getValue() {
+			Double parsed = value;
+			if (parsed==null) {
+				parsed = NotificationPolicy.parseValue(payload);
+				value = parsed;
+			}
+			return parsed;
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Template template;
+	
+	/** True if options beyond Token and Observe were set. */
+	private boolean modified;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a notification with the shared representation.
+	 * 
+	 * @param template the template of the representation
+	 */
+	public Notification(Template template) {
+		super(template.source.getCode());
+		this.template = template;
+	}
+
+// Options /////////////////////////////////////////////////////////////////////
+	
+	@Override
+	public void addOption(Option option) {
+		super.addOption(option);
+		if (option.getOptionNumber() != OptionNumberRegistry.OBSERVE && option.getOptionNumber() != OptionNumberRegistry.TOKEN) {
+			modified = true;
+		}
+	}
+	
+	@Override
+	public List<Option> getOptions(int optionNumber) {
+		List<Option> own = super.getOptions(optionNumber);
+		if (!own.isEmpty() || optionNumber == OptionNumberRegistry.OBSERVE || optionNumber == OptionNumberRegistry.TOKEN) {
+			return own;
+		} else {
+			return template.source.getOptions(optionNumber);
+		}
+	}
+	
+	@Override
+	public List<Option> getOptions() {
+		
+		// merge the sorted own options with the ones of the template
+		List<Option> own = super.getOptions();
+		List<Option> list = new ArrayList<Option>();
+		int i = 0;
+		for (Option opt : template.source.getOptions()) {
+			int number = opt.getOptionNumber();
+			while (i < own.size() && own.get(i).getOptionNumber() <= number) {
+				list.add(own.get(i++));
+			}
+			if (number != OptionNumberRegistry.OBSERVE && number != OptionNumberRegistry.TOKEN && super.getOptions(number).isEmpty()) {
+				list.add(opt);
+			}
+		}
+		list.addAll(own.subList(i, own.size()));
+		return list;
+	}
+	
+// Payload /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the shared payload of the representation, which must not be
+	 * modified.
+	 */
+	@Override
+	public byte[] getPayload() {
+		return template.payload;
+	}
+	
+	@Override
+	public String getPayloadString() {
+		try {
+			return new String(template.payload, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public int payloadSize() {
+		return template.payload.length;
+	}
+
+// Serialization ///////////////////////////////////////////////////////////////
+	
+	@Override
+	public void toByteBuffer(ByteBuffer buffer) {
+		
+		int start = buffer.position();
+		if (buffer.remaining() < getEncodedLength()) {
+			throw new BufferOverflowException();
+		}
+		buffer.position(start + HEADER_LENGTH);
+		
+		int optionCount;
+		if (modified) {
+			optionCount = writeOptions(buffer, getOptions(), 0);
+		} else {
+			
+			// only the options of the observer are encoded per notification
+			buffer.put(template.prefix);
+			optionCount = template.prefixCount;
+			
+			int lastOptionNumber = template.lastPrefixNumber;
+			Option observe = getFirstOption(OptionNumberRegistry.OBSERVE);
+			if (observe != null) {
+				optionCount += writeOption(buffer, observe, lastOptionNumber);
+				lastOptionNumber = OptionNumberRegistry.OBSERVE;
+			}
+			
+			Option token = getFirstOption(OptionNumberRegistry.TOKEN);
+			if (token != null && !token.isDefaultValue()) {
+				optionCount += writeOption(buffer, token, lastOptionNumber);
+				buffer.put(template.suffix);
+				optionCount += template.suffixCount;
+			} else {
+				optionCount += writeOptions(buffer, template.suffixOptions, lastOptionNumber);
+			}
+		}
+		
+		if (optionCount > MAX_OPTIONCOUNT) {
+			LOG.warning(String.format("Truncating option count %d", optionCount));
+		}
+		
+		buffer.put(template.payload);
+		
+		int mid = getMID();
+		buffer.put(start, (byte) ((getVersion() << 6) | (getType().ordinal() << 4) | (optionCount & MAX_OPTIONCOUNT)));
+		buffer.put(start + 1, (byte) getCode());
+		buffer.put(start + 2, (byte) (mid >>> 8));
+		buffer.put(start + 3, (byte) mid);
+	}
+	
+	@Override
+	public int getEncodedLength() {
+		
+		int length = HEADER_LENGTH + template.payload.length;
+		
+		if (modified) {
+			int lastOptionNumber = 0;
+			for (Option opt : getOptions()) {
+				if (opt.isDefaultValue()) continue;
+				length += getEncodedLength(opt, lastOptionNumber);
+				lastOptionNumber = opt.getOptionNumber();
+			}
+			return length;
+		}
+		
+		length += template.prefix.length;
+		
+		int lastOptionNumber = template.lastPrefixNumber;
+		Option observe = getFirstOption(OptionNumberRegistry.OBSERVE);
+		if (observe != null) {
+			length += getEncodedLength(observe, lastOptionNumber);
+			lastOptionNumber = OptionNumberRegistry.OBSERVE;
+		}
+		
+		Option token = getFirstOption(OptionNumberRegistry.TOKEN);
+		if (token != null && !token.isDefaultValue()) {
+			length += getEncodedLength(token, lastOptionNumber) + template.suffix.length;
+		} else {
+			for (Option opt : template.suffixOptions) {
+				length += getEncodedLength(opt, lastOptionNumber);
+				lastOptionNumber = opt.getOptionNumber();
+			}
+		}
+		return length;
+	}
+	
+	/*
+	 * Writes options in order after the option with the given number and
+	 * returns the number of options written, including fenceposts
+	 */
+	private static int writeOptions(ByteBuffer buffer, List<Option> options, int lastOptionNumber) {
+		int optionCount = 0;
+		for (Option opt : options) {
+			if (opt.isDefaultValue()) continue;
+			optionCount += writeOption(buffer, opt, lastOptionNumber);
+			lastOptionNumber = opt.getOptionNumber();
+		}
+		return optionCount;
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.UnsupportedEncodingException;
+
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class NotificationPolicy defines when the observers of a resource are
+ * notified about a change:
+ * <ul>
+ * <li>the minimum period, which coalesces changes so that only the latest
+ * state is sent after the period,
+ * <li>the maximum period, after which the current state is sent even if it
+ * did not change, and
+ * <li>the step, by which a numeric representation must change to be sent.
+ * </ul>
+ * A policy can be set for a resource through
+ * {@link ch.ethz.inf.vs.californium.endpoint.LocalResource#setNotificationPolicy(NotificationPolicy)}
+ * or requested by an observer with the Uri-Query parameters pmin and pmax in
+ * seconds and st, e.g., <code>?pmin=1&amp;pmax=60&amp;st=0.5</code>.
+ * The maximum period an observer requests is raised to
+ * OBSERVING_MIN_MAX_PERIOD, so that clients cannot make the server refresh
+ * at will.
+ */
+public class NotificationPolicy {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The minimum period between notifications in milliseconds. */
+	private final int minPeriod;
+	
+	/** The maximum period between notifications in milliseconds, or 0. */
+	private final int maxPeriod;
+	
+	/** The minimum change of a numeric representation, or 0. */
+	private final double step;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new policy.
+	 * 
+	 * @param minPeriod the minimum period in milliseconds, 0 for none
+	 * @param maxPeriod the maximum period in milliseconds, 0 for none
+	 * @param step the step threshold, 0 for none
+	 */
+	public NotificationPolicy(int minPeriod, int maxPeriod, double step) {
+		this.minPeriod = Math.max(0, minPeriod);
+		this.maxPeriod = Math.max(0, maxPeriod);
+		this.step = Math.max(0, step);
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public int getMinPeriod() {
+		return minPeriod;
+	}
+	
+	public int getMaxPeriod() {
+		return maxPeriod;
+	}
+	
+	public double getStep() {
+		return step;
+	}
+	
+	/**
+	 * Parses the pmin, pmax, and st parameters of a Uri-Query. The maximum
+	 * period is at least OBSERVING_MIN_MAX_PERIOD; pmin and pmax are
+	 * ignored if pmin exceeds pmax.
+	 * 
+	 * @param query the query as returned by {@link Message#getQuery()}
+	 * @return the policy, or null if the query has none of the parameters
+	 */
+	public static NotificationPolicy fromQuery(String query) {
+		
+		if (query==null || query.length()==0) {
+			return null;
+		}
+		
+		boolean found = false;
+		int minPeriod = 0;
+		int maxPeriod = -1;
+		double step = 0;
+		
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq<0) continue;
+			
+			String name = param.substring(0, eq);
+			double value = parseValue(param.substring(eq+1));
+			
+			if (Double.isNaN(value) || value<0) {
+				continue;
+			} else if (name.equals("pmin")) {
+				minPeriod = (int) (value * 1000);
+			} else if (name.equals("pmax")) {
+				maxPeriod = (int) (value * 1000);
+			} else if (name.equals("st")) {
+				step = value;
+			} else {
+				continue;
+			}
+			found = true;
+		}
+		
+		if (maxPeriod>=0) {
+			if (minPeriod>maxPeriod) {
+				// inconsistent, keep the periods of the resource
+				minPeriod = 0;
+				maxPeriod = 0;
+			} else {
+				maxPeriod = Math.max(maxPeriod, Properties.std.getInt("OBSERVING_MIN_MAX_PERIOD"));
+			}
+		} else {
+			maxPeriod = 0;
+		}
+		
+		return found ? new NotificationPolicy(minPeriod, maxPeriod, step) : null;
+	}
+	
+	/**
+	 * Parses a numeric representation for step thresholds.
+	 * 
+	 * @param payload the payload of a notification
+	 * @return the value, or NaN if the payload is not a number
+	 */
+	public static double parseValue(byte[] payload) {
+		// numbers only, do not bother decoding longer representations
+		if (payload==null || payload.length==0 || payload.length>32) {
+			return Double.NaN;
+		}
+		try {
+			return parseValue(new String(payload, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			return Double.NaN;
+		}
+	}
+	
+	private static double parseValue(String value) {
+		value = value.trim();
+		if (value.length()==0) {
+			return Double.NaN;
+		}
+		// avoid the exception for most non-numeric representations
+		char first = value.charAt(0);
+		if (!Character.isDigit(first) && first!='-' && first!='+' && first!='.') {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("pmin=%dms, pmax=%dms, st=%s", minPeriod, maxPeriod, step);
+	}
+}
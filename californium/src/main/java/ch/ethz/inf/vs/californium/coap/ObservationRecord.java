@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+/**
+ * The class ObservationRecord holds what is needed to resume an observing
+ * relationship: the observer, the observed resource and representation, the
+ * token of the observing request, and the time of the registration, from
+ * which the Observe option of the notifications continues.
+ */
+public class ObservationRecord {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final EndpointAddress peer;
+	private final String path;
+	private final String query;
+	private final byte[] token;
+	private final int accept;
+	private final long startTime;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new record.
+	 * 
+	 * @param peer the address of the observer
+	 * @param path the path of the observed resource
+	 * @param query the Uri-Query of the observing request, or an empty string
+	 * @param token the token of the observing request
+	 * @param accept the Accept option of the observing request, or -1
+	 * @param startTime the time of the registration in milliseconds
+	 */
+	public ObservationRecord(EndpointAddress peer, String path, String query, byte[] token, int accept, long startTime) {
+		this.peer = peer;
+		this.path = path;
+		this.query = query;
+		this.token = token;
+		this.accept = accept;
+		this.startTime = startTime;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public EndpointAddress getPeer() {
+		return peer;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	public String getQuery() {
+		return query;
+	}
+	
+	public byte[] getToken() {
+		return token;
+	}
+	
+	public int getAccept() {
+		return accept;
+	}
+	
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s @ %s [%s]", peer, path, Option.hex(token));
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The interface ObservationStore persists the observing relationships of the
+ * {@link ObservingManager}, so that observers do not have to register again
+ * after a restart of the server. A relationship is identified by its peer and
+ * resource path; adding one for the same peer and path replaces the former.
+ * 
+ * @see FileObservationStore
+ */
+public interface ObservationStore {
+	
+	/**
+	 * Reads the stored relationships and prepares the store for changes. It
+	 * is called once before any other method.
+	 * 
+	 * @return the stored relationships
+	 * @throws IOException if the store cannot be read
+	 */
+	List<ObservationRecord> restore() throws IOException;
+	
+	/**
+	 * Stores an established relationship.
+	 * 
+	 * @param record the relationship
+	 */
+	void add(ObservationRecord record);
+	
+	/**
+	 * Removes a terminated relationship.
+	 * 
+	 * @param peer the address of the observer
+	 * @param path the path of the observed resource
+	 */
+	void remove(EndpointAddress peer, String path);
+	
+	/**
+	 * Writes pending changes and releases the store.
+	 */
+	void close();
+}
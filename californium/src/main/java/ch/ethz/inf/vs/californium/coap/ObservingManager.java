@@ -30,18 +30,42 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
- * The TokenManager stores all tokens currently used in transfers. New transfers
- * can acquire unique tokens from the manager.
+ * The ObservingManager stores the observing relationships of all local
+ * resources and notifies their observers.
+ * <p>
+ * Relationships are indexed by resource path and by client. The index of a
+ * client is guarded by its own monitor, so that registrations of different
+ * clients do not contend, and finds a relationship in constant time by path,
+ * by the MID of its last notification, or by the token of the observing
+ * request, so that removals take time linear in the relationships removed.
+ * Notifications iterate a snapshot of
+ * the observers of a resource, while registrations keep coming in.
+ * <p>
+ * The {@link NotificationPolicy} of a resource and the one requested by an
+ * observer are applied on the timer: changes within the minimum period are
+ * coalesced into one notification of the latest state, and at most one
+ * deferred notification or refresh is pending per observer.
+ * <p>
+ * With an {@link ObservationStore}, relationships survive a restart: the
+ * stored ones are restored when their resource is added to the endpoint.
  * 
  * @author Matthias Kovatsch
  */
@@ -54,21 +78,82 @@ public class ObservingManager {
 
 // Inner class /////////////////////////////////////////////////////////////////
 	
-	private class ObservingRelationship {
+	private static class ObservingRelationship {
 		public String clientID;
 		public String resourcePath;
 		public GETRequest request;
+		public ObservingClient client;
 		public int lastMID;
+		public long token;
+		/** The registration time, from which Observe numbers are counted */
+		public long startTime;
 		
-		public ObservingRelationship(GETRequest request) {
+		public LocalResource resource;
+		/** The policy requested through the query, or null */
+		public NotificationPolicy policy;
+		/** The nano time and value of the last notification */
+		public long lastNotified;
+		public double lastValue;
+		/** A change waits for the minimum period */
+		public boolean deferred;
+		/** The deferred notification or the refresh after the maximum period */
+		public volatile HashedWheelTimer.Timeout timeout;
+		
+		public ObservingRelationship(GETRequest request, String resourcePath) {
 			
 			request.setMID(-1);
 			
 			this.clientID = request.getPeerAddress().toString();
-			this.resourcePath = request.getUriPath();
+			this.resourcePath = resourcePath;
 			this.request = request;
 			this.lastMID = -1;
+			this.token = TokenManager.pack(request.getToken());
+			this.startTime = request.startTime;
+			
+			this.policy = NotificationPolicy.fromQuery(request.getQuery());
+			this.lastNotified = System.nanoTime();
+			this.lastValue = request.getResponse()!=null ? NotificationPolicy.parseValue(request.getResponse().getPayload()) : Double.NaN;
+		}
+	}
+	
+	/*
+	 * Runs the deferred notification or the refresh of an observer.
+	 */
+	private class ObserverTask implements Runnable {
+		
+		private ObservingRelationship observer;
+		
+		ObserverTask(ObservingRelationship observer) {
+			this.observer = observer;
 		}
+		
+		@Override
+		public void run() {
+			handleObserverTimeout(observer);
+		}
+	}
+	
+	/*
+	 * Coalesces the changes of a resource within the minimum period of its
+	 * policy.
+	 */
+	private static class ResourceSchedule {
+		public long lastNotified;
+		public boolean pending;
+	}
+	
+	/*
+	 * The relationships of one client by resource path, by last MID, and by
+	 * the packed token of the observing request. A token used for several
+	 * resources maps to the latest relationship. The maps are guarded by the
+	 * monitor of the ObservingClient, which is retired once its last
+	 * relationship is removed.
+	 */
+	private static class ObservingClient {
+		public Map<String, ObservingRelationship> byPath = new HashMap<String, ObservingRelationship>(4);
+		public Map<Integer, ObservingRelationship> byMID = new HashMap<Integer, ObservingRelationship>(4);
+		public Map<Long, ObservingRelationship> byToken = new HashMap<Long, ObservingRelationship>(4);
+		public boolean retired = false;
 	}
 	
 // Static Attributes ///////////////////////////////////////////////////////////
@@ -78,13 +163,24 @@ public class ObservingManager {
 // Members /////////////////////////////////////////////////////////////////////
 
 	/** Maps a resource path string to the resource's observers stored by client address string. */
-	private Map<String, Map<String, ObservingRelationship>> observersByResource = new HashMap<String, Map<String, ObservingRelationship>>();
+	private ConcurrentMap<String, ConcurrentMap<String, ObservingRelationship>> observersByResource = new ConcurrentHashMap<String, ConcurrentMap<String, ObservingRelationship>>();
 	
-	/** Maps a peer address string to the clients relationships stored by resource path. */
-	private Map<String, Map<String, ObservingRelationship>> observersByClient = new HashMap<String, Map<String, ObservingRelationship>>();
+	/** Maps a peer address string to the client's relationships. */
+	private ConcurrentMap<String, ObservingClient> observersByClient = new ConcurrentHashMap<String, ObservingClient>();
 	
-	private int checkInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL");
-	private Map<String, Integer> intervalByResource = new HashMap<String, Integer>();
+	private volatile int checkInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL");
+	private ConcurrentMap<String, Integer> intervalByResource = new ConcurrentHashMap<String, Integer>();
+	
+	private ConcurrentMap<String, ResourceSchedule> scheduleByResource = new ConcurrentHashMap<String, ResourceSchedule>();
+	
+	/** The timer for deferred notifications and refreshes. */
+	private HashedWheelTimer timer = HashedWheelTimer.getInstance();
+	
+	/** The store for relationships, or null if they are not persisted. */
+	private volatile ObservationStore store = null;
+	
+	/** Stored relationships by resource path until the resource is added. */
+	private ConcurrentMap<String, List<ObservationRecord>> restoredByPath = new ConcurrentHashMap<String, List<ObservationRecord>>();
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
@@ -105,20 +201,35 @@ public class ObservingManager {
 	}
 	
 	public void notifyObservers(LocalResource resource) {
+		
+		NotificationPolicy policy = resource.getNotificationPolicy();
+		
+		// latest state wins within the minimum period of the resource
+		if (policy!=null && policy.getMinPeriod()>0 && coalesce(resource, policy)) {
+			return;
+		}
 
 		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
 		
-		if (resourceObservers!=null && resourceObservers.size()>0) {
+		if (resourceObservers==null) {
+			return;
+		}
+		
+		// snapshot, relationships may be added or removed while notifying
+		List<ObservingRelationship> observers = new ArrayList<ObservingRelationship>(resourceObservers.values());
+		
+		if (observers.size()>0) {
 			
-			LOG.info(String.format("Notifying observers: %d @ %s", resourceObservers.size(), resource.getPath()));
+			LOG.info(String.format("Notifying observers: %d @ %s", observers.size(), resource.getPath()));
 			
 			int check = -1;
 			
 			// get/initialize
-			if (!intervalByResource.containsKey(resource.getPath())) {
+			Integer interval = intervalByResource.get(resource.getPath());
+			if (interval==null) {
 				check = checkInterval;
 			} else {
-				check = intervalByResource.get(resource.getPath()) - 1;
+				check = interval - 1;
 			}
 			// update
 			if (check <= 0) {
@@ -128,83 +239,446 @@ public class ObservingManager {
 				intervalByResource.put(resource.getPath(), check);
 			}
 			
-			for (ObservingRelationship observer : resourceObservers.values()) {
+			// observers that accept the same representation share one GET and its encoding
+			Map<String, Notification.Template> templates = new HashMap<String, Notification.Template>();
+			
+			for (ObservingRelationship observer : observers) {
 				
-				GETRequest request = observer.request;
-						
-				// check
-				if (check<=0) {
-					request.setType(messageType.CON);
-				} else {
-					request.setType(messageType.NON);
+				// the request is shared with deferred notifications and refreshes on the timer
+				synchronized (observer) {
+					
+					GETRequest request = observer.request;
+					
+					// check
+					if (check<=0) {
+						request.setType(messageType.CON);
+					} else {
+						request.setType(messageType.NON);
+					}
+					
+					// execute once per representation
+					String variant = getVariant(request);
+					Notification.Template template = templates.get(variant);
+					if (template==null) {
+						resource.performGET(request);
+						template = Notification.Template.create(request.getResponse());
+						templates.put(variant, template);
+					}
+					
+					notify(observer, template, policy);
+				}
+			}
+			
+			LOG.fine(String.format("Encoded %d representations for %d observers @ %s", templates.size(), observers.size(), resource.getPath()));
+		}
+	}
+	
+	/*
+	 * Returns the key of the representation a request selects besides the
+	 * resource, i.e., by its Accept and Uri-Query options
+	 */
+	private static String getVariant(Request request) {
+		Option accept = request.getFirstOption(OptionNumberRegistry.ACCEPT);
+		return (accept!=null ? accept.getIntValue() : -1) + "?" + request.getQuery();
+	}
+	
+	
+	/*
+	 * Sends a change to an observer unless its policy defers or suppresses it
+	 */
+	private void notify(ObservingRelationship observer, Notification.Template template, NotificationPolicy resourcePolicy) {
+		
+		synchronized (observer) {
+			
+			if (observer.policy==null && resourcePolicy==null) {
+				send(observer, template);
+				return;
+			}
+			
+			// NaN for non-numeric representations never stays within the step
+			if (Math.abs(template.getValue() - observer.lastValue) < getStep(observer, resourcePolicy)) {
+				LOG.finer(String.format("Change within step for observing relationship: %s @ %s", observer.clientID, observer.resourcePath));
+				return;
+			}
+			
+			// the minimum period requested by the observer
+			if (observer.policy!=null && observer.policy.getMinPeriod()>0) {
+				long wait = observer.lastNotified + TimeUnit.MILLISECONDS.toNanos(observer.policy.getMinPeriod()) - System.nanoTime();
+				if (wait>0) {
+					if (!observer.deferred) {
+						observer.deferred = true;
+						schedule(observer, wait);
+					}
+					return;
 				}
+			}
+			
+			send(observer, template);
+			notified(observer, template, resourcePolicy);
+		}
+	}
+	
+	private void send(ObservingRelationship observer, Notification.Template template) {
+		observer.request.respond(new Notification(template));
+		prepareResponse(observer);
+		observer.request.sendResponse();
+		
+		// the transaction layer assigned the MID, unless it parked or dropped the notification
+		int mid = observer.request.getResponse().getMID();
+		if (mid>=0 && mid!=observer.lastMID) {
+			setLastMID(observer, mid);
+		}
+	}
+	
+	/*
+	 * Sends the latest state after the minimum period, or refreshes it after
+	 * the maximum period, on the timer thread
+	 */
+	private void handleObserverTimeout(ObservingRelationship observer) {
+		
+		synchronized (observer) {
+			
+			observer.timeout = null;
+			if (!isRegistered(observer)) {
+				return;
+			}
+			
+			NotificationPolicy resourcePolicy = observer.resource.getNotificationPolicy();
+			boolean refresh = !observer.deferred;
+			observer.deferred = false;
+			
+			observer.resource.performGET(observer.request);
+			Notification.Template template = Notification.Template.create(observer.request.getResponse());
+			
+			if (!refresh && Math.abs(template.getValue() - observer.lastValue) < getStep(observer, resourcePolicy)) {
+				// wait for the refresh instead
+				int maxPeriod = getMaxPeriod(observer, resourcePolicy);
+				if (maxPeriod>0) {
+					schedule(observer, observer.lastNotified + TimeUnit.MILLISECONDS.toNanos(maxPeriod) - System.nanoTime());
+				}
+				return;
+			}
+			
+			LOG.fine(String.format("Sending %s notification: %s @ %s", refresh ? "refreshing" : "deferred", observer.clientID, observer.resourcePath));
+			
+			send(observer, template);
+			notified(observer, template, resourcePolicy);
+		}
+	}
+	
+	/*
+	 * Records a sent notification and schedules the refresh after the maximum period
+	 */
+	private void notified(ObservingRelationship observer, Notification.Template template, NotificationPolicy resourcePolicy) {
+		
+		observer.lastNotified = System.nanoTime();
+		observer.lastValue = template.getValue();
+		observer.deferred = false;
+		
+		int maxPeriod = getMaxPeriod(observer, resourcePolicy);
+		if (maxPeriod>0) {
+			schedule(observer, TimeUnit.MILLISECONDS.toNanos(maxPeriod));
+		} else if (observer.timeout!=null) {
+			observer.timeout.cancel();
+			observer.timeout = null;
+		}
+	}
+	
+	/*
+	 * Replaces the pending task of an observer. Requires the monitor of the observer.
+	 */
+	private void schedule(ObservingRelationship observer, long delayNanos) {
+		if (observer.timeout!=null) {
+			observer.timeout.cancel();
+		}
+		long delay = Math.max(0, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999999));
+		observer.timeout = timer.schedule(new ObserverTask(observer), delay);
+	}
+	
+	/*
+	 * Returns true if the change is deferred until the minimum period of the
+	 * resource has passed.
+	 */
+	private boolean coalesce(final LocalResource resource, NotificationPolicy policy) {
+		
+		long minPeriod = TimeUnit.MILLISECONDS.toNanos(policy.getMinPeriod());
+		long now = System.nanoTime();
+		
+		ResourceSchedule schedule = scheduleByResource.get(resource.getPath());
+		if (schedule==null) {
+			// lazy creation, the first change is sent right away
+			ResourceSchedule created = new ResourceSchedule();
+			created.lastNotified = now - minPeriod;
+			schedule = scheduleByResource.putIfAbsent(resource.getPath(), created);
+			if (schedule==null) {
+				schedule = created;
+			}
+		}
+		
+		synchronized (schedule) {
+			
+			// already deferred, the latest state is sent anyway
+			if (schedule.pending) {
+				return true;
+			}
+			
+			long wait = schedule.lastNotified + minPeriod - now;
+			if (wait>0) {
+				schedule.pending = true;
+				
+				final ResourceSchedule deferred = schedule;
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (deferred) {
+							deferred.pending = false;
+						}
+						notifyObservers(resource);
+					}
+				}, TimeUnit.NANOSECONDS.toMillis(wait + 999999));
 				
-				// execute
-				resource.performGET(request);
-				prepareResponse(request);
-				request.sendResponse();
+				return true;
 			}
+			
+			schedule.lastNotified = now;
+			return false;
 		}
 	}
 	
+	private static double getStep(ObservingRelationship observer, NotificationPolicy resourcePolicy) {
+		if (observer.policy!=null && observer.policy.getStep()>0) {
+			return observer.policy.getStep();
+		}
+		return resourcePolicy!=null ? resourcePolicy.getStep() : 0;
+	}
 	
-	private void prepareResponse(Request request) {
+	private static int getMaxPeriod(ObservingRelationship observer, NotificationPolicy resourcePolicy) {
+		if (observer.policy!=null && observer.policy.getMaxPeriod()>0) {
+			return observer.policy.getMaxPeriod();
+		}
+		return resourcePolicy!=null ? resourcePolicy.getMaxPeriod() : 0;
+	}
+	
+	private void prepareResponse(ObservingRelationship observer) {
+		
+		Request request = observer.request;
 
 		// consecutive response require new MID that must be stored for RST matching
 		if (request.getResponse().getMID()==-1) {
-			request.getResponse().setMID(TransactionLayer.nextMessageID());
+			// left unset if all are in use, for the transaction layer to decide
+			int mid = TransactionLayer.nextMessageID(request.getPeerAddress());
+			if (mid>=0) {
+				request.getResponse().setMID(mid);
+			}
 		}
 		
 		// 16-bit second counter
-		int secs = (int) ((System.currentTimeMillis() - request.startTime) / 1000) & 0xFFFF;
+		int secs = (int) ((System.currentTimeMillis() - observer.startTime) / 1000) & 0xFFFF;
 		request.getResponse().setOption(new Option(secs, OptionNumberRegistry.OBSERVE));
 		
 		// store MID for RST matching
-		updateLastMID(request.getPeerAddress().toString(), request.getUriPath(), request.getResponse().getMID());
+		if (request.getResponse().getMID()>=0) {
+			setLastMID(observer, request.getResponse().getMID());
+		}
 	}
 	
 	
-	public synchronized void addObserver(GETRequest request, LocalResource resource) {
+	public void addObserver(GETRequest request, LocalResource resource) {
 		
-		ObservingRelationship toAdd = new ObservingRelationship(request);
+		ObservingRelationship toAdd = new ObservingRelationship(request, resource.getPath());
 		
-		// get clients map for the given resource path
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-		if (resourceObservers==null) {
-			// lazy creation
-			resourceObservers = new HashMap<String, ObservingRelationship>();
-			observersByResource.put(resource.getPath(), resourceObservers);
-		}
-		// get resource map for given client address
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(request.getPeerAddress().toString());
-		if (clientObservees==null) {
-			// lazy creation
-			clientObservees = new HashMap<String, ObservingRelationship>();
-			observersByClient.put(request.getPeerAddress().toString(), clientObservees);
-		}
+		Option accept = request.getFirstOption(OptionNumberRegistry.ACCEPT);
+		ObservationRecord record = new ObservationRecord(request.getPeerAddress(), toAdd.resourcePath, request.getQuery(), request.getToken(), accept!=null ? accept.getIntValue() : -1, toAdd.startTime);
 		
-		// save relationship for notifications triggered by resource
-		resourceObservers.put(request.getPeerAddress().toString(), toAdd);
-		// save relationship for actions triggered by client
-		clientObservees.put(resource.getPath(), toAdd);
+		register(toAdd, resource, record);
 		
-		LOG.info(String.format("Established observing relationship: %s @ %s", request.getPeerAddress().toString(), resource.getPath()));
+		LOG.info(String.format("Established observing relationship: %s @ %s", toAdd.clientID, resource.getPath()));
 		
 		// update response
 		request.getResponse().setOption(new Option(0, OptionNumberRegistry.OBSERVE));
 		
 	}
 	
-	public synchronized void removeObserver(String clientID) {
+	/**
+	 * Sets the store that persists the observing relationships and reads the
+	 * stored ones. They are restored through {@link #restoreObservers(LocalResource)}
+	 * when their resource is added. A previous store is closed.
+	 * 
+	 * @param store the store, or null to stop persisting relationships
+	 */
+	public void setObservationStore(ObservationStore store) {
+		
+		ObservationStore previous = this.store;
+		this.store = null;
+		restoredByPath.clear();
+		
+		if (previous!=null) {
+			previous.close();
+		}
+		
+		if (store!=null) {
+			try {
+				List<ObservationRecord> records = store.restore();
+				
+				for (ObservationRecord record : records) {
+					List<ObservationRecord> restored = restoredByPath.get(record.getPath());
+					if (restored==null) {
+						restored = new ArrayList<ObservationRecord>();
+						restoredByPath.put(record.getPath(), restored);
+					}
+					restored.add(record);
+				}
+				this.store = store;
+				
+				LOG.info(String.format("Read %d observing relationships from %s", records.size(), store));
+				
+			} catch (IOException e) {
+				LOG.severe(String.format("Cannot read observing relationships from %s: %s", store, e.getMessage()));
+			}
+		}
+	}
+	
+	/**
+	 * Restores the stored relationships of a resource and its sub-resources,
+	 * e.g., when it is added to the endpoint after a restart.
+	 * 
+	 * @param resource the resource
+	 * @return the number of restored relationships
+	 */
+	public int restoreObservers(LocalResource resource) {
+		
+		if (restoredByPath.isEmpty()) {
+			return 0;
+		}
+		
+		int count = 0;
+		
+		List<ObservationRecord> records = restoredByPath.remove(resource.getPath());
+		if (records!=null) {
+			for (ObservationRecord record : records) {
+				register(restore(record), resource, null);
+			}
+			count = records.size();
+			LOG.info(String.format("Restored observing relationships: %d @ %s", count, resource.getPath()));
+		}
+		
+		for (Resource sub : resource.getSubResources()) {
+			if (sub instanceof LocalResource) {
+				count += restoreObservers((LocalResource) sub);
+			}
+		}
+		
+		return count;
+	}
+	
+	/*
+	 * Recreates the observing request of a stored relationship.
+	 */
+	private ObservingRelationship restore(ObservationRecord record) {
+		
+		GETRequest request = new GETRequest();
+		request.setPeerAddress(record.getPeer());
+		request.setOptions(Option.split(OptionNumberRegistry.URI_PATH, record.getPath(), "/"));
+		if (record.getQuery().length()>0) {
+			request.setOptions(Option.split(OptionNumberRegistry.URI_QUERY, record.getQuery(), "&"));
+		}
+		if (record.getAccept()>=0) {
+			request.setOption(new Option(record.getAccept(), OptionNumberRegistry.ACCEPT));
+		}
+		request.setToken(record.getToken());
+		
+		ObservingRelationship relationship = new ObservingRelationship(request, record.getPath());
+		relationship.startTime = record.getStartTime();
+		return relationship;
+	}
+	
+	/*
+	 * Adds a relationship to the indexes, replacing the one of the same
+	 * client and resource. The record is stored under the same monitor as
+	 * removals, so that the store sees them in the order of the indexes;
+	 * restored relationships have none.
+	 */
+	private void register(ObservingRelationship toAdd, LocalResource resource, ObservationRecord record) {
+		
+		toAdd.resource = resource;
+		
+		// get clients map for the given resource path
+		ConcurrentMap<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
+		if (resourceObservers==null) {
+			// lazy creation
+			ConcurrentMap<String, ObservingRelationship> created = new ConcurrentHashMap<String, ObservingRelationship>();
+			resourceObservers = observersByResource.putIfAbsent(resource.getPath(), created);
+			if (resourceObservers==null) {
+				resourceObservers = created;
+			}
+		}
+		
+		for (;;) {
+			// get relationships of the client
+			ObservingClient client = observersByClient.get(toAdd.clientID);
+			if (client==null) {
+				// lazy creation
+				ObservingClient created = new ObservingClient();
+				client = observersByClient.putIfAbsent(toAdd.clientID, created);
+				if (client==null) {
+					client = created;
+				}
+			}
+			
+			synchronized (client) {
+				
+				// removed concurrently, retry with a new one
+				if (client.retired) continue;
+				
+				toAdd.client = client;
+				
+				// save relationship for actions triggered by client
+				ObservingRelationship replaced = client.byPath.put(resource.getPath(), toAdd);
+				if (replaced!=null) {
+					unindex(replaced);
+					cancel(replaced);
+				}
+				client.byToken.put(toAdd.token, toAdd);
+				// save relationship for notifications triggered by resource
+				resourceObservers.put(toAdd.clientID, toAdd);
+				
+				ObservationStore store = this.store;
+				if (store!=null && record!=null) {
+					store.add(record);
+				}
+			}
+			break;
+		}
+		
+		// refresh after the maximum period
+		int maxPeriod = getMaxPeriod(toAdd, resource.getNotificationPolicy());
+		if (maxPeriod>0) {
+			synchronized (toAdd) {
+				schedule(toAdd, TimeUnit.MILLISECONDS.toNanos(maxPeriod));
+			}
+		}
+	}
+	
+	/**
+	 * Remove all observers of a client, e.g., when a notification timed out.
+	 * 
+	 * @param clientID the peer address as string
+	 */
+	public void removeObserver(String clientID) {
 
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ObservingClient client = observersByClient.get(clientID);
 		
-		if (clientObservees!=null) {
+		if (client!=null) {
 			
-			for (Map<String, ObservingRelationship> entry : observersByResource.values()) {
-				entry.remove(clientID);
+			synchronized (client) {
+				for (ObservingRelationship relationship : client.byPath.values()) {
+					removeFromResource(relationship);
+				}
+				client.byPath.clear();
+				client.byMID.clear();
+				client.byToken.clear();
+				retire(clientID, client);
 			}
-			observersByClient.remove(clientID);
 			
 			LOG.info(String.format("Terminated all observing relationships for client: %s", clientID));
 			
@@ -219,13 +693,16 @@ public class ObservingManager {
 	 */
 	public void removeObserver(String clientID, LocalResource resource) {
 		
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ObservingClient client = observersByClient.get(clientID);
 		
-		if (resourceObservers!=null && clientObservees!=null) {
-			if (resourceObservers.remove(clientID)!=null && clientObservees.remove(resource.getPath())!=null) {
-				LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", clientID, resource.getPath()));
-				return;
+		if (client!=null) {
+			synchronized (client) {
+				ObservingRelationship toRemove = client.byPath.get(resource.getPath());
+				if (toRemove!=null) {
+					remove(toRemove);
+					LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", clientID, resource.getPath()));
+					return;
+				}
 			}
 		}
 		
@@ -241,50 +718,69 @@ public class ObservingManager {
 	 */
 	public void removeObserver(String clientID, int mid) {
 		
-		ObservingRelationship toRemove = null;
-
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
-		
-		if (clientObservees!=null) {
-			for (ObservingRelationship entry : clientObservees.values()) {
-				if (mid==entry.lastMID && clientID.equals(entry.clientID)) {
-					// found it
-					toRemove = entry;
-					break;
+		ObservingClient client = observersByClient.get(clientID);
+		
+		if (client!=null) {
+			synchronized (client) {
+				ObservingRelationship toRemove = client.byMID.get(mid);
+				if (toRemove!=null) {
+					remove(toRemove);
+					LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", clientID, toRemove.resourcePath));
+					return;
 				}
 			}
 		}
 		
-		if (toRemove!=null) {
-			Map<String, ObservingRelationship> resourceObservers = observersByResource.get(toRemove.resourcePath);
-			
-			// FIXME Inconsistent state check
-			if (resourceObservers==null) {
-				LOG.severe(String.format("FIXME: ObservingManager has clientObservee, but no resourceObservers (%s @ %s)", clientID, toRemove.resourcePath));
-			}
-			
-			if (resourceObservers.remove(clientID)!=null && clientObservees.remove(toRemove.resourcePath)!=null) {
-				LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", clientID, toRemove.resourcePath));
-				return;
+		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", clientID, mid));
+	}
+
+	/**
+	 * Remove an observer by the token of its observing request.
+	 * 
+	 * @param clientID the peer address as string
+	 * @param token the token of the GET that established the relationship
+	 */
+	public void removeObserver(String clientID, byte[] token) {
+		
+		ObservingClient client = observersByClient.get(clientID);
+		
+		if (client!=null) {
+			synchronized (client) {
+				ObservingRelationship toRemove = client.byToken.get(TokenManager.pack(token));
+				if (toRemove!=null) {
+					remove(toRemove);
+					LOG.info(String.format("Terminated observing relationship by token: %s @ %s", clientID, toRemove.resourcePath));
+					return;
+				}
 			}
 		}
 		
-		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", clientID, mid));
+		LOG.warning(String.format("Cannot find observing relationship by token: %s|%s", clientID, Option.hex(token)));
 	}
 
 	public boolean isObserved(String clientID, LocalResource resource) {
-		return observersByClient.containsKey(clientID) &&
-				observersByClient.get(clientID).containsKey(resource.getPath());
+		
+		ObservingClient client = observersByClient.get(clientID);
+		
+		if (client!=null) {
+			synchronized (client) {
+				return client.byPath.containsKey(resource.getPath());
+			}
+		}
+		return false;
 	}
 
 	public void updateLastMID(String clientID, String path, int mid) {
 		
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ObservingClient client = observersByClient.get(clientID);
 		
-		if (clientObservees!=null) {
-			ObservingRelationship toUpdate = clientObservees.get(path);
+		if (client!=null) {
+			ObservingRelationship toUpdate;
+			synchronized (client) {
+				toUpdate = client.byPath.get(path);
+			}
 			if (toUpdate!=null) {
-				toUpdate.lastMID = mid;
+				setLastMID(toUpdate, mid);
 				
 				LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", clientID, toUpdate.resourcePath));
 				return;
@@ -293,4 +789,131 @@ public class ObservingManager {
 		
 		LOG.warning(String.format("Cannot find observing relationship to update MID: %s @ %s", clientID, path));
 	}
+	
+	/**
+	 * Records the MID of a notification that got it only when sent, e.g.,
+	 * after waiting for a free MID, for RST matching.
+	 * 
+	 * @param notification the notification with its MID
+	 */
+	public void updateLastMID(Response notification) {
+		
+		ObservingClient client = observersByClient.get(notification.getPeerAddress().toString());
+		
+		if (client!=null) {
+			ObservingRelationship toUpdate;
+			synchronized (client) {
+				toUpdate = client.byToken.get(TokenManager.pack(notification.getToken()));
+			}
+			// the relationship may have been replaced meanwhile
+			if (toUpdate!=null && toUpdate.request==notification.getRequest()) {
+				setLastMID(toUpdate, notification.getMID());
+				
+				LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", toUpdate.clientID, toUpdate.resourcePath));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of observing relationships of a resource.
+	 * 
+	 * @param path the resource path
+	 * @return the number of observers
+	 */
+	public int getObserverCount(String path) {
+		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(path);
+		return resourceObservers!=null ? resourceObservers.size() : 0;
+	}
+	
+	/**
+	 * Returns the number of clients with observing relationships.
+	 * 
+	 * @return the number of clients
+	 */
+	public int getClientCount() {
+		return observersByClient.size();
+	}
+	
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	/*
+	 * Re-indexes a relationship by the MID of its latest notification.
+	 * Relationships that were removed concurrently are not re-added.
+	 */
+	private void setLastMID(ObservingRelationship relationship, int mid) {
+		ObservingClient client = relationship.client;
+		synchronized (client) {
+			if (client.byPath.get(relationship.resourcePath)==relationship) {
+				if (client.byMID.get(relationship.lastMID)==relationship) {
+					client.byMID.remove(relationship.lastMID);
+				}
+				client.byMID.put(mid, relationship);
+			}
+			relationship.lastMID = mid;
+		}
+	}
+	
+	/*
+	 * Removes a relationship from all indexes. Requires the monitor of its
+	 * client.
+	 */
+	private void remove(ObservingRelationship relationship) {
+		ObservingClient client = relationship.client;
+		client.byPath.remove(relationship.resourcePath);
+		unindex(relationship);
+		removeFromResource(relationship);
+		if (client.byPath.isEmpty()) {
+			retire(relationship.clientID, client);
+		}
+	}
+	
+	/*
+	 * Removes a relationship from the MID and token indexes of its client,
+	 * unless they already point to a newer one.
+	 */
+	private static void unindex(ObservingRelationship relationship) {
+		ObservingClient client = relationship.client;
+		if (client.byMID.get(relationship.lastMID)==relationship) {
+			client.byMID.remove(relationship.lastMID);
+		}
+		if (client.byToken.get(relationship.token)==relationship) {
+			client.byToken.remove(relationship.token);
+		}
+	}
+	
+	private void removeFromResource(ObservingRelationship relationship) {
+		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(relationship.resourcePath);
+		if (resourceObservers!=null) {
+			resourceObservers.remove(relationship.clientID, relationship);
+		}
+		cancel(relationship);
+		
+		ObservationStore store = this.store;
+		if (store!=null) {
+			store.remove(relationship.request.getPeerAddress(), relationship.resourcePath);
+		}
+	}
+	
+	/*
+	 * Cancels the pending task of a removed relationship without its
+	 * monitor, a task that is already running finds it unregistered.
+	 */
+	private static void cancel(ObservingRelationship relationship) {
+		HashedWheelTimer.Timeout timeout = relationship.timeout;
+		if (timeout!=null) {
+			timeout.cancel();
+		}
+	}
+	
+	private boolean isRegistered(ObservingRelationship relationship) {
+		ObservingClient client = relationship.client;
+		synchronized (client) {
+			return client.byPath.get(relationship.resourcePath)==relationship;
+		}
+	}
+	
+	private void retire(String clientID, ObservingClient client) {
+		client.retired = true;
+		observersByClient.remove(clientID, client);
+	}
 }
@@ -73,6 +73,15 @@ public class Request extends Message {
 	
 	/** The number of responses to this request. */
 	private int responseCount;
+	
+	/** The handler for a blockwise response body, or null to assemble it. */
+	private ChunkHandler chunkHandler;
+	
+	/** The number of blocks of a blockwise response body requested in parallel. */
+	private int blockWindow = 1;
+	
+	/** The position in the response body at which the transfer starts. */
+	private int blockOffset = 0;
 
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -282,6 +291,56 @@ public class Request extends Message {
 		}
 	}
 
+	/**
+	 * Sets a handler that receives a blockwise response body block by block
+	 * instead of assembling it in memory. The completed response is then
+	 * delivered without payload.
+	 * 
+	 * @param handler the handler, or null to assemble the body
+	 */
+	public void setChunkHandler(ChunkHandler handler) {
+		this.chunkHandler = handler;
+	}
+	
+	public ChunkHandler getChunkHandler() {
+		return chunkHandler;
+	}
+	
+	/**
+	 * Sets the number of blocks of a blockwise response body that are
+	 * requested in parallel. Blocks arriving out of order are reassembled by
+	 * their number. Only NSTART confirmable requests are outstanding per peer,
+	 * so a larger window only pays off with a larger NSTART or non-confirmable
+	 * requests.
+	 * 
+	 * @param window the number of block requests kept in flight, 1 to request
+	 *        one block after the other
+	 */
+	public void setBlockWindow(int window) {
+		this.blockWindow = Math.max(1, window);
+	}
+	
+	public int getBlockWindow() {
+		return blockWindow;
+	}
+	
+	/**
+	 * Sets the position in the response body at which a blockwise transfer
+	 * starts, e.g., to resume an interrupted download. The first block is
+	 * demanded through a Block2 option and the response then carries the body
+	 * from this position on. Servers that do not support blockwise transfers
+	 * answer with the whole body and without Block2 option.
+	 * 
+	 * @param offset the position in bytes, 0 to start with the first block
+	 */
+	public void setBlockOffset(int offset) {
+		this.blockOffset = Math.max(0, offset);
+	}
+	
+	public int getBlockOffset() {
+		return blockOffset;
+	}
+
 	/**
 	 * Enables or disables the response queue
 	 * 
@@ -30,14 +30,25 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
-import java.io.ByteArrayOutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.util.ConcurrentLongSet;
+import ch.ethz.inf.vs.californium.util.Properties;
+
 /**
  * The TokenManager stores all tokens currently used in transfers. New transfers
  * can acquire unique tokens from the manager.
+ * <p>
+ * Tokens are handled as packed long values (see {@link #pack(byte[])}) in a
+ * lock-free set, so that acquiring and releasing a token is O(1) and only
+ * allocates the returned array. By default, tokens count up from a random
+ * start and are as short as possible. If TOKEN_GENERATION is RANDOM, all
+ * tokens are random 8-byte values, so that requests of one client cannot be linked
+ * through their tokens.
  * 
  * @author Matthias Kovatsch
  */
@@ -52,21 +63,57 @@ public class TokenManager {
 	// the empty token, used as default value
 	public static final byte[] emptyToken = new byte[0];
 	
+	/** The attempts to find a free token before giving up. */
+	private static final int MAX_ATTEMPTS = 64;
+	
 	private static TokenManager singleton = new TokenManager();
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Set<byte[]> acquiredTokens = new HashSet<byte[]>();
+	private ConcurrentLongSet acquiredTokens;
+	
+	private AtomicBoolean emptyTokenAcquired = new AtomicBoolean();
 
-	private long currentToken;
+	private AtomicLong currentToken;
+	
+	private boolean randomTokens;
+	
+	/*
+	 * A generator per thread, as the shared SecureRandom implementations
+	 * serialize all callers
+	 */
+	private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			try {
+				return SecureRandom.getInstance("SHA1PRNG");
+			} catch (NoSuchAlgorithmException e) {
+				return new SecureRandom();
+			}
+		}
+	};
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
+	/**
+	 * Instantiates a new token manager.
+	 * 
+	 * @param randomTokens true for random 8-byte tokens, false for short
+	 *        consecutive ones
+	 * @param capacity the size of the token table, which should be twice
+	 *        the number of concurrent transfers
+	 */
+	public TokenManager(boolean randomTokens, int capacity) {
+		this.randomTokens = randomTokens;
+		this.acquiredTokens = new ConcurrentLongSet(capacity);
+		this.currentToken = new AtomicLong((long) (Math.random() * 0x100l));
+	}
+	
 	/**
 	 * Default singleton constructor.
 	 */
 	private TokenManager() {
-		this.currentToken = (long) (Math.random() * 0x100l);
+		this("RANDOM".equals(Properties.std.getStr("TOKEN_GENERATION")), Properties.std.getInt("TOKEN_CAPACITY"));
 	}
 	
 	public static TokenManager getInstance() {
@@ -80,28 +127,84 @@ public class TokenManager {
 		return singleton;
 	}
 	
-// Methods /////////////////////////////////////////////////////////////////////
+// Static Methods //////////////////////////////////////////////////////////////
 	
 	/**
-	 * Returns the next message ID to use out of the consecutive 16-bit range.
+	 * Packs a token into a long value. Tokens of 8 bytes are taken as is,
+	 * shorter ones are marked with a 1-bit above their bytes, so that
+	 * tokens of different length differ.
 	 * 
-	 * @return the current message ID
+	 * @param token the token of up to 8 bytes
+	 * @return the packed token, 1 for the empty token, 0 for invalid tokens
 	 */
-	private byte[] nextToken() {
-
-		++this.currentToken;
-		
-		LOG.fine("Token value: "+currentToken);
+	public static long pack(byte[] token) {
 		
-		long temp = this.currentToken;
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(OptionNumberRegistry.TOKEN_LEN);  
+		if (token.length > OptionNumberRegistry.TOKEN_LEN) {
+			return 0L;
+		}
 		
-		while (temp>0 && byteStream.size()<OptionNumberRegistry.TOKEN_LEN) {
-			byteStream.write((int)(temp & 0xff));
-			temp >>>= 8;
+		long value = 0L;
+		for (byte b : token) {
+			value = (value << 8) | (b & 0xFF);
 		}
 		
-		return byteStream.toByteArray();
+		if (token.length < OptionNumberRegistry.TOKEN_LEN) {
+			value |= 1L << (8 * token.length);
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Unpacks a token packed by {@link #pack(byte[])} for the given length.
+	 * 
+	 * @param value the packed token
+	 * @param length the length of the token in bytes
+	 * @return the token
+	 */
+	public static byte[] unpack(long value, int length) {
+		
+		byte[] token = new byte[length];
+		for (int i = length - 1; i >= 0; --i) {
+			token[i] = (byte) value;
+			value >>>= 8;
+		}
+		return token;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/*
+	 * Returns a new token candidate, either random or the next consecutive
+	 * value in the minimal number of bytes
+	 */
+	private byte[] nextToken() {
+		
+		if (randomTokens) {
+			
+			byte[] token = new byte[OptionNumberRegistry.TOKEN_LEN];
+			random.get().nextBytes(token);
+			return token;
+			
+		} else {
+			
+			long value = currentToken.incrementAndGet();
+			
+			LOG.fine("Token value: " + value);
+			
+			int length = 0;
+			for (long temp = value; temp > 0 && length < OptionNumberRegistry.TOKEN_LEN; temp >>>= 8) {
+				++length;
+			}
+			
+			// little-endian as before
+			byte[] token = new byte[length];
+			for (int i = 0; i < length; ++i) {
+				token[i] = (byte) value;
+				value >>>= 8;
+			}
+			return token;
+		}
 	}
 	
 	/*
@@ -115,18 +218,23 @@ public class TokenManager {
 	 * for concurrent transactions.
 	 * 
 	 */
-	public synchronized byte[] acquireToken(boolean preferEmptyToken) {
+	public byte[] acquireToken(boolean preferEmptyToken) {
 		
-		byte[] token = null;
-		if (preferEmptyToken && acquiredTokens.add(emptyToken)) {
-			token = emptyToken;
-		} else {
-			do {
-				token = nextToken();
-			} while (!acquiredTokens.add(token));
+		if (preferEmptyToken && emptyTokenAcquired.compareAndSet(false, true)) {
+			return emptyToken;
 		}
 		
-		return token;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+			byte[] token = nextToken();
+			long value = pack(token);
+			
+			// 0 marks free slots, try again in the unlikely case
+			if (value != 0L && acquiredTokens.add(value)) {
+				return token;
+			}
+		}
+		
+		throw new IllegalStateException(String.format("No free token found, %d tokens acquired", acquiredTokens.size()));
 	}
 	
 	public byte[] acquireToken() {
@@ -138,9 +246,17 @@ public class TokenManager {
 	 * 
 	 * @param token The token to release
 	 */
-	public synchronized void releaseToken(byte[] token) {
+	public void releaseToken(byte[] token) {
 		
-		if (!acquiredTokens.remove(token)) {
+		boolean released;
+		if (token.length == 0) {
+			released = emptyTokenAcquired.compareAndSet(true, false);
+		} else {
+			long value = pack(token);
+			released = value != 0L && acquiredTokens.remove(value);
+		}
+		
+		if (!released) {
 			LOG.warning(String.format("Token to release is not acquired: %s\n", Option.hex(token)));
 		}
 	}
@@ -151,9 +267,18 @@ public class TokenManager {
 	 * @param token The token to check
 	 * @return True iff the token is currently in use
 	 */
-	public synchronized boolean isAcquired(byte[] token) {
-		return acquiredTokens.contains(token);
+	public boolean isAcquired(byte[] token) {
+		if (token.length == 0) {
+			return emptyTokenAcquired.get();
+		}
+		long value = pack(token);
+		return value != 0L && acquiredTokens.contains(value);
 	}
 	
-	
+	/*
+	 * Returns the number of acquired tokens, not counting the empty one.
+	 */
+	public int getAcquiredCount() {
+		return acquiredTokens.size();
+	}
 }
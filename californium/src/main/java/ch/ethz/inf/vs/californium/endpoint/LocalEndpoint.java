@@ -30,10 +30,13 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.endpoint;
 
+import java.io.File;
 import java.net.SocketException;
 
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.FileObservationStore;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
@@ -53,7 +56,7 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
-public class LocalEndpoint extends Endpoint {
+public class LocalEndpoint extends Endpoint implements ChunkHandler.Provider {
 	
 	public static final String ENDPOINT_INFO = 
 		"************************************************************\n" +
@@ -95,6 +98,13 @@ public class LocalEndpoint extends Endpoint {
 		Communicator.setupTransfer(defaultBlockSze);
 		Communicator.setupDeamon(daemon);
 		Communicator.getInstance().registerReceiver(this);
+		Communicator.getInstance().getTransferLayer().setChunkHandlerProvider(this);
+		
+		// persist observing relationships, restored when their resources are added
+		String storeFile = Properties.std.getStr("OBSERVING_STORE_FILE");
+		if (storeFile!=null && storeFile.length()>0) {
+			ObservingManager.getInstance().setObservationStore(new FileObservationStore(new File(storeFile), Properties.std.getInt("OBSERVING_STORE_SYNC_INTERVAL")));
+		}
 
 		// initialize resources
 		this.rootResource = new RootResource();
@@ -170,6 +180,16 @@ public class LocalEndpoint extends Endpoint {
 		}
 	}
 
+	/**
+	 * Lets the addressed resource decide whether to stream a blockwise
+	 * request body.
+	 */
+	@Override
+	public ChunkHandler getChunkHandler(Request request) {
+		LocalResource resource = getResource(request.getUriPath());
+		return resource != null ? resource.getChunkHandler(request) : null;
+	}
+
 	/**
 	 * Delegates a {@link PUTRequest} for a non-existing resource to the
 	 * {@link LocalResource#createSubResource(Request, String)} method of the
@@ -211,6 +231,9 @@ public class LocalEndpoint extends Endpoint {
 	public void addResource(LocalResource resource) {
 		if (rootResource != null) {
 			rootResource.add(resource);
+			
+			// resume the relationships stored before a restart
+			ObservingManager.getInstance().restoreObservers(resource);
 		}
 	}
 
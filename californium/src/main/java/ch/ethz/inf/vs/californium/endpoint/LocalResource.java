@@ -30,9 +30,11 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.endpoint;
 
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.NotificationPolicy;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
 import ch.ethz.inf.vs.californium.coap.POSTRequest;
 import ch.ethz.inf.vs.californium.coap.PUTRequest;
@@ -54,6 +56,11 @@ import ch.ethz.inf.vs.californium.coap.Request;
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
 public class LocalResource extends Resource {
+	
+	// Members /////////////////////////////////////////////////////////////////
+	
+	/** The policy for notifying observers, or null to notify on every change. */
+	private volatile NotificationPolicy notificationPolicy = null;
 
 	// Constructors ////////////////////////////////////////////////////////////
 
@@ -75,6 +82,28 @@ public class LocalResource extends Resource {
 	protected void changed() {
 		ObservingManager.getInstance().notifyObservers(this);
 	}
+	
+	/**
+	 * Returns the policy for notifying the observers of this resource.
+	 * 
+	 * @return the policy, or null if every change is notified
+	 */
+	public NotificationPolicy getNotificationPolicy() {
+		return notificationPolicy;
+	}
+	
+	/**
+	 * Sets a policy for notifying the observers of this resource. Changes
+	 * within the minimum period are coalesced and the latest state is sent
+	 * after it from the timer thread, so {@link #performGET(GETRequest)} must
+	 * not block. Observers can request stricter periods and steps through the
+	 * query of their GET.
+	 * 
+	 * @param policy the policy, or null to notify on every change
+	 */
+	public void setNotificationPolicy(NotificationPolicy policy) {
+		this.notificationPolicy = policy;
+	}
 
 // REST Operations /////////////////////////////////////////////////////////////
 
@@ -98,6 +127,19 @@ public class LocalResource extends Resource {
 		request.respond(CodeRegistry.RESP_METHOD_NOT_ALLOWED);
 	}
 
+	/**
+	 * Returns a handler that receives the body of a blockwise request to this
+	 * resource block by block, e.g., to stream a large upload to storage.
+	 * The request is then dispatched after the last block without payload.
+	 * Override to stream; by default, the body is assembled in memory.
+	 * 
+	 * @param request the request with the first block
+	 * @return the handler, or null to assemble the body
+	 */
+	public ChunkHandler getChunkHandler(Request request) {
+		return null;
+	}
+
 	// Sub-resource management /////////////////////////////////////////////////
 
 	/*
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * The class BlockResponse is one Block2 block of a cached response in a
+ * blockwise transfer. It neither copies the options nor the payload of the
+ * cached response: all options but Block2 are encoded once per transfer into
+ * a {@link Template}, and the payload of the block is written directly from
+ * the payload array of the cached response, which must not be modified
+ * while the transfer is in progress.
+ */
+public class BlockResponse extends Response {
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * The encoded options of a cached response, shared by all its blocks.
+	 */
+	public static final class Template {
+		
+		private final Message source;
+		private final byte[] payload;
+		private final byte[] options;
+		private final int optionCount;
+		private final int lastOptionNumber;
+		
+		private Template(Message source, byte[] options, int optionCount, int lastOptionNumber) {
+			this.source = source;
+			this.payload = source.getPayload();
+			this.options = options;
+			this.optionCount = optionCount;
+			this.lastOptionNumber = lastOptionNumber;
+		}
+		
+		/**
+		 * Encodes the options of a response for its blocks.
+		 * 
+		 * @param msg the cached response
+		 * @return the template, or null if the options cannot precede Block2
+		 */
+		public static Template create(Message msg) {
+			
+			if (!(msg instanceof Response) || msg.getPayload() == null) {
+				return null;
+			}
+			
+			// encode the options without Block2 and payload
+			Message prefix = new Message(messageType.ACK, msg.getCode());
+			int lastOptionNumber = 0;
+			for (Option opt : msg.getOptions()) {
+				if (opt.getOptionNumber() == OptionNumberRegistry.BLOCK2 || opt.isDefaultValue()) {
+					continue;
+				}
+				
+				// Block2 must be the last option
+				if (opt.getOptionNumber() > OptionNumberRegistry.BLOCK2) {
+					return null;
+				}
+				prefix.addOption(opt);
+				lastOptionNumber = opt.getOptionNumber();
+			}
+			
+			byte[] encoded = prefix.toByteArray();
+			int optionCount = encoded[0] & MAX_OPTIONCOUNT;
+			
+			// leave room for Block2 and a fencepost
+			if (optionCount + 2 > MAX_OPTIONCOUNT) {
+				return null;
+			}
+			
+			return new Template(msg, Arrays.copyOfRange(encoded, HEADER_LENGTH, encoded.length), optionCount, lastOptionNumber);
+		}
+		
+		public int getPayloadSize() {
+			return payload.length;
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Template template;
+	private final BlockOption block;
+	private final int offset;
+	private final int length;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a block of a cached response.
+	 * 
+	 * @param template the template of the cached response
+	 * @param num the block number
+	 * @param szx the block size exponent
+	 * @return the block, or null if it lies beyond the payload
+	 */
+	public static BlockResponse create(Template template, int num, int szx) {
+		
+		int blockSize = 1 << (szx + 4);
+		int offset = num * blockSize;
+		int left = template.payload.length - offset;
+		
+		if (left > 0) {
+			boolean m = blockSize < left;
+			BlockOption block = new BlockOption(OptionNumberRegistry.BLOCK2, num, szx, m);
+			return new BlockResponse(template, block, offset, m ? blockSize : left);
+		} else {
+			return null;
+		}
+	}
+	
+	private BlockResponse(Template template, BlockOption block, int offset, int length) {
+		super(template.source.getCode());
+		this.template = template;
+		this.block = block;
+		this.offset = offset;
+		this.length = length;
+	}
+
+// Options /////////////////////////////////////////////////////////////////////
+	
+	@Override
+	public List<Option> getOptions(int optionNumber) {
+		if (optionNumber == OptionNumberRegistry.BLOCK2) {
+			List<Option> list = new ArrayList<Option>(1);
+			list.add(block);
+			return list;
+		} else {
+			return template.source.getOptions(optionNumber);
+		}
+	}
+	
+	@Override
+	public Option getFirstOption(int optionNumber) {
+		if (optionNumber == OptionNumberRegistry.BLOCK2) {
+			return block;
+		} else {
+			return template.source.getFirstOption(optionNumber);
+		}
+	}
+	
+	@Override
+	public List<Option> getOptions() {
+		List<Option> list = new ArrayList<Option>();
+		for (Option opt : template.source.getOptions()) {
+			if (opt.getOptionNumber() != OptionNumberRegistry.BLOCK2) {
+				list.add(opt);
+			}
+		}
+		list.add(block);
+		return list;
+	}
+	
+// Payload /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns a copy of the payload of this block, which is only needed for
+	 * inspection, as the block is encoded from the cached payload.
+	 */
+	@Override
+	public byte[] getPayload() {
+		return Arrays.copyOfRange(template.payload, offset, offset + length);
+	}
+	
+	@Override
+	public String getPayloadString() {
+		try {
+			return new String(template.payload, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public int payloadSize() {
+		return length;
+	}
+
+// Serialization ///////////////////////////////////////////////////////////////
+	
+	@Override
+	public void toByteBuffer(ByteBuffer buffer) {
+		
+		int start = buffer.position();
+		if (buffer.remaining() < getEncodedLength()) {
+			throw new BufferOverflowException();
+		}
+		buffer.position(start + HEADER_LENGTH);
+		
+		buffer.put(template.options);
+		int optionCount = template.optionCount + writeOption(buffer, block, template.lastOptionNumber);
+		
+		buffer.put(template.payload, offset, length);
+		
+		int mid = getMID();
+		buffer.put(start, (byte) ((getVersion() << 6) | (getType().ordinal() << 4) | optionCount));
+		buffer.put(start + 1, (byte) getCode());
+		buffer.put(start + 2, (byte) (mid >>> 8));
+		buffer.put(start + 3, (byte) mid);
+	}
+	
+	@Override
+	public int getEncodedLength() {
+		return HEADER_LENGTH + template.options.length + getEncodedLength(block, template.lastOptionNumber) + length;
+	}
+}
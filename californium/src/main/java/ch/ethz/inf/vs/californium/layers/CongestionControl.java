@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class CongestionControl keeps the state of each peer that the
+ * {@link TransactionLayer} needs to adapt its confirmable traffic to the path.
+ * <p>
+ * The retransmission timeout (RTO) follows CoCoA (draft-ietf-core-cocoa):
+ * a strong estimator learns from exchanges completed without retransmission,
+ * a weak estimator from those completed after one or two retransmissions,
+ * and the overall RTO moves half-way towards each new estimate. Initial
+ * timeouts are dithered by RESPONSE_RANDOM_FACTOR, the backoff factor
+ * depends on the RTO, and estimates age back towards the default when a peer
+ * has been quiet. The RTO stays above 100 ms, so that a server computing a
+ * piggy-backed response is not given up on within a few milliseconds.
+ * <p>
+ * At most NSTART confirmables are outstanding per peer. Further ones wait in
+ * a queue of the peer bounded by NSTART_QUEUE_CAPACITY until an exchange
+ * completes.
+ * <p>
+ * The share of lost transmissions is estimated per peer from the
+ * retransmissions of completed and failed exchanges. It tunes the block size
+ * the {@link TransferLayer} uses for the peer: after every few exchanges, the
+ * block size is halved on a lossy path and doubled on a clean path with low
+ * RTT, between 64 and 1024 bytes.
+ */
+public class CongestionControl {
+
+// Constants ///////////////////////////////////////////////////////////////////
+
+	private static final double ALPHA = 0.125; // 1/8
+	private static final double BETA = 0.25; // 1/4
+	private static final int K_STRONG = 4;
+	private static final int K_WEAK = 1;
+	
+	/** Weak estimates are only taken up to this number of retransmissions. */
+	private static final int MAX_WEAK_RETRANSMISSIONS = 2;
+	
+	/** The bounds for the RTO in milliseconds. */
+	private static final double MIN_RTO = 100;
+	private static final double MAX_RTO = 60000;
+	
+	/** The weight of a transmission in the loss estimate. */
+	private static final double GAMMA = 0.03125; // 1/32
+	
+	/** Block sizes shrink above and grow below these shares of lost transmissions. */
+	private static final double HIGH_LOSS = 0.2;
+	private static final double LOW_LOSS = 0.02;
+	
+	/** Block sizes only grow for an RTT below this in milliseconds. */
+	private static final double LOW_LATENCY_RTT = 200;
+	
+	/** The number of exchanges between block size adjustments. */
+	private static final int TUNING_INTERVAL = 8;
+	
+	/** The bounds for tuned block sizes, 64 and 1024 bytes. */
+	private static final int MIN_SZX = 2;
+	private static final int MAX_SZX = 6;
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	private final ConcurrentMap<EndpointAddress, PeerState> peers = new ConcurrentHashMap<EndpointAddress, PeerState>();
+	
+	private final double defaultRto;
+	
+	private final double randomFactor;
+	
+	private final int nstart;
+	
+	private final int queueCapacity;
+	
+	private final long idleNanos;
+
+// Nested Classes //////////////////////////////////////////////////////////////
+
+	/**
+	 * The learned RTT and the outstanding confirmables of a peer.
+	 */
+	public static class PeerState {
+		
+		// RTT estimators in milliseconds, negative until the first sample
+		private double strongSrtt = -1;
+		private double strongRttvar;
+		private double weakSrtt = -1;
+		private double weakRttvar;
+		
+		private double rto;
+		private long lastUpdate = System.nanoTime();
+		private long lastUsed = lastUpdate;
+		
+		private int outstanding;
+		private LinkedList<Message> queue = new LinkedList<Message>();
+		private boolean purged;
+		
+		// loss estimator and tuned block size, negative until first used
+		private double loss;
+		private int szx = -1;
+		private int exchanges;
+		private long numRetransmissions;
+		private long numFailures;
+		
+		PeerState(double rto) {
+			this.rto = rto;
+		}
+		
+		/**
+		 * Returns the smoothed RTT of exchanges completed without
+		 * retransmission, or of all exchanges if there was none.
+		 * 
+		 * @return the RTT in milliseconds or -1 if not measured yet
+		 */
+		public synchronized double getRTT() {
+			return strongSrtt >= 0 ? strongSrtt : weakSrtt;
+		}
+		
+		/**
+		 * Returns the RTT variation that belongs to {@link #getRTT()}.
+		 * 
+		 * @return the variation in milliseconds
+		 */
+		public synchronized double getRTTVAR() {
+			return strongSrtt >= 0 ? strongRttvar : weakRttvar;
+		}
+		
+		/**
+		 * Returns the current retransmission timeout before dithering.
+		 * 
+		 * @return the RTO in milliseconds
+		 */
+		public synchronized double getRTO() {
+			return rto;
+		}
+		
+		public synchronized int getOutstanding() {
+			return outstanding;
+		}
+		
+		public synchronized int getQueued() {
+			return queue.size();
+		}
+		
+		/**
+		 * Returns the smoothed share of transmissions that were not
+		 * acknowledged.
+		 * 
+		 * @return the loss between 0 and 1
+		 */
+		public synchronized double getLoss() {
+			return loss;
+		}
+		
+		/**
+		 * Returns the block size tuned for the peer.
+		 * 
+		 * @return the SZX or -1 if no blockwise transfer used it yet
+		 */
+		public synchronized int getBlockSZX() {
+			return szx;
+		}
+		
+		public synchronized long getNumRetransmissions() {
+			return numRetransmissions;
+		}
+		
+		public synchronized long getNumFailures() {
+			return numFailures;
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Instantiates a new congestion control.
+	 * 
+	 * @param defaultRto the RTO before the first measurement in milliseconds
+	 * @param randomFactor the factor to dither initial timeouts
+	 * @param nstart the maximum number of outstanding confirmables per peer
+	 * @param queueCapacity the number of confirmables that may wait per peer
+	 * @param idleTime the time after which the state of an idle peer is
+	 *        dropped in milliseconds
+	 */
+	public CongestionControl(double defaultRto, double randomFactor, int nstart, int queueCapacity, long idleTime) {
+		this.defaultRto = defaultRto;
+		this.randomFactor = randomFactor;
+		this.nstart = Math.max(1, nstart);
+		this.queueCapacity = queueCapacity;
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTime);
+	}
+	
+	/**
+	 * Instantiates a new congestion control configured through the
+	 * RESPONSE_TIMEOUT, RESPONSE_RANDOM_FACTOR, NSTART, NSTART_QUEUE_CAPACITY,
+	 * and EXCHANGE_LIFETIME properties.
+	 */
+	public CongestionControl() {
+		this(Properties.std.getDbl("RESPONSE_TIMEOUT"),
+				Properties.std.getDbl("RESPONSE_RANDOM_FACTOR"),
+				Properties.std.getInt("NSTART"),
+				Properties.std.getInt("NSTART_QUEUE_CAPACITY"),
+				Properties.std.getInt("EXCHANGE_LIFETIME"));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Reserves one of the NSTART slots of the peer for a confirmable or
+	 * queues it.
+	 * 
+	 * @param msg the confirmable to send
+	 * @return true if the message may be sent now, false if it was queued
+	 * @throws IOException if the queue of the peer is full
+	 */
+	public boolean acquire(Message msg) throws IOException {
+		
+		while (true) {
+			PeerState peer = getOrCreate(msg.getPeerAddress());
+			
+			synchronized (peer) {
+				if (peer.purged) {
+					// lost the race against purge(), use the new state
+					continue;
+				}
+				peer.lastUsed = System.nanoTime();
+				if (peer.outstanding < nstart) {
+					++peer.outstanding;
+					return true;
+				} else if (peer.queue.size() < queueCapacity) {
+					peer.queue.add(msg);
+					return false;
+				}
+			}
+			
+			throw new IOException(String.format("Queue for %s full", msg.getPeerAddress()));
+		}
+	}
+	
+	/**
+	 * Frees the slot of a completed confirmable.
+	 * 
+	 * @param address the peer
+	 * @return the next queued confirmable, which takes over the slot, or null
+	 */
+	public Message release(EndpointAddress address) {
+		
+		PeerState peer = peers.get(address);
+		if (peer == null) {
+			return null;
+		}
+		
+		synchronized (peer) {
+			peer.lastUsed = System.nanoTime();
+			Message next = peer.queue.poll();
+			if (next == null && peer.outstanding > 0) {
+				--peer.outstanding;
+			}
+			return next;
+		}
+	}
+	
+	/**
+	 * Feeds the round-trip time of a completed exchange into the estimators.
+	 * 
+	 * @param address the peer
+	 * @param rtt the time from the first transmission to the reply in milliseconds
+	 * @param retransmissions the number of retransmissions before the reply
+	 */
+	public void updateRTT(EndpointAddress address, double rtt, int retransmissions) {
+		
+		// replies to later retransmissions are too ambiguous
+		if (retransmissions > MAX_WEAK_RETRANSMISSIONS) {
+			return;
+		}
+		
+		PeerState peer = getOrCreate(address);
+		
+		synchronized (peer) {
+			double estimate;
+			if (retransmissions == 0) {
+				if (peer.strongSrtt < 0) {
+					peer.strongSrtt = rtt;
+					peer.strongRttvar = rtt / 2;
+				} else {
+					peer.strongRttvar = (1 - BETA) * peer.strongRttvar + BETA * Math.abs(peer.strongSrtt - rtt);
+					peer.strongSrtt = (1 - ALPHA) * peer.strongSrtt + ALPHA * rtt;
+				}
+				estimate = peer.strongSrtt + K_STRONG * peer.strongRttvar;
+			} else {
+				if (peer.weakSrtt < 0) {
+					peer.weakSrtt = rtt;
+					peer.weakRttvar = rtt / 2;
+				} else {
+					peer.weakRttvar = (1 - BETA) * peer.weakRttvar + BETA * Math.abs(peer.weakSrtt - rtt);
+					peer.weakSrtt = (1 - ALPHA) * peer.weakSrtt + ALPHA * rtt;
+				}
+				estimate = peer.weakSrtt + K_WEAK * peer.weakRttvar;
+			}
+			
+			age(peer, System.nanoTime());
+			peer.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, 0.5 * estimate + 0.5 * peer.rto));
+			peer.lastUpdate = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Feeds the transmissions of a finished exchange into the loss estimator
+	 * and adjusts the block size of the peer every TUNING_INTERVAL exchanges.
+	 * 
+	 * @param address the peer
+	 * @param retransmissions the number of retransmissions
+	 * @param completed true if a reply was received, false if the exchange
+	 *        failed after the last retransmission
+	 */
+	public void updateLoss(EndpointAddress address, int retransmissions, boolean completed) {
+		
+		PeerState peer = getOrCreate(address);
+		
+		synchronized (peer) {
+			
+			// every retransmission indicates a lost transmission before
+			for (int i = 0; i < retransmissions; ++i) {
+				peer.loss = (1 - GAMMA) * peer.loss + GAMMA;
+			}
+			if (completed) {
+				peer.loss = (1 - GAMMA) * peer.loss;
+			} else {
+				peer.loss = (1 - GAMMA) * peer.loss + GAMMA;
+				++peer.numFailures;
+			}
+			peer.numRetransmissions += retransmissions;
+			
+			if (++peer.exchanges >= TUNING_INTERVAL && peer.szx >= 0) {
+				peer.exchanges = 0;
+				
+				double rtt = peer.getRTT();
+				if (peer.loss > HIGH_LOSS && peer.szx > MIN_SZX) {
+					--peer.szx;
+				} else if (peer.loss < LOW_LOSS && rtt >= 0 && rtt < LOW_LATENCY_RTT && peer.szx < MAX_SZX) {
+					++peer.szx;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the block size to use for the peer. A peer starts with the
+	 * given default once a blockwise transfer asks for it.
+	 * 
+	 * @param address the peer
+	 * @param defaultSZX the SZX before any tuning
+	 * @return the tuned SZX, or the default if nothing was sent to the peer
+	 */
+	public int blockSZX(EndpointAddress address, int defaultSZX) {
+		PeerState peer = peers.get(address);
+		if (peer == null) {
+			return defaultSZX;
+		}
+		synchronized (peer) {
+			if (peer.szx < 0) {
+				peer.szx = defaultSZX;
+			}
+			return peer.szx;
+		}
+	}
+	
+	/**
+	 * Calculates the initial timeout for a confirmable to the peer, dithered
+	 * between RTO and RTO times RESPONSE_RANDOM_FACTOR.
+	 * 
+	 * @param address the peer
+	 * @return the timeout in milliseconds
+	 */
+	public int initialTimeout(EndpointAddress address) {
+		double rto = getRTO(address);
+		return Math.max(1, (int) (rto + rto * (randomFactor - 1d) * Math.random()));
+	}
+	
+	/**
+	 * Returns the variable backoff factor for a confirmable, which backs off
+	 * faster for small and slower for large initial timeouts.
+	 * 
+	 * @param initialTimeout the initial timeout in milliseconds
+	 * @return the factor to multiply the timeout with on each retransmission
+	 */
+	public double backoffFactor(int initialTimeout) {
+		if (initialTimeout < 1000) {
+			return 3;
+		} else if (initialTimeout > 3000) {
+			return 1.5;
+		} else {
+			return 2;
+		}
+	}
+	
+	/**
+	 * Drops the state of peers without outstanding confirmables that have
+	 * been idle for EXCHANGE_LIFETIME.
+	 */
+	public void purge() {
+		long now = System.nanoTime();
+		Iterator<PeerState> it = peers.values().iterator();
+		while (it.hasNext()) {
+			PeerState peer = it.next();
+			synchronized (peer) {
+				if (peer.outstanding == 0 && peer.queue.isEmpty() && now - peer.lastUsed > idleNanos) {
+					peer.purged = true;
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Purges idle peers periodically on the given timer.
+	 * 
+	 * @param timer the timer to schedule the purge on
+	 */
+	public void schedulePurge(final HashedWheelTimer timer) {
+		final long interval = TimeUnit.NANOSECONDS.toMillis(idleNanos);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				purge();
+				timer.schedule(this, interval);
+			}
+		}, interval);
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the learned state of a peer.
+	 * 
+	 * @param address the peer
+	 * @return the state or null if nothing was sent to the peer recently
+	 */
+	public PeerState getPeerState(EndpointAddress address) {
+		return peers.get(address);
+	}
+	
+	/**
+	 * Returns the smoothed RTT learned for a peer.
+	 * 
+	 * @param address the peer
+	 * @return the RTT in milliseconds or -1 if unknown
+	 */
+	public double getRTT(EndpointAddress address) {
+		PeerState peer = peers.get(address);
+		return peer != null ? peer.getRTT() : -1;
+	}
+	
+	/**
+	 * Returns the current RTO for a peer after aging.
+	 * 
+	 * @param address the peer
+	 * @return the RTO in milliseconds
+	 */
+	public double getRTO(EndpointAddress address) {
+		PeerState peer = peers.get(address);
+		if (peer == null) {
+			return defaultRto;
+		}
+		synchronized (peer) {
+			age(peer, System.nanoTime());
+			return peer.rto;
+		}
+	}
+	
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+
+	private PeerState getOrCreate(EndpointAddress address) {
+		PeerState peer = peers.get(address);
+		if (peer == null) {
+			PeerState created = new PeerState(defaultRto);
+			peer = peers.putIfAbsent(address, created);
+			if (peer == null) {
+				peer = created;
+			}
+		}
+		return peer;
+	}
+	
+	/*
+	 * Moves an RTO that was not updated for a while back towards the default,
+	 * as the path may have changed
+	 */
+	private void age(PeerState peer, long now) {
+		double idle = TimeUnit.NANOSECONDS.toMillis(now - peer.lastUpdate);
+		if (peer.rto < 1000 && idle > 16 * peer.rto) {
+			peer.rto = (1000 + 2 * peer.rto) / 3;
+			peer.lastUpdate = now;
+		} else if (peer.rto > 3000 && idle > 4 * peer.rto) {
+			peer.rto = (defaultRto + peer.rto) / 2;
+			peer.lastUpdate = now;
+		}
+	}
+}
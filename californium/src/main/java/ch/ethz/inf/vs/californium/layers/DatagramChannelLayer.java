@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.util.BufferPool;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class DatagramChannelLayer is an alternative to the {@link UDPLayer}
+ * based on a non-blocking {@link DatagramChannel} and a {@link Selector}.
+ * Incoming datagrams are received into a single direct buffer and decoded
+ * straight from it, so that no byte array or DatagramPacket is allocated per
+ * packet. Outgoing datagrams are written from pooled direct buffers; if the
+ * socket send buffer is full, they are queued and flushed by the selector
+ * thread once the channel becomes writable again.
+ * <p>
+ * Decoded messages are handed to the stack through a {@link Dispatcher}, like
+ * in the {@link UDPLayer}. The transport is selected by setting the
+ * UDP_TRANSPORT property to CHANNEL.
+ */
+public class DatagramChannelLayer extends TransportLayer {
+
+// Constants ///////////////////////////////////////////////////////////////////
+
+	/** The maximum number of idle send buffers kept for reuse. */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	// The non-blocking channel used to send and receive datagrams
+	private DatagramChannel channel;
+	
+	private Selector selector;
+	
+	private SelectionKey selectionKey;
+
+	// The thread that serves the selector
+	private SelectorThread selectorThread;
+
+	// The worker pool that processes the received messages
+	private Dispatcher dispatcher;
+	
+	// Direct buffers for sending and receiving, sized RX_BUFFER_SIZE+1
+	private BufferPool bufferPool;
+	
+	private int rxBufferSize;
+	
+	// Datagrams that could not be sent immediately
+	private ConcurrentLinkedQueue<PendingDatagram> pending = new ConcurrentLinkedQueue<PendingDatagram>();
+	
+	// Set by senders to ask the selector thread for OP_WRITE
+	private volatile boolean writeRequested = false;
+
+// Inner Classes ///////////////////////////////////////////////////////////////
+
+	private static class PendingDatagram {
+		ByteBuffer buffer;
+		SocketAddress target;
+		
+		PendingDatagram(ByteBuffer buffer, SocketAddress target) {
+			this.buffer = buffer;
+			this.target = target;
+		}
+	}
+
+	class SelectorThread extends Thread {
+		
+		public SelectorThread() {
+			super("SelectorThread");
+		}
+		
+		@Override
+		public void run() {
+			
+			// the receive buffer is reused, as messages are decoded right away
+			ByteBuffer rxBuffer = bufferPool.acquire();
+			
+			while (selector.isOpen()) {
+				
+				try {
+					selector.select();
+					
+					if (writeRequested) {
+						writeRequested = false;
+						selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+					
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						
+						if (key.isReadable()) {
+							receiveDatagrams(rxBuffer);
+						}
+						if (key.isValid() && key.isWritable() && flushPending()) {
+							key.interestOps(SelectionKey.OP_READ);
+						}
+					}
+					
+				} catch (IOException e) {
+					LOG.severe("Could not serve datagram channel: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new datagram channel layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if selector thread should terminate with main thread
+	 */
+	public DatagramChannelLayer(int port, boolean daemon) throws IOException {
+		
+		// initialize members
+		this.rxBufferSize = Properties.std.getInt("RX_BUFFER_SIZE");
+		this.bufferPool = new BufferPool(rxBufferSize + 1, MAX_POOLED_BUFFERS); // +1 to check for > RX_BUFFER_SIZE
+		
+		this.channel = DatagramChannel.open();
+		this.channel.socket().bind(new InetSocketAddress(port));
+		this.channel.configureBlocking(false);
+		
+		this.selector = Selector.open();
+		this.selectionKey = channel.register(selector, SelectionKey.OP_READ);
+		
+		this.selectorThread = new SelectorThread();
+		this.dispatcher = new Dispatcher(this);
+
+		// decide if selector thread terminates with main thread
+		selectorThread.setDaemon(daemon);
+
+		// start listening right from the beginning
+		selectorThread.start();
+	}
+
+	/*
+	 * Constructor for a new datagram channel layer
+	 */
+	public DatagramChannelLayer() throws IOException {
+		this(0, true); // use any available port on the local host machine
+	}
+
+// Commands ////////////////////////////////////////////////////////////////////
+
+	/*
+	 * Decides if the selector thread persists after the main thread terminates
+	 * 
+	 * @param on True if the selector thread should stay alive after the main
+	 * thread terminates. This is useful for e.g. server applications
+	 */
+	public void setDaemon(boolean on) {
+		selectorThread.setDaemon(on);
+	}
+
+// I/O implementation //////////////////////////////////////////////////////////
+
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+
+		SocketAddress target = new InetSocketAddress(msg.getPeerAddress().getAddress(), msg.getPeerAddress().getPort());
+
+		// encode straight into the buffer,
+		// oversized datagrams are sent from a heap buffer, which is not pooled
+		int length = msg.getEncodedLength();
+		ByteBuffer buffer = length <= bufferPool.getCapacity() ? bufferPool.acquire() : ByteBuffer.allocate(length);
+		msg.toByteBuffer(buffer);
+		buffer.flip();
+
+		// remember when this message was sent for the first time
+		// set timestamp only once in order
+		// to handle retransmissions correctly
+		if (msg.getTimestamp() == -1) {
+			msg.setTimestamp(System.nanoTime());
+		}
+
+		// keep order behind datagrams still waiting for the socket
+		if (pending.isEmpty() && channel.send(buffer, target) > 0) {
+			
+			releaseBuffer(buffer);
+			
+		} else {
+			
+			// socket send buffer full, let selector thread flush
+			pending.offer(new PendingDatagram(buffer, target));
+			writeRequested = true;
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	protected void doReceiveMessage(Message msg) {
+		
+		// pass message to registered receivers
+		deliverMessage(msg);
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+
+	private void receiveDatagrams(ByteBuffer rxBuffer) throws IOException {
+		
+		SocketAddress sender;
+		
+		// drain all datagrams available on the channel
+		rxBuffer.clear();
+		while ((sender = channel.receive(rxBuffer)) != null) {
+			
+			rxBuffer.flip();
+			datagramReceived(rxBuffer, (InetSocketAddress) sender);
+			rxBuffer.clear();
+		}
+	}
+
+	private void datagramReceived(ByteBuffer datagram, InetSocketAddress sender) {
+		
+		int length = datagram.remaining();
+
+		if (length > 0) {
+			
+			// get current time
+			long timestamp = System.nanoTime();
+
+			// create new message directly from the buffer
+			Message msg = Message.fromByteBuffer(datagram);
+			
+			if (msg!=null) {
+
+				// remember when this message was received
+				msg.setTimestamp(timestamp);
+				
+				msg.setPeerAddress(new EndpointAddress(sender.getAddress(), sender.getPort()));
+				
+				if (length > rxBufferSize) {
+					LOG.info(String.format("Marking large datagram for blockwise transfer: %s", msg.key()));
+					msg.requiresBlockwise(true);
+				}
+
+				// hand over to worker thread
+				dispatcher.dispatch(msg);
+				
+			} else {
+				LOG.severe(String.format("Illegal datagram received from: %s:%d", sender.getAddress().getHostAddress(), sender.getPort()));
+			}
+			
+		} else {
+			
+			LOG.info(String.format("Dropped empty datagram from: %s:%d", sender.getAddress().getHostAddress(), sender.getPort()));
+		}
+	}
+
+	/*
+	 * Sends queued datagrams until the socket buffer is full again.
+	 * 
+	 * @return True if all pending datagrams were sent
+	 */
+	private boolean flushPending() throws IOException {
+		
+		PendingDatagram datagram;
+		while ((datagram = pending.peek()) != null) {
+			
+			if (channel.send(datagram.buffer, datagram.target) == 0) {
+				return false;
+			}
+			
+			pending.poll();
+			releaseBuffer(datagram.buffer);
+		}
+		
+		return true;
+	}
+	
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			bufferPool.release(buffer);
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	/*
+	 * Checks whether the selector thread persists after the main thread
+	 * terminates
+	 * 
+	 * @return True if the selector thread stays alive after the main thread
+	 * terminates. This is useful for e.g. server applications
+	 */
+	public boolean isDaemon() {
+		return selectorThread.isDaemon();
+	}
+
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+	
+	public Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+
+		stats.append("UDP port: ");
+		stats.append(getPort());
+		stats.append('\n');
+		stats.append("Messages sent:     ");
+		stats.append(numMessagesSent);
+		stats.append('\n');
+		stats.append("Messages received: ");
+		stats.append(numMessagesReceived);
+		stats.append('\n');
+		stats.append("Pending datagrams: ");
+		stats.append(pending.size());
+		stats.append('\n');
+		stats.append("Direct buffers:    ");
+		stats.append(bufferPool.getAllocated());
+		stats.append('\n');
+		stats.append("Dispatch queue:    ");
+		stats.append(dispatcher.getQueueSize());
+		stats.append('\n');
+		stats.append("Messages refused:  ");
+		stats.append(dispatcher.getNumRefused());
+		
+		return stats.toString();
+	}
+}
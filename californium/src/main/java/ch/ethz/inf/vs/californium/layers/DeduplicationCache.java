@@ -0,0 +1,479 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class DeduplicationCache remembers the confirmable and non-confirmable
+ * messages received from each peer together with the reply sent for them.
+ * The {@link TransactionLayer} uses it to drop duplicates and to retransmit
+ * the cached ACK or RST when a confirmable is retransmitted.
+ * <p>
+ * Entries live for EXCHANGE_LIFETIME, the time within which a peer may
+ * retransmit a message. They are keyed on {@link TransactionLayer#transactionKey(Message)}
+ * and kept in insertion order, which is also expiry order, so that expired
+ * entries are swept from the head in O(1) each while messages are added.
+ * <p>
+ * The estimated memory of entries and cached replies is bounded by
+ * DEDUP_CACHE_BUDGET. Once it is exceeded, the oldest entries are evicted
+ * early. To keep a single busy peer from evicting the entries of all others,
+ * each peer holds at most DEDUP_PEER_LIMIT entries, but never more than half
+ * of its stripe's budget, and beyond that evicts its own oldest one. The
+ * default limit is raised to the messages a peer can send within
+ * MAX_TRANSMIT_SPAN at the rate to which message IDs cap it, so that its
+ * retransmissions are still detected. A peer
+ * holding more than the average number of entries also evicts its own when
+ * the budget is exceeded. The entries of a peer share one of several
+ * stripes, so that different peers rarely contend for the same lock.
+ */
+public class DeduplicationCache {
+
+// Constants ///////////////////////////////////////////////////////////////////
+
+	/** The estimated memory of an entry without reply, in bytes. */
+	private static final int ENTRY_COST = 128;
+	
+	/** The estimated memory of a reply without payload, in bytes. */
+	private static final int REPLY_COST = 160;
+	
+	private static final int DEFAULT_STRIPES = 16;
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	private final Stripe[] stripes;
+	
+	private final long lifetimeNanos;
+	
+	// Counters
+	private final AtomicLong numDuplicates = new AtomicLong();
+	private final AtomicLong numExpired = new AtomicLong();
+	private final AtomicLong numEvicted = new AtomicLong();
+
+// Nested Classes //////////////////////////////////////////////////////////////
+
+	/*
+	 * A received message, linked in the insertion order of its stripe and of
+	 * its peer.
+	 */
+	private static final class Entry {
+		
+		final long key;
+		final EndpointAddress peer;
+		final int mid;
+		final long expires;
+		
+		Message reply;
+		int cost = ENTRY_COST;
+		
+		Entry prev, next;
+		Entry peerPrev, peerNext;
+		PeerQueue queue;
+		
+		Entry(long key, EndpointAddress peer, int mid, long expires) {
+			this.key = key;
+			this.peer = peer;
+			this.mid = mid;
+			this.expires = expires;
+		}
+		
+		boolean matches(Message msg) {
+			return mid == msg.getMID() && peer.equals(msg.getPeerAddress());
+		}
+	}
+	
+	/*
+	 * The entries of one peer, oldest first.
+	 */
+	private static final class PeerQueue {
+		
+		final long peerKey;
+		Entry head, tail;
+		int count;
+		
+		PeerQueue(long peerKey) {
+			this.peerKey = peerKey;
+		}
+	}
+	
+	/*
+	 * An independent part of the cache with its own lock and share of the
+	 * memory budget. All entries of a peer go to the same stripe.
+	 */
+	private final class Stripe {
+		
+		private final ConcurrentLongMap<Entry> entries = new ConcurrentLongMap<Entry>(1, 256);
+		private final ConcurrentLongMap<PeerQueue> peers = new ConcurrentLongMap<PeerQueue>(1, 64);
+		private final long budget;
+		private final int peerLimit;
+		
+		private Entry head, tail;
+		private long memory;
+		
+		Stripe(long budget, int peerLimit) {
+			this.budget = budget;
+			// a limit beyond the budget would never engage
+			this.peerLimit = (int) Math.max(1, Math.min(peerLimit, budget / (2 * ENTRY_COST)));
+		}
+		
+		synchronized boolean add(Message msg, long key, long now) {
+			
+			sweep(now);
+			
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.matches(msg)) {
+					return false;
+				}
+				// a folded IPv6 address of another peer, replace
+				remove(entry);
+			}
+			
+			insert(new Entry(key, msg.getPeerAddress(), msg.getMID(), now + lifetimeNanos));
+			return true;
+		}
+		
+		synchronized Message getReply(Message msg, long key, long now) {
+			
+			Entry entry = entries.get(key);
+			if (entry != null && entry.matches(msg) && entry.expires - now > 0) {
+				return entry.reply;
+			}
+			return null;
+		}
+		
+		synchronized void putReply(Message reply, long key, long now) {
+			
+			sweep(now);
+			
+			Entry entry = entries.get(key);
+			if (entry != null && !entry.matches(reply)) {
+				remove(entry);
+				entry = null;
+			}
+			if (entry == null) {
+				// the message was evicted in the meantime
+				entry = new Entry(key, reply.getPeerAddress(), reply.getMID(), now + lifetimeNanos);
+				insert(entry);
+			}
+			
+			int cost = ENTRY_COST + REPLY_COST + reply.payloadSize();
+			memory += cost - entry.cost;
+			entry.cost = cost;
+			entry.reply = reply;
+			
+			enforceBudget(entry);
+		}
+		
+		synchronized int size() {
+			return entries.size();
+		}
+		
+		synchronized long getMemory() {
+			return memory;
+		}
+		
+		synchronized int getPeerCount() {
+			return peers.size();
+		}
+		
+		synchronized void clear() {
+			entries.clear();
+			peers.clear();
+			head = tail = null;
+			memory = 0;
+		}
+		
+		private void insert(Entry entry) {
+			
+			entries.put(entry.key, entry);
+			memory += entry.cost;
+			
+			// append to stripe order
+			entry.prev = tail;
+			if (tail != null) {
+				tail.next = entry;
+			} else {
+				head = entry;
+			}
+			tail = entry;
+			
+			// append to peer order
+			long peerKey = peerKey(entry.key);
+			PeerQueue queue = peers.get(peerKey);
+			if (queue == null) {
+				queue = new PeerQueue(peerKey);
+				peers.put(peerKey, queue);
+			}
+			entry.queue = queue;
+			entry.peerPrev = queue.tail;
+			if (queue.tail != null) {
+				queue.tail.peerNext = entry;
+			} else {
+				queue.head = entry;
+			}
+			queue.tail = entry;
+			++queue.count;
+			
+			enforceBudget(entry);
+		}
+		
+		private void remove(Entry entry) {
+			
+			entries.remove(entry.key, entry);
+			memory -= entry.cost;
+			
+			if (entry.prev != null) {
+				entry.prev.next = entry.next;
+			} else {
+				head = entry.next;
+			}
+			if (entry.next != null) {
+				entry.next.prev = entry.prev;
+			} else {
+				tail = entry.prev;
+			}
+			
+			PeerQueue queue = entry.queue;
+			if (entry.peerPrev != null) {
+				entry.peerPrev.peerNext = entry.peerNext;
+			} else {
+				queue.head = entry.peerNext;
+			}
+			if (entry.peerNext != null) {
+				entry.peerNext.peerPrev = entry.peerPrev;
+			} else {
+				queue.tail = entry.peerPrev;
+			}
+			if (--queue.count == 0) {
+				peers.remove(queue.peerKey, queue);
+			}
+			
+			entry.prev = entry.next = entry.peerPrev = entry.peerNext = null;
+			entry.queue = null;
+		}
+		
+		/*
+		 * Removes expired entries from the head, where the oldest are
+		 */
+		private void sweep(long now) {
+			while (head != null && head.expires - now <= 0) {
+				remove(head);
+				numExpired.incrementAndGet();
+			}
+		}
+		
+		/*
+		 * Evicts the oldest entries of the peer over its limit, then while
+		 * over budget those of the peer if it holds more than its share, else
+		 * the oldest entries overall, but never the given entry
+		 */
+		private void enforceBudget(Entry keep) {
+			
+			PeerQueue queue = keep.queue;
+			while (queue.count > peerLimit && queue.head != keep) {
+				remove(queue.head);
+				numEvicted.incrementAndGet();
+			}
+			
+			while (memory > budget && head != keep) {
+				if (queue.head != keep && queue.count * peers.size() > entries.size()) {
+					remove(queue.head);
+				} else {
+					remove(head);
+				}
+				numEvicted.incrementAndGet();
+			}
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Instantiates a new cache.
+	 * 
+	 * @param lifetime the time entries are kept in milliseconds
+	 * @param budget the estimated memory all entries may use in bytes
+	 * @param peerLimit the maximum number of entries per peer, lowered to
+	 *            half the budget of a stripe if it exceeds it
+	 * @param stripes the number of independently locked stripes
+	 */
+	public DeduplicationCache(long lifetime, long budget, int peerLimit, int stripes) {
+		
+		this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetime);
+		
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; ++i) {
+			this.stripes[i] = new Stripe(budget / count, peerLimit);
+		}
+	}
+	
+	/**
+	 * Instantiates a new cache configured through the EXCHANGE_LIFETIME,
+	 * DEDUP_CACHE_BUDGET, and DEDUP_PEER_LIMIT properties. The peer limit
+	 * covers at least MAX_TRANSMIT_SPAN at the message ID rate of a peer.
+	 */
+	public DeduplicationCache() {
+		this(Properties.std.getInt("EXCHANGE_LIFETIME"),
+				Properties.std.getInt("DEDUP_CACHE_BUDGET"),
+				Math.max(Properties.std.getInt("DEDUP_PEER_LIMIT"), getTransmitSpanLimit()),
+				DEFAULT_STRIPES);
+	}
+	
+	/**
+	 * Returns the number of messages a peer can send within MAX_TRANSMIT_SPAN
+	 * when each of its 65536 message IDs is used once per EXCHANGE_LIFETIME,
+	 * i.e., the entries needed to detect all its retransmissions.
+	 * 
+	 * @return the minimum number of entries per peer
+	 */
+	public static int getTransmitSpanLimit() {
+		
+		// ACK_TIMEOUT * (2^MAX_RETRANSMIT - 1) * ACK_RANDOM_FACTOR (RFC 7252, 4.8.2)
+		double span = Properties.std.getInt("RESPONSE_TIMEOUT")
+				* ((1 << Properties.std.getInt("MAX_RETRANSMIT")) - 1)
+				* Properties.std.getDbl("RESPONSE_RANDOM_FACTOR");
+		
+		return (int) Math.ceil(0x10000 * span / Properties.std.getInt("EXCHANGE_LIFETIME"));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Records a received message unless it is a duplicate.
+	 * 
+	 * @param msg the received confirmable or non-confirmable
+	 * @return true if the message is new, false if it is a duplicate
+	 */
+	public boolean add(Message msg) {
+		long key = TransactionLayer.transactionKey(msg);
+		boolean added = stripeFor(key).add(msg, key, System.nanoTime());
+		if (!added) {
+			numDuplicates.incrementAndGet();
+		}
+		return added;
+	}
+	
+	/**
+	 * Returns the reply sent for a received message.
+	 * 
+	 * @param msg the received message, usually a duplicate
+	 * @return the ACK or RST sent for it or null if none is cached
+	 */
+	public Message getReply(Message msg) {
+		long key = TransactionLayer.transactionKey(msg);
+		return stripeFor(key).getReply(msg, key, System.nanoTime());
+	}
+	
+	/**
+	 * Caches a reply to retransmit it for duplicates of the message it
+	 * answers.
+	 * 
+	 * @param reply the ACK or RST sent
+	 */
+	public void putReply(Message reply) {
+		long key = TransactionLayer.transactionKey(reply);
+		stripeFor(key).putReply(reply, key, System.nanoTime());
+	}
+	
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the estimated memory used by entries and replies.
+	 * 
+	 * @return the memory in bytes
+	 */
+	public long getMemory() {
+		long memory = 0;
+		for (Stripe stripe : stripes) {
+			memory += stripe.getMemory();
+		}
+		return memory;
+	}
+	
+	public int getPeerCount() {
+		int peers = 0;
+		for (Stripe stripe : stripes) {
+			peers += stripe.getPeerCount();
+		}
+		return peers;
+	}
+	
+	public long getNumDuplicates() {
+		return numDuplicates.get();
+	}
+	
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+	
+	public long getNumEvicted() {
+		return numEvicted.get();
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+
+	/*
+	 * Clears the message ID bits of a transaction key
+	 */
+	private static long peerKey(long key) {
+		return key & ~0xFFFFL;
+	}
+	
+	private Stripe stripeFor(long key) {
+		long h = peerKey(key) * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+	}
+}
@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class Dispatcher decouples the receiver thread of a transport
+ * {@link Layer} from the processing of incoming messages. Decoded messages are
+ * handed to a pool of worker threads through bounded queues. All messages from
+ * one {@link EndpointAddress} are served by the same worker, so that the
+ * exchanges with a peer stay serialized, while a slow resource handler only
+ * delays the peers that share its worker.
+ * <p>
+ * When the queue of a worker is full, the {@link OverflowPolicy} decides how
+ * the message is refused. The dispatcher is configured through the
+ * DISPATCH_THREADS, DISPATCH_QUEUE_CAPACITY, and DISPATCH_OVERFLOW_POLICY
+ * {@link Properties}. With zero threads, messages are delivered directly on the
+ * calling thread.
+ */
+public class Dispatcher {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(Dispatcher.class.getName());
+
+// Nested Classes //////////////////////////////////////////////////////////////
+
+	/**
+	 * Defines how incoming messages are refused when the queue of the
+	 * responsible worker is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the message silently; peers will retransmit confirmables. */
+		DROP,
+		/** Reject the message with an empty RST. */
+		RST,
+		/** Answer requests with 5.03 Service Unavailable, drop other messages. */
+		SERVICE_UNAVAILABLE
+	}
+
+	/**
+	 * A worker thread serving the messages of the peers mapped to its queue.
+	 */
+	private class Worker extends Thread {
+		
+		private BlockingQueue<Message> queue;
+
+		Worker(int index, int capacity) {
+			super("DispatchWorker-" + index);
+			this.queue = new ArrayBlockingQueue<Message>(capacity);
+			
+			// workers only exist while the transport is receiving
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					deliver(queue.take());
+				} catch (InterruptedException e) {
+					LOG.info(String.format("%s interrupted, stopping", getName()));
+					return;
+				}
+			}
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	/** The transport layer whose messages are dispatched. */
+	private Layer transport;
+	
+	/** The workers, or null to deliver on the calling thread. */
+	private Worker[] workers;
+	
+	private OverflowPolicy overflowPolicy;
+	
+	private AtomicInteger numRefused = new AtomicInteger();
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new dispatcher and starts its workers.
+	 * 
+	 * @param transport the layer whose {@link Layer#receiveMessage(Message)} is
+	 *            called by the workers and that sends RST or 5.03 replies
+	 * @param threads the number of workers, or 0 to deliver on the calling thread
+	 * @param capacity the queue capacity of each worker
+	 * @param overflowPolicy the handling of messages when a queue is full
+	 */
+	public Dispatcher(Layer transport, int threads, int capacity, OverflowPolicy overflowPolicy) {
+		
+		this.transport = transport;
+		this.overflowPolicy = overflowPolicy;
+		
+		if (threads > 0) {
+			
+			if (capacity < 1) {
+				LOG.warning(String.format("Invalid dispatch queue capacity %d, using 1 instead", capacity));
+				capacity = 1;
+			}
+			
+			workers = new Worker[threads];
+			for (int i = 0; i < threads; ++i) {
+				workers[i] = new Worker(i, capacity);
+				workers[i].start();
+			}
+			
+			LOG.config(String.format("Dispatching to %d workers (capacity %d, overflow %s)", threads, capacity, overflowPolicy));
+		}
+	}
+
+	/**
+	 * Creates a new dispatcher configured by the DISPATCH_* properties.
+	 * 
+	 * @param transport the layer whose messages are dispatched
+	 */
+	public Dispatcher(Layer transport) {
+		this(transport,
+			Properties.std.getInt("DISPATCH_THREADS"),
+			Properties.std.getInt("DISPATCH_QUEUE_CAPACITY"),
+			parseOverflowPolicy(Properties.std.getStr("DISPATCH_OVERFLOW_POLICY")));
+	}
+
+// Static methods //////////////////////////////////////////////////////////////
+
+	/**
+	 * Converts a property value into the corresponding overflow policy.
+	 * 
+	 * @param value the policy name, e.g., "RST"
+	 * @return the policy, or DROP if the name is unknown
+	 */
+	public static OverflowPolicy parseOverflowPolicy(String value) {
+		if (value != null) {
+			try {
+				return OverflowPolicy.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				LOG.severe(String.format("Invalid overflow policy: %s", value));
+			}
+		}
+		return OverflowPolicy.DROP;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Hands a received message to the worker responsible for its peer. The
+	 * call does not block; if the worker queue is full, the message is refused
+	 * according to the overflow policy.
+	 * 
+	 * @param msg the decoded message
+	 */
+	public void dispatch(Message msg) {
+		
+		if (workers == null) {
+			deliver(msg);
+			return;
+		}
+		
+		Worker worker = workers[workerIndex(msg.getPeerAddress())];
+		
+		if (!worker.queue.offer(msg)) {
+			handleOverflow(msg);
+		}
+	}
+
+	/**
+	 * Interrupts all workers. Messages still queued are discarded.
+	 */
+	public void shutdown() {
+		if (workers != null) {
+			for (Worker worker : workers) {
+				worker.interrupt();
+			}
+		}
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+
+	private int workerIndex(EndpointAddress peer) {
+		
+		int hash = peer != null ? peer.hashCode() : 0;
+		
+		// spread the higher bits, as port numbers mostly differ in the lower ones
+		hash ^= (hash >>> 16);
+		
+		return (hash & 0x7FFFFFFF) % workers.length;
+	}
+
+	private void handleOverflow(Message msg) {
+		
+		numRefused.incrementAndGet();
+		
+		Message reply = null;
+		
+		switch (overflowPolicy) {
+			case RST:
+				// replies must never be answered
+				if (!msg.isReply()) {
+					reply = msg.newReject();
+				}
+				break;
+			case SERVICE_UNAVAILABLE:
+				if (msg instanceof Request) {
+					reply = newServiceUnavailable((Request) msg);
+				}
+				break;
+			default:
+				break;
+		}
+		
+		LOG.warning(String.format("Dispatch queue full, refused message (%s): %s", overflowPolicy, msg.key()));
+		
+		if (reply != null) {
+			try {
+				transport.sendMessage(reply);
+			} catch (IOException e) {
+				LOG.severe(String.format("Refusing message failed: %s\n%s", msg.key(), e.getMessage()));
+			}
+		}
+	}
+
+	private static Response newServiceUnavailable(Request request) {
+		
+		Response response = new Response(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+		
+		response.setPeerAddress(request.getPeerAddress());
+		response.setToken(request.getToken());
+		
+		if (request.isConfirmable()) {
+			// piggy-backed
+			response.setType(messageType.ACK);
+			response.setMID(request.getMID());
+		} else {
+			response.setType(messageType.NON);
+			int mid = TransactionLayer.nextMessageID(request.getPeerAddress());
+			if (mid < 0) {
+				// the refusal is dropped like the request
+				LOG.fine(String.format("No free message ID to refuse: %s", request.key()));
+				return null;
+			}
+			response.setMID(mid);
+		}
+		
+		return response;
+	}
+
+	private void deliver(Message msg) {
+		
+		// protect against unknown exceptions
+		try {
+			
+			// call receive handler
+			transport.receiveMessage(msg);
+			
+		} catch (Exception e) {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Crash: ");
+			builder.append(e.getMessage());
+			builder.append('\n');
+			builder.append("                    ");
+			builder.append("Stacktrace for ");
+			builder.append(e.getClass().getName());
+			builder.append(":\n");
+			for (StackTraceElement elem : e.getStackTrace()) {
+				builder.append("                    ");
+				builder.append(elem.getClassName());
+				builder.append('.');
+				builder.append(elem.getMethodName());
+				builder.append('(');
+				builder.append(elem.getFileName());
+				builder.append(':');
+				builder.append(elem.getLineNumber());
+				builder.append(")\n");
+			}
+			
+			LOG.severe(builder.toString());
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	public int getNumWorkers() {
+		return workers != null ? workers.length : 0;
+	}
+
+	/**
+	 * Returns the number of messages waiting in all worker queues.
+	 * 
+	 * @return the current queue depth
+	 */
+	public int getQueueSize() {
+		int size = 0;
+		if (workers != null) {
+			for (Worker worker : workers) {
+				size += worker.queue.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of messages refused because of a full queue.
+	 * 
+	 * @return the number of refused messages
+	 */
+	public int getNumRefused() {
+		return numRefused.get();
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageKey;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class ExchangeStore keeps the open request/response exchanges of a
+ * client, i.e., the requests that still expect responses. It is shared by
+ * the {@link TokenLayer}, which opens and completes exchanges, and the
+ * {@link MatchingLayer}, which pairs each incoming response with the request
+ * that was last sent with its token.
+ * <p>
+ * Exchanges are keyed on the {@link Message#sequenceKey()}, i.e., the peer
+ * address and the token in binary form.
+ * Every exchange expires after the overall timeout unless it is completed or
+ * kept alive for observing, so that requests that never receive a response
+ * do not remain in the store. The registered {@link ExpirationListener} is
+ * notified about exchanges opened by the TokenLayer that expired.
+ */
+public class ExchangeStore {
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	private final ConcurrentMap<MessageKey, Exchange> exchanges = new ConcurrentHashMap<MessageKey, Exchange>();
+	
+	/** The timer for the expiry of exchanges. */
+	private final HashedWheelTimer timer;
+	
+	/** The time until exchanges expire, in milliseconds. */
+	private final int lifetime;
+	
+	private volatile ExpirationListener listener;
+	
+	// Counters
+	private final AtomicLong numCompleted = new AtomicLong();
+	private final AtomicLong numExpired = new AtomicLong();
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * The listener interface for expired exchanges.
+	 */
+	public interface ExpirationListener {
+		
+		/**
+		 * Called after an exchange opened through {@link ExchangeStore#open(Request)}
+		 * has been removed because it expired.
+		 * 
+		 * @param exchange the expired exchange
+		 */
+		void exchangeExpired(Exchange exchange);
+	}
+
+	/**
+	 * An open exchange. The request is the one issued by the application,
+	 * while the current request is the one last sent with the same token,
+	 * e.g., for the next block of a blockwise transfer.
+	 */
+	public static final class Exchange {
+		
+		private final MessageKey key;
+		private final Request request;
+		private volatile Request current;
+		private HashedWheelTimer.Timeout expiry;
+		
+		Exchange(MessageKey key, Request request) {
+			this.key = key;
+			this.request = request;
+			this.current = request;
+		}
+		
+		public MessageKey getKey() {
+			return key;
+		}
+		
+		/**
+		 * Returns the request that opened the exchange.
+		 * 
+		 * @return the request, or null if only registered by the MatchingLayer
+		 */
+		public Request getRequest() {
+			return request;
+		}
+		
+		public Request getCurrentRequest() {
+			return current;
+		}
+	}
+	
+	/*
+	 * Utility class to provide exchange expiry
+	 */
+	private class ExpiryTask implements Runnable {
+		
+		private final Exchange exchange;
+		
+		ExpiryTask(Exchange exchange) {
+			this.exchange = exchange;
+		}
+		
+		@Override
+		public void run() {
+			expired(exchange);
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new exchange store.
+	 * 
+	 * @param lifetime the time until exchanges expire, in milliseconds
+	 * @param timer the timer for the expiry
+	 */
+	public ExchangeStore(int lifetime, HashedWheelTimer timer) {
+		this.lifetime = lifetime;
+		this.timer = timer;
+	}
+	
+	public ExchangeStore(int lifetime) {
+		this(lifetime, HashedWheelTimer.getInstance());
+	}
+	
+	public ExchangeStore() {
+		this(Properties.std.getInt("DEFAULT_OVERALL_TIMEOUT"));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public void setExpirationListener(ExpirationListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Opens a new exchange for a request issued by the application.
+	 * 
+	 * @param request the request
+	 * @return the exchange previously stored for the peer and token, which
+	 *         has been replaced and will not expire anymore, or null
+	 */
+	public Exchange open(Request request) {
+		
+		Exchange exchange = new Exchange(request.sequenceKey(), request);
+		
+		// schedule before publishing, so that the expiry is always set
+		exchange.expiry = timer.schedule(new ExpiryTask(exchange), lifetime);
+		
+		Exchange previous = exchanges.put(exchange.key, exchange);
+		if (previous != null) {
+			previous.expiry.cancel();
+		}
+		return previous;
+	}
+	
+	/**
+	 * Registers a request as the current one of its exchange. If there is
+	 * none, a new exchange without listener notification is opened.
+	 * 
+	 * @param request the request sent with the token of the exchange
+	 */
+	public void register(Request request) {
+		
+		MessageKey key = request.sequenceKey();
+		
+		Exchange exchange = exchanges.get(key);
+		if (exchange != null) {
+			exchange.current = request;
+		} else {
+			exchange = new Exchange(key, null);
+			exchange.current = request;
+			exchange.expiry = timer.schedule(new ExpiryTask(exchange), lifetime);
+			
+			Exchange previous = exchanges.putIfAbsent(key, exchange);
+			if (previous != null) {
+				exchange.expiry.cancel();
+				previous.current = request;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the exchange matching a response.
+	 * 
+	 * @param msg the response
+	 * @return the exchange for the peer and token, or null
+	 */
+	public Exchange get(Message msg) {
+		return exchanges.get(msg.sequenceKey());
+	}
+	
+	/**
+	 * Completes the exchange matching a response in a single removal.
+	 * 
+	 * @param msg the response
+	 * @return the completed exchange, or null if none was open
+	 */
+	public Exchange complete(Message msg) {
+		Exchange exchange = exchanges.remove(msg.sequenceKey());
+		if (exchange != null) {
+			exchange.expiry.cancel();
+			numCompleted.incrementAndGet();
+		}
+		return exchange;
+	}
+	
+	/**
+	 * Completes an exchange, i.e., removes it and cancels its expiry.
+	 * 
+	 * @param exchange the exchange to complete
+	 * @return true if completed, false if it expired or was completed before
+	 */
+	public boolean complete(Exchange exchange) {
+		if (exchanges.remove(exchange.key, exchange)) {
+			exchange.expiry.cancel();
+			numCompleted.incrementAndGet();
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Keeps an exchange open until it is completed, e.g., while observing.
+	 * 
+	 * @param exchange the exchange
+	 */
+	public void keep(Exchange exchange) {
+		exchange.expiry.cancel();
+	}
+	
+	private void expired(Exchange exchange) {
+		
+		// the response may have won the race or the exchange was replaced
+		if (!exchanges.remove(exchange.key, exchange)) {
+			return;
+		}
+		numExpired.incrementAndGet();
+		
+		ExpirationListener current = listener;
+		if (exchange.request != null && current != null) {
+			current.exchangeExpired(exchange);
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+	
+	public int size() {
+		return exchanges.size();
+	}
+	
+	public long getNumCompleted() {
+		return numCompleted.get();
+	}
+	
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+}
@@ -31,8 +31,9 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -52,9 +53,9 @@ public abstract class Layer implements MessageReceiver {
 
 // Members /////////////////////////////////////////////////////////////////////
 
-	private List<MessageReceiver> receivers;
-	protected int numMessagesSent;
-	protected int numMessagesReceived;
+	private volatile List<MessageReceiver> receivers;
+	protected final AtomicInteger numMessagesSent = new AtomicInteger();
+	protected final AtomicInteger numMessagesReceived = new AtomicInteger();
 
 // Methods /////////////////////////////////////////////////////////////////////
 	
@@ -62,7 +63,7 @@ public abstract class Layer implements MessageReceiver {
 
 		if (msg != null) {
 			doSendMessage(msg);
-			++numMessagesSent;
+			numMessagesSent.incrementAndGet();
 		}
 	}
 
@@ -70,7 +71,7 @@ public abstract class Layer implements MessageReceiver {
 	public void receiveMessage(Message msg) {
 
 		if (msg != null) {
-			++numMessagesReceived;
+			numMessagesReceived.incrementAndGet();
 			doReceiveMessage(msg);
 		}
 	}
@@ -89,14 +90,14 @@ public abstract class Layer implements MessageReceiver {
 		}
 	}
 
-	public void registerReceiver(MessageReceiver receiver) {
+	public synchronized void registerReceiver(MessageReceiver receiver) {
 
 		// check for valid receiver
 		if (receiver != null && receiver != this) {
 
 			// lazy creation of receiver list
 			if (receivers == null) {
-				receivers = new ArrayList<MessageReceiver>();
+				receivers = new CopyOnWriteArrayList<MessageReceiver>();
 			}
 
 			// add receiver to list
@@ -113,10 +114,10 @@ public abstract class Layer implements MessageReceiver {
 	}
 
 	public int getNumMessagesSent() {
-		return numMessagesSent;
+		return numMessagesSent.get();
 	}
 
 	public int getNumMessagesReceived() {
-		return numMessagesReceived;
+		return numMessagesReceived.get();
 	}
 }
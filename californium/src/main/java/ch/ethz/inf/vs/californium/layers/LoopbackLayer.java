@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class LoopbackLayer is an in-memory transport that connects stacks
+ * within the same process without any socket. Each instance is bound to
+ * 127.0.0.1 and a port, so that messages carry real {@link EndpointAddress}es
+ * and the stacks on top cannot tell the difference from UDP.
+ * <p>
+ * Messages are encoded when sent and decoded by the receiving endpoint, so
+ * that stacks never share message objects. Datagrams are passed through a
+ * lock-free inbox, which a delivery thread per endpoint drains and hands to
+ * a {@link Dispatcher}. Datagrams to unknown ports are lost silently like
+ * with UDP.
+ * <p>
+ * Like the {@link AdverseLayer}, the layer can impair its outgoing datagrams
+ * with loss, a fixed delay, and reordering, which holds back single datagrams
+ * so that later ones overtake them. With a frame size set, the loss applies
+ * to each frame of a datagram, so that large datagrams are lost more often
+ * like on links that fragment them.
+ */
+public class LoopbackLayer extends TransportLayer {
+
+// Static Attributes ///////////////////////////////////////////////////////////
+
+	/** The address all loopback endpoints are bound to. */
+	public static final InetAddress LOOPBACK_ADDRESS;
+	
+	static {
+		InetAddress address = null;
+		try {
+			address = InetAddress.getByAddress("localhost", new byte[] {127, 0, 0, 1});
+		} catch (UnknownHostException e) {
+			// cannot happen for a raw IPv4 address
+		}
+		LOOPBACK_ADDRESS = address;
+	}
+	
+	/** The first port used for endpoints bound to port 0. */
+	private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+	/** The endpoints reachable within this process by address. */
+	private static final ConcurrentMap<EndpointAddress, LoopbackLayer> endpoints = new ConcurrentHashMap<EndpointAddress, LoopbackLayer>();
+	
+	private static final AtomicInteger nextEphemeralPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	/** The address of this endpoint. */
+	private EndpointAddress localAddress;
+	
+	/** The datagrams sent to this endpoint, drained by the delivery thread. */
+	private ConcurrentLinkedQueue<Datagram> inbox = new ConcurrentLinkedQueue<Datagram>();
+	
+	/** The delayed datagrams, only used by the delivery thread. */
+	private PriorityQueue<Datagram> delayed = new PriorityQueue<Datagram>(16, new DeliveryTimeComparator());
+
+	private DeliveryThread deliveryThread;
+	
+	/** Set while the delivery thread is parked and needs to be woken up. */
+	private volatile boolean waiting = false;
+	
+	private volatile boolean running = true;
+	
+	// The worker pool that processes the received messages
+	private Dispatcher dispatcher;
+	
+	private int rxBufferSize = Properties.std.getInt("RX_BUFFER_SIZE");
+	
+	// Impairments of outgoing datagrams
+	private volatile double lossProbability = 0d;
+	private volatile int frameSize = 0;
+	private volatile long delayNanos = 0L;
+	private volatile double reorderProbability = 0d;
+	private volatile long reorderDelayNanos = 0L;
+	
+	private Random random = new Random();
+	
+	// Counters
+	private AtomicLong sequence = new AtomicLong();
+	private AtomicInteger numLost = new AtomicInteger();
+	private AtomicInteger numUnreachable = new AtomicInteger();
+
+// Inner Classes ///////////////////////////////////////////////////////////////
+
+	private static class Datagram {
+		final byte[] data;
+		final EndpointAddress source;
+		final long deliveryTime; // System.nanoTime() at which to deliver
+		final long sequence;
+		
+		Datagram(byte[] data, EndpointAddress source, long deliveryTime, long sequence) {
+			this.data = data;
+			this.source = source;
+			this.deliveryTime = deliveryTime;
+			this.sequence = sequence;
+		}
+	}
+	
+	private static class DeliveryTimeComparator implements Comparator<Datagram> {
+		@Override
+		public int compare(Datagram a, Datagram b) {
+			long diff = a.deliveryTime - b.deliveryTime;
+			if (diff == 0) {
+				diff = a.sequence - b.sequence;
+			}
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+
+	class DeliveryThread extends Thread {
+		
+		public DeliveryThread() {
+			super("LoopbackDelivery-" + localAddress.getPort());
+		}
+		
+		@Override
+		public void run() {
+			while (running) {
+				
+				// take over all datagrams sent in the meantime
+				Datagram datagram;
+				long now = System.nanoTime();
+				while ((datagram = inbox.poll()) != null) {
+					if (delayed.isEmpty() && datagram.deliveryTime - now <= 0) {
+						datagramReceived(datagram);
+					} else {
+						delayed.add(datagram);
+					}
+				}
+				
+				// deliver the delayed datagrams that are due
+				now = System.nanoTime();
+				while (!delayed.isEmpty() && delayed.peek().deliveryTime - now <= 0) {
+					datagramReceived(delayed.poll());
+				}
+				
+				// sleep until woken up by a sender or the next datagram is due
+				waiting = true;
+				if (inbox.isEmpty() && running) {
+					if (delayed.isEmpty()) {
+						LockSupport.park(this);
+					} else {
+						LockSupport.parkNanos(this, delayed.peek().deliveryTime - System.nanoTime());
+					}
+				}
+				waiting = false;
+			}
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new loopback layer
+	 * 
+	 * @param port The local port, or 0 to use any free port
+	 * @param daemon True if delivery thread should terminate with main thread
+	 */
+	public LoopbackLayer(int port, boolean daemon) throws SocketException {
+		
+		// bind to the port
+		if (port == 0) {
+			do {
+				localAddress = new EndpointAddress(LOOPBACK_ADDRESS, nextEphemeralPort());
+			} while (endpoints.putIfAbsent(localAddress, this) != null);
+		} else {
+			localAddress = new EndpointAddress(LOOPBACK_ADDRESS, port);
+			if (endpoints.putIfAbsent(localAddress, this) != null) {
+				throw new SocketException(String.format("Loopback address already in use: %s", localAddress));
+			}
+		}
+		
+		this.dispatcher = new Dispatcher(this);
+		this.deliveryThread = new DeliveryThread();
+		
+		// decide if delivery thread terminates with main thread
+		deliveryThread.setDaemon(daemon);
+		deliveryThread.start();
+	}
+
+	/*
+	 * Constructor for a new loopback layer
+	 */
+	public LoopbackLayer() throws SocketException {
+		this(0, true); // use any free port
+	}
+
+// Commands ////////////////////////////////////////////////////////////////////
+
+	/*
+	 * Sets the probability that an outgoing datagram is lost
+	 */
+	public void setLossProbability(double probability) {
+		this.lossProbability = probability;
+	}
+
+	/*
+	 * Sets the size of the link frames in bytes, so that the loss probability
+	 * applies per frame, or 0 to apply it per datagram
+	 */
+	public void setFrameSize(int size) {
+		this.frameSize = size;
+	}
+
+	/*
+	 * Sets the fixed delay of outgoing datagrams in milliseconds
+	 */
+	public void setDelay(int delay) {
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+	}
+
+	/*
+	 * Sets the probability that an outgoing datagram is held back by the given
+	 * additional delay in milliseconds, so that later datagrams overtake it
+	 */
+	public void setReorder(double probability, int extraDelay) {
+		this.reorderProbability = probability;
+		this.reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(extraDelay);
+	}
+
+	/*
+	 * Decides if the delivery thread persists after the main thread terminates
+	 */
+	public void setDaemon(boolean on) {
+		deliveryThread.setDaemon(on);
+	}
+
+	/*
+	 * Unbinds the endpoint and stops its delivery thread. Datagrams still
+	 * queued are discarded.
+	 */
+	public void close() {
+		endpoints.remove(localAddress, this);
+		running = false;
+		LockSupport.unpark(deliveryThread);
+		dispatcher.shutdown();
+	}
+
+// I/O implementation //////////////////////////////////////////////////////////
+
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+		
+		// encode, the receiver must not share the message object
+		byte[] data = msg.toByteArray();
+		
+		// remember when this message was sent for the first time
+		// set timestamp only once in order
+		// to handle retransmissions correctly
+		if (msg.getTimestamp() == -1) {
+			msg.setTimestamp(System.nanoTime());
+		}
+		
+		LoopbackLayer target = endpoints.get(msg.getPeerAddress());
+		
+		if (target == null) {
+			// lost like a UDP datagram without listener
+			numUnreachable.incrementAndGet();
+			LOG.fine(String.format("Loopback endpoint unreachable: %s", msg.getPeerAddress()));
+			return;
+		}
+		
+		if (lossProbability > 0d && isLost(data.length)) {
+			numLost.incrementAndGet();
+			LOG.fine(String.format("Outgoing loopback datagram lost: %s", msg.key()));
+			return;
+		}
+		
+		long delay = delayNanos;
+		if (reorderProbability > 0d && random.nextDouble() < reorderProbability) {
+			delay += reorderDelayNanos;
+		}
+		
+		target.enqueue(data, localAddress, System.nanoTime() + delay);
+	}
+
+	@Override
+	protected void doReceiveMessage(Message msg) {
+		
+		// pass message to registered receivers
+		deliverMessage(msg);
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+
+	private static int nextEphemeralPort() {
+		int port = nextEphemeralPort.getAndIncrement();
+		if (port > 0xFFFF) {
+			nextEphemeralPort.compareAndSet(port + 1, FIRST_EPHEMERAL_PORT);
+			port = nextEphemeralPort.getAndIncrement();
+		}
+		return port;
+	}
+
+	private boolean isLost(int length) {
+		
+		// a datagram is lost with any of its frames
+		int frames = frameSize > 0 ? (length + frameSize - 1) / frameSize : 1;
+		for (int i = 0; i < frames; ++i) {
+			if (random.nextDouble() < lossProbability) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void enqueue(byte[] data, EndpointAddress source, long deliveryTime) {
+		
+		inbox.offer(new Datagram(data, source, deliveryTime, sequence.getAndIncrement()));
+		
+		// wake up delivery thread
+		if (waiting) {
+			LockSupport.unpark(deliveryThread);
+		}
+	}
+
+	private void datagramReceived(Datagram datagram) {
+		
+		// get current time
+		long timestamp = System.nanoTime();
+
+		// create new message from the received data
+		Message msg = Message.fromByteArray(datagram.data);
+		
+		if (msg!=null) {
+
+			// remember when this message was received
+			msg.setTimestamp(timestamp);
+			
+			msg.setPeerAddress(datagram.source);
+			
+			if (datagram.data.length > rxBufferSize) {
+				LOG.info(String.format("Marking large datagram for blockwise transfer: %s", msg.key()));
+				msg.requiresBlockwise(true);
+			}
+
+			// hand over to worker thread
+			dispatcher.dispatch(msg);
+			
+		} else {
+			LOG.severe(String.format("Illegal loopback datagram received from: %s", datagram.source));
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	public boolean isDaemon() {
+		return deliveryThread.isDaemon();
+	}
+
+	@Override
+	public int getPort() {
+		return localAddress.getPort();
+	}
+	
+	public EndpointAddress getLocalAddress() {
+		return localAddress;
+	}
+	
+	public Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+	
+	public int getNumLost() {
+		return numLost.get();
+	}
+	
+	public int getNumUnreachable() {
+		return numUnreachable.get();
+	}
+
+	@Override
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+
+		stats.append("Loopback port: ");
+		stats.append(getPort());
+		stats.append('\n');
+		stats.append("Messages sent:     ");
+		stats.append(numMessagesSent);
+		stats.append('\n');
+		stats.append("Messages received: ");
+		stats.append(numMessagesReceived);
+		stats.append('\n');
+		stats.append("Messages lost:     ");
+		stats.append(numLost);
+		stats.append('\n');
+		stats.append("Unreachable:       ");
+		stats.append(numUnreachable);
+		stats.append('\n');
+		stats.append("Dispatch queue:    ");
+		stats.append(dispatcher.getQueueSize());
+		stats.append('\n');
+		stats.append("Messages refused:  ");
+		stats.append(dispatcher.getNumRefused());
+		
+		return stats.toString();
+	}
+}
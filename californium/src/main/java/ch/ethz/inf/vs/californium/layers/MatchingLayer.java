@@ -31,17 +31,19 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore.Exchange;
 /**
  * This class matches the request/response pairs using the token option. It must
  * be below the {@link TransferLayer}, which requires set buddies for each
  * message ({@link Response#getRequest()} and {@link Request#getResponse()}).
+ * <p>
+ * The open requests are kept in an {@link ExchangeStore}, which is shared
+ * with the {@link TokenLayer} of the same stack.
  * 
  * @author Matthias Kovatsch
  */
@@ -49,22 +51,16 @@ public class MatchingLayer extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponsePair> pairs = new HashMap<String, RequestResponsePair>();
+	private ExchangeStore exchangeStore;
 	
-// Nested Classes //////////////////////////////////////////////////////////////
+	// Constructors ////////////////////////////////////////////////////////////
 	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponsePair {
-		public String key;
-		public Request request;
+	public MatchingLayer(ExchangeStore exchangeStore) {
+		this.exchangeStore = exchangeStore;
 	}
 	
-	// Constructors ////////////////////////////////////////////////////////////
-	
 	public MatchingLayer() {
-
+		this(new ExchangeStore());
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -74,7 +70,9 @@ public class MatchingLayer extends UpperLayer {
 		
 		if (msg instanceof Request) {
 			
-			addOpenRequest((Request) msg);
+			exchangeStore.register((Request) msg);
+			
+			LOG.finer(String.format("Storing open request: %s", msg.sequenceKey()));
 		}
 		
 		sendMessageOverLowerLayer(msg);
@@ -87,10 +85,10 @@ public class MatchingLayer extends UpperLayer {
 
 			Response response = (Response) msg;
 			
-			RequestResponsePair pair = getOpenRequest(msg.sequenceKey());
+			Exchange exchange = exchangeStore.get(msg);
 
 			// check for missing token
-			if (pair == null && response.getToken().length==0) {
+			if (exchange == null && response.getToken().length==0) {
 				
 				LOG.info(String.format("Remote endpoint failed to echo token: %s", msg.key()));
 				
@@ -100,17 +98,19 @@ public class MatchingLayer extends UpperLayer {
 				return;
 			}
 			
-			if (pair != null) {
+			if (exchange != null) {
+				
+				Request request = exchange.getCurrentRequest();
 				
 				// attach request and response to each other
-				response.setRequest(pair.request);
-				pair.request.setResponse(response);
+				response.setRequest(request);
+				request.setResponse(response);
 
 				LOG.finer(String.format("Matched open request: %s", response.sequenceKey()));
 				
-				// TODO: ObservingManager.getInstance().isObserving(msg.exchangeKey());
-				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeOpenRequest(response.sequenceKey());
+				// exchanges opened by the TokenLayer are completed there
+				if (exchange.getRequest()==null && msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
+					exchangeStore.complete(exchange);
 				}
 				
 			} else {
@@ -124,37 +124,15 @@ public class MatchingLayer extends UpperLayer {
 		deliverMessage(msg);
 	}
 	
-	private RequestResponsePair addOpenRequest(Request request) {
-		
-		// create new Transaction
-		RequestResponsePair exchange = new RequestResponsePair();
-		exchange.key = request.sequenceKey();
-		exchange.request = request;
-		
-		LOG.finer(String.format("Storing open request: %s", exchange.key));
-		
-		// associate token with Transaction
-		pairs.put(exchange.key, exchange);
-		
-		return exchange;
-	}
-	
-	private RequestResponsePair getOpenRequest(String key) {
-		return pairs.get(key);
-	}
-	
-	private void removeOpenRequest(String key) {
-		
-		RequestResponsePair exchange = pairs.remove(key);
-
-		LOG.finer(String.format("Cleared open request: %s", exchange.key));
+	public ExchangeStore getExchangeStore() {
+		return exchangeStore;
 	}
 	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 		
 		stats.append("Open requests: ");
-		stats.append(pairs.size());
+		stats.append(exchangeStore.size());
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
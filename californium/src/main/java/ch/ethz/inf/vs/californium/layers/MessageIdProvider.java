@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class MessageIdProvider hands out message IDs from a separate 16-bit
+ * space for each peer, as the peer only needs to tell apart the IDs it
+ * receives from this endpoint. Each space starts at a random ID and counts
+ * up atomically, so that concurrent senders never get the same ID.
+ * <p>
+ * An ID must not be reused while the peer may still hold its exchange, i.e.,
+ * for EXCHANGE_LIFETIME. The space is tracked in blocks of 1024 IDs, each
+ * remembering when it was last used. A block is only entered again once its
+ * last use is older than EXCHANGE_LIFETIME; otherwise the space is exhausted
+ * and {@link #nextMessageID(EndpointAddress)} returns -1. With the default
+ * lifetime, this allows for about 265 messages per second to a single peer.
+ * Senders above that rate can hold their messages back for
+ * {@link #getWait(EndpointAddress)}, until the next block expires.
+ * <p>
+ * The state of a peer is dropped once all of its IDs have expired.
+ */
+public class MessageIdProvider {
+
+// Constants ///////////////////////////////////////////////////////////////////
+
+	private static final int BLOCK_BITS = 10;
+	
+	private static final int BLOCKS = 0x10000 >>> BLOCK_BITS;
+	
+	/** The round of blocks never used. */
+	private static final int NEVER = -1;
+	
+	/** The last use of a purged space, which must not hand out IDs anymore. */
+	private static final long PURGED = Long.MIN_VALUE;
+	
+	/** The granularity at which the last use of a space is tracked. */
+	private static final long LAST_USE_GRANULARITY = TimeUnit.SECONDS.toNanos(1);
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	private final ConcurrentMap<EndpointAddress, MidSpace> spaces = new ConcurrentHashMap<EndpointAddress, MidSpace>();
+	
+	private final long lifetimeNanos;
+	
+	private final Random random = new Random();
+	
+	private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+	
+	private final AtomicLong numExhausted = new AtomicLong();
+
+// Nested Classes //////////////////////////////////////////////////////////////
+
+	/*
+	 * The message IDs of one peer. The counter runs over all 32 bits; its
+	 * upper 16 bits count the rounds through the 16-bit space.
+	 */
+	private static final class MidSpace {
+		
+		final AtomicInteger counter;
+		
+		/** The round in which each block was entered last. */
+		final AtomicIntegerArray blockRound = new AtomicIntegerArray(BLOCKS);
+		
+		/** The System.nanoTime() of the latest ID handed out from each block. */
+		final AtomicLongArray blockUse = new AtomicLongArray(BLOCKS);
+		
+		/** The System.nanoTime() of the latest ID handed out, roughly. */
+		final AtomicLong lastUse = new AtomicLong(System.nanoTime());
+		
+		MidSpace(int start) {
+			counter = new AtomicInteger(start);
+			for (int i = 0; i < BLOCKS; ++i) {
+				blockRound.set(i, NEVER);
+			}
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Instantiates a new provider.
+	 * 
+	 * @param lifetime the time a message ID stays in use in milliseconds
+	 */
+	public MessageIdProvider(long lifetime) {
+		this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetime);
+	}
+	
+	/**
+	 * Instantiates a new provider configured through the EXCHANGE_LIFETIME
+	 * property.
+	 */
+	public MessageIdProvider() {
+		this(Properties.std.getInt("EXCHANGE_LIFETIME"));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the next message ID to use for a peer.
+	 * 
+	 * @param peer the destination of the message
+	 * @return the message ID or -1 if all are still in use
+	 */
+	public int nextMessageID(EndpointAddress peer) {
+		
+		MidSpace space;
+		long now = System.nanoTime();
+		
+		// keep the space alive, or take a new one if it was just purged
+		while (true) {
+			space = getOrCreate(peer);
+			long last = space.lastUse.get();
+			if (last != PURGED && (now - last < LAST_USE_GRANULARITY || space.lastUse.compareAndSet(last, now))) {
+				break;
+			}
+		}
+		
+		while (true) {
+			int sequence = space.counter.get();
+			int mid = sequence & 0xFFFF;
+			int round = sequence >>> 16;
+			int block = mid >>> BLOCK_BITS;
+			
+			// enter the block once per round, if its IDs from the last round expired
+			int blockRound = space.blockRound.get(block);
+			if (blockRound != round
+					&& blockRound != NEVER
+					&& now - space.blockUse.get(block) < lifetimeNanos
+					&& space.blockRound.get(block) != round) {
+				// stay at the block, which is the one to expire next
+				numExhausted.incrementAndGet();
+				return -1;
+			}
+			
+			if (space.counter.compareAndSet(sequence, sequence + 1)) {
+				if (blockRound != round) {
+					space.blockRound.compareAndSet(block, blockRound, round);
+				}
+				// the exact order of concurrent updates is irrelevant at this scale
+				space.blockUse.lazySet(block, now);
+				
+				return mid;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the state of peers whose message IDs all expired.
+	 */
+	public void purge() {
+		long now = System.nanoTime();
+		Iterator<MidSpace> it = spaces.values().iterator();
+		while (it.hasNext()) {
+			AtomicLong lastUse = it.next().lastUse;
+			long last = lastUse.get();
+			
+			// a concurrent sender either refreshes the space first or sees it purged
+			if (now - last > lifetimeNanos + LAST_USE_GRANULARITY && lastUse.compareAndSet(last, PURGED)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Purges expired peers periodically on the given timer, unless already
+	 * scheduled.
+	 * 
+	 * @param timer the timer to schedule the purge on
+	 */
+	public void schedulePurge(final HashedWheelTimer timer) {
+		if (!purgeScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		final long interval = TimeUnit.NANOSECONDS.toMillis(lifetimeNanos);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				purge();
+				timer.schedule(this, interval);
+			}
+		}, interval);
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	public int getPeerCount() {
+		return spaces.size();
+	}
+	
+	/**
+	 * Returns how often a message ID was requested while all were in use.
+	 * 
+	 * @return the number of failed requests
+	 */
+	public long getNumExhausted() {
+		return numExhausted.get();
+	}
+	
+	/**
+	 * Returns the time until the next block of message IDs of a peer
+	 * expires, i.e., until {@link #nextMessageID(EndpointAddress)} returns
+	 * IDs again after the space of the peer was exhausted.
+	 * 
+	 * @param peer the destination of the messages
+	 * @return the time to wait in milliseconds, or 0 if IDs are available
+	 */
+	public long getWait(EndpointAddress peer) {
+		MidSpace space = spaces.get(peer);
+		if (space == null) {
+			return 0;
+		}
+		int sequence = space.counter.get();
+		int block = (sequence & 0xFFFF) >>> BLOCK_BITS;
+		
+		// the block is entered already or was never used
+		int blockRound = space.blockRound.get(block);
+		if (blockRound == NEVER || blockRound == sequence >>> 16) {
+			return 0;
+		}
+		
+		// round up, not to wake before the block expires
+		long wait = space.blockUse.get(block) + lifetimeNanos - System.nanoTime();
+		return wait > 0 ? TimeUnit.NANOSECONDS.toMillis(wait + 999999) : 0;
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private MidSpace getOrCreate(EndpointAddress peer) {
+		MidSpace space = spaces.get(peer);
+		if (space == null) {
+			MidSpace created = new MidSpace(random.nextInt(0x10000));
+			space = spaces.putIfAbsent(peer, created);
+			if (space == null) {
+				space = created;
+			}
+		}
+		return space;
+	}
+}
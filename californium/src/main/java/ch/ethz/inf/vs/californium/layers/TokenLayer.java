@@ -31,10 +31,6 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -42,61 +38,39 @@ import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.TokenManager;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore.Exchange;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * This class takes care of unique tokens for each sequence of request/response
  * exchanges.
  * Additionally, the TokenLayer takes care of an overall timeout for each
- * request/response exchange.
+ * request/response exchange, which is the lifetime of the exchanges in its
+ * {@link ExchangeStore}.
  * 
  * @author Matthias Kovatsch
  */
-public class TokenLayer extends UpperLayer {
+public class TokenLayer extends UpperLayer implements ExchangeStore.ExpirationListener {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponseSequence> exchanges = new HashMap<String, RequestResponseSequence>();
-
-	/** A timer for scheduling overall request timeouts. */
-	private Timer timer = new Timer(true);
-	
-	/** The time to wait for requests to complete, in milliseconds. */
-	private int sequenceTimeout;
+	private ExchangeStore exchangeStore;
 	
-// Nested Classes //////////////////////////////////////////////////////////////
+	// Constructors ////////////////////////////////////////////////////////////
 	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponseSequence {
-		public String key;
-		public Request request;
-		public TimerTask timeoutTask;
+	public TokenLayer(ExchangeStore exchangeStore) {
+		// member initialization
+		this.exchangeStore = exchangeStore;
+		this.exchangeStore.setExpirationListener(this);
 	}
 	
-	/*
-	 * Utility class to provide transaction timeouts
-	 */
-	private class TimeoutTask extends TimerTask {
-		
-		private RequestResponseSequence sequence;
-
-		public TimeoutTask(RequestResponseSequence sequence) {
-			this.sequence = sequence;
-		}
-		
-		@Override
-		public void run() {
-			transferTimedOut(sequence);
-		}
+	public TokenLayer(int sequenceTimeout, HashedWheelTimer timer) {
+		this(new ExchangeStore(sequenceTimeout, timer));
 	}
 	
-	// Constructors ////////////////////////////////////////////////////////////
-	
 	public TokenLayer(int sequenceTimeout) {
-		// member initialization
-		this.sequenceTimeout = sequenceTimeout;
+		this(sequenceTimeout, HashedWheelTimer.getInstance());
 	}
 	
 	public TokenLayer() {
@@ -133,33 +107,40 @@ public class TokenLayer extends UpperLayer {
 
 			Response response = (Response) msg;
 			
-			RequestResponseSequence sequence = getExchange(msg.sequenceKey());
-
-			// check for missing token
-			if (sequence == null && response.getToken().length==0) {
-				
-				LOG.warning(String.format("Remote endpoint failed to echo token: %s", msg.key()));
-				
-				// TODO try to recover from peerAddress
-				
-				// let timeout handle the problem
-				return;
-			}
+			Exchange exchange;
 			
-			if (sequence != null) {
+			// TODO separate observe registry
+			if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
 				
-				// cancel timeout
-				sequence.timeoutTask.cancel();
+				// fails if the overall timeout fired concurrently
+				exchange = exchangeStore.complete(msg);
+				if (exchange != null) {
+					clearExchange(exchange);
+				}
+			} else {
 				
-				// TODO separate observe registry
-				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeExchange(msg.sequenceKey());
+				exchange = exchangeStore.get(msg);
+				if (exchange != null) {
+					// cancel timeout
+					exchangeStore.keep(exchange);
 				}
+			}
+
+			if (exchange != null) {
 
 				LOG.info(String.format("Incoming response from %s: %s // RTT: %fms", ((Response) msg).getRequest().getUriPath(), msg.sequenceKey(), ((Response) msg).getRTT()));
 				
 				deliverMessage(msg);
 				
+			} else if (response.getToken().length==0) {
+				
+				// check for missing token
+				LOG.warning(String.format("Remote endpoint failed to echo token: %s", msg.key()));
+				
+				// TODO try to recover from peerAddress
+				
+				// let timeout handle the problem
+				
 			} else {
 			
 				LOG.warning(String.format("Dropping unexpected response: %s", response.sequenceKey()));
@@ -173,61 +154,50 @@ public class TokenLayer extends UpperLayer {
 		}
 	}
 	
-	private synchronized RequestResponseSequence addExchange(Request request) {
-		
-		// be aware when manually setting tokens, as request/response will be replace
-		removeExchange(request.sequenceKey());
-		
-		// create new Transaction
-		RequestResponseSequence sequence = new RequestResponseSequence();
-		sequence.key = request.sequenceKey();
-		sequence.request = request;
-		sequence.timeoutTask = new TimeoutTask(sequence);
+	private void addExchange(Request request) {
 		
-		// associate token with Transaction
-		exchanges.put(sequence.key, sequence);
-		
-		timer.schedule(sequence.timeoutTask, sequenceTimeout);
+		// be aware when manually setting tokens, as request/response will be replaced;
+		// the token is not released, as the new request uses it
+		Exchange previous = exchangeStore.open(request);
+		if (previous != null) {
+			LOG.fine(String.format("Replaced exchange: %s", request.sequenceKey()));
+		}
 
-		LOG.fine(String.format("Stored new exchange: %s", sequence.key));
-		
-		return sequence;
+		LOG.fine(String.format("Stored new exchange: %s", request.sequenceKey()));
 	}
 	
-	private RequestResponseSequence getExchange(String key) {
-		return exchanges.get(key);
-	}
-	
-	private synchronized void removeExchange(String key) {
-		
-		RequestResponseSequence exchange = exchanges.remove(key);
+	private void clearExchange(Exchange exchange) {
 		
-		if (exchange!=null) {
-			
-			exchange.timeoutTask.cancel();
-			
-			TokenManager.getInstance().releaseToken(exchange.request.getToken());
-	
-			LOG.finer(String.format("Cleared exchange: %s", exchange.key));
+		// not opened here if the request did not pass this layer
+		if (exchange.getRequest()==null) {
+			return;
 		}
+		
+		TokenManager.getInstance().releaseToken(exchange.getRequest().getToken());
+
+		LOG.finer(String.format("Cleared exchange: %s", exchange.getRequest().sequenceKey()));
 	}
 	
-	private void transferTimedOut(RequestResponseSequence exchange) {
+	@Override
+	public void exchangeExpired(Exchange exchange) {
 		
-		// cancel transaction
-		removeExchange(exchange.key);
+		clearExchange(exchange);
 		
-		LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.request.sequenceKey()));
+		LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.getRequest().sequenceKey()));
 		
 		// call event handler
-		exchange.request.handleTimeout();
+		exchange.getRequest().handleTimeout();
+	}
+	
+	public ExchangeStore getExchangeStore() {
+		return exchangeStore;
 	}
 	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 		
 		stats.append("Request-Response exchanges: ");
-		stats.append(exchanges.size());
+		stats.append(exchangeStore.size());
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
@@ -31,15 +31,22 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageKey;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
@@ -50,6 +57,10 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * corresponding ACK/RST, detection and cancellation of duplicate messages,
  * retransmission of ACK/RST messages upon receiving duplicate confirmable
  * messages.
+ * <p>
+ * Messages to a peer whose message IDs are all in use are dropped, or wait
+ * up to MID_EXHAUSTED_WAIT in a queue of the peer, which the timer sends
+ * once the next block of IDs expires. The sending thread never blocks.
  * 
  * @author Matthias Kovatsch
  */
@@ -57,34 +68,71 @@ public class TransactionLayer extends UpperLayer {
 
 // Static attributes ///////////////////////////////////////////////////////////
 
-	/** The message ID used for newly generated messages. */
-	private static int currentMID = (int) (Math.random() * 0x10000);
+	/** The message IDs used for newly generated messages, per peer. */
+	private static MessageIdProvider midProvider = new MessageIdProvider();
 
 	/**
-	 * Returns the next message ID to use out of the consecutive 16-bit range.
+	 * Returns the next message ID to use out of the 16-bit range of the peer.
 	 * 
-	 * @return the current message ID
+	 * @param peer the destination of the message
+	 * @return the message ID or -1 if all are in use within EXCHANGE_LIFETIME
 	 */
-	public static int nextMessageID() {
+	public static int nextMessageID(EndpointAddress peer) {
 
-		currentMID = ++currentMID % 0x10000;
+		return midProvider.nextMessageID(peer);
+	}
 
-		return currentMID;
+	/**
+	 * Packs peer address, port, and message ID into the key of the
+	 * transaction table without allocating. IPv4 addresses fill the upper
+	 * 32 bits; IPv6 addresses are folded into them, which is why lookups
+	 * compare the peer of the stored message and colliding transactions are
+	 * stored under their full {@link Message#transactionKey()} instead.
+	 * 
+	 * @param msg the message to identify
+	 * @return the transaction key
+	 */
+	public static long transactionKey(Message msg) {
+		
+		EndpointAddress peer = msg.getPeerAddress();
+		long address = 0L;
+		int port = 0;
+		
+		if (peer != null) {
+			port = peer.getPort();
+			InetAddress inet = peer.getAddress();
+			if (inet instanceof Inet4Address) {
+				// the hash code of an IPv4 address is the address itself
+				address = inet.hashCode() & 0xFFFFFFFFL;
+			} else if (inet != null) {
+				for (byte b : inet.getAddress()) {
+					address = address * 31 + (b & 0xFF);
+				}
+			}
+		}
+		
+		return (address << 32) ^ ((long) (port & 0xFFFF) << 16) ^ (msg.getMID() & 0xFFFF);
 	}
 	
 // Members /////////////////////////////////////////////////////////////////////
 
 	/** The timer daemon to schedule retransmissions. */
-	private Timer timer = new Timer(true); // run as daemon
+	private HashedWheelTimer timer;
 
 	/** The Table to store the transactions of outgoing messages. */
-	private Map<String, Transaction> transactionTable = new HashMap<String, Transaction>();
+	private ConcurrentLongMap<Transaction> transactionTable = new ConcurrentLongMap<Transaction>();
 
-	/** The cache for duplicate detection. */
-	private MessageCache dupCache = new MessageCache();
+	/** The transactions whose packed key is taken by another peer. */
+	private ConcurrentMap<MessageKey, Transaction> collidingTransactions = new ConcurrentHashMap<MessageKey, Transaction>();
 
-	// Cache used to retransmit replies to incoming messages
-	private MessageCache replyCache = new MessageCache();
+	/** The cache for duplicate detection and retransmission of replies. */
+	private DeduplicationCache dupCache = new DeduplicationCache();
+	
+	/** The learned RTO and the NSTART limit of each peer. */
+	private CongestionControl congestionControl;
+	
+	/** The messages waiting for a free message ID, per peer. */
+	private ConcurrentMap<EndpointAddress, ParkedMessages> parkedMessages = new ConcurrentHashMap<EndpointAddress, ParkedMessages>();
 
 // Nested Classes //////////////////////////////////////////////////////////////
 
@@ -92,31 +140,30 @@ public class TransactionLayer extends UpperLayer {
 	 * Entity class to keep state of retransmissions.
 	 */
 	private static class Transaction {
+		long key;
+		MessageKey fullKey; // only set if stored in collidingTransactions
 		Message msg;
-		RetransmitTask retransmitTask;
+		HashedWheelTimer.Timeout retransmitTask;
 		int numRetransmit;
 		int timeout; // to satisfy RESPONSE_RANDOM_FACTOR
+		double backoff;
+		long sent; // System.nanoTime() of the first transmission
 	}
 
-	/**
-	 * The MessageCache is a utility class used for duplicate detection and
-	 * reply retransmissions. It is a ring buffer whose size is configured
-	 * through the Californium properties file. 
+	/*
+	 * The messages of one peer that wait for a free message ID in order, with
+	 * their deadlines. The queue is retired once it drained.
 	 */
-	@SuppressWarnings("serial")
-	private static class MessageCache extends LinkedHashMap<String, Message> {
-
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
-			return size() > Properties.std.getInt("MESSAGE_CACHE_SIZE");
-		}
-
+	private static class ParkedMessages {
+		LinkedList<Message> messages = new LinkedList<Message>();
+		LinkedList<Long> deadlines = new LinkedList<Long>();
+		boolean retired;
 	}
 
 	/**
 	 * Utility class to handle timeouts.
 	 */
-	private class RetransmitTask extends TimerTask {
+	private class RetransmitTask implements Runnable {
 
 		private Transaction transaction;
 
@@ -130,24 +177,22 @@ public class TransactionLayer extends UpperLayer {
 		}
 	}
 
-// Static methods //////////////////////////////////////////////////////////////
+// Constructors ////////////////////////////////////////////////////////////////
 
-	/**
-	 * Calculates the initial timeout for outgoing confirmable messages.
-	 * 
-	 * @Return the timeout in milliseconds
-	 */
-	private static int initialTimeout() {
+	public TransactionLayer(HashedWheelTimer timer, CongestionControl congestionControl) {
+		this.timer = timer;
+		this.congestionControl = congestionControl;
 		
-		final double min = Properties.std.getDbl("RESPONSE_TIMEOUT");
-		final double f = Properties.std.getDbl("RESPONSE_RANDOM_FACTOR");
-		
-		return (int) (min + (min * (f - 1d) * Math.random()));
+		midProvider.schedulePurge(timer);
+	}
+	
+	public TransactionLayer(HashedWheelTimer timer) {
+		this(timer, new CongestionControl());
+		congestionControl.schedulePurge(timer);
 	}
 	
-// Constructors ////////////////////////////////////////////////////////////////
-
 	public TransactionLayer() {
+		this(HashedWheelTimer.getInstance());
 	}
 
 // I/O implementation //////////////////////////////////////////////////////////
@@ -157,19 +202,49 @@ public class TransactionLayer extends UpperLayer {
 
 		// set message ID
 		if (msg.getMID() < 0) {
-			msg.setMID(nextMessageID());
+			
+			// keep the order behind the messages waiting for the peer
+			if (!parkedMessages.isEmpty() && park(msg, false)) {
+				return;
+			}
+			
+			int mid = nextMessageID(msg.getPeerAddress());
+			if (mid < 0) {
+				if (Properties.std.getInt("MID_EXHAUSTED_WAIT") <= 0) {
+					throw new IOException(String.format("No free message ID for %s", msg.getPeerAddress()));
+				}
+				// wait for the next block of IDs to expire
+				park(msg, true);
+				LOG.fine(String.format("Parked message until a message ID is free for %s", msg.getPeerAddress()));
+				return;
+			}
+			msg.setMID(mid);
 		}
 		
+		sendWithMID(msg);
+	}
+	
+	/*
+	 * Sends a message that has its message ID
+	 */
+	private void sendWithMID(Message msg) throws IOException {
+		
 		// check if message needs confirmation, i.e., a reply is expected
 		if (msg.isConfirmable()) {
+			
+			// wait if NSTART confirmables are already outstanding for the peer
+			if (!congestionControl.acquire(msg)) {
+				LOG.fine(String.format("Queued confirmable until an exchange completes: %s", msg.key()));
+				return;
+			}
 
 			// create new transmission context for retransmissions
 			addTransaction(msg);
 
 		} else if (msg.isReply()) {
 
-			// put message into ring buffer in case peer retransmits
-			replyCache.put(msg.transactionKey(), msg);
+			// cache reply in case peer retransmits
+			dupCache.putReply(msg);
 		}
 
 		// send message over unreliable channel
@@ -179,14 +254,14 @@ public class TransactionLayer extends UpperLayer {
 	@Override
 	protected void doReceiveMessage(Message msg) {
 
-		// check for duplicate
-		if (dupCache.containsKey(msg.key())) {
+		// check for duplicate, replies are matched against the transactions below
+		if (!msg.isReply() && isDuplicate(msg)) {
 
 			// check for retransmitted Confirmable
 			if (msg.isConfirmable()) {
 
 				// retrieve cached reply
-				Message reply = replyCache.get(msg.transactionKey());
+				Message reply = dupCache.getReply(msg);
 				if (reply != null) {
 
 					// retransmit reply
@@ -210,10 +285,6 @@ public class TransactionLayer extends UpperLayer {
 				return;
 			}
 
-		} else {
-
-			// cache received message
-			dupCache.put(msg.key(), msg);
 		}
 
 		// check for reply to CON and remove transaction
@@ -222,10 +293,12 @@ public class TransactionLayer extends UpperLayer {
 			// retrieve transaction for the incoming message
 			Transaction transaction = getTransaction(msg);
 
-			if (transaction != null) {
-
-				// transmission completed
-				removeTransaction(transaction);
+			// transmission completed, unless the retransmission timeout won the race
+			if (transaction != null && removeTransaction(transaction)) {
+				
+				// learn the RTT and loss of the peer
+				congestionControl.updateRTT(msg.getPeerAddress(), (System.nanoTime() - transaction.sent) / 1000000d, transaction.numRetransmit);
+				congestionControl.updateLoss(msg.getPeerAddress(), transaction.numRetransmit, true);
 				
 				if (msg.isEmptyACK()) {
 					
@@ -267,6 +340,14 @@ public class TransactionLayer extends UpperLayer {
 
 	// Internal ////////////////////////////////////////////////////////////////
 
+	/*
+	 * Checks the duplicate cache and stores new messages in one step, as
+	 * multiple receiver threads may pass the same message ID concurrently.
+	 */
+	private boolean isDuplicate(Message msg) {
+		return !dupCache.add(msg);
+	}
+
 	private void handleIncomingReset(Message msg) {
 		
 		// remove possible observers
@@ -295,14 +376,18 @@ public class TransactionLayer extends UpperLayer {
 				return;
 			}
 
-			// schedule next retransmission
-			scheduleRetransmission(transaction);
+			// schedule next retransmission, unless completed in the meantime
+			synchronized (transaction) {
+				if (isOpen(transaction)) {
+					scheduleRetransmission(transaction);
+				}
+			}
 
-		} else {
+		} else if (removeTransaction(transaction)) {
+
+			// learn the loss of the peer
+			congestionControl.updateLoss(transaction.msg.getPeerAddress(), transaction.numRetransmit, false);
 
-			// cancel transmission
-			removeTransaction(transaction);
-			
 			// cancel observations
 			ObservingManager.getInstance().removeObserver(transaction.msg.getPeerAddress().toString());
 
@@ -311,38 +396,248 @@ public class TransactionLayer extends UpperLayer {
 		}
 	}
 
-	private synchronized Transaction addTransaction(Message msg) {
+	private Transaction addTransaction(Message msg) {
 
 		// initialize new transmission context
 		Transaction transaction = new Transaction();
+		transaction.key = transactionKey(msg);
 		transaction.msg = msg;
 		transaction.numRetransmit = 0;
 		transaction.retransmitTask = null;
+		transaction.sent = System.nanoTime();
 
-		transactionTable.put(msg.transactionKey(), transaction);
+		Transaction existing = transactionTable.putIfAbsent(transaction.key, transaction);
+		if (existing != null) {
+			if (isSameTransaction(existing, msg)) {
+				transactionTable.put(transaction.key, transaction);
+			} else {
+				// folded IPv6 address of another peer: do not orphan its transaction
+				transaction.fullKey = msg.transactionKey();
+				collidingTransactions.put(transaction.fullKey, transaction);
+				LOG.fine(String.format("Transaction key of %s collides with %s", msg.key(), existing.msg.key()));
+			}
+		}
 
 		// schedule first retransmission
-		scheduleRetransmission(transaction);
+		synchronized (transaction) {
+			scheduleRetransmission(transaction);
+		}
 		
 		LOG.finest(String.format("Stored new transaction for %s", msg.key()));
 
 		return transaction;
 	}
 
-	private synchronized Transaction getTransaction(Message msg) {
-		return transactionTable.get(msg.transactionKey());
+	private Transaction getTransaction(Message msg) {
+		
+		Transaction transaction = transactionTable.get(transactionKey(msg));
+		
+		// rule out a folded IPv6 address matching another peer
+		if (transaction != null && isSameTransaction(transaction, msg)) {
+			return transaction;
+		}
+		if (!collidingTransactions.isEmpty()) {
+			return collidingTransactions.get(msg.transactionKey());
+		}
+		return null;
+	}
+	
+	private static boolean isSameTransaction(Transaction transaction, Message msg) {
+		return transaction.msg.getMID() == msg.getMID()
+				&& transaction.msg.getPeerAddress().equals(msg.getPeerAddress());
+	}
+	
+	private boolean isOpen(Transaction transaction) {
+		if (transaction.fullKey != null) {
+			return collidingTransactions.get(transaction.fullKey) == transaction;
+		}
+		return transactionTable.get(transaction.key) == transaction;
 	}
 
-	private synchronized void removeTransaction(Transaction transaction) {
+	/*
+	 * Removes the transaction and cancels its retransmissions.
+	 * 
+	 * @return True if the transaction was still open, false if another thread
+	 * completed it first, e.g., the timer and a receiver thread
+	 */
+	private boolean removeTransaction(Transaction transaction) {
 
-		// cancel any pending retransmission schedule
-		transaction.retransmitTask.cancel();
-		transaction.retransmitTask = null;
+		synchronized (transaction) {
+			
+			// remove transaction from table
+			boolean removed = transaction.fullKey != null
+					? collidingTransactions.remove(transaction.fullKey, transaction)
+					: transactionTable.remove(transaction.key, transaction);
+			if (!removed) {
+				return false;
+			}
 
-		// remove transaction from table
-		transactionTable.remove(transaction.msg.transactionKey());
+			// cancel any pending retransmission schedule
+			if (transaction.retransmitTask != null) {
+				transaction.retransmitTask.cancel();
+				transaction.retransmitTask = null;
+			}
+		}
 		
 		LOG.finest(String.format("Cleared transaction for %s", transaction.msg.key()));
+		
+		// start the next confirmable that waited for this peer
+		Message next = congestionControl.release(transaction.msg.getPeerAddress());
+		if (next != null) {
+			sendQueued(next);
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Appends a message to the queue of its peer and schedules the queue.
+	 * Unless the IDs of the peer are exhausted, the message is only parked
+	 * behind other messages.
+	 * 
+	 * @return true if parked, false if no message waits for the peer
+	 * @throws IOException if the queue of the peer is full
+	 */
+	private boolean park(Message msg, boolean exhausted) throws IOException {
+		
+		EndpointAddress peer = msg.getPeerAddress();
+		
+		for (;;) {
+			ParkedMessages parked = parkedMessages.get(peer);
+			if (parked == null) {
+				if (!exhausted) {
+					return false;
+				}
+				// lazy creation
+				ParkedMessages created = new ParkedMessages();
+				parked = parkedMessages.putIfAbsent(peer, created);
+				if (parked == null) {
+					parked = created;
+				}
+			}
+			
+			synchronized (parked) {
+				
+				// drained concurrently
+				if (parked.retired) {
+					if (!exhausted) {
+						return false;
+					}
+					continue;
+				}
+				
+				if (parked.messages.size() >= Properties.std.getInt("MID_QUEUE_CAPACITY")) {
+					throw new IOException(String.format("No free message ID and queue for %s full", peer));
+				}
+				
+				parked.messages.add(msg);
+				parked.deadlines.add(System.nanoTime() + Properties.std.getInt("MID_EXHAUSTED_WAIT") * 1000000L);
+				
+				// the first message schedules the queue
+				if (parked.messages.size() == 1) {
+					scheduleParked(peer, parked);
+				}
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * Runs the queue of a peer once its next block of IDs expires, or when
+	 * its first message times out. Requires the monitor of the queue.
+	 */
+	private void scheduleParked(final EndpointAddress peer, final ParkedMessages parked) {
+		
+		long timeout = (parked.deadlines.getFirst() - System.nanoTime() + 999999) / 1000000;
+		long delay = Math.max(1, Math.min(midProvider.getWait(peer), timeout));
+		
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendParked(peer, parked);
+			}
+		}, delay);
+	}
+	
+	/*
+	 * Sends the messages of a peer that get a message ID in order and times
+	 * out those waiting longer than MID_EXHAUSTED_WAIT, on the timer thread.
+	 */
+	private void sendParked(EndpointAddress peer, ParkedMessages parked) {
+		
+		List<Message> ready = new ArrayList<Message>();
+		List<Message> expired = new ArrayList<Message>();
+		
+		for (;;) {
+			
+			synchronized (parked) {
+				
+				if (parked.messages.isEmpty()) {
+					parked.retired = true;
+					parkedMessages.remove(peer, parked);
+					return;
+				}
+				
+				long now = System.nanoTime();
+				
+				while (!parked.messages.isEmpty()) {
+					if (now - parked.deadlines.getFirst() >= 0) {
+						expired.add(parked.messages.removeFirst());
+						parked.deadlines.removeFirst();
+						continue;
+					}
+					int mid = nextMessageID(peer);
+					if (mid < 0) {
+						break;
+					}
+					Message msg = parked.messages.removeFirst();
+					parked.deadlines.removeFirst();
+					msg.setMID(mid);
+					ready.add(msg);
+				}
+				
+				// still exhausted, wait for the next block
+				if (ready.isEmpty() && expired.isEmpty()) {
+					scheduleParked(peer, parked);
+					return;
+				}
+			}
+			
+			for (Message msg : ready) {
+				
+				// notifications are matched to RSTs by their message ID
+				if (msg instanceof Response && msg.getFirstOption(OptionNumberRegistry.OBSERVE) != null) {
+					ObservingManager.getInstance().updateLastMID((Response) msg);
+				}
+				
+				try {
+					sendWithMID(msg);
+				} catch (IOException e) {
+					LOG.severe(String.format("Sending parked message failed: %s\n%s", msg.key(), e.getMessage()));
+				}
+			}
+			
+			for (Message msg : expired) {
+				LOG.warning(String.format("No free message ID within MID_EXHAUSTED_WAIT for %s", peer));
+				msg.handleTimeout();
+			}
+			
+			// messages may have been parked meanwhile
+			ready.clear();
+			expired.clear();
+		}
+	}
+	
+	private void sendQueued(Message msg) {
+		
+		Transaction transaction = addTransaction(msg);
+		
+		try {
+			sendMessageOverLowerLayer(msg);
+		} catch (IOException e) {
+			LOG.severe(String.format("Sending queued confirmable failed: %s\n%s", msg.key(), e.getMessage()));
+			removeTransaction(transaction);
+		}
 	}
 
 	private void scheduleRetransmission(Transaction transaction) {
@@ -352,30 +647,55 @@ public class TransactionLayer extends UpperLayer {
 			transaction.retransmitTask.cancel();
 		}
 
-		// create new retransmission task
-		transaction.retransmitTask = new RetransmitTask(transaction);
-
 		// calculate timeout using exponential back-off
 		if (transaction.timeout == 0) {
-			// use initial timeout
-			transaction.timeout = initialTimeout();
+			// use initial timeout learned for the peer
+			transaction.timeout = congestionControl.initialTimeout(transaction.msg.getPeerAddress());
+			transaction.backoff = congestionControl.backoffFactor(transaction.timeout);
 		} else {
-			// double timeout
-			transaction.timeout *= 2;
+			// variable back-off, slower for large timeouts
+			transaction.timeout = (int) (transaction.timeout * transaction.backoff);
 		}
 
 		// schedule retransmission task
-		timer.schedule(transaction.retransmitTask, transaction.timeout);
+		transaction.retransmitTask = timer.schedule(new RetransmitTask(transaction), transaction.timeout);
+	}
+	
+	/**
+	 * Returns the congestion control, which exposes the RTT learned per peer.
+	 * 
+	 * @return the congestion control of this layer
+	 */
+	public CongestionControl getCongestionControl() {
+		return congestionControl;
 	}
 	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 
-		stats.append("Current message ID: ");
-		stats.append(currentMID);
+		stats.append("MID spaces:        ");
+		stats.append(midProvider.getPeerCount());
+		stats.append('\n');
+		stats.append("MIDs exhausted:    ");
+		stats.append(midProvider.getNumExhausted());
 		stats.append('\n');
 		stats.append("Open transactions: ");
-		stats.append(transactionTable.size());
+		stats.append(transactionTable.size() + collidingTransactions.size());
+		stats.append('\n');
+		stats.append("Pending timeouts:  ");
+		stats.append(timer.getPending());
+		stats.append('\n');
+		stats.append("Dedup entries:     ");
+		stats.append(dupCache.size());
+		stats.append(" (");
+		stats.append(dupCache.getMemory() / 1024);
+		stats.append(" KiB)");
+		stats.append('\n');
+		stats.append("Duplicates:        ");
+		stats.append(dupCache.getNumDuplicates());
+		stats.append('\n');
+		stats.append("Known peers:       ");
+		stats.append(congestionControl.getPeerCount());
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
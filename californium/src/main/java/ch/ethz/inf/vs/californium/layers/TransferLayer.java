@@ -31,18 +31,23 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
@@ -54,6 +59,28 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * and outgoing transfers. This saves duplicate code, but introduces rather
  * confusing Request/Response checks at various places.<br/>
  * TODO: Explore alternative designs.
+ * <p>
+ * Incoming blocks are collected in a list and joined once the transfer is
+ * complete. If a {@link ChunkHandler} is registered with the request or
+ * provided for the addressed resource, the blocks are instead handed to it
+ * as they arrive and the completed message is delivered without payload.
+ * <p>
+ * Transfer contexts are kept in a {@link TransferStore}, which expires idle
+ * transfers and bounds the bytes held and the transfers per peer. Evicted
+ * downloads are answered by the resource again, while new uploads beyond the
+ * limits are rejected with 5.03 and uploads exceeding the budget with 4.13.
+ * <p>
+ * With a {@link CongestionControl} set, the block size is tuned per peer from
+ * the loss and RTT it observes. Downloads and uploads switch to a smaller
+ * block size between blocks, larger ones take effect with the next transfer.
+ * <p>
+ * Clients may keep a window of Block2 requests in flight, see
+ * {@link Request#setBlockWindow(int)}, and resume a download at an offset,
+ * see {@link Request#setBlockOffset(int)}. Windowed blocks are reassembled by
+ * their position in the body, and the errors for the requests beyond its end
+ * are ignored. A completed download stays in the store until all of these
+ * errors arrived or it expires, so that late ones are not delivered to a new
+ * exchange that reuses the token.
  * 
  * @author Matthias Kovatsch
  */
@@ -64,7 +91,27 @@ public class TransferLayer extends UpperLayer {
 		public String uriPath;
 		public BlockOption current;
 		
-		// TODO: timer
+		// encoded options of an outgoing Block2 transfer
+		public BlockResponse.Template template;
+		
+		// incoming blocks, unless streamed to the handler
+		public List<byte[]> chunks;
+		public int received;
+		public ChunkHandler handler;
+		
+		// first position kept when resumed, and the bytes to drop before
+		public int start;
+		public int skip;
+		
+		// windowed downloads, with early blocks kept by position
+		public int window = 1;
+		public int szx;
+		public int nextNUM;
+		public int end = -1;
+		public int numOutOfScope;
+		public boolean finished;
+		public Map<Integer, byte[]> pending;
+		public int pendingBytes;
 		
 		TransferContext(Message msg) {
 			
@@ -83,25 +130,132 @@ public class TransferLayer extends UpperLayer {
 			
 			LOG.finest(String.format("Created new transfer context for %s: %s", this.uriPath, msg.sequenceKey()));
 		}
+		
+		/*
+		 * Takes the payload of an incoming block, starting with the one
+		 * of the cached message
+		 */
+		void receive(byte[] chunk, boolean last) {
+			
+			if (chunk == null) {
+				chunk = new byte[0];
+			}
+			
+			if (skip > 0) {
+				int n = Math.min(skip, chunk.length);
+				chunk = Arrays.copyOfRange(chunk, n, chunk.length);
+				skip -= n;
+			}
+			
+			if (handler != null) {
+				handler.handleChunk(cache, chunk, start + received, last);
+			} else {
+				if (chunks == null) {
+					chunks = new ArrayList<byte[]>();
+				}
+				chunks.add(chunk);
+			}
+			received += chunk.length;
+		}
+		
+		/*
+		 * Sets the assembled payload, copying every block only once
+		 */
+		void complete() {
+			
+			if (chunks != null) {
+				byte[] payload = new byte[received];
+				int offset = 0;
+				for (byte[] chunk : chunks) {
+					System.arraycopy(chunk, 0, payload, offset, chunk.length);
+					offset += chunk.length;
+				}
+				cache.setPayload(payload);
+				chunks = null;
+			}
+		}
+		
+		/*
+		 * Returns the bytes held, which are none for streamed transfers
+		 */
+		long bytes() {
+			return (handler == null ? received : 0) + pendingBytes;
+		}
+		
+		/*
+		 * Returns the position of the next block in the body
+		 */
+		int position() {
+			return start - skip + received;
+		}
+		
+		/*
+		 * Counts the errors for windowed requests beyond the end of the body,
+		 * of which there are fewer than the window
+		 */
+		synchronized boolean isOutOfScope(Message msg) {
+			if (window > 1 && msg.getCode()==CodeRegistry.RESP_BAD_REQUEST && numOutOfScope < getBeyondEnd()) {
+				++numOutOfScope;
+				return true;
+			}
+			return false;
+		}
+		
+		synchronized boolean isFinished() {
+			return finished;
+		}
+		
+		/*
+		 * Checks if the download is complete and all its requests beyond the
+		 * end of the body were answered
+		 */
+		synchronized boolean isAnswered() {
+			return finished && numOutOfScope >= getBeyondEnd();
+		}
+		
+		/*
+		 * Returns the number of requests beyond the end of the body, which is
+		 * known once the last block arrived
+		 */
+		private int getBeyondEnd() {
+			if (end < 0) {
+				return window - 1;
+			}
+			int size = BlockOption.decodeSZX(szx);
+			return nextNUM - (end + size - 1) / size;
+		}
 	}
 	
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, TransferContext> incoming = new HashMap<String, TransferContext>();
-	private Map<String, TransferContext> outgoing = new HashMap<String, TransferContext>();
+	// expiring and bounded storage shared by both directions
+	private TransferStore<TransferContext> transfers;
+	private TransferStore.Table<TransferContext> incoming;
+	private TransferStore.Table<TransferContext> outgoing;
 	
 	// default block size used for the transfer
 	private int defaultSZX;
 	
+	// selects the handlers for streamed request bodies
+	private ChunkHandler.Provider chunkHandlerProvider;
+	
+	// tunes the block size per peer, if set
+	private CongestionControl congestionControl;
+	
 	// Constructors ////////////////////////////////////////////////////////////
 	
-	/**
+	/*
 	 * Constructor for a new TransferLayer
 	 * 
 	 * @param defaultBlockSize the block size to use if not indicated by block option
+	 * @param transfers the store for the transfers in progress
 	 */
-	public TransferLayer(int defaultBlockSize) {
+	private TransferLayer(int defaultBlockSize, TransferStore<TransferContext> transfers) {
+		
+		this.transfers = transfers;
+		this.incoming = transfers.newTable();
+		this.outgoing = transfers.newTable();
 		
 		if (defaultBlockSize==0) {
 			defaultBlockSize = Properties.std.getInt("DEFAULT_BLOCK_SIZE");
@@ -122,9 +276,44 @@ public class TransferLayer extends UpperLayer {
 		}
 	}
 	
+	public TransferLayer(int defaultBlockSize) {
+		this(defaultBlockSize, new TransferStore<TransferContext>());
+		
+		transfers.schedulePurge(HashedWheelTimer.getInstance());
+	}
+	
 	public TransferLayer() {
 		this(0);
 	}
+	
+	/**
+	 * Stops the periodic expiry of the transfers in progress, e.g., when
+	 * the stack of this layer is discarded.
+	 */
+	public void close() {
+		transfers.cancelPurge();
+	}
+	
+	/**
+	 * Sets the provider of {@link ChunkHandler}s for incoming blockwise
+	 * requests, e.g., the server endpoint.
+	 * 
+	 * @param provider the provider, or null to assemble all request bodies
+	 */
+	public void setChunkHandlerProvider(ChunkHandler.Provider provider) {
+		this.chunkHandlerProvider = provider;
+	}
+	
+	/**
+	 * Sets the congestion control that tunes the block size per peer, e.g.,
+	 * the one of the {@link TransactionLayer}.
+	 * 
+	 * @param congestionControl the congestion control, or null to use the
+	 *        default block size for all peers
+	 */
+	public void setCongestionControl(CongestionControl congestionControl) {
+		this.congestionControl = congestionControl;
+	}
 
 	// I/O implementation //////////////////////////////////////////////////////
 	
@@ -134,14 +323,20 @@ public class TransferLayer extends UpperLayer {
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
 		
-		int sendSZX = defaultSZX;
+		int sendSZX = getSZX(msg.getPeerAddress());
 		int sendNUM = 0;
 		
+		// a resumed download demands the block with the offset right away
+		if (msg instanceof Request && ((Request)msg).getBlockOffset() > 0 && msg.getFirstOption(OptionNumberRegistry.BLOCK2)==null) {
+			int szx = sendSZX >= 0 ? sendSZX : 6;
+			msg.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, ((Request)msg).getBlockOffset() >> (szx + 4), szx, false));
+		}
+		
 		// block negotiation
 		if (msg instanceof Response && ((Response)msg).getRequest()!=null) {
 			BlockOption buddyBlock = (BlockOption) ((Response)msg).getRequest().getFirstOption(OptionNumberRegistry.BLOCK2);
 			if (buddyBlock!=null) {
-				if (buddyBlock.getSZX()<defaultSZX) {
+				if (buddyBlock.getSZX()<sendSZX) {
 					sendSZX = buddyBlock.getSZX();
 				}
 				sendNUM = buddyBlock.getNUM();
@@ -152,7 +347,9 @@ public class TransferLayer extends UpperLayer {
 		if (msg.payloadSize() > BlockOption.decodeSZX(sendSZX)) {
 			// split message up using block1 for requests and block2 for responses
 			
-			Message msgBlock = getBlock(msg, sendNUM, sendSZX);
+			BlockResponse.Template template = BlockResponse.Template.create(msg);
+			
+			Message msgBlock = getBlock(msg, sendNUM, sendSZX, template);
 			
 			if (msgBlock!=null) {
 				
@@ -166,9 +363,16 @@ public class TransferLayer extends UpperLayer {
 					msg.setOption(block2);
 					
 					TransferContext transfer = new TransferContext(msg);
-					outgoing.put(msg.sequenceKey(), transfer);
+					transfer.template = template;
 					
-					LOG.fine(String.format("Caching blockwise transfer for NUM %d: %s", sendNUM, msg.sequenceKey()));
+					if (outgoing.put(msg.sequenceKey(), msg.getPeerAddress(), transfer, msg.payloadSize())) {
+						LOG.fine(String.format("Caching blockwise transfer for NUM %d: %s", sendNUM, msg.sequenceKey()));
+					} else if (msg instanceof Request) {
+						throw new IOException(String.format("Too many blockwise transfers: %s", msg.sequenceKey()));
+					} else {
+						// further blocks are answered by the resource again
+						LOG.info(String.format("Sending blockwise transfer without caching: %s", msg.sequenceKey()));
+					}
 				} else {
 					// must be block2 by client
 					LOG.finer(String.format("Answering block request without caching: %s | %s", msg.sequenceKey(), block2));
@@ -180,7 +384,7 @@ public class TransferLayer extends UpperLayer {
 			} else {
 				// must be block2 by client
 				LOG.info(String.format("Rejecting initial out-of-scope request: %s | NUM: %d, SZX: %d (%d bytes), M: n/a, %d bytes available", msg.sequenceKey(), sendNUM, sendSZX, BlockOption.decodeSZX(sendSZX), msg.payloadSize()));
-				handleOutOfScopeError(msg.newReply(true));
+				handleOutOfScopeError(((Response)msg).getRequest().newReply(true));
 			}
 			
 		} else {
@@ -243,8 +447,18 @@ public class TransferLayer extends UpperLayer {
 						transfer.cache.setMID(msg.getMID());
 					}
 			
+					int num = blockOut.getNUM();
+					int szx = blockOut.getSZX();
+					
+					// continue uploads with a smaller tuned block size
+					int tunedSZX = getSZX(msg.getPeerAddress());
+					if (msg instanceof Response && tunedSZX >= 0 && tunedSZX < szx) {
+						num <<= szx - tunedSZX;
+						szx = tunedSZX;
+					}
+					
 					// use cached representation
-					Message next = getBlock(transfer.cache, blockOut.getNUM(), blockOut.getSZX());
+					Message next = getBlock(transfer.cache, num, szx, transfer.template);
 						
 					if (next!=null) {
 							
@@ -259,14 +473,14 @@ public class TransferLayer extends UpperLayer {
 							
 						// remove transfer context if completed
 						if (!respBlock.getM() && msg instanceof Request) {
-							outgoing.remove(msg.sequenceKey());
+							outgoing.complete(msg.sequenceKey());
 							LOG.fine(String.format("Freed blockwise download by completion: %s", next.sequenceKey()));
 						}
 						return;
 							
 					} else if (msg instanceof Response && !blockOut.getM()) {
 						
-						outgoing.remove(msg.sequenceKey());
+						outgoing.complete(msg.sequenceKey());
 						LOG.fine(String.format("Freed blockwise upload by completion: %s", msg.sequenceKey()));
 						
 						// restore original request with registered handlers
@@ -293,7 +507,21 @@ public class TransferLayer extends UpperLayer {
 			}
 			
 			transfer = incoming.get(msg.sequenceKey());
-			if (transfer!=null) {
+			if (transfer!=null && transfer.isOutOfScope(msg)) {
+				LOG.finer(String.format("Ignoring error for block beyond the end: %s", msg.sequenceKey()));
+				
+				// release a completed download with its last outstanding error
+				if (transfer.isAnswered()) {
+					incoming.complete(msg.sequenceKey());
+				}
+				return;
+			}
+			if (transfer!=null && transfer.isFinished()) {
+				
+				// the completed download was only kept for its errors
+				incoming.complete(msg.sequenceKey());
+				
+			} else if (transfer!=null) {
 
 				// restore original request with registered handlers
 				((Response)msg).setRequest((Request)transfer.cache);
@@ -311,13 +539,25 @@ public class TransferLayer extends UpperLayer {
 		
 		TransferContext transfer = incoming.get(msg.sequenceKey());
 		
+		if (transfer != null && transfer.window > 1) {
+			handleWindowedBlock(msg, blockOpt, transfer);
+			return;
+		}
+		
 		if (blockOpt.getNUM()>0 && transfer != null) {
 			
 			// compare block offsets
 			if (blockOpt.getNUM()*blockOpt.getSize()==(transfer.current.getNUM()+1)*transfer.current.getSize() ) {
 								
-				// append received payload to first response and update message ID
-				transfer.cache.appendPayload(msg.getPayload());
+				// collect or stream received payload and update message ID
+				if (!receive(msg, transfer, msg.getPayload(), !blockOpt.getM())) {
+					return;
+				}
+				
+				if (!incoming.resize(msg.sequenceKey(), transfer.bytes())) {
+					handleTooLargeError(msg);
+					return;
+				}
 				
 				// update info
 				transfer.cache.setMID(msg.getMID());
@@ -329,7 +569,7 @@ public class TransferLayer extends UpperLayer {
 			}
 		
 			
-		} else if (blockOpt.getNUM()==0 && msg.payloadSize()>0) {
+		} else if (blockOpt.getNUM()==0 && msg.payloadSize()>0 || transfer == null && isResumed(msg, blockOpt)) {
 			
 			// configure messages marked by Cf for blockwise transfer
 			if (msg.payloadSize() > blockOpt.getSize()) {
@@ -340,10 +580,41 @@ public class TransferLayer extends UpperLayer {
 			
 			// create new transfer context
 			transfer = new TransferContext(msg);
-			incoming.put(msg.sequenceKey(), transfer);
+			transfer.handler = getChunkHandler(msg);
+			
+			// the cached message only keeps the assembled payload
+			byte[] first = msg.getPayload();
+			msg.setPayload((byte[]) null);
+			
+			// a resumed download drops the body before the offset
+			int offset = getBlockOffset(msg);
+			if (offset > 0) {
+				transfer.start = offset;
+				transfer.skip = offset - blockOpt.getNUM()*blockOpt.getSize();
+			}
+			
+			if (!incoming.put(msg.sequenceKey(), msg.getPeerAddress(), transfer, 0)) {
+				handleUnavailableError(msg);
+				return;
+			}
 			
 			LOG.fine(String.format("Incoming blockwise transfer: %s | %s", msg.sequenceKey(), blockOpt));
 			
+			if (!receive(msg, transfer, first, !blockOpt.getM())) {
+				return;
+			}
+			
+			if (!incoming.resize(msg.sequenceKey(), transfer.bytes())) {
+				handleTooLargeError(msg);
+				return;
+			}
+			
+			int window = getBlockWindow(msg);
+			if (window > 1 && blockOpt.getM()) {
+				startWindow(msg, blockOpt, transfer, window);
+				return;
+			}
+			
 		} else {
 			
 			LOG.info(String.format("Rejecting out-of-order block: %s | %s", msg.sequenceKey(), blockOpt));
@@ -357,10 +628,11 @@ public class TransferLayer extends UpperLayer {
 			int demandSZX = blockOpt.getSZX();
 			int demandNUM = blockOpt.getNUM();
 
-			// block size negotiation
-			if (demandSZX>defaultSZX) {
-				demandNUM = demandSZX/defaultSZX * demandNUM;
-				demandSZX = defaultSZX; 
+			// block size negotiation, the last block received in the smaller size
+			int szx = getSZX(msg.getPeerAddress());
+			if (szx >= 0 && demandSZX > szx) {
+				demandNUM = ((demandNUM + 1) << (demandSZX - szx)) - 1;
+				demandSZX = szx;
 			}
 			
 			if (msg instanceof Response) {
@@ -412,14 +684,201 @@ public class TransferLayer extends UpperLayer {
 			
 			// set final block option
 			transfer.cache.setOption(blockOpt);
+			transfer.complete();
 			
 			LOG.fine(String.format("Finished blockwise transfer: %s", msg.sequenceKey()));
-			incoming.remove(msg.sequenceKey());
+			incoming.complete(msg.sequenceKey());
+			
+			deliverMessage(transfer.cache);
+		}
+	}
+	
+	/*
+	 * Requests the blocks following the first one of a windowed download at
+	 * once, in the block size negotiated for the transfer
+	 */
+	private void startWindow(Message msg, BlockOption blockOpt, TransferContext transfer, int window) {
+		
+		int szx = getSZX(msg.getPeerAddress());
+		if (szx < 0 || szx > blockOpt.getSZX()) {
+			szx = blockOpt.getSZX();
+		}
+		
+		int first = (blockOpt.getNUM() + 1) << (blockOpt.getSZX() - szx);
+		
+		synchronized (transfer) {
+			transfer.szx = szx;
+			transfer.nextNUM = first + window;
+			transfer.window = window;
+		}
+		
+		LOG.fine(String.format("Demanding %d blocks in parallel: %s | NUM: %d, SZX: %d", window, msg.sequenceKey(), first, szx));
+		
+		for (int num = first; num < first + window; ++num) {
+			requestBlock(msg, transfer, new BlockOption(OptionNumberRegistry.BLOCK2, num, szx, false));
+		}
+	}
+	
+	/*
+	 * Reassembles the blocks of a windowed download by their position and
+	 * demands a new block for each one that was demanded by the window
+	 */
+	private void handleWindowedBlock(Message msg, BlockOption blockOpt, TransferContext transfer) {
+		
+		List<BlockOption> demands = new ArrayList<BlockOption>();
+		int offset = blockOpt.getNUM()*blockOpt.getSize();
+		byte[] payload = msg.getPayload()!=null ? msg.getPayload() : new byte[0];
+		boolean completed = false;
+		
+		synchronized (transfer) {
+			
+			if (offset < transfer.position() || transfer.pending!=null && transfer.pending.containsKey(offset)) {
+				LOG.finer(String.format("Dropping duplicate block: %s | %s", msg.sequenceKey(), blockOpt));
+				return;
+			}
 			
+			if (!blockOpt.getM()) {
+				transfer.end = offset + payload.length;
+				transfer.current = blockOpt;
+			}
+			
+			// only blocks at the start of a demanded one keep the window full
+			int windowSize = BlockOption.decodeSZX(transfer.szx);
+			if (offset % windowSize == 0) {
+				
+				// a smaller block than demanded leaves the rest to be demanded
+				if (blockOpt.getM() && blockOpt.getSZX() < transfer.szx) {
+					for (int num = blockOpt.getNUM()+1; num*blockOpt.getSize() < offset + windowSize; ++num) {
+						demands.add(new BlockOption(OptionNumberRegistry.BLOCK2, num, blockOpt.getSZX(), false));
+					}
+				}
+				
+				if (transfer.end < 0 || transfer.nextNUM*windowSize < transfer.end) {
+					demands.add(new BlockOption(OptionNumberRegistry.BLOCK2, transfer.nextNUM++, transfer.szx, false));
+				}
+			}
+			
+			if (offset == transfer.position()) {
+				
+				if (!receive(msg, transfer, payload, offset + payload.length == transfer.end)) {
+					return;
+				}
+				
+				// continue with the blocks that arrived early
+				byte[] chunk;
+				while (transfer.pending!=null && (chunk = transfer.pending.remove(transfer.position()))!=null) {
+					transfer.pendingBytes -= chunk.length;
+					if (!receive(msg, transfer, chunk, transfer.position() + chunk.length == transfer.end)) {
+						return;
+					}
+				}
+				
+			} else {
+				
+				if (transfer.pending==null) {
+					transfer.pending = new HashMap<Integer, byte[]>();
+				}
+				transfer.pending.put(offset, payload);
+				transfer.pendingBytes += payload.length;
+			}
+			
+			if (!incoming.resize(msg.sequenceKey(), transfer.bytes())) {
+				handleTooLargeError(msg);
+				return;
+			}
+			
+			transfer.cache.setMID(msg.getMID());
+			
+			LOG.fine(String.format("Received block:       %s | %s, %d early", msg.sequenceKey(), blockOpt, transfer.pending!=null ? transfer.pending.size() : 0));
+			
+			if (transfer.end >= 0 && transfer.position() == transfer.end) {
+				
+				// set final block option
+				transfer.cache.setOption(transfer.current);
+				transfer.complete();
+				transfer.finished = true;
+				
+				// keep the transfer without its body until the errors for
+				// requests beyond the end arrived
+				if (transfer.isAnswered()) {
+					incoming.complete(msg.sequenceKey());
+				} else {
+					incoming.resize(msg.sequenceKey(), 0);
+				}
+				completed = true;
+			}
+		}
+		
+		for (BlockOption next : demands) {
+			requestBlock(msg, transfer, next);
+		}
+		
+		if (completed) {
+			LOG.fine(String.format("Finished windowed blockwise transfer: %s", msg.sequenceKey()));
 			deliverMessage(transfer.cache);
 		}
 	}
 	
+	/*
+	 * Demands a block of a windowed download
+	 */
+	private void requestBlock(Message msg, TransferContext transfer, BlockOption next) {
+		
+		Request request = new Request(CodeRegistry.METHOD_GET, !msg.isNonConfirmable()); // msg could be ACK or CON
+		request.setURI("coap://" + msg.getPeerAddress().toString() + transfer.uriPath);
+		request.setOption(msg.getFirstOption(OptionNumberRegistry.TOKEN));
+		request.setOption(next);
+		
+		try {
+			LOG.finer(String.format("Demanding block: %s | %s", request.sequenceKey(), next));
+			sendMessageOverLowerLayer(request);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
+		}
+	}
+	
+	/*
+	 * Returns the handler for streaming the body of an incoming transfer
+	 */
+	private ChunkHandler getChunkHandler(Message msg) {
+		
+		if (msg instanceof Response) {
+			Request request = ((Response) msg).getRequest();
+			return request != null ? request.getChunkHandler() : null;
+		} else if (msg instanceof Request && chunkHandlerProvider != null) {
+			return chunkHandlerProvider.getChunkHandler((Request) msg);
+		} else {
+			return null;
+		}
+	}
+	
+	/*
+	 * Returns the block size for a peer, tuned if a congestion control is set
+	 */
+	private int getSZX(EndpointAddress peer) {
+		
+		if (defaultSZX < 0 || congestionControl == null || peer == null) {
+			return defaultSZX;
+		}
+		return congestionControl.blockSZX(peer, defaultSZX);
+	}
+	
+	/*
+	 * Passes a block to the transfer and frees the transfer if the
+	 * handler fails
+	 */
+	private boolean receive(Message msg, TransferContext transfer, byte[] chunk, boolean last) {
+		try {
+			transfer.receive(chunk, last);
+			return true;
+		} catch (RuntimeException e) {
+			LOG.severe(String.format("Freed incoming transfer after handler failure: %s | %s", transfer.cache.sequenceKey(), e.getMessage()));
+			incoming.remove(transfer.cache.sequenceKey());
+			handleHandlerError(msg);
+			return false;
+		}
+	}
+	
 	private void handleOutOfScopeError(Message resp) {
 		
 		resp.setCode(CodeRegistry.RESP_BAD_REQUEST);
@@ -433,6 +892,67 @@ public class TransferLayer extends UpperLayer {
 		}
 	}
 	
+	/*
+	 * Rejects a new incoming transfer beyond the limits of the store
+	 */
+	private void handleUnavailableError(Message msg) {
+		
+		LOG.warning(String.format("Rejecting blockwise transfer beyond limits: %s", msg.sequenceKey()));
+		
+		// responses are dropped and the request times out
+		if (msg instanceof Request) {
+			Message resp = msg.newReply(true);
+			resp.setCode(CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+			resp.setPayload("Too many blockwise transfers");
+			
+			try {
+				sendMessageOverLowerLayer(resp);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+			}
+		}
+	}
+	
+	/*
+	 * Rejects an incoming transfer that was evicted to stay within the budget
+	 */
+	private void handleTooLargeError(Message msg) {
+		
+		LOG.warning(String.format("Freed incoming transfer exceeding budget: %s", msg.sequenceKey()));
+		
+		// responses are dropped and the request times out
+		if (msg instanceof Request) {
+			Message resp = msg.newReply(true);
+			resp.setCode(CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE);
+			resp.setPayload("Blockwise transfer too large");
+			
+			try {
+				sendMessageOverLowerLayer(resp);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+			}
+		}
+	}
+	
+	/*
+	 * Rejects an incoming transfer whose chunk handler failed
+	 */
+	private void handleHandlerError(Message msg) {
+		
+		// responses are dropped and the request times out
+		if (msg instanceof Request) {
+			Message resp = msg.newReply(true);
+			resp.setCode(CodeRegistry.RESP_INTERNAL_SERVER_ERROR);
+			resp.setPayload("Blockwise transfer failed");
+			
+			try {
+				sendMessageOverLowerLayer(resp);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+			}
+		}
+	}
+	
 	private void handleIncompleteError(Message resp) {
 		
 		resp.setCode(CodeRegistry.RESP_REQUEST_ENTITY_INCOMPLETE);
@@ -447,8 +967,37 @@ public class TransferLayer extends UpperLayer {
 	
 	
 	// Static Methods //////////////////////////////////////////////////////////
+	
+	private static int getBlockOffset(Message msg) {
+		Request request = msg instanceof Response ? ((Response) msg).getRequest() : null;
+		return request != null ? request.getBlockOffset() : 0;
+	}
+	
+	private static int getBlockWindow(Message msg) {
+		Request request = msg instanceof Response ? ((Response) msg).getRequest() : null;
+		return request != null ? request.getBlockWindow() : 1;
+	}
+	
+	/*
+	 * Checks if a response carries the block demanded to resume a download
+	 */
+	private static boolean isResumed(Message msg, BlockOption blockOpt) {
+		int offset = getBlockOffset(msg);
+		return offset > 0 && blockOpt.getNUM()*blockOpt.getSize() <= offset;
+	}
 
-	private static Message getBlock(Message msg, int num, int szx) {
+	private static Message getBlock(Message msg, int num, int szx, BlockResponse.Template template) {
+		
+		// Block2 responses are encoded from the cached options and payload
+		if (template != null) {
+			
+			Message block = BlockResponse.create(template, num, szx);
+			if (block != null) {
+				setBlockHeader(block, msg, num);
+				block.setPeerAddress(msg.getPeerAddress());
+			}
+			return block;
+		}
 		
 		int blockSize = 1 << (szx + 4);
 		int payloadOffset = num * blockSize;
@@ -460,13 +1009,7 @@ public class TransferLayer extends UpperLayer {
 				block = new Request(msg.getCode(), msg.isConfirmable());
 			} else {
 				block = new Response(msg.getCode());
-				
-				if (num==0 && msg.getType()==Message.messageType.CON) {
-					block.setType(Message.messageType.CON);
-				} else {
-					block.setType(msg.isNonConfirmable() ? Message.messageType.NON : Message.messageType.ACK);
-				}
-				block.setMID(msg.getMID());
+				setBlockHeader(block, msg, num);
 			}
 			
 			block.setPeerAddress(msg.getPeerAddress());
@@ -506,6 +1049,25 @@ public class TransferLayer extends UpperLayer {
 		}
 	}
 	
+	private static void setBlockHeader(Message block, Message msg, int num) {
+		
+		if (num==0 && msg.getType()==Message.messageType.CON) {
+			block.setType(Message.messageType.CON);
+		} else {
+			block.setType(msg.isNonConfirmable() ? Message.messageType.NON : Message.messageType.ACK);
+		}
+		block.setMID(msg.getMID());
+	}
+	
+	/**
+	 * Returns the store of the transfers in progress, e.g., for its metrics.
+	 * 
+	 * @return the transfer store
+	 */
+	public TransferStore<?> getTransferStore() {
+		return transfers;
+	}
+	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 		
@@ -518,6 +1080,8 @@ public class TransferLayer extends UpperLayer {
 		stats.append("Incoming cache size: ");
 		stats.append(incoming.size());
 		stats.append('\n');
+		stats.append(transfers.getStats());
+		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
 		stats.append('\n');
@@ -0,0 +1,473 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.MessageKey;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class TransferStore keeps the contexts of blockwise transfers in
+ * progress for the {@link TransferLayer}. Transfers are kept in
+ * {@link Table}s, e.g., one for incoming and one for outgoing transfers,
+ * which share the limits of the store:
+ * <ul>
+ * <li>a transfer without a block for TRANSFER_IDLE_TIMEOUT expires,
+ * <li>the bytes held by all transfers are bounded by TRANSFER_STORE_BUDGET,
+ * beyond which the least recently used transfers are evicted,
+ * <li>a peer may have at most TRANSFER_PEER_LIMIT transfers at a time.
+ * </ul>
+ * All transfers are linked in access order, which is also the order of
+ * expiry, so that both expiry and eviction take the head of the list.
+ * Transfers are only accessed once per block, so a single lock suffices.
+ * 
+ * @param <V> the type of the transfer contexts
+ */
+public class TransferStore<V> {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(TransferStore.class.getName());
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final long idleNanos;
+	private final long budget;
+	private final int peerLimit;
+	
+	/** The transfers in access order, least recently used first. */
+	private Entry<V> head, tail;
+	
+	private final Map<EndpointAddress, Integer> transfersByPeer = new HashMap<EndpointAddress, Integer>();
+	
+	private long bytes;
+	private int count;
+	
+	/** The periodic purge, if scheduled. */
+	private PurgeTask purgeTask;
+	
+	// Counters
+	private long numCompleted;
+	private long numExpired;
+	private long numEvicted;
+	private long numRejected;
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	private static final class Entry<V> {
+		
+		final Table<V> table;
+		final MessageKey key;
+		final EndpointAddress peer;
+		final V value;
+		long bytes;
+		long lastAccess;
+		
+		Entry<V> prev, next;
+		
+		Entry(Table<V> table, MessageKey key, EndpointAddress peer, V value) {
+			this.table = table;
+			this.key = key;
+			this.peer = peer;
+			this.value = value;
+		}
+	}
+	
+	/*
+	 * Purges a store periodically until cancelled. It only holds the store
+	 * weakly, so that an abandoned store stops rescheduling itself.
+	 */
+	private static final class PurgeTask implements Runnable {
+		
+		final WeakReference<TransferStore<?>> store;
+		final HashedWheelTimer timer;
+		final long interval;
+		
+		volatile boolean cancelled;
+		volatile HashedWheelTimer.Timeout timeout;
+		
+		PurgeTask(TransferStore<?> store, HashedWheelTimer timer, long interval) {
+			this.store = new WeakReference<TransferStore<?>>(store);
+			this.timer = timer;
+			this.interval = interval;
+		}
+		
+		@Override
+		public void run() {
+			TransferStore<?> target = store.get();
+			if (target == null || cancelled) {
+				return;
+			}
+			target.purge();
+			
+			timeout = timer.schedule(this, interval);
+			if (cancelled) {
+				timeout.cancel();
+			}
+		}
+		
+		void cancel() {
+			cancelled = true;
+			HashedWheelTimer.Timeout current = timeout;
+			if (current != null) {
+				current.cancel();
+			}
+		}
+	}
+	
+	/**
+	 * A table of transfers keyed on their {@link ch.ethz.inf.vs.californium.coap.Message#sequenceKey()}.
+	 * 
+	 * @param <V> the type of the transfer contexts
+	 */
+	public static final class Table<V> {
+		
+		private final TransferStore<V> store;
+		private final Map<MessageKey, Entry<V>> entries = new HashMap<MessageKey, Entry<V>>();
+		
+		private Table(TransferStore<V> store) {
+			this.store = store;
+		}
+		
+		/**
+		 * Returns a transfer and marks it as used.
+		 * 
+		 * @param key the sequence key
+		 * @return the transfer, or null if none or expired
+		 */
+		public V get(MessageKey key) {
+			synchronized (store) {
+				store.purge();
+				Entry<V> entry = entries.get(key);
+				if (entry != null) {
+					store.touch(entry);
+					return entry.value;
+				}
+				return null;
+			}
+		}
+		
+		/**
+		 * Adds a transfer, replacing the one with the same key unless rejected.
+		 * 
+		 * @param key the sequence key
+		 * @param peer the peer of the transfer
+		 * @param value the transfer context
+		 * @param bytes the bytes held by the transfer
+		 * @return true if added, false if the peer reached its limit or the
+		 *         transfer exceeds the budget
+		 */
+		public boolean put(MessageKey key, EndpointAddress peer, V value, long bytes) {
+			synchronized (store) {
+				store.purge();
+				
+				// a rejected transfer leaves the one it would replace in place
+				Entry<V> previous = entries.get(key);
+				int transfers = store.getTransfers(peer);
+				if (previous != null && previous.peer.equals(peer)) {
+					--transfers;
+				}
+				
+				if (transfers >= store.peerLimit || bytes > store.budget) {
+					++store.numRejected;
+					return false;
+				}
+				
+				if (previous != null) {
+					store.unlink(previous);
+				}
+				
+				Entry<V> entry = new Entry<V>(this, key, peer, value);
+				entries.put(key, entry);
+				store.link(entry);
+				store.resize(entry, bytes);
+				return true;
+			}
+		}
+		
+		/**
+		 * Updates the bytes held by a transfer, e.g., when a block arrived.
+		 * Other transfers are evicted if needed to stay within the budget.
+		 * 
+		 * @param key the sequence key
+		 * @param bytes the bytes now held by the transfer
+		 * @return true if the transfer is still stored, false if it alone
+		 *         exceeds the budget and was evicted
+		 */
+		public boolean resize(MessageKey key, long bytes) {
+			synchronized (store) {
+				Entry<V> entry = entries.get(key);
+				if (entry != null) {
+					store.touch(entry);
+					store.resize(entry, bytes);
+					return entries.get(key) == entry;
+				}
+				return false;
+			}
+		}
+		
+		/**
+		 * Removes a completed transfer.
+		 * 
+		 * @param key the sequence key
+		 * @return the transfer, or null
+		 */
+		public V complete(MessageKey key) {
+			synchronized (store) {
+				Entry<V> entry = entries.get(key);
+				if (entry != null) {
+					store.unlink(entry);
+					++store.numCompleted;
+					return entry.value;
+				}
+				return null;
+			}
+		}
+		
+		/**
+		 * Removes an aborted transfer.
+		 * 
+		 * @param key the sequence key
+		 * @return the transfer, or null
+		 */
+		public V remove(MessageKey key) {
+			synchronized (store) {
+				Entry<V> entry = entries.get(key);
+				if (entry != null) {
+					store.unlink(entry);
+					return entry.value;
+				}
+				return null;
+			}
+		}
+		
+		public int size() {
+			synchronized (store) {
+				return entries.size();
+			}
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new transfer store.
+	 * 
+	 * @param idleTimeout the time after the last block until a transfer
+	 *        expires, in milliseconds
+	 * @param budget the bytes all transfers may hold together
+	 * @param peerLimit the maximum number of transfers per peer
+	 */
+	public TransferStore(int idleTimeout, long budget, int peerLimit) {
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.budget = budget;
+		this.peerLimit = peerLimit;
+	}
+	
+	public TransferStore() {
+		this(Properties.std.getInt("TRANSFER_IDLE_TIMEOUT"),
+			Properties.std.getInt("TRANSFER_STORE_BUDGET"),
+			Properties.std.getInt("TRANSFER_PEER_LIMIT"));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns a new table that shares the limits of this store.
+	 * 
+	 * @return the table
+	 */
+	public Table<V> newTable() {
+		return new Table<V>(this);
+	}
+	
+	/**
+	 * Removes expired transfers.
+	 */
+	public synchronized void purge() {
+		long now = System.nanoTime();
+		while (head != null && now - head.lastAccess > idleNanos) {
+			LOG.fine(String.format("Expired blockwise transfer: %s", head.key));
+			unlink(head);
+			++numExpired;
+		}
+	}
+	
+	/**
+	 * Removes expired transfers periodically on the given timer, so that
+	 * they are freed even if no further transfers happen, until
+	 * {@link #cancelPurge()} is called. Does nothing if already scheduled.
+	 * 
+	 * @param timer the timer to schedule the expiry on
+	 */
+	public synchronized void schedulePurge(HashedWheelTimer timer) {
+		if (purgeTask != null) {
+			return;
+		}
+		long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleNanos) / 2);
+		purgeTask = new PurgeTask(this, timer, interval);
+		purgeTask.timeout = timer.schedule(purgeTask, interval);
+	}
+	
+	/**
+	 * Stops the periodic purge.
+	 */
+	public synchronized void cancelPurge() {
+		if (purgeTask != null) {
+			purgeTask.cancel();
+			purgeTask = null;
+		}
+	}
+	
+	private void link(Entry<V> entry) {
+		entry.lastAccess = System.nanoTime();
+		entry.prev = tail;
+		if (tail != null) {
+			tail.next = entry;
+		} else {
+			head = entry;
+		}
+		tail = entry;
+		
+		++count;
+		transfersByPeer.put(entry.peer, getTransfers(entry.peer) + 1);
+	}
+	
+	private void unlink(Entry<V> entry) {
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			head = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		} else {
+			tail = entry.prev;
+		}
+		entry.prev = entry.next = null;
+		
+		entry.table.entries.remove(entry.key);
+		bytes -= entry.bytes;
+		--count;
+		
+		int transfers = getTransfers(entry.peer) - 1;
+		if (transfers > 0) {
+			transfersByPeer.put(entry.peer, transfers);
+		} else {
+			transfersByPeer.remove(entry.peer);
+		}
+	}
+	
+	private void touch(Entry<V> entry) {
+		entry.lastAccess = System.nanoTime();
+		if (entry != tail) {
+			// move to the tail
+			if (entry.prev != null) {
+				entry.prev.next = entry.next;
+			} else {
+				head = entry.next;
+			}
+			entry.next.prev = entry.prev;
+			
+			entry.prev = tail;
+			entry.next = null;
+			tail.next = entry;
+			tail = entry;
+		}
+	}
+	
+	private void resize(Entry<V> entry, long newBytes) {
+		bytes += newBytes - entry.bytes;
+		entry.bytes = newBytes;
+		
+		// evict least recently used transfers, at last the resized one;
+		// streamed transfers hold no bytes and are left alone
+		Entry<V> victim = head;
+		while (bytes > budget && victim != null) {
+			Entry<V> next = victim.next;
+			if (victim.bytes > 0) {
+				LOG.info(String.format("Evicted blockwise transfer: %s, %d bytes held", victim.key, bytes));
+				unlink(victim);
+				++numEvicted;
+			}
+			victim = next;
+		}
+	}
+	
+	private int getTransfers(EndpointAddress peer) {
+		Integer transfers = transfersByPeer.get(peer);
+		return transfers != null ? transfers : 0;
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+	
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public synchronized int size() {
+		return count;
+	}
+	
+	public synchronized int getPeerCount() {
+		return transfersByPeer.size();
+	}
+	
+	public synchronized long getNumCompleted() {
+		return numCompleted;
+	}
+	
+	public synchronized long getNumExpired() {
+		return numExpired;
+	}
+	
+	public synchronized long getNumEvicted() {
+		return numEvicted;
+	}
+	
+	public synchronized long getNumRejected() {
+		return numRejected;
+	}
+	
+	public String getStats() {
+		synchronized (this) {
+			return String.format("Transfers: %d (%d peers), %d bytes held\nCompleted: %d, expired: %d, evicted: %d, rejected: %d",
+				count, transfersByPeer.size(), bytes, numCompleted, numExpired, numEvicted, numRejected);
+		}
+	}
+}
@@ -31,10 +31,19 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -49,26 +58,63 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * The UDPLayer is the base layer of the stack, sub-calssing {@link Layer}. Any
  * {@link UpperLayer} can be stacked on top, using a {@link ch.ethz.inf.vs.californium.coap.Communicator} as
  * stack builder.
+ * <p>
+ * If the UDP_SOCKETS property is larger than 1, the layer opens that many
+ * sockets bound to the same port with SO_REUSEPORT, each served by its own
+ * receiver thread. The kernel then spreads incoming datagrams over the sockets
+ * by source address, so that all messages of one peer are still received in
+ * order by the same thread. SO_REUSEPORT requires a JVM that supports it
+ * (Java 9 or later); otherwise, a single socket is used.
+ * <p>
+ * Outgoing messages are encoded on the calling thread and put into a send
+ * queue, which a dedicated sender thread drains in batches. Thus, callers such
+ * as the retransmission timer or the observe notifications do not wait on the
+ * socket. Setting UDP_SEND_QUEUE_CAPACITY to 0 sends on the calling thread.
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
-public class UDPLayer extends Layer {
+public class UDPLayer extends TransportLayer {
+
+// Constants ///////////////////////////////////////////////////////////////////
+
+	/** The maximum number of datagrams the sender thread takes at once. */
+	private static final int SEND_BATCH_SIZE = 64;
 
 // Members /////////////////////////////////////////////////////////////////////
 
-	// The UDP socket used to send and receive datagrams
+	// The UDP sockets used to send and receive datagrams, all on the same port
 	// TODO Use MulticastSocket
-	private DatagramSocket socket;
+	private DatagramSocket[] sockets;
 
-	// The thread that listens on the socket for incoming datagrams
-	private ReceiverThread receiverThread;
+	// The threads that listen on the sockets for incoming datagrams
+	private ReceiverThread[] receiverThreads;
+
+	// The worker pool that processes the received messages
+	private Dispatcher dispatcher;
+
+	// The datagrams waiting for the sender thread, null if sending directly
+	private BlockingQueue<DatagramPacket> sendQueue;
+
+	// The thread that sends the queued datagrams
+	private SenderThread senderThread;
+	
+	// Set once the sockets are closed, which ends the receiver threads
+	private volatile boolean closed = false;
+
+	// Send queue metrics
+	private AtomicInteger maxSendQueueSize = new AtomicInteger();
+	private AtomicInteger numSendBatches = new AtomicInteger();
+	private AtomicInteger numSendRefused = new AtomicInteger();
 
 // Inner Classes ///////////////////////////////////////////////////////////////
 
 	class ReceiverThread extends Thread {
 		
-		public ReceiverThread() {
-			super("ReceiverThread");
+		private DatagramSocket socket;
+		
+		public ReceiverThread(DatagramSocket socket, String name) {
+			super(name);
+			this.socket = socket;
 		}
 		
 		@Override
@@ -86,17 +132,58 @@ public class UDPLayer extends Layer {
 				try {
 					socket.receive(datagram);
 				} catch (IOException e) {
+					if (closed) {
+						break;
+					}
 					LOG.severe("Could not receive datagram: " + e.getMessage());
 					e.printStackTrace();
 					continue;
 				}
 				
-				// TODO: Dispatch to worker thread
 				datagramReceived(datagram);
 			}
 		}
 	}
 
+	class SenderThread extends Thread {
+		
+		public SenderThread() {
+			super("SenderThread");
+		}
+		
+		@Override
+		public void run() {
+			
+			List<DatagramPacket> batch = new ArrayList<DatagramPacket>(SEND_BATCH_SIZE);
+			
+			while (!isInterrupted()) {
+				
+				// wait for the first datagram, then take all that queued up meanwhile
+				try {
+					batch.add(sendQueue.take());
+				} catch (InterruptedException e) {
+					// stopped; keep the status for the code that interrupted us
+					interrupt();
+					break;
+				}
+				sendQueue.drainTo(batch, SEND_BATCH_SIZE - 1);
+				
+				numSendBatches.incrementAndGet();
+				
+				// send back-to-back
+				for (DatagramPacket datagram : batch) {
+					try {
+						socket(datagram.getAddress(), datagram.getPort()).send(datagram);
+					} catch (IOException e) {
+						LOG.severe(String.format("Could not send datagram to %s:%d: %s", datagram.getAddress().getHostAddress(), datagram.getPort(), e.getMessage()));
+					}
+				}
+				
+				batch.clear();
+			}
+		}
+	}
+
 // Constructors ////////////////////////////////////////////////////////////////
 
 	/*
@@ -106,16 +193,42 @@ public class UDPLayer extends Layer {
 	 * @param daemon True if receiver thread should terminate with main thread
 	 */
 	public UDPLayer(int port, boolean daemon) throws SocketException {
+		this(port, daemon, Properties.std.getInt("UDP_SOCKETS"));
+	}
+
+	/*
+	 * Constructor for a new UDP layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if receiver threads should terminate with main thread
+	 * @param numSockets The number of sockets sharing the port through SO_REUSEPORT
+	 */
+	public UDPLayer(int port, boolean daemon, int numSockets) throws SocketException {
 		// initialize members
-		this.socket = new DatagramSocket(port);
-		this.receiverThread = new ReceiverThread();
+		this.sockets = openSockets(port, Math.max(1, numSockets));
+		this.receiverThreads = new ReceiverThread[sockets.length];
+		this.dispatcher = new Dispatcher(this);
 
-		// decide if receiver thread terminates with main thread
-		receiverThread.setDaemon(daemon);
+		for (int i = 0; i < sockets.length; ++i) {
+			String name = sockets.length == 1 ? "ReceiverThread" : "ReceiverThread-" + i;
+			receiverThreads[i] = new ReceiverThread(sockets[i], name);
+
+			// decide if receiver thread terminates with main thread
+			receiverThreads[i].setDaemon(daemon);
+		}
 
 		// start listening right from the beginning
-		this.receiverThread.start();
+		for (ReceiverThread receiverThread : receiverThreads) {
+			receiverThread.start();
+		}
 
+		int sendQueueCapacity = Properties.std.getInt("UDP_SEND_QUEUE_CAPACITY");
+		if (sendQueueCapacity > 0) {
+			this.sendQueue = new LinkedBlockingQueue<DatagramPacket>(sendQueueCapacity);
+			this.senderThread = new SenderThread();
+			senderThread.setDaemon(daemon);
+			senderThread.start();
+		}
 	}
 
 	/*
@@ -134,7 +247,41 @@ public class UDPLayer extends Layer {
 	 * thread terminates. This is useful for e.g. server applications
 	 */
 	public void setDaemon(boolean on) {
-		receiverThread.setDaemon(on);
+		for (ReceiverThread receiverThread : receiverThreads) {
+			receiverThread.setDaemon(on);
+		}
+		if (senderThread != null) {
+			senderThread.setDaemon(on);
+		}
+	}
+	
+	/*
+	 * Stops the sender thread, closes the sockets, and waits for the threads
+	 * to end. Datagrams still queued are discarded.
+	 */
+	public void close() {
+		
+		closed = true;
+		
+		if (senderThread != null) {
+			senderThread.interrupt();
+		}
+		for (DatagramSocket socket : sockets) {
+			socket.close();
+		}
+		dispatcher.shutdown();
+		
+		try {
+			if (senderThread != null) {
+				senderThread.join();
+			}
+			for (ReceiverThread receiverThread : receiverThreads) {
+				receiverThread.join();
+			}
+		} catch (InterruptedException e) {
+			// keep the status for the caller
+			Thread.currentThread().interrupt();
+		}
 	}
 
 // I/O implementation //////////////////////////////////////////////////////////
@@ -156,8 +303,20 @@ public class UDPLayer extends Layer {
 			msg.setTimestamp(System.nanoTime());
 		}
 
-		// send it over the UDP socket
-		socket.send(datagram);
+		if (sendQueue != null) {
+			
+			// hand over to sender thread
+			if (!sendQueue.offer(datagram)) {
+				numSendRefused.incrementAndGet();
+				throw new IOException("Send queue full");
+			}
+			updateMaxSendQueueSize(sendQueue.size());
+			
+		} else {
+			
+			// send it over the UDP socket, spreading peers over the sockets
+			socket(datagram.getAddress(), datagram.getPort()).send(datagram);
+		}
 	}
 
 	@Override
@@ -169,6 +328,82 @@ public class UDPLayer extends Layer {
 
 // Internal ////////////////////////////////////////////////////////////////////
 
+	/*
+	 * Opens the sockets for the given port. Additional sockets are bound to the
+	 * port of the first one, which is chosen by the system if port is 0.
+	 */
+	private static DatagramSocket[] openSockets(int port, int numSockets) throws SocketException {
+
+		if (numSockets > 1) {
+			DatagramSocket first = new DatagramSocket((SocketAddress) null);
+			try {
+				enableReusePort(first);
+			} catch (SocketException e) {
+				LOG.warning(String.format("Cannot open %d sockets, using a single one: %s", numSockets, e.getMessage()));
+				first.close();
+				return new DatagramSocket[] { new DatagramSocket(port) };
+			}
+			first.bind(new InetSocketAddress(port));
+
+			DatagramSocket[] sockets = new DatagramSocket[numSockets];
+			sockets[0] = first;
+			try {
+				for (int i = 1; i < numSockets; ++i) {
+					sockets[i] = new DatagramSocket((SocketAddress) null);
+					enableReusePort(sockets[i]);
+					sockets[i].bind(new InetSocketAddress(first.getLocalPort()));
+				}
+			} catch (SocketException e) {
+				for (DatagramSocket socket : sockets) {
+					if (socket != null) socket.close();
+				}
+				throw e;
+			}
+			
+			LOG.config(String.format("Opened %d sockets on port %d", numSockets, first.getLocalPort()));
+
+			return sockets;
+
+		} else {
+			return new DatagramSocket[] { new DatagramSocket(port) };
+		}
+	}
+
+	/*
+	 * Sets SO_REUSEPORT through DatagramSocket.setOption(), which is only
+	 * available from Java 9 on.
+	 */
+	private static void enableReusePort(DatagramSocket socket) throws SocketException {
+		try {
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			DatagramSocket.class.getMethod("setOption", optionClass, Object.class).invoke(socket, option, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			throw new SocketException("SO_REUSEPORT not supported: " + e.getCause().getMessage());
+		} catch (Exception e) {
+			throw new SocketException("SO_REUSEPORT not supported by this JVM");
+		}
+	}
+
+	private DatagramSocket socket(InetAddress address, int port) {
+		if (sockets.length == 1) {
+			return sockets[0];
+		} else {
+			int hash = 31 * address.hashCode() + port;
+			hash ^= (hash >>> 16);
+			return sockets[(hash & 0x7FFFFFFF) % sockets.length];
+		}
+	}
+
+	private void updateMaxSendQueueSize(int size) {
+		int max;
+		while (size > (max = maxSendQueueSize.get())) {
+			if (maxSendQueueSize.compareAndSet(max, size)) {
+				break;
+			}
+		}
+	}
+
 	private void datagramReceived(DatagramPacket datagram) {
 
 		if (datagram.getLength() > 0) {
@@ -194,35 +429,8 @@ public class UDPLayer extends Layer {
 					msg.requiresBlockwise(true);
 				}
 
-				// protect against unknown exceptions
-				try {
-					
-					// call receive handler
-					receiveMessage(msg);
-					
-				} catch (Exception e) {
-					StringBuilder builder = new StringBuilder();
-					builder.append("Crash: ");
-					builder.append(e.getMessage());
-					builder.append('\n');
-					builder.append("                    ");
-					builder.append("Stacktrace for ");
-					builder.append(e.getClass().getName());
-					builder.append(":\n");
-					for (StackTraceElement elem : e.getStackTrace()) {
-						builder.append("                    ");
-						builder.append(elem.getClassName());
-						builder.append('.');
-						builder.append(elem.getMethodName());
-						builder.append('(');
-						builder.append(elem.getFileName());
-						builder.append(':');
-						builder.append(elem.getLineNumber());
-						builder.append(")\n");
-					}
-					
-					LOG.severe(builder.toString());
-				}
+				// hand over to worker thread
+				dispatcher.dispatch(msg);
 			} else {
 				LOG.severe("Illeagal datagram received:\n" + data.toString());
 			}
@@ -243,11 +451,47 @@ public class UDPLayer extends Layer {
 	 * terminates. This is useful for e.g. server applications
 	 */
 	public boolean isDaemon() {
-		return receiverThread.isDaemon();
+		return receiverThreads[0].isDaemon();
 	}
 
 	public int getPort() {
-		return socket.getLocalPort();
+		return sockets[0].getLocalPort();
+	}
+
+	public int getNumSockets() {
+		return sockets.length;
+	}
+	
+	public Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/*
+	 * Returns the number of datagrams waiting for the sender thread
+	 */
+	public int getSendQueueSize() {
+		return sendQueue != null ? sendQueue.size() : 0;
+	}
+
+	/*
+	 * Returns the highest number of datagrams that were waiting at once
+	 */
+	public int getMaxSendQueueSize() {
+		return maxSendQueueSize.get();
+	}
+
+	/*
+	 * Returns the number of batches the sender thread has sent
+	 */
+	public int getNumSendBatches() {
+		return numSendBatches.get();
+	}
+
+	/*
+	 * Returns the number of datagrams refused because the send queue was full
+	 */
+	public int getNumSendRefused() {
+		return numSendRefused.get();
 	}
 	
 	public String getStats() {
@@ -256,11 +500,31 @@ public class UDPLayer extends Layer {
 		stats.append("UDP port: ");
 		stats.append(getPort());
 		stats.append('\n');
+		stats.append("UDP sockets:       ");
+		stats.append(sockets.length);
+		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
 		stats.append('\n');
 		stats.append("Messages received: ");
 		stats.append(numMessagesReceived);
+		stats.append('\n');
+		stats.append("Dispatch queue:    ");
+		stats.append(dispatcher.getQueueSize());
+		stats.append('\n');
+		stats.append("Messages refused:  ");
+		stats.append(dispatcher.getNumRefused());
+		stats.append('\n');
+		stats.append("Send queue:        ");
+		stats.append(getSendQueueSize());
+		stats.append(" (max ");
+		stats.append(getMaxSendQueueSize());
+		stats.append(")\n");
+		stats.append("Send batches:      ");
+		stats.append(getNumSendBatches());
+		stats.append('\n');
+		stats.append("Sends refused:     ");
+		stats.append(getNumSendRefused());
 		
 		return stats.toString();
 	}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class keeps a pool of direct byte buffers of equal capacity, so that
+ * datagram transports do not allocate a new buffer for every packet. Direct
+ * buffers are expensive to allocate, but are read and written by the channel
+ * without an additional copy.
+ * 
+ * The pool is thread-safe. Buffers not returned through release() are simply
+ * garbage-collected; the pool retains at most maxPooled buffers.
+ */
+public class BufferPool {
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	private final int capacity;
+	
+	private final int maxPooled;
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Initializes a new pool
+	 * 
+	 * @param capacity The capacity of each buffer in bytes
+	 * @param maxPooled The maximum number of idle buffers kept for reuse
+	 */
+	public BufferPool(int capacity, int maxPooled) {
+		this.capacity = capacity;
+		this.maxPooled = maxPooled;
+	}
+
+	// Methods /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Takes a cleared buffer from the pool or allocates a new one
+	 * 
+	 * @return A buffer with position 0 and limit set to its capacity
+	 */
+	public ByteBuffer acquire() {
+		
+		ByteBuffer buffer = pool.poll();
+		
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			buffer.clear();
+		} else {
+			buffer = ByteBuffer.allocateDirect(capacity);
+			allocated.incrementAndGet();
+		}
+		
+		return buffer;
+	}
+
+	/*
+	 * Returns a buffer for reuse. The caller must not access it afterwards.
+	 * 
+	 * @param buffer The buffer obtained from acquire()
+	 */
+	public void release(ByteBuffer buffer) {
+		
+		if (buffer != null && buffer.capacity() == capacity && pooled.get() < maxPooled) {
+			pooled.incrementAndGet();
+			pool.offer(buffer);
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/*
+	 * Returns the number of buffers allocated since creation
+	 */
+	public int getAllocated() {
+		return allocated.get();
+	}
+	
+	/*
+	 * Returns the number of idle buffers currently in the pool
+	 */
+	public int getPooled() {
+		return pooled.get();
+	}
+}
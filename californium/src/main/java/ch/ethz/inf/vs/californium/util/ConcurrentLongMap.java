@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class is a concurrent map from primitive long keys to objects, so
+ * that lookups and inserts on hot paths neither box keys nor allocate
+ * entries. The keys are spread over independently locked segments, each an
+ * open-addressing table with linear probing and backward-shift deletion.
+ * 
+ * Values must not be null.
+ */
+public class ConcurrentLongMap<V> {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	
+	private static final int DEFAULT_CAPACITY = 256;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final Segment[] segments;
+	
+	private final int segmentShift;
+	
+	private final AtomicInteger size = new AtomicInteger();
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * An open-addressing table guarded by its own monitor. Empty slots have
+	 * a null value, so that every long value is a valid key.
+	 */
+	private static final class Segment {
+		
+		private long[] keys;
+		private Object[] values;
+		private int count;
+		
+		Segment(int capacity) {
+			keys = new long[capacity];
+			values = new Object[capacity];
+		}
+		
+		synchronized Object get(long key, int hash) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			Object value;
+			while ((value = values[i]) != null) {
+				if (keys[i] == key) {
+					return value;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+		
+		synchronized Object put(long key, int hash, Object value, boolean onlyIfAbsent) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			Object old;
+			while ((old = values[i]) != null) {
+				if (keys[i] == key) {
+					if (!onlyIfAbsent) {
+						values[i] = value;
+					}
+					return old;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			
+			// keep load factor at most 1/2 for short probe sequences
+			if (++count > (keys.length >> 1)) {
+				rehash();
+			}
+			return null;
+		}
+		
+		synchronized Object remove(long key, int hash, Object expected) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			Object value;
+			while ((value = values[i]) != null) {
+				if (keys[i] == key) {
+					if (expected != null && value != expected) {
+						return null;
+					}
+					delete(i);
+					--count;
+					return value;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+		
+		synchronized int clear() {
+			int removed = count;
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = null;
+			}
+			count = 0;
+			return removed;
+		}
+		
+		/*
+		 * Closes the gap left at slot i by moving back later entries of the
+		 * same probe sequence, so that no tombstones are needed
+		 */
+		private void delete(int i) {
+			int mask = keys.length - 1;
+			values[i] = null;
+			
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (values[j] == null) {
+					return;
+				}
+				int home = hash(keys[j]) & mask;
+				
+				// leave entries whose home slot lies cyclically in (i, j]
+				if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+					continue;
+				}
+				
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+		
+		private void rehash() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			
+			keys = new long[oldKeys.length << 1];
+			values = new Object[oldValues.length << 1];
+			int mask = keys.length - 1;
+			
+			for (int j = 0; j < oldKeys.length; ++j) {
+				if (oldValues[j] != null) {
+					int i = hash(oldKeys[j]) & mask;
+					while (values[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Initializes a new map
+	 * 
+	 * @param concurrency The number of segments, rounded up to a power of two
+	 * @param capacity The initial capacity of each segment
+	 */
+	public ConcurrentLongMap(int concurrency, int capacity) {
+		
+		int bits = 0;
+		while ((1 << bits) < concurrency && bits < 16) {
+			++bits;
+		}
+		int segmentCapacity = 2;
+		while (segmentCapacity < capacity) {
+			segmentCapacity <<= 1;
+		}
+		
+		this.segments = new Segment[1 << bits];
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+		
+		// segments are selected by the upper hash bits, slots by the lower ones
+		this.segmentShift = 32 - bits;
+	}
+	
+	public ConcurrentLongMap() {
+		this(DEFAULT_SEGMENTS, DEFAULT_CAPACITY);
+	}
+
+	// Methods /////////////////////////////////////////////////////////////////
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int hash = hash(key);
+		return (V) segmentFor(hash).get(key, hash);
+	}
+	
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	/*
+	 * Associates the value with the key
+	 * 
+	 * @return The previous value or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int hash = hash(key);
+		V old = (V) segmentFor(hash).put(key, hash, checkNotNull(value), false);
+		if (old == null) {
+			size.incrementAndGet();
+		}
+		return old;
+	}
+	
+	/*
+	 * Associates the value with the key unless it is already mapped
+	 * 
+	 * @return The current value or null if the value was added
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(long key, V value) {
+		int hash = hash(key);
+		V old = (V) segmentFor(hash).put(key, hash, checkNotNull(value), true);
+		if (old == null) {
+			size.incrementAndGet();
+		}
+		return old;
+	}
+	
+	/*
+	 * Removes the mapping of the key
+	 * 
+	 * @return The removed value or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int hash = hash(key);
+		V old = (V) segmentFor(hash).remove(key, hash, null);
+		if (old != null) {
+			size.decrementAndGet();
+		}
+		return old;
+	}
+	
+	/*
+	 * Removes the mapping of the key only if it is mapped to the given
+	 * instance
+	 * 
+	 * @return True if the mapping was removed
+	 */
+	public boolean remove(long key, V value) {
+		int hash = hash(key);
+		if (segmentFor(hash).remove(key, hash, checkNotNull(value)) != null) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	public void clear() {
+		for (Segment segment : segments) {
+			size.addAndGet(-segment.clear());
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public int size() {
+		return size.get();
+	}
+	
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private Segment segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+	
+	private static int hash(long key) {
+		// Fibonacci hashing mixes all key bits into the upper and lower ones
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	private static <T> T checkNotNull(T value) {
+		if (value == null) {
+			throw new NullPointerException("Null values are not supported");
+		}
+		return value;
+	}
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * This class is a lock-free set of primitive long values in a fixed-size
+ * open-addressing table. A value may only be stored within a short probe
+ * range starting at its hash slot, so that every operation inspects at most
+ * MAX_PROBE slots. Thereby removal can simply clear a slot and no tombstones
+ * are needed, while adding fails if the probe range of a value is full.
+ * This suits sets whose values are chosen by the owner, such as generated
+ * tokens, which can simply pick another value.
+ * 
+ * The value 0 marks empty slots and cannot be stored. Concurrently adding
+ * the same value from different threads may store it twice; callers must
+ * add unique values, e.g., from a counter or a random generator.
+ */
+public class ConcurrentLongSet {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	/** The number of slots a value may occupy, starting at its hash. */
+	public static final int MAX_PROBE = 16;
+	
+	private static final long EMPTY = 0L;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final AtomicLongArray table;
+	
+	private final int mask;
+	
+	private final AtomicInteger size = new AtomicInteger();
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Initializes a new set
+	 * 
+	 * @param capacity The number of slots, rounded up to a power of two;
+	 * the set should stay below half of it
+	 */
+	public ConcurrentLongSet(int capacity) {
+		int slots = MAX_PROBE;
+		while (slots < capacity) {
+			slots <<= 1;
+		}
+		this.table = new AtomicLongArray(slots);
+		this.mask = slots - 1;
+	}
+
+	// Methods /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Adds a value
+	 * 
+	 * @return True if added, false if the value is already contained or its
+	 * probe range is full
+	 */
+	public boolean add(long value) {
+		checkValue(value);
+		
+		int home = hash(value);
+		int free = -1;
+		
+		for (int i = 0; i < MAX_PROBE; ++i) {
+			int slot = (home + i) & mask;
+			long current = table.get(slot);
+			if (current == value) {
+				return false;
+			} else if (current == EMPTY && free < 0) {
+				free = slot;
+			}
+		}
+		
+		// claim the first free slot, or any other one freed in the meantime
+		if (free >= 0 && table.compareAndSet(free, EMPTY, value)) {
+			size.incrementAndGet();
+			return true;
+		}
+		for (int i = 0; i < MAX_PROBE; ++i) {
+			int slot = (home + i) & mask;
+			if (table.compareAndSet(slot, EMPTY, value)) {
+				size.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public boolean contains(long value) {
+		checkValue(value);
+		
+		int home = hash(value);
+		for (int i = 0; i < MAX_PROBE; ++i) {
+			if (table.get((home + i) & mask) == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Removes a value
+	 * 
+	 * @return True if the value was contained
+	 */
+	public boolean remove(long value) {
+		checkValue(value);
+		
+		int home = hash(value);
+		for (int i = 0; i < MAX_PROBE; ++i) {
+			int slot = (home + i) & mask;
+			if (table.get(slot) == value && table.compareAndSet(slot, value, EMPTY)) {
+				size.decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public int size() {
+		return size.get();
+	}
+	
+	public int capacity() {
+		return table.length();
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private static int hash(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	private static void checkValue(long value) {
+		if (value == EMPTY) {
+			throw new IllegalArgumentException("The value 0 cannot be stored");
+		}
+	}
+}
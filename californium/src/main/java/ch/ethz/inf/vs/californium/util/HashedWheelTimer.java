@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * This class schedules timeouts on a hashed wheel, a ring of buckets that a
+ * single worker thread advances once per tick. Scheduling and cancelling are
+ * O(1) and lock-free for the caller: new and cancelled timeouts are handed
+ * over through queues, and only the worker touches the buckets. Cancelled
+ * timeouts are unlinked from their bucket right away instead of piling up
+ * like in java.util.Timer.
+ * 
+ * Timeouts expire with a granularity of one tick, which is sufficient for
+ * the retransmission and exchange timeouts of the stack. Tasks run on the
+ * worker thread and must not block.
+ * 
+ * The shared instance is configured through the TIMER_TICK and
+ * TIMER_WHEEL_SIZE properties.
+ */
+public class HashedWheelTimer {
+
+	// Logging /////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	// Static Attributes ///////////////////////////////////////////////////////
+	
+	private static volatile HashedWheelTimer singleton = null;
+	
+	// Timeout states
+	private static final int ST_PENDING = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final Bucket[] wheel;
+	
+	private final int mask;
+	
+	private final long tickNanos;
+	
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	
+	private final Worker worker;
+	
+	private final long startTime;
+	
+	private volatile boolean running = true;
+	
+	// Metrics
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger maxPending = new AtomicInteger();
+	private final AtomicLong numScheduled = new AtomicLong();
+	private final AtomicLong numExpired = new AtomicLong();
+	private final AtomicLong numCancelled = new AtomicLong();
+	
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * The handle of a scheduled task, used to cancel it.
+	 */
+	public static final class Timeout {
+		
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline; // in nanoseconds since timer start
+		private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+		
+		// only accessed by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+		
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/*
+		 * Cancels the timeout, unless it already expired
+		 * 
+		 * @return True if the task will not run, false if it already ran
+		 * or was cancelled before
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+				return false;
+			}
+			timer.pending.decrementAndGet();
+			timer.numCancelled.incrementAndGet();
+			
+			// let the worker unlink it from its bucket
+			timer.cancelled.offer(this);
+			return true;
+		}
+		
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+		
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+		
+		private void expire() {
+			if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+				return;
+			}
+			timer.pending.decrementAndGet();
+			timer.numExpired.incrementAndGet();
+			
+			try {
+				task.run();
+			} catch (Throwable t) {
+				LOG.log(Level.WARNING, String.format("Timer task failed: %s", t.getMessage()), t);
+			}
+		}
+	}
+	
+	/*
+	 * Doubly-linked list of the timeouts hashed to the same slot.
+	 */
+	private static final class Bucket {
+		
+		private Timeout head;
+		private Timeout tail;
+		
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+		
+		Timeout remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+		
+		/*
+		 * Runs the timeouts due in this round and counts down the others
+		 */
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				if (timeout.remainingRounds <= 0) {
+					Timeout next = remove(timeout);
+					if (timeout.deadline <= deadline) {
+						timeout.expire();
+					} else {
+						// placed too early, cannot happen with a monotonic clock
+						timeout.timer.added.offer(timeout);
+					}
+					timeout = next;
+				} else if (timeout.isCancelled()) {
+					timeout = remove(timeout);
+				} else {
+					--timeout.remainingRounds;
+					timeout = timeout.next;
+				}
+			}
+		}
+	}
+	
+	private class Worker extends Thread {
+		
+		private long tick = 0;
+		
+		Worker(String name) {
+			super(name);
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (running) {
+				long deadline = waitForNextTick();
+				if (deadline < 0) {
+					continue;
+				}
+				
+				processCancelled();
+				transferAdded();
+				
+				wheel[(int) (tick & mask)].expire(deadline);
+				++tick;
+			}
+		}
+		
+		/*
+		 * Sleeps until the end of the current tick
+		 * 
+		 * @return The elapsed time since start, or -1 if interrupted
+		 */
+		private long waitForNextTick() {
+			long deadline = tickNanos * (tick + 1);
+			
+			while (true) {
+				long current = System.nanoTime() - startTime;
+				long sleepMs = (deadline - current + 999999) / 1000000;
+				
+				if (sleepMs <= 0) {
+					return current;
+				}
+				
+				try {
+					Thread.sleep(sleepMs);
+				} catch (InterruptedException e) {
+					if (!running) {
+						return -1;
+					}
+				}
+			}
+		}
+		
+		private void processCancelled() {
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+			}
+		}
+		
+		private void transferAdded() {
+			Timeout timeout;
+			while ((timeout = added.poll()) != null) {
+				if (timeout.isCancelled()) {
+					continue;
+				}
+				
+				long calculated = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (calculated - tick) / wheel.length;
+				
+				// timeouts already due go into the current slot
+				long ticks = Math.max(calculated, tick);
+				wheel[(int) (ticks & mask)].add(timeout);
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Initializes a new timer and starts its worker thread
+	 * 
+	 * @param name The name of the worker thread
+	 * @param tick The duration of a tick in milliseconds
+	 * @param wheelSize The number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, int tick, int wheelSize) {
+		
+		if (tick <= 0) {
+			throw new IllegalArgumentException("Tick must be positive: " + tick);
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Illegal wheel size: " + wheelSize);
+		}
+		
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; ++i) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.startTime = System.nanoTime();
+		
+		this.worker = new Worker(name);
+		worker.start();
+	}
+	
+	public static HashedWheelTimer getInstance() {
+		if (singleton==null) {
+			synchronized (HashedWheelTimer.class) {
+				if (singleton==null) {
+					singleton = new HashedWheelTimer("HashedWheelTimer", Properties.std.getInt("TIMER_TICK"), Properties.std.getInt("TIMER_WHEEL_SIZE"));
+				}
+			}
+		}
+		return singleton;
+	}
+
+	// Methods /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Schedules a task to run once after the given delay
+	 * 
+	 * @param task The task to run on the timer thread
+	 * @param delay The delay in milliseconds
+	 * @return The handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+		Timeout timeout = new Timeout(this, task, deadline);
+		
+		int count = pending.incrementAndGet();
+		numScheduled.incrementAndGet();
+		
+		// track high-water mark
+		int max;
+		while (count > (max = maxPending.get()) && !maxPending.compareAndSet(max, count));
+		
+		added.offer(timeout);
+		
+		return timeout;
+	}
+	
+	/*
+	 * Stops the worker thread. Pending timeouts never expire.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the tick duration in milliseconds
+	 */
+	public long getTick() {
+		return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+	}
+	
+	public int getWheelSize() {
+		return wheel.length;
+	}
+	
+	/*
+	 * Returns the number of timeouts neither expired nor cancelled
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+	
+	public int getMaxPending() {
+		return maxPending.get();
+	}
+	
+	public long getNumScheduled() {
+		return numScheduled.get();
+	}
+	
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+	
+	public long getNumCancelled() {
+		return numCancelled.get();
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Pending timeouts:   ");
+		stats.append(getPending());
+		stats.append('\n');
+		stats.append("Max pending:        ");
+		stats.append(getMaxPending());
+		stats.append('\n');
+		stats.append("Timeouts scheduled: ");
+		stats.append(getNumScheduled());
+		stats.append('\n');
+		stats.append("Timeouts expired:   ");
+		stats.append(getNumExpired());
+		stats.append('\n');
+		stats.append("Timeouts cancelled: ");
+		stats.append(getNumCancelled());
+		
+		return stats.toString();
+	}
+}
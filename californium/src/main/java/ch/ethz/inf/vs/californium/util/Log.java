@@ -47,6 +47,7 @@ import ch.ethz.inf.vs.californium.coap.ObservingManager;
 import ch.ethz.inf.vs.californium.coap.TokenManager;
 import ch.ethz.inf.vs.californium.endpoint.Endpoint;
 import ch.ethz.inf.vs.californium.endpoint.Resource;
+import ch.ethz.inf.vs.californium.layers.Dispatcher;
 import ch.ethz.inf.vs.californium.layers.Layer;
 
 /**
@@ -111,6 +112,7 @@ public class Log {
 		Logger.getLogger(TokenManager.class.getName()).setLevel(logLevel);
 		Logger.getLogger(ObservingManager.class.getName()).setLevel(logLevel);
 		Logger.getLogger(Layer.class.getName()).setLevel(logLevel);
+		Logger.getLogger(Dispatcher.class.getName()).setLevel(logLevel);
 		Logger.getLogger(Properties.class.getName()).setLevel(logLevel);
 		
 		// indicate new start-up
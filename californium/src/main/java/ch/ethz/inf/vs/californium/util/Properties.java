@@ -86,27 +86,115 @@ public class Properties extends java.util.Properties {
 		// to transmit a message is canceled		
 		set("MAX_RETRANSMIT", 4);
 		
+		// maximal number of simultaneous outstanding confirmables per peer
+		set("NSTART", 1);
+		
+		// time from starting to send a confirmable to the time when an
+		// acknowledgement is no longer expected, i.e., message-layer
+		// information about the exchange can be purged (RFC 7252, 4.8.2)
+		set("EXCHANGE_LIFETIME", 247000); // [milliseconds]
+		
 		/* Implementation-specific */
 		
+		// message IDs are not reused for a peer within EXCHANGE_LIFETIME,
+		// which caps sustained traffic to a single peer at about 265 messages
+		// per second (65536 IDs / 247 s); beyond, sending fails right away
+		// with 0, or messages wait up to this time in a queue of the peer
+		// until the next block of IDs expires, and time out afterwards
+		set("MID_EXHAUSTED_WAIT", 0); // [milliseconds]
+		
+		// messages that may wait per peer for a free message ID
+		set("MID_QUEUE_CAPACITY", 1024); // [messages]
+		
 		// buffer size for incoming datagrams, in bytes
 		// TODO find best value
 		set("RX_BUFFER_SIZE", 4 * 1024); // [bytes]
 		
-		// capacity for caches used for duplicate detection and retransmissions
-		set("MESSAGE_CACHE_SIZE", 32); // [messages]
+		// estimated memory for duplicate detection and reply retransmissions;
+		// the oldest entries are evicted before EXCHANGE_LIFETIME when exceeded;
+		// a cache stripe (1/16) holds twice DEDUP_PEER_LIMIT at 128 bytes each
+		set("DEDUP_CACHE_BUDGET", 64 * 1024 * 1024); // [bytes]
+		
+		// entries per peer in the deduplication cache, beyond which a peer
+		// evicts its own oldest entries instead of those of other peers;
+		// at least the messages within MAX_TRANSMIT_SPAN at the message ID
+		// rate (65536 IDs * 45 s / 247 s = 11940), at most half of a stripe
+		set("DEDUP_PEER_LIMIT", 12000); // [messages]
+		
+		// confirmables that may wait per peer while NSTART are outstanding
+		set("NSTART_QUEUE_CAPACITY", 256); // [messages]
+		
+		// number of worker threads that process incoming messages;
+		// all messages of one peer are handled by the same worker,
+		// 0 processes messages directly on the receiver thread
+		set("DISPATCH_THREADS", 4);
+		
+		// capacity of the message queue of each dispatch worker
+		set("DISPATCH_QUEUE_CAPACITY", 256); // [messages]
+		
+		// handling of incoming messages when a worker queue is full:
+		// DROP, RST, or SERVICE_UNAVAILABLE (5.03 for requests)
+		set("DISPATCH_OVERFLOW_POLICY", "DROP");
+		
+		// UDP transport: SOCKET for the blocking DatagramSocket,
+		// CHANNEL for the non-blocking DatagramChannel with direct buffers,
+		// LOOPBACK for the in-memory transport between stacks in one process
+		set("UDP_TRANSPORT", "SOCKET");
+		
+		// number of sockets sharing the UDP port through SO_REUSEPORT,
+		// each with its own receiver thread (SOCKET transport only)
+		set("UDP_SOCKETS", 1);
+		
+		// capacity of the queue for outgoing datagrams, which are sent by
+		// a dedicated thread; 0 sends directly on the calling thread
+		set("UDP_SEND_QUEUE_CAPACITY", 1024); // [datagrams]
 		
 		// time limit for transactions to complete,
 		// used to avoid infinite waits for replies to non-confirmables
 		// and separate responses
 		set("DEFAULT_OVERALL_TIMEOUT", 60000); // [milliseconds]
 		
+		// granularity and number of slots of the timer shared by the layers
+		// for retransmissions and overall timeouts
+		set("TIMER_TICK", 10); // [milliseconds]
+		set("TIMER_WHEEL_SIZE", 512);
+		
+		// token generation: SEQUENTIAL for short consecutive tokens,
+		// RANDOM for 8-byte random tokens that cannot be linked by observers
+		set("TOKEN_GENERATION", "SEQUENTIAL");
+		
+		// slots of the table of acquired tokens, about twice the number
+		// of expected concurrent transfers
+		set("TOKEN_CAPACITY", 1 << 16);
+		
 		// the default block size for block-wise transfers
 		// must be power of two between 16 and 1024
 		set("DEFAULT_BLOCK_SIZE", 512); // [bytes]
+		
+		// blockwise transfers without a block for this time are freed
+		set("TRANSFER_IDLE_TIMEOUT", 60000); // [milliseconds]
+		
+		// bytes all blockwise transfers may hold together, beyond which
+		// the least recently used ones are evicted
+		set("TRANSFER_STORE_BUDGET", 16 * 1024 * 1024); // [bytes]
+		
+		// concurrent blockwise transfers per peer
+		set("TRANSFER_PEER_LIMIT", 16);
 
 		// the number of notifications until a CON notification will be used
 		set("OBSERVING_REFRESH_INTERVAL", 10);
 		
+		// lower bound for the maximum period (pmax) requested by observers
+		set("OBSERVING_MIN_MAX_PERIOD", 1000); // [milliseconds]
+		
+		// file to persist observing relationships across restarts,
+		// empty to keep them in memory only
+		set("OBSERVING_STORE_FILE", "");
+		
+		// interval in which changes to the observing relationships are
+		// written and synced to the store file; 0 syncs every change
+		set("OBSERVING_STORE_SYNC_INTERVAL", 100); // [milliseconds]
+		
 	}
 
 	// default properties used by the library
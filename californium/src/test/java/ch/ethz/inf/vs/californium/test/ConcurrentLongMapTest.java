@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+
+public class ConcurrentLongMapTest {
+
+	@Test
+	public void testBasics() {
+		
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+		
+		assertNull(map.put(0L, "zero"));
+		assertNull(map.put(-1L, "minus one"));
+		assertEquals("zero", map.put(0L, "null"));
+		assertEquals("null", map.putIfAbsent(0L, "zero"));
+		assertEquals(2, map.size());
+		
+		assertEquals("null", map.get(0L));
+		assertEquals("minus one", map.get(-1L));
+		assertNull(map.get(1L));
+		
+		// remove only the expected instance
+		assertFalse(map.remove(-1L, "other"));
+		assertTrue(map.remove(-1L, map.get(-1L)));
+		assertNull(map.remove(-1L));
+		assertEquals("null", map.remove(0L));
+		assertTrue(map.isEmpty());
+	}
+	
+	@Test
+	public void testAgainstHashMap() {
+		
+		// a single small segment forces collisions, rehashing, and backward shifts
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>(1, 2);
+		Map<Long, Long> reference = new HashMap<Long, Long>();
+		Random random = new Random(4711);
+		
+		for (int i = 0; i < 100000; ++i) {
+			long key = random.nextInt(2000) << 16; // only upper bits differ
+			if (random.nextBoolean()) {
+				assertEquals(reference.put(key, key), map.put(key, key));
+			} else {
+				assertEquals(reference.remove(key), map.remove(key));
+			}
+		}
+		
+		assertEquals(reference.size(), map.size());
+		for (long key = 0; key < 2000; ++key) {
+			assertEquals(reference.get(key << 16), map.get(key << 16));
+		}
+	}
+	
+	@Test
+	public void testConcurrentAccess() throws InterruptedException {
+		
+		final ConcurrentLongMap<Integer> map = new ConcurrentLongMap<Integer>();
+		final int threads = 8;
+		final int keys = 10000;
+		
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int id = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					// disjoint key ranges: insert all, remove every other one
+					for (int i = 0; i < keys; ++i) {
+						map.put(((long) id << 32) | i, i);
+					}
+					for (int i = 0; i < keys; i += 2) {
+						map.remove(((long) id << 32) | i);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		assertEquals(threads * keys / 2, map.size());
+		for (int t = 0; t < threads; ++t) {
+			for (int i = 0; i < keys; ++i) {
+				Integer value = map.get(((long) t << 32) | i);
+				assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), value);
+			}
+		}
+	}
+}
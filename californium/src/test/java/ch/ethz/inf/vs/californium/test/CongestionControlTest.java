@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.CongestionControl;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+public class CongestionControlTest {
+	
+	/*
+	 * Transport stub that records sent messages.
+	 */
+	class RecordingLayer extends Layer {
+		
+		List<Message> sent = new ArrayList<Message>();
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			sent.add(msg);
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+	
+	private EndpointAddress peer;
+	private EndpointAddress other;
+	
+	@Before
+	public void setUp() throws IOException {
+		peer = new EndpointAddress(InetAddress.getByName("10.0.0.1"), 5683);
+		other = new EndpointAddress(InetAddress.getByName("10.0.0.2"), 5683);
+	}
+
+	@Test
+	public void testAdaptiveRTO() {
+		
+		CongestionControl cc = new CongestionControl(2000, 1.5, 1, 10, 60000);
+		
+		assertEquals(-1, cc.getRTT(peer), 0);
+		assertEquals(2000, cc.getRTO(peer), 0);
+		
+		// a fast path lowers the RTO towards SRTT + 4 RTTVAR
+		for (int i = 0; i < 20; ++i) {
+			cc.updateRTT(peer, 300, 0);
+		}
+		assertEquals(300, cc.getRTT(peer), 1);
+		assertTrue(cc.getRTO(peer) < 500);
+		
+		// other peers keep the default
+		assertEquals(2000, cc.getRTO(other), 0);
+		
+		// replies after many retransmissions are ambiguous and ignored
+		double rto = cc.getRTO(peer);
+		cc.updateRTT(peer, 10000, 3);
+		assertEquals(rto, cc.getRTO(peer), 0);
+		
+		// a weak estimate after one retransmission raises the RTO
+		cc.updateRTT(peer, 5000, 1);
+		assertTrue(cc.getRTO(peer) > 2000);
+		assertEquals(300, cc.getRTT(peer), 1);
+		
+		// initial timeouts are dithered above the RTO
+		int timeout = cc.initialTimeout(peer);
+		assertTrue(timeout >= (int) cc.getRTO(peer));
+		assertTrue(timeout <= 1.5 * cc.getRTO(peer));
+		
+		// the RTO does not follow a local peer below the minimum
+		for (int i = 0; i < 50; ++i) {
+			cc.updateRTT(other, 0.1, 0);
+		}
+		assertEquals(100, cc.getRTO(other), 0);
+	}
+	
+	@Test
+	public void testBackoffFactor() {
+		
+		CongestionControl cc = new CongestionControl(2000, 1.5, 1, 10, 60000);
+		
+		assertEquals(3, cc.backoffFactor(500), 0);
+		assertEquals(2, cc.backoffFactor(2000), 0);
+		assertEquals(1.5, cc.backoffFactor(4000), 0);
+	}
+	
+	@Test
+	public void testBlockSizeTuning() {
+		
+		CongestionControl cc = new CongestionControl(2000, 1.5, 1, 10, 60000);
+		
+		// peers without state use the default
+		assertEquals(5, cc.blockSZX(peer, 5));
+		
+		cc.updateRTT(peer, 10, 0);
+		assertEquals(5, cc.blockSZX(peer, 5));
+		
+		// a clean path with low RTT grows to 1024 bytes
+		for (int i = 0; i < 32; ++i) {
+			cc.updateLoss(peer, 0, true);
+		}
+		assertEquals(6, cc.blockSZX(peer, 5));
+		
+		// a lossy path shrinks down to 64 bytes
+		for (int i = 0; i < 64; ++i) {
+			cc.updateLoss(peer, 1, true);
+		}
+		cc.updateLoss(peer, 4, false);
+		assertEquals(2, cc.blockSZX(peer, 5));
+		assertTrue(cc.getPeerState(peer).getLoss() > 0.25);
+		assertEquals(68, cc.getPeerState(peer).getNumRetransmissions());
+		assertEquals(1, cc.getPeerState(peer).getNumFailures());
+		
+		// a clean path with high RTT keeps its size
+		cc.updateRTT(other, 1000, 0);
+		assertEquals(4, cc.blockSZX(other, 4));
+		for (int i = 0; i < 32; ++i) {
+			cc.updateLoss(other, 0, true);
+		}
+		assertEquals(4, cc.blockSZX(other, 4));
+	}
+	
+	@Test
+	public void testNstart() throws IOException {
+		
+		CongestionControl cc = new CongestionControl(2000, 1.5, 2, 1, 60000);
+		
+		assertTrue(cc.acquire(newConfirmable(peer, 1)));
+		assertTrue(cc.acquire(newConfirmable(peer, 2)));
+		assertTrue(cc.acquire(newConfirmable(other, 3)));
+		
+		Message queued = newConfirmable(peer, 4);
+		assertFalse(cc.acquire(queued));
+		
+		try {
+			cc.acquire(newConfirmable(peer, 5));
+			fail("Queue full expected");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		// the queued message takes over the slot
+		assertSame(queued, cc.release(peer));
+		assertEquals(2, cc.getPeerState(peer).getOutstanding());
+		assertNull(cc.release(peer));
+		assertEquals(1, cc.getPeerState(peer).getOutstanding());
+	}
+	
+	@Test
+	public void testTransactionLayerNstart() throws IOException {
+		
+		RecordingLayer transport = new RecordingLayer();
+		TransactionLayer layer = new TransactionLayer(HashedWheelTimer.getInstance(), new CongestionControl(2000, 1.5, 1, 10, 60000));
+		layer.setLowerLayer(transport);
+		
+		Message first = newConfirmable(peer, 100);
+		Message second = newConfirmable(peer, 101);
+		layer.sendMessage(first);
+		layer.sendMessage(second);
+		layer.sendMessage(newConfirmable(other, 102));
+		
+		// the second one to the same peer waits
+		assertEquals(2, transport.sent.size());
+		assertSame(first, transport.sent.get(0));
+		
+		// the ACK completes the first exchange and releases the second one
+		transport.receiveMessage(first.newAccept());
+		
+		assertEquals(3, transport.sent.size());
+		assertSame(second, transport.sent.get(2));
+		assertTrue(layer.getCongestionControl().getRTT(peer) >= 0);
+	}
+	
+	private static Message newConfirmable(EndpointAddress peer, int mid) {
+		Message msg = new Message(messageType.CON, CodeRegistry.METHOD_GET);
+		msg.setPeerAddress(peer);
+		msg.setMID(mid);
+		return msg;
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.DeduplicationCache;
+
+public class DeduplicationCacheTest {
+
+	@Test
+	public void testDuplicateAndReply() throws UnknownHostException {
+		
+		DeduplicationCache cache = new DeduplicationCache(60000, 1024 * 1024, 100, 4);
+		
+		Message con = newMessage(messageType.CON, 1, 5683, 42);
+		
+		assertTrue(cache.add(con));
+		assertNull(cache.getReply(con));
+		
+		// same MID from another port or address is a different message
+		assertTrue(cache.add(newMessage(messageType.CON, 1, 5684, 42)));
+		assertTrue(cache.add(newMessage(messageType.CON, 2, 5683, 42)));
+		
+		Message reply = con.newReply(true);
+		cache.putReply(reply);
+		
+		// the retransmission is a new object with equal peer and MID
+		Message duplicate = newMessage(messageType.CON, 1, 5683, 42);
+		assertFalse(cache.add(duplicate));
+		assertSame(reply, cache.getReply(duplicate));
+		
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getNumDuplicates());
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		
+		DeduplicationCache cache = new DeduplicationCache(50, 1024 * 1024, 100, 1);
+		
+		Message msg = newMessage(messageType.NON, 1, 5683, 7);
+		assertTrue(cache.add(msg));
+		assertFalse(cache.add(msg));
+		
+		Thread.sleep(100);
+		
+		// swept when the next message arrives, then accepted again
+		assertTrue(cache.add(newMessage(messageType.NON, 1, 5683, 8)));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getNumExpired());
+		assertTrue(cache.add(msg));
+	}
+	
+	@Test
+	public void testPeerLimit() throws UnknownHostException {
+		
+		DeduplicationCache cache = new DeduplicationCache(60000, 1024 * 1024, 10, 1);
+		
+		Message quiet = newMessage(messageType.CON, 2, 5683, 1);
+		cache.add(quiet);
+		
+		// a busy peer only evicts its own entries
+		for (int mid = 0; mid < 1000; ++mid) {
+			cache.add(newMessage(messageType.CON, 1, 5683, mid));
+		}
+		
+		assertEquals(11, cache.size());
+		assertEquals(2, cache.getPeerCount());
+		assertFalse(cache.add(quiet));
+		assertFalse(cache.add(newMessage(messageType.CON, 1, 5683, 999)));
+		assertTrue(cache.add(newMessage(messageType.CON, 1, 5683, 0)));
+	}
+	
+	@Test
+	public void testFloodingPeer() throws UnknownHostException {
+		
+		// the peer limit exceeds what the stripe budget of 64 KiB can hold
+		DeduplicationCache cache = new DeduplicationCache(60000, 64 * 1024, 10000, 1);
+		
+		Message quiet = newMessage(messageType.CON, 2, 5683, 1);
+		cache.add(quiet);
+		cache.putReply(quiet.newReply(true));
+		
+		for (int mid = 0; mid < 50000; ++mid) {
+			cache.add(newMessage(messageType.CON, 1, 5683, mid));
+		}
+		
+		// the limit engages before the budget evicts the quiet peer
+		assertEquals(2, cache.getPeerCount());
+		assertFalse(cache.add(quiet));
+		assertNotNull(cache.getReply(quiet));
+		assertTrue(cache.getMemory() <= 64 * 1024);
+		
+		// also when large replies exceed the budget first
+		for (int mid = 0; mid < 1000; ++mid) {
+			Message msg = newMessage(messageType.CON, 1, 5683, mid);
+			cache.add(msg);
+			Message reply = msg.newReply(true);
+			reply.setPayload(new byte[512]);
+			cache.putReply(reply);
+		}
+		
+		assertFalse(cache.add(quiet));
+		assertNotNull(cache.getReply(quiet));
+		assertTrue(cache.getMemory() <= 64 * 1024);
+	}
+	
+	@Test
+	public void testTransmitSpan() throws UnknownHostException {
+		
+		// 45 s at the rate of 65536 IDs per 247 s
+		int limit = DeduplicationCache.getTransmitSpanLimit();
+		assertEquals(11940, limit);
+		
+		DeduplicationCache cache = new DeduplicationCache();
+		
+		Message first = newMessage(messageType.CON, 1, 5683, 0);
+		cache.add(first);
+		for (int mid = 1; mid < limit; ++mid) {
+			cache.add(newMessage(messageType.CON, 1, 5683, mid));
+		}
+		
+		// a peer at the rate cap still has its oldest retransmission detected
+		assertFalse(cache.add(first));
+		assertEquals(limit, cache.size());
+	}
+	
+	@Test
+	public void testBudget() throws UnknownHostException {
+		
+		// room for a few entries only
+		DeduplicationCache cache = new DeduplicationCache(60000, 1024, 100, 1);
+		
+		for (int peer = 0; peer < 100; ++peer) {
+			Message msg = newMessage(messageType.CON, peer, 5683, peer);
+			cache.add(msg);
+			Message reply = msg.newReply(true);
+			reply.setPayload(new byte[100]);
+			cache.putReply(reply);
+		}
+		
+		assertTrue(cache.getMemory() <= 1024);
+		assertTrue(cache.getNumEvicted() > 0);
+		
+		// the newest survive
+		Message last = newMessage(messageType.CON, 99, 5683, 99);
+		assertNotNull(cache.getReply(last));
+		assertFalse(cache.add(last));
+	}
+	
+	private static Message newMessage(messageType type, int host, int port, int mid) throws UnknownHostException {
+		Message msg = new Message(type, CodeRegistry.METHOD_GET);
+		msg.setPeerAddress(new EndpointAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) host}), port));
+		msg.setMID(mid);
+		return msg;
+	}
+}
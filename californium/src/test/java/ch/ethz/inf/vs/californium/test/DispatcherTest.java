@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.Dispatcher;
+import ch.ethz.inf.vs.californium.layers.Dispatcher.OverflowPolicy;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+
+public class DispatcherTest {
+
+	/*
+	 * Transport stub that records received messages and sent replies.
+	 */
+	class RecordingLayer extends Layer {
+		
+		List<Message> received = new ArrayList<Message>();
+		List<Message> sent = new ArrayList<Message>();
+		CountDownLatch blocker = null;
+		CountDownLatch done;
+		
+		RecordingLayer(int expected) {
+			done = new CountDownLatch(expected);
+		}
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			synchronized (sent) {
+				sent.add(msg);
+			}
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			if (blocker != null) {
+				try {
+					blocker.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			synchronized (received) {
+				received.add(msg);
+			}
+			done.countDown();
+		}
+	}
+
+	private static Message newRequest(EndpointAddress peer, int mid) {
+		Message msg = new GETRequest();
+		msg.setPeerAddress(peer);
+		msg.setMID(mid);
+		return msg;
+	}
+
+	@Test
+	public void testPeerOrder() throws Exception {
+		
+		final int n = 1000;
+		
+		RecordingLayer layer = new RecordingLayer(2 * n);
+		Dispatcher dispatcher = new Dispatcher(layer, 4, 2 * n, OverflowPolicy.DROP);
+		
+		EndpointAddress peer1 = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 5683);
+		EndpointAddress peer2 = new EndpointAddress(InetAddress.getByName("127.0.0.2"), 5683);
+		
+		for (int i = 0; i < n; ++i) {
+			dispatcher.dispatch(newRequest(peer1, i));
+			dispatcher.dispatch(newRequest(peer2, i));
+		}
+		
+		assertTrue(layer.done.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		
+		int next1 = 0;
+		int next2 = 0;
+		for (Message msg : layer.received) {
+			if (msg.getPeerAddress().equals(peer1)) {
+				assertEquals(next1++, msg.getMID());
+			} else {
+				assertEquals(next2++, msg.getMID());
+			}
+		}
+		assertEquals(n, next1);
+		assertEquals(n, next2);
+		assertEquals(0, dispatcher.getNumRefused());
+	}
+
+	@Test
+	public void testServiceUnavailable() throws Exception {
+		
+		RecordingLayer layer = new RecordingLayer(2);
+		layer.blocker = new CountDownLatch(1);
+		Dispatcher dispatcher = new Dispatcher(layer, 1, 1, OverflowPolicy.SERVICE_UNAVAILABLE);
+		
+		EndpointAddress peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 5683);
+		
+		// first is taken by the blocked worker, second is queued
+		dispatcher.dispatch(newRequest(peer, 1));
+		Thread.sleep(100);
+		dispatcher.dispatch(newRequest(peer, 2));
+		
+		// queue full
+		dispatcher.dispatch(newRequest(peer, 3));
+		
+		assertEquals(1, dispatcher.getNumRefused());
+		assertEquals(1, layer.sent.size());
+		
+		Message reply = layer.sent.get(0);
+		assertEquals(CodeRegistry.RESP_SERVICE_UNAVAILABLE, reply.getCode());
+		assertEquals(3, reply.getMID());
+		assertTrue(reply.isAcknowledgement());
+		
+		layer.blocker.countDown();
+		assertTrue(layer.done.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testServiceUnavailableWithoutMID() throws Exception {
+		
+		RecordingLayer layer = new RecordingLayer(2);
+		layer.blocker = new CountDownLatch(1);
+		Dispatcher dispatcher = new Dispatcher(layer, 1, 1, OverflowPolicy.SERVICE_UNAVAILABLE);
+		
+		EndpointAddress peer = new EndpointAddress(InetAddress.getByName("10.0.1.2"), 5683);
+		while (TransactionLayer.nextMessageID(peer) >= 0) {
+			// exhaust the space
+		}
+		
+		dispatcher.dispatch(newRequest(peer, 1));
+		Thread.sleep(100);
+		dispatcher.dispatch(newRequest(peer, 2));
+		
+		// a NON would need a MID of its own
+		Message refused = newRequest(peer, 3);
+		refused.setType(messageType.NON);
+		dispatcher.dispatch(refused);
+		
+		assertEquals(1, dispatcher.getNumRefused());
+		assertEquals(0, layer.sent.size());
+		
+		layer.blocker.countDown();
+		assertTrue(layer.done.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testInline() throws Exception {
+		
+		RecordingLayer layer = new RecordingLayer(1);
+		Dispatcher dispatcher = new Dispatcher(layer, 0, 0, OverflowPolicy.RST);
+		
+		dispatcher.dispatch(newRequest(new EndpointAddress(InetAddress.getByName("127.0.0.1"), 5683), 7));
+		
+		// delivered before dispatch() returns
+		assertEquals(1, layer.received.size());
+		assertEquals(0, dispatcher.getNumWorkers());
+	}
+}
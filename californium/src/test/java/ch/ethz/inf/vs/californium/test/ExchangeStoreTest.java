@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore.Exchange;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+
+public class ExchangeStoreTest {
+
+	@Test
+	public void testMatchAndComplete() throws UnknownHostException {
+		
+		ExchangeStore store = new ExchangeStore(60000);
+		Request request = newRequest(5683, new byte[] {0x01, 0x02});
+		
+		store.open(request);
+		
+		// the response carries an equal, but different token array
+		Response response = newResponse(5683, new byte[] {0x01, 0x02});
+		Exchange exchange = store.get(response);
+		assertNotNull(exchange);
+		assertSame(request, exchange.getRequest());
+		
+		// other port or token do not match
+		assertNull(store.get(newResponse(5684, new byte[] {0x01, 0x02})));
+		assertNull(store.get(newResponse(5683, new byte[] {0x01})));
+		
+		assertSame(exchange, store.complete(response));
+		assertFalse(store.complete(exchange));
+		assertEquals(0, store.size());
+		assertEquals(1, store.getNumCompleted());
+	}
+	
+	@Test
+	public void testCurrentRequest() throws UnknownHostException {
+		
+		ExchangeStore store = new ExchangeStore(60000);
+		Request request = newRequest(5683, new byte[] {0x03});
+		Request block = newRequest(5683, new byte[] {0x03});
+		
+		store.open(request);
+		store.register(request);
+		store.register(block);
+		
+		Exchange exchange = store.get(newResponse(5683, new byte[] {0x03}));
+		assertSame(request, exchange.getRequest());
+		assertSame(block, exchange.getCurrentRequest());
+		assertEquals(1, store.size());
+		
+		// only registered by the matching
+		Request other = newRequest(5683, new byte[] {0x07});
+		store.register(other);
+		assertSame(other, store.get(newResponse(5683, new byte[] {0x07})).getCurrentRequest());
+	}
+	
+	@Test
+	public void testMatchingLayerOnly() throws IOException {
+		
+		// a stack without a TokenLayer, which would open the exchange
+		Layer transport = new Layer() {
+			@Override
+			protected void doSendMessage(Message msg) throws IOException {
+				// sent
+			}
+			
+			@Override
+			protected void doReceiveMessage(Message msg) {
+				deliverMessage(msg);
+			}
+		};
+		ExchangeStore store = new ExchangeStore(60000);
+		MatchingLayer matching = new MatchingLayer(store);
+		matching.setLowerLayer(transport);
+		
+		final List<Message> delivered = new ArrayList<Message>();
+		matching.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				delivered.add(msg);
+			}
+		});
+		
+		Request request = newRequest(5683, new byte[] {0x08});
+		matching.sendMessage(request);
+		
+		Response response = newResponse(5683, new byte[] {0x08});
+		transport.receiveMessage(response);
+		
+		// matched to the registered request and completed
+		assertEquals(1, delivered.size());
+		assertSame(request, response.getRequest());
+		assertSame(response, request.getResponse());
+		assertEquals(0, store.size());
+		assertEquals(1, store.getNumCompleted());
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		
+		ExchangeStore store = new ExchangeStore(50);
+		final CountDownLatch expired = new CountDownLatch(1);
+		store.setExpirationListener(new ExchangeStore.ExpirationListener() {
+			@Override
+			public void exchangeExpired(Exchange exchange) {
+				expired.countDown();
+			}
+		});
+		
+		store.open(newRequest(5683, new byte[] {0x04}));
+		
+		// only registered by the matching, expires without notification
+		store.register(newRequest(5683, new byte[] {0x05}));
+		
+		// kept for observing
+		store.open(newRequest(5683, new byte[] {0x06}));
+		store.keep(store.get(newResponse(5683, new byte[] {0x06})));
+		
+		assertTrue(expired.await(2, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		
+		assertEquals(1, store.size());
+		assertEquals(2, store.getNumExpired());
+		assertNotNull(store.get(newResponse(5683, new byte[] {0x06})));
+	}
+	
+	private static Request newRequest(int port, byte[] token) throws UnknownHostException {
+		Request request = new GETRequest();
+		request.setPeerAddress(new EndpointAddress(InetAddress.getByName("10.0.0.1"), port));
+		request.setToken(token);
+		return request;
+	}
+	
+	private static Response newResponse(int port, byte[] token) throws UnknownHostException {
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(messageType.ACK);
+		response.setPeerAddress(new EndpointAddress(InetAddress.getByName("10.0.0.1"), port));
+		response.setToken(token);
+		return response;
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer.Timeout;
+
+public class HashedWheelTimerTest {
+	
+	private HashedWheelTimer timer;
+	
+	@Before
+	public void setUp() {
+		// small wheel so that the delays below span several rounds
+		timer = new HashedWheelTimer("TestTimer", 5, 8);
+	}
+	
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		
+		final CountDownLatch latch = new CountDownLatch(1);
+		
+		long start = System.nanoTime();
+		Timeout timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 100);
+		
+		assertEquals(1, timer.getPending());
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		
+		// never early, even after two and a half rounds of the wheel
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertEquals(0, timer.getPending());
+		assertEquals(1, timer.getNumExpired());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		
+		Timeout timeout = timer.schedule(task, 30);
+		
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertTrue(timeout.isCancelled());
+		assertEquals(0, timer.getPending());
+		assertEquals(1, timer.getNumCancelled());
+		
+		Thread.sleep(100);
+		assertEquals(0, runs.get());
+	}
+	
+	@Test
+	public void testManyTimeouts() throws InterruptedException {
+		
+		final int count = 10000;
+		final CountDownLatch latch = new CountDownLatch(count / 2);
+		final AtomicInteger runs = new AtomicInteger();
+		
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		};
+		
+		Timeout[] timeouts = new Timeout[count];
+		for (int i = 0; i < count; ++i) {
+			timeouts[i] = timer.schedule(task, 50 + i % 200);
+		}
+		
+		// cancel every other one
+		for (int i = 0; i < count; i += 2) {
+			timeouts[i].cancel();
+		}
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		
+		assertEquals(count / 2, runs.get());
+		assertEquals(0, timer.getPending());
+		assertEquals(count, timer.getMaxPending());
+	}
+}
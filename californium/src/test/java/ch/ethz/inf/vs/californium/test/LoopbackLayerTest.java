@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.LoopbackLayer;
+
+public class LoopbackLayerTest {
+	
+	/*
+	 * Receiver that records the MIDs of received messages.
+	 */
+	class RecordingReceiver implements MessageReceiver {
+		
+		List<Integer> mids = new ArrayList<Integer>();
+		List<Message> messages = new ArrayList<Message>();
+		CountDownLatch done;
+		
+		RecordingReceiver(int expected) {
+			done = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void receiveMessage(Message msg) {
+			synchronized (mids) {
+				mids.add(msg.getMID());
+				messages.add(msg);
+			}
+			done.countDown();
+		}
+	}
+	
+	private LoopbackLayer client;
+	private LoopbackLayer server;
+	
+	@Before
+	public void setUp() throws SocketException {
+		client = new LoopbackLayer();
+		server = new LoopbackLayer();
+	}
+	
+	@After
+	public void tearDown() {
+		client.close();
+		server.close();
+	}
+	
+	@Test
+	public void testExchange() throws Exception {
+		
+		RecordingReceiver receiver = new RecordingReceiver(1);
+		server.registerReceiver(receiver);
+		
+		Message msg = newMessage(4711);
+		msg.setPayload("hello".getBytes());
+		client.sendMessage(msg);
+		
+		assertTrue(receiver.done.await(2, TimeUnit.SECONDS));
+		
+		Message received = receiver.messages.get(0);
+		
+		// a decoded copy, not the sent object
+		assertNotSame(msg, received);
+		assertEquals(4711, received.getMID());
+		assertEquals("hello", received.getPayloadString());
+		
+		// the source address allows replying
+		assertEquals(client.getLocalAddress(), received.getPeerAddress());
+		
+		RecordingReceiver replies = new RecordingReceiver(1);
+		client.registerReceiver(replies);
+		server.sendMessage(received.newReply(true));
+		
+		assertTrue(replies.done.await(2, TimeUnit.SECONDS));
+		assertEquals(4711, (int) replies.mids.get(0));
+	}
+	
+	@Test(expected=SocketException.class)
+	public void testPortInUse() throws SocketException {
+		new LoopbackLayer(server.getPort(), true);
+	}
+	
+	@Test
+	public void testUnreachable() throws Exception {
+		
+		Message msg = newMessage(1);
+		msg.setPeerAddress(server.getLocalAddress());
+		server.close();
+		
+		client.sendMessage(msg);
+		
+		assertEquals(1, client.getNumUnreachable());
+	}
+	
+	@Test
+	public void testLoss() throws Exception {
+		
+		RecordingReceiver receiver = new RecordingReceiver(1);
+		server.registerReceiver(receiver);
+		
+		client.setLossProbability(1d);
+		for (int i=0; i<10; ++i) {
+			client.sendMessage(newMessage(i));
+		}
+		
+		assertFalse(receiver.done.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(10, client.getNumLost());
+	}
+	
+	@Test
+	public void testDelayAndReorder() throws Exception {
+		
+		final int count = 50;
+		
+		RecordingReceiver receiver = new RecordingReceiver(count);
+		server.registerReceiver(receiver);
+		
+		client.setDelay(20);
+		client.setReorder(0.5d, 30);
+		
+		long start = System.nanoTime();
+		for (int i=0; i<count; ++i) {
+			client.sendMessage(newMessage(i));
+		}
+		
+		// delayed, but nothing lost
+		assertTrue(receiver.done.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(count, receiver.mids.size());
+		for (int i=0; i<count; ++i) {
+			assertTrue(receiver.mids.contains(i));
+		}
+	}
+	
+	private Message newMessage(int mid) {
+		Message msg = new Message();
+		msg.setCode(CodeRegistry.METHOD_GET);
+		msg.setType(messageType.NON);
+		msg.setMID(mid);
+		msg.setPeerAddress(server.getLocalAddress());
+		return msg;
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.layers.MessageIdProvider;
+
+public class MessageIdProviderTest {
+
+	@Test
+	public void testConcurrentUnique() throws Exception {
+		
+		final MessageIdProvider provider = new MessageIdProvider(60000);
+		final EndpointAddress peer = newPeer(1);
+		final BitSet used = new BitSet(0x10000);
+		final AtomicInteger duplicates = new AtomicInteger();
+		
+		// fewer IDs than one space holds, so none may be denied
+		Thread[] senders = new Thread[8];
+		for (int t = 0; t < senders.length; ++t) {
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 7000; ++i) {
+						int mid = provider.nextMessageID(peer);
+						synchronized (used) {
+							if (mid < 0 || used.get(mid)) {
+								duplicates.incrementAndGet();
+							} else {
+								used.set(mid);
+							}
+						}
+					}
+				}
+			};
+			senders[t].start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		
+		assertEquals(0, duplicates.get());
+		assertEquals(56000, used.cardinality());
+	}
+	
+	@Test
+	public void testExhaustion() throws UnknownHostException {
+		
+		MessageIdProvider provider = new MessageIdProvider(60000);
+		EndpointAddress peer = newPeer(1);
+		BitSet used = new BitSet(0x10000);
+		
+		int granted = 0;
+		for (int i = 0; i < 0x10000; ++i) {
+			int mid = provider.nextMessageID(peer);
+			if (mid >= 0) {
+				assertFalse("Reused " + mid, used.get(mid));
+				used.set(mid);
+				++granted;
+			}
+		}
+		
+		// at most the rest of the first block is lost
+		assertTrue(granted >= 0x10000 - 1024);
+		assertEquals(-1, provider.nextMessageID(peer));
+		assertTrue(provider.getNumExhausted() > 0);
+		
+		// other peers have their own space
+		assertTrue(provider.nextMessageID(newPeer(2)) >= 0);
+	}
+	
+	@Test
+	public void testReuseAfterLifetime() throws Exception {
+		
+		MessageIdProvider provider = new MessageIdProvider(50);
+		EndpointAddress peer = newPeer(1);
+		
+		for (int i = 0; i < 0x10000; ++i) {
+			provider.nextMessageID(peer);
+		}
+		
+		Thread.sleep(100);
+		
+		assertTrue(provider.nextMessageID(peer) >= 0);
+	}
+	
+	@Test
+	public void testWaitForExpiry() throws Exception {
+		
+		MessageIdProvider provider = new MessageIdProvider(200);
+		EndpointAddress peer = newPeer(1);
+		
+		assertEquals(0, provider.getWait(peer));
+		
+		while (provider.nextMessageID(peer) >= 0) {
+			// exhaust the space
+		}
+		
+		// the next block expires within the lifetime
+		long wait = provider.getWait(peer);
+		assertTrue(wait > 0 && wait <= 201);
+		
+		Thread.sleep(wait);
+		
+		int mid = provider.nextMessageID(peer);
+		assertTrue(mid >= 0);
+		assertEquals(0, provider.getWait(peer));
+		
+		// the IDs of the expired block follow without waiting
+		assertEquals((mid + 1) & 0xFFFF, provider.nextMessageID(peer));
+	}
+	
+	private static EndpointAddress newPeer(int host) throws UnknownHostException {
+		return new EndpointAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) host}), 5683);
+	}
+}
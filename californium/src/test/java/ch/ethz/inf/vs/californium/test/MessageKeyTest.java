@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+
+public class MessageKeyTest {
+
+	@Test
+	public void testEquality() throws UnknownHostException {
+		
+		Message m1 = newMessage(0x1234, new byte[] {0x0A, 0x0B});
+		Message m2 = newMessage(0x1234, new byte[] {0x0A, 0x0B});
+		
+		assertEquals(m1.key(), m2.key());
+		assertEquals(m1.transactionKey(), m2.transactionKey());
+		assertEquals(m1.sequenceKey(), m2.sequenceKey());
+		assertEquals(m1.sequenceKey().hashCode(), m2.sequenceKey().hashCode());
+		
+		// computed once
+		assertSame(m1.key(), m1.key());
+		
+		// different kinds never match
+		assertFalse(m1.key().equals(m1.transactionKey()));
+		assertFalse(m1.transactionKey().equals(m1.sequenceKey()));
+		
+		m2.setType(messageType.NON);
+		assertFalse(m1.key().equals(m2.key()));
+		assertEquals(m1.transactionKey(), m2.transactionKey());
+	}
+	
+	@Test
+	public void testInvalidation() throws UnknownHostException {
+		
+		Message msg = newMessage(1, new byte[] {0x01});
+		
+		String sequence = msg.sequenceKey().toString();
+		String transaction = msg.transactionKey().toString();
+		
+		msg.setMID(2);
+		assertFalse(transaction.equals(msg.transactionKey().toString()));
+		assertEquals(sequence, msg.sequenceKey().toString());
+		
+		msg.setToken(new byte[] {0x02});
+		assertFalse(sequence.equals(msg.sequenceKey().toString()));
+		
+		msg.setPeerAddress(new EndpointAddress(InetAddress.getByName("10.0.0.2"), 5683));
+		assertEquals("10.0.0.2:5683|2", msg.transactionKey().toString());
+	}
+	
+	@Test
+	public void testStringForm() throws UnknownHostException {
+		
+		Message msg = newMessage(4711, new byte[] {(byte) 0xCA, (byte) 0xFE});
+		
+		assertEquals("10.0.0.1:5683|4711|CON", msg.key().toString());
+		assertEquals("10.0.0.1:5683|4711", msg.transactionKey().toString());
+		assertEquals("10.0.0.1:5683#CA FE", msg.sequenceKey().toString());
+		
+		assertEquals("local|-1", new Message().transactionKey().toString());
+	}
+	
+	private static Message newMessage(int mid, byte[] token) throws UnknownHostException {
+		Message msg = new Message(messageType.CON, CodeRegistry.METHOD_GET);
+		msg.setPeerAddress(new EndpointAddress(InetAddress.getByName("10.0.0.1"), 5683));
+		msg.setMID(mid);
+		msg.setToken(token);
+		return msg;
+	}
+}
@@ -31,15 +31,49 @@
 package ch.ethz.inf.vs.californium.test;
 
 import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
 
 public class MessageTest {
 
+	@Test
+	public void testDirectBuffer() {
+
+		Message msg = new Message();
+
+		msg.setCode(CodeRegistry.METHOD_GET);
+		msg.setType(messageType.CON);
+		msg.setMID(12345);
+		msg.setOption(new Option("a", OptionNumberRegistry.URI_PATH));
+		msg.setPayload("some payload".getBytes());
+
+		byte[] data = msg.toByteArray();
+		
+		// decode from the middle of a direct buffer like the channel transport
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 8);
+		buffer.position(4);
+		buffer.put(data);
+		buffer.flip();
+		buffer.position(4);
+		Message convMsg = Message.fromByteBuffer(buffer);
+
+		assertEquals(msg.getCode(), convMsg.getCode());
+		assertEquals(msg.getType(), convMsg.getType());
+		assertEquals(msg.getMID(), convMsg.getMID());
+		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
+		assertEquals("a", convMsg.getFirstOption(OptionNumberRegistry.URI_PATH).getStringValue());
+		assertArrayEquals(msg.getPayload(), convMsg.getPayload());
+	}
+
 	@Test
 	public void testMessage() {
 
@@ -113,6 +147,49 @@ public class MessageTest {
 		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
 	}
 
+	@Test
+	public void testArrayOffset() {
+		Message msg = new Message();
+
+		msg.setCode(CodeRegistry.RESP_CONTENT);
+		msg.setType(messageType.ACK);
+		msg.setMID(0xBEEF);
+		msg.setPayload("payload".getBytes());
+		msg.addOption(new Option("a".getBytes(), 1));
+		msg.addOption(new Option("a long value of more than 14 bytes".getBytes(), 9));
+
+		// encode into the middle of a larger array
+		byte[] buffer = new byte[msg.getEncodedLength() + 16];
+		int length = msg.toByteArray(buffer, 8, buffer.length - 8);
+
+		assertEquals(msg.getEncodedLength(), length);
+		assertArrayEquals(msg.toByteArray(), Arrays.copyOfRange(buffer, 8, 8 + length));
+
+		Message convMsg = Message.fromByteArray(buffer, 8, length);
+
+		assertEquals(msg.getCode(), convMsg.getCode());
+		assertEquals(msg.getType(), convMsg.getType());
+		assertEquals(msg.getMID(), convMsg.getMID());
+		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
+		assertArrayEquals(msg.getFirstOption(9).getRawValue(), convMsg.getFirstOption(9).getRawValue());
+		assertArrayEquals(msg.getPayload(), convMsg.getPayload());
+	}
+
+	@Test
+	public void testTruncatedMessage() {
+		Message msg = new Message();
+
+		msg.setCode(CodeRegistry.METHOD_GET);
+		msg.setType(messageType.CON);
+		msg.setMID(12345);
+		msg.addOption(new Option("abc".getBytes(), 1));
+
+		byte[] data = msg.toByteArray();
+
+		assertNull(Message.fromByteArray(data, 0, 3));
+		assertNull(Message.fromByteArray(data, 0, data.length - 1));
+	}
+
 	public static String getHexString(byte[] b) throws Exception {
 		String result = "";
 		for (int i = 0; i < b.length; i++) {
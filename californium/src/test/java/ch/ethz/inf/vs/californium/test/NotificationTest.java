@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.Notification;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+public class NotificationTest {
+
+	@Test
+	public void testEncodedAsCopies() {
+		
+		Notification.Template template = Notification.Template.create(newResponse());
+		
+		// per observer token and Observe, with and without token
+		assertEncodedAsCopy(template, new byte[] {0x0A, 0x0B}, 1, messageType.NON);
+		assertEncodedAsCopy(template, new byte[] {0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, 0x08}, 0xFFFF, messageType.CON);
+		assertEncodedAsCopy(template, new byte[0], 300, messageType.NON);
+	}
+	
+	@Test
+	public void testModifiedOptions() {
+		
+		Notification.Template template = Notification.Template.create(newResponse());
+		
+		Notification notification = newNotification(template, new byte[] {0x01}, 7, messageType.CON);
+		notification.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 0, 2, true));
+		notification.setMaxAge(10);
+		
+		Response copy = newCopy(template, new byte[] {0x01}, 7, messageType.CON);
+		copy.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 0, 2, true));
+		copy.setMaxAge(10);
+		
+		assertEquals(10, notification.getMaxAge());
+		assertEquals(copy.getOptions().size(), notification.getOptions().size());
+		assertArrayEquals(copy.toByteArray(), notification.toByteArray());
+	}
+	
+	private static void assertEncodedAsCopy(Notification.Template template, byte[] token, int observe, messageType type) {
+		
+		Notification notification = newNotification(template, token, observe, type);
+		Response copy = newCopy(template, token, observe, type);
+		
+		byte[] encoded = notification.toByteArray();
+		assertArrayEquals(copy.toByteArray(), encoded);
+		assertEquals(copy.getEncodedLength(), notification.getEncodedLength());
+		
+		Message decoded = Message.fromByteArray(encoded);
+		assertArrayEquals(token, decoded.getToken());
+		assertEquals(observe, decoded.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+		assertEquals("22.3 C", decoded.getPayloadString());
+	}
+	
+	private static Notification newNotification(Notification.Template template, byte[] token, int observe, messageType type) {
+		Notification notification = new Notification(template);
+		notification.setType(type);
+		notification.setMID(0x4321);
+		notification.setToken(token);
+		notification.setOption(new Option(observe, OptionNumberRegistry.OBSERVE));
+		return notification;
+	}
+	
+	private static Response newCopy(Notification.Template template, byte[] token, int observe, messageType type) {
+		Response copy = new Response(CodeRegistry.RESP_CONTENT);
+		for (Option opt : newResponse().getOptions()) {
+			if (opt.getOptionNumber() != OptionNumberRegistry.TOKEN) {
+				copy.addOption(opt);
+			}
+		}
+		copy.setType(type);
+		copy.setMID(0x4321);
+		copy.setToken(token);
+		copy.setOption(new Option(observe, OptionNumberRegistry.OBSERVE));
+		copy.setPayload("22.3 C");
+		return copy;
+	}
+	
+	/*
+	 * Returns a response with options before and after Observe and Token
+	 */
+	private static Response newResponse() {
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setContentType(MediaTypeRegistry.TEXT_PLAIN);
+		response.setMaxAge(30);
+		response.setOption(new Option(new byte[] {1, 2, 3, 4}, OptionNumberRegistry.ETAG));
+		response.setToken(new byte[] {0x7F});
+		response.setOption(new Option(new byte[] {(byte) 0xEE}, OptionNumberRegistry.IF_NONE_MATCH));
+		response.setPayload("22.3 C");
+		return response;
+	}
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.FileObservationStore;
+import ch.ethz.inf.vs.californium.coap.ObservationRecord;
+
+public class ObservationStoreTest {
+	
+	private File file;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("observations", ".log");
+		file.delete();
+	}
+	
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Test
+	public void testReplayAndCompaction() throws Exception {
+		
+		FileObservationStore store = new FileObservationStore(file, 0);
+		assertEquals(0, store.restore().size());
+		
+		store.add(newRecord(1, "sensors/temp", "", new byte[] {0x01}));
+		store.add(newRecord(2, "sensors/temp", "st=0.5", new byte[] {0x02, 0x03}));
+		store.add(newRecord(1, "time", "", new byte[0]));
+		store.remove(peer(1), "sensors/temp");
+		// replaces the former relationship of the peer
+		store.add(newRecord(2, "sensors/temp", "", new byte[] {0x04}));
+		store.close();
+		
+		long length = file.length();
+		
+		store = new FileObservationStore(file, 0);
+		List<ObservationRecord> records = store.restore();
+		store.close();
+		
+		assertEquals(2, records.size());
+		assertRecord(records.get(0), 2, "sensors/temp", "", new byte[] {0x04});
+		assertRecord(records.get(1), 1, "time", "", new byte[0]);
+		
+		// compacted to the live relationships
+		assertTrue(file.length() < length);
+		
+		store = new FileObservationStore(file, 0);
+		assertEquals(2, store.restore().size());
+		store.close();
+	}
+	
+	@Test
+	public void testTornEntry() throws Exception {
+		
+		FileObservationStore store = new FileObservationStore(file, 0);
+		store.restore();
+		store.add(newRecord(1, "time", "", new byte[] {0x01}));
+		store.close();
+		
+		// crash while appending
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] {0, 0, 0, 40, 1, 4, 10});
+		out.close();
+		
+		store = new FileObservationStore(file, 0);
+		List<ObservationRecord> records = store.restore();
+		
+		assertEquals(1, records.size());
+		assertRecord(records.get(0), 1, "time", "", new byte[] {0x01});
+		
+		// appends after the dropped entry
+		store.add(newRecord(2, "time", "", new byte[] {0x02}));
+		store.close();
+		
+		store = new FileObservationStore(file, 0);
+		assertEquals(2, store.restore().size());
+		store.close();
+	}
+	
+	@Test
+	public void testGarbageLength() throws Exception {
+		
+		FileObservationStore store = new FileObservationStore(file, 0);
+		store.restore();
+		store.add(newRecord(1, "time", "", new byte[] {0x01}));
+		store.close();
+		
+		// a length far beyond the file must not be allocated
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] {0x7f, (byte) 0xff, 0, 0, 0x12, 0x34, 0x56, 0x78, 1, 4, 10, 3});
+		out.close();
+		
+		store = new FileObservationStore(file, 0);
+		List<ObservationRecord> records = store.restore();
+		store.close();
+		
+		assertEquals(1, records.size());
+		assertRecord(records.get(0), 1, "time", "", new byte[] {0x01});
+	}
+	
+	@Test
+	public void testFlippedByte() throws Exception {
+		
+		FileObservationStore store = new FileObservationStore(file, 0);
+		store.restore();
+		store.add(newRecord(1, "time", "", new byte[] {0x01}));
+		long first = file.length();
+		store.add(newRecord(2, "time", "", new byte[] {0x02}));
+		store.add(newRecord(3, "time", "", new byte[] {0x03}));
+		store.close();
+		
+		// corrupt the port of the second peer, which would still decode
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(first + 8 + 1 + 1 + 4);
+		raf.write(raf.readByte() ^ 0x01);
+		raf.close();
+		
+		store = new FileObservationStore(file, 0);
+		List<ObservationRecord> records = store.restore();
+		
+		// the log is valid up to the corrupted entry only
+		assertEquals(1, records.size());
+		assertRecord(records.get(0), 1, "time", "", new byte[] {0x01});
+		assertEquals(first, file.length());
+		
+		store.add(newRecord(4, "time", "", new byte[] {0x04}));
+		store.close();
+		
+		store = new FileObservationStore(file, 0);
+		assertEquals(2, store.restore().size());
+		store.close();
+	}
+	
+	@Test
+	public void testBatchedSync() throws Exception {
+		
+		FileObservationStore store = new FileObservationStore(file, 50);
+		store.restore();
+		long length = file.length();
+		
+		for (int i = 0; i < 100; ++i) {
+			store.add(newRecord(i, "time", "", new byte[] {(byte) i}));
+		}
+		
+		// written by the sync thread
+		Thread.sleep(300);
+		assertTrue(file.length() > length);
+		
+		store.close();
+		
+		store = new FileObservationStore(file, 50);
+		assertEquals(100, store.restore().size());
+		store.close();
+	}
+	
+	private static ObservationRecord newRecord(int client, String path, String query, byte[] token) throws Exception {
+		return new ObservationRecord(peer(client), path, query, token, -1, 1000L * client);
+	}
+	
+	private static void assertRecord(ObservationRecord record, int client, String path, String query, byte[] token) throws Exception {
+		assertEquals(peer(client), record.getPeer());
+		assertEquals(path, record.getPath());
+		assertEquals(query, record.getQuery());
+		assertArrayEquals(token, record.getToken());
+		assertEquals(-1, record.getAccept());
+		assertEquals(1000L * client, record.getStartTime());
+	}
+	
+	private static EndpointAddress peer(int client) throws Exception {
+		return new EndpointAddress(InetAddress.getByAddress(new byte[] {10, 3, (byte) (client >> 8), (byte) client}), 5683 + client);
+	}
+}
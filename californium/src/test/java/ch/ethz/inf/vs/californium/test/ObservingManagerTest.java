@@ -0,0 +1,445 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.FileObservationStore;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.NotificationPolicy;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.layers.LoopbackLayer;
+
+public class ObservingManagerTest {
+	
+	private static ObservingManager manager = ObservingManager.getInstance();
+	
+	private static class CounterResource extends LocalResource {
+		
+		private volatile int count = 0;
+		private volatile int numGETs = 0;
+		
+		public CounterResource(String identifier) {
+			super(identifier);
+			isObservable(true);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			++numGETs;
+			request.respond(CodeRegistry.RESP_CONTENT, Integer.toString(count));
+		}
+		
+		public void increment() {
+			++count;
+			changed();
+		}
+	}
+	
+	@BeforeClass
+	public static void setupTransport() throws Exception {
+		// notifications to the unreachable observers are dropped
+		Communicator.setupTransport(new LoopbackLayer());
+		Communicator.getInstance();
+		manager.setRefreshInterval(Integer.MAX_VALUE);
+	}
+	
+	@Test
+	public void testLookupByPathAndMID() throws Exception {
+		
+		CounterResource first = new CounterResource("first");
+		CounterResource second = new CounterResource("second");
+		
+		GETRequest request = observe(first, 1);
+		observe(second, 1);
+		observe(second, 2);
+		
+		String client = request.getPeerAddress().toString();
+		
+		assertTrue(manager.isObserved(client, first));
+		assertTrue(manager.isObserved(client, second));
+		assertEquals(2, manager.getObserverCount(second.getPath()));
+		
+		first.increment();
+		assertEquals(1, manager.getObserverCount(first.getPath()));
+		
+		// RST for the last notification
+		manager.removeObserver(client, request.getResponse().getMID());
+		assertFalse(manager.isObserved(client, first));
+		assertTrue(manager.isObserved(client, second));
+		assertEquals(0, manager.getObserverCount(first.getPath()));
+		
+		// RST for an outdated notification
+		manager.updateLastMID(client, second.getPath(), 100);
+		manager.updateLastMID(client, second.getPath(), 101);
+		manager.removeObserver(client, 100);
+		assertTrue(manager.isObserved(client, second));
+		manager.removeObserver(client, 101);
+		assertFalse(manager.isObserved(client, second));
+		assertEquals(1, manager.getObserverCount(second.getPath()));
+		
+		// all relationships of a client
+		observe(first, 2);
+		manager.removeObserver(peer(2).toString());
+		assertEquals(0, manager.getObserverCount(first.getPath()));
+		assertEquals(0, manager.getObserverCount(second.getPath()));
+	}
+	
+	@Test
+	public void testRegisterWhileNotifying() throws Exception {
+		
+		final CounterResource resource = new CounterResource("concurrent");
+		final int observers = 500;
+		
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		Thread registrar = new Thread() {
+			@Override
+			public void run() {
+				try {
+					started.countDown();
+					for (int i = 0; i < observers; ++i) {
+						observe(resource, i);
+						if (i % 2 == 1) {
+							// cancel every other relationship by GET
+							manager.removeObserver(peer(i).toString(), resource);
+						}
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		registrar.start();
+		started.await();
+		
+		while (registrar.isAlive()) {
+			resource.increment();
+		}
+		registrar.join();
+		
+		assertNull(failure.get());
+		assertEquals(observers / 2, manager.getObserverCount(resource.getPath()));
+		
+		resource.increment();
+		for (int i = 0; i < observers; ++i) {
+			assertEquals(i % 2 == 0, manager.isObserved(peer(i).toString(), resource));
+		}
+	}
+	
+	@Test
+	public void testBulkRemoval() throws Exception {
+		
+		final int clients = 10000;
+		final int resources = 10;
+		
+		CounterResource[] observed = new CounterResource[resources];
+		for (int r = 0; r < resources; ++r) {
+			observed[r] = new CounterResource("bulk" + r);
+		}
+		
+		// 100k relationships without logging each of them
+		Logger log = Logger.getLogger(ObservingManager.class.getName());
+		Level level = log.getLevel();
+		log.setLevel(Level.WARNING);
+		
+		try {
+			int clientsBefore = manager.getClientCount();
+			
+			for (int c = 0; c < clients; ++c) {
+				for (int r = 0; r < resources; ++r) {
+					observe(observed[r], bulkPeer(c), null, new byte[] {(byte) (c >> 8), (byte) c, (byte) r});
+				}
+			}
+			
+			for (int r = 0; r < resources; ++r) {
+				assertEquals(clients, manager.getObserverCount(observed[r].getPath()));
+			}
+			assertEquals(clientsBefore + clients, manager.getClientCount());
+			
+			long start = System.nanoTime();
+			
+			for (int c = 0; c < clients; ++c) {
+				String client = bulkPeer(c).toString();
+				if (c % 4 < 2) {
+					// CON notification timeout
+					manager.removeObserver(client);
+				} else if (c % 4 == 2) {
+					for (int r = 0; r < resources; ++r) {
+						manager.removeObserver(client, new byte[] {(byte) (c >> 8), (byte) c, (byte) r});
+					}
+				} else {
+					for (int r = 0; r < resources; ++r) {
+						manager.updateLastMID(client, observed[r].getPath(), r);
+						manager.removeObserver(client, r);
+					}
+				}
+			}
+			
+			System.out.println(String.format("Removed %d observing relationships in %d ms", clients * resources, (System.nanoTime() - start) / 1000000));
+			
+			for (int r = 0; r < resources; ++r) {
+				assertEquals(0, manager.getObserverCount(observed[r].getPath()));
+				assertFalse(manager.isObserved(bulkPeer(0).toString(), observed[r]));
+			}
+			assertEquals(clientsBefore, manager.getClientCount());
+			
+		} finally {
+			log.setLevel(level);
+		}
+	}
+	
+	@Test
+	public void testRestoreAfterRestart() throws Exception {
+		
+		File file = File.createTempFile("observations", ".log");
+		file.delete();
+		
+		CounterResource resource = new CounterResource("persistent");
+		
+		try {
+			manager.setObservationStore(new FileObservationStore(file, 0));
+			
+			RecordingObserver observer = new RecordingObserver(resource, "st=2");
+			String client = observer.endpoint.getLocalAddress().toString();
+			
+			try {
+				// restart without the relationships in memory
+				manager.setObservationStore(null);
+				manager.removeObserver(client, resource);
+				assertFalse(manager.isObserved(client, resource));
+				
+				manager.setObservationStore(new FileObservationStore(file, 0));
+				assertEquals(1, manager.restoreObservers(resource));
+				assertTrue(manager.isObserved(client, resource));
+				
+				// the restored observer keeps its token and query, its last
+				// value is unknown until the first notification
+				resource.increment();
+				resource.increment();
+				resource.increment();
+				Thread.sleep(100);
+				assertEquals(Arrays.asList("1", "3"), observer.getPayloads());
+				assertArrayEquals(observer.getTokens().get(0), new byte[] {(byte) (observer.endpoint.getLocalAddress().getPort() >> 8), (byte) observer.endpoint.getLocalAddress().getPort()});
+				
+				// removals are stored, too
+				manager.removeObserver(client, resource);
+				manager.setObservationStore(new FileObservationStore(file, 0));
+				assertEquals(0, manager.restoreObservers(resource));
+				
+			} finally {
+				observer.cancel();
+			}
+		} finally {
+			manager.setObservationStore(null);
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testMinPeriodCoalescing() throws Exception {
+		
+		CounterResource resource = new CounterResource("coalesced");
+		resource.setNotificationPolicy(new NotificationPolicy(200, 0, 0));
+		
+		RecordingObserver first = new RecordingObserver(resource, null);
+		RecordingObserver second = new RecordingObserver(resource, null);
+		
+		try {
+			for (int i = 0; i < 1000; ++i) {
+				resource.increment();
+			}
+			
+			// first change right away, the others once with the latest state
+			Thread.sleep(400);
+			assertEquals(Arrays.asList("1", "1000"), first.getPayloads());
+			assertEquals(Arrays.asList("1", "1000"), second.getPayloads());
+			assertEquals(2 + 2, resource.numGETs);
+			
+		} finally {
+			first.cancel();
+			second.cancel();
+		}
+	}
+	
+	@Test
+	public void testObserverPolicies() throws Exception {
+		
+		CounterResource resource = new CounterResource("conditional");
+		
+		RecordingObserver stepped = new RecordingObserver(resource, "st=5");
+		RecordingObserver slow = new RecordingObserver(resource, "pmin=0.3");
+		RecordingObserver refreshed = new RecordingObserver(resource, "pmax=1");
+		
+		try {
+			for (int i = 0; i < 12; ++i) {
+				resource.increment();
+			}
+			
+			Thread.sleep(150);
+			assertEquals(Arrays.asList("5", "10"), stepped.getPayloads());
+			assertEquals(12, refreshed.getPayloads().size());
+			
+			// the slow observer receives the latest state after its period
+			Thread.sleep(400);
+			assertEquals(Arrays.asList("12"), slow.getPayloads());
+			assertEquals(12, refreshed.getPayloads().size());
+			
+			// the refreshed one the state again without a change
+			Thread.sleep(700);
+			assertTrue(refreshed.getPayloads().size() > 12);
+			assertEquals("12", refreshed.getPayloads().get(refreshed.getPayloads().size() - 1));
+			
+			// no refreshes after the removal
+			refreshed.cancel();
+			Thread.sleep(50);
+			int received = refreshed.getPayloads().size();
+			Thread.sleep(1100);
+			assertEquals(received, refreshed.getPayloads().size());
+			
+		} finally {
+			stepped.cancel();
+			slow.cancel();
+			refreshed.cancel();
+		}
+	}
+	
+	@Test
+	public void testQueryPolicy() {
+		
+		NotificationPolicy policy = NotificationPolicy.fromQuery("pmin=2&pmax=60&st=0.5");
+		assertEquals(2000, policy.getMinPeriod());
+		assertEquals(60000, policy.getMaxPeriod());
+		assertEquals(0.5, policy.getStep(), 0);
+		
+		// no refreshes faster than the server allows
+		assertEquals(1000, NotificationPolicy.fromQuery("pmax=0").getMaxPeriod());
+		assertEquals(1000, NotificationPolicy.fromQuery("pmin=0.1&pmax=0.2").getMaxPeriod());
+		assertEquals(0, NotificationPolicy.fromQuery("pmin=5").getMaxPeriod());
+		
+		// inconsistent periods are ignored
+		policy = NotificationPolicy.fromQuery("pmin=10&pmax=5&st=1");
+		assertEquals(0, policy.getMinPeriod());
+		assertEquals(0, policy.getMaxPeriod());
+		assertEquals(1, policy.getStep(), 0);
+		
+		assertNull(NotificationPolicy.fromQuery("foo=1"));
+	}
+	
+	/*
+	 * An observer on its own loopback endpoint that records the payloads of
+	 * the notifications.
+	 */
+	private static class RecordingObserver implements MessageReceiver {
+		
+		private LocalResource resource;
+		private LoopbackLayer endpoint;
+		private List<String> payloads = new ArrayList<String>();
+		private List<byte[]> tokens = new ArrayList<byte[]>();
+		
+		RecordingObserver(LocalResource resource, String query) throws Exception {
+			this.resource = resource;
+			this.endpoint = new LoopbackLayer();
+			endpoint.registerReceiver(this);
+			int port = endpoint.getLocalAddress().getPort();
+			observe(resource, endpoint.getLocalAddress(), query, new byte[] {(byte) (port >> 8), (byte) port});
+		}
+		
+		@Override
+		public void receiveMessage(Message msg) {
+			synchronized (payloads) {
+				payloads.add(msg.getPayloadString());
+				tokens.add(msg.getToken());
+			}
+		}
+		
+		List<byte[]> getTokens() {
+			synchronized (payloads) {
+				return new ArrayList<byte[]>(tokens);
+			}
+		}
+		
+		List<String> getPayloads() {
+			synchronized (payloads) {
+				return new ArrayList<String>(payloads);
+			}
+		}
+		
+		void cancel() {
+			if (manager.isObserved(endpoint.getLocalAddress().toString(), resource)) {
+				manager.removeObserver(endpoint.getLocalAddress().toString(), resource);
+			}
+			endpoint.close();
+		}
+	}
+	
+	private static GETRequest observe(LocalResource resource, int client) throws Exception {
+		return observe(resource, peer(client), null, new byte[] {(byte) (client >> 8), (byte) client});
+	}
+	
+	private static GETRequest observe(LocalResource resource, EndpointAddress peer, String query, byte[] token) throws Exception {
+		GETRequest request = new GETRequest();
+		request.setURI(query!=null ? resource.getPath() + "?" + query : resource.getPath());
+		request.setPeerAddress(peer);
+		request.setToken(token);
+		resource.performGET(request);
+		manager.addObserver(request, resource);
+		return request;
+	}
+	
+	private static EndpointAddress peer(int client) throws Exception {
+		return new EndpointAddress(InetAddress.getByAddress(new byte[] {10, 1, (byte) (client >> 8), (byte) client}), 5683);
+	}
+	
+	private static EndpointAddress bulkPeer(int client) throws Exception {
+		return new EndpointAddress(InetAddress.getByAddress(new byte[] {10, 2, (byte) (client >> 8), (byte) client}), 5683);
+	}
+}
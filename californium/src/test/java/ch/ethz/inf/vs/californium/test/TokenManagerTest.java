@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+
+public class TokenManagerTest {
+
+	@Test
+	public void testReleaseEqualToken() {
+		
+		TokenManager manager = new TokenManager(false, 1024);
+		
+		byte[] token = manager.acquireToken();
+		assertTrue(manager.isAcquired(token));
+		
+		// e.g., the token as parsed from a response
+		manager.releaseToken(token.clone());
+		
+		assertFalse(manager.isAcquired(token));
+		assertEquals(0, manager.getAcquiredCount());
+	}
+	
+	@Test
+	public void testEmptyToken() {
+		
+		TokenManager manager = new TokenManager(false, 1024);
+		
+		assertEquals(0, manager.acquireToken(true).length);
+		assertTrue(manager.isAcquired(new byte[0]));
+		
+		// only one transfer can use the empty token
+		assertTrue(manager.acquireToken(true).length > 0);
+		
+		manager.releaseToken(new byte[0]);
+		assertFalse(manager.isAcquired(TokenManager.emptyToken));
+		assertEquals(0, manager.acquireToken(true).length);
+	}
+	
+	@Test
+	public void testRandomTokens() {
+		
+		TokenManager manager = new TokenManager(true, 1024);
+		Set<Long> seen = new HashSet<Long>();
+		
+		for (int i = 0; i < 256; ++i) {
+			byte[] token = manager.acquireToken();
+			assertEquals(8, token.length);
+			assertTrue(seen.add(TokenManager.pack(token)));
+		}
+		assertEquals(256, manager.getAcquiredCount());
+	}
+	
+	@Test
+	public void testPack() {
+		
+		// tokens of different length must not collide
+		assertFalse(TokenManager.pack(new byte[] {0x01}) == TokenManager.pack(new byte[] {0x00, 0x01}));
+		assertEquals(1L, TokenManager.pack(new byte[0]));
+		
+		byte[] token = {(byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF, 0x01, 0x02, 0x03, 0x04};
+		assertEquals(0xDEADBEEF01020304L, TokenManager.pack(token));
+		assertArrayEquals(token, TokenManager.unpack(TokenManager.pack(token), token.length));
+	}
+	
+	@Test
+	public void testConcurrentAcquireRelease() throws Exception {
+		
+		final TokenManager manager = new TokenManager(false, 1 << 12);
+		final AtomicInteger errors = new AtomicInteger();
+		
+		Thread[] requesters = new Thread[16];
+		for (int t = 0; t < requesters.length; ++t) {
+			requesters[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[][] held = new byte[64][];
+					for (int round = 0; round < 200; ++round) {
+						for (int i = 0; i < held.length; ++i) {
+							held[i] = manager.acquireToken();
+						}
+						for (int i = 0; i < held.length; ++i) {
+							if (!manager.isAcquired(held[i])) {
+								errors.incrementAndGet();
+							}
+							manager.releaseToken(held[i]);
+						}
+					}
+				}
+			};
+			requesters[t].start();
+		}
+		for (Thread requester : requesters) {
+			requester.join();
+		}
+		
+		assertEquals(0, errors.get());
+		assertEquals(0, manager.getAcquiredCount());
+	}
+}
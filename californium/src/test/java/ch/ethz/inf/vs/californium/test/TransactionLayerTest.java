@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.CongestionControl;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+public class TransactionLayerTest {
+	
+	/*
+	 * Transport stub that records sent messages.
+	 */
+	class RecordingLayer extends Layer {
+		
+		List<Message> sent = new ArrayList<Message>();
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			sent.add(msg);
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+	
+	private RecordingLayer transport;
+	private TransactionLayer layer;
+	
+	@Before
+	public void setUp() {
+		transport = new RecordingLayer();
+		layer = new TransactionLayer(HashedWheelTimer.getInstance(), new CongestionControl(2000, 1.5, 1, 10, 60000));
+		layer.setLowerLayer(transport);
+	}
+	
+	@Test
+	public void testTransactionKeyCollision() throws IOException {
+		
+		// IPv6 addresses that fold into the same packed key
+		EndpointAddress first = new EndpointAddress(InetAddress.getByName("fe80::100"), 5683);
+		EndpointAddress second = new EndpointAddress(InetAddress.getByName("fe80::1f"), 5683);
+		Message one = newConfirmable(first, 7);
+		Message two = newConfirmable(second, 7);
+		assertEquals(TransactionLayer.transactionKey(one), TransactionLayer.transactionKey(two));
+		
+		layer.sendMessage(one);
+		layer.sendMessage(two);
+		
+		// both exchanges are matched by their own ACK
+		transport.receiveMessage(one.newAccept());
+		transport.receiveMessage(two.newAccept());
+		
+		assertTrue(layer.getCongestionControl().getRTT(first) >= 0);
+		assertTrue(layer.getCongestionControl().getRTT(second) >= 0);
+		assertEquals(0, layer.getCongestionControl().getPeerState(first).getOutstanding());
+		assertEquals(0, layer.getCongestionControl().getPeerState(second).getOutstanding());
+	}
+	
+	@Test
+	public void testMessageIDsExhausted() throws Exception {
+		
+		// the message IDs are kept per peer for EXCHANGE_LIFETIME
+		EndpointAddress peer = new EndpointAddress(InetAddress.getByName("10.0.1.1"), 5683);
+		while (TransactionLayer.nextMessageID(peer) >= 0) {
+			// exhaust the space
+		}
+		
+		final List<Message> timedOut = new ArrayList<Message>();
+		
+		int wait = Properties.std.getInt("MID_EXHAUSTED_WAIT");
+		try {
+			// fail right away
+			Properties.std.set("MID_EXHAUSTED_WAIT", 0);
+			try {
+				layer.sendMessage(newNonConfirmable(peer, timedOut));
+				fail("Sent without a free message ID");
+			} catch (IOException e) {
+				// expected
+			}
+			
+			// park without blocking the sender
+			Properties.std.set("MID_EXHAUSTED_WAIT", 100);
+			Message first = newNonConfirmable(peer, timedOut);
+			Message second = newNonConfirmable(peer, timedOut);
+			layer.sendMessage(first);
+			layer.sendMessage(second);
+			
+			assertEquals(0, transport.sent.size());
+			
+			// the IDs do not expire within the wait
+			Thread.sleep(500);
+			
+			assertEquals(0, transport.sent.size());
+			assertEquals(2, timedOut.size());
+			assertSame(first, timedOut.get(0));
+			assertSame(second, timedOut.get(1));
+			
+		} finally {
+			Properties.std.set("MID_EXHAUSTED_WAIT", wait);
+		}
+	}
+	
+	private static Message newConfirmable(EndpointAddress peer, int mid) {
+		Message msg = new Message(messageType.CON, CodeRegistry.METHOD_GET);
+		msg.setPeerAddress(peer);
+		msg.setMID(mid);
+		return msg;
+	}
+	
+	private static Message newNonConfirmable(EndpointAddress peer, final List<Message> timedOut) {
+		Message msg = new Message(messageType.NON, CodeRegistry.METHOD_GET) {
+			@Override
+			public void handleTimeout() {
+				synchronized (timedOut) {
+					timedOut.add(this);
+				}
+			}
+		};
+		msg.setPeerAddress(peer);
+		return msg;
+	}
+}
@@ -0,0 +1,530 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.PUTRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.layers.BlockResponse;
+import ch.ethz.inf.vs.californium.layers.CongestionControl;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.TransferLayer;
+
+public class TransferLayerTest {
+
+	private static final int BLOCKS = 5;
+	
+	/*
+	 * Records sent messages instead of transmitting them
+	 */
+	private static class RecordingLayer extends Layer {
+		
+		final List<Message> sent = new ArrayList<Message>();
+		
+		@Override
+		protected void doSendMessage(Message msg) {
+			sent.add(msg);
+		}
+		
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+	
+	/*
+	 * Collects streamed chunks
+	 */
+	private static class Collector implements ChunkHandler {
+		
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int calls;
+		boolean last;
+		
+		@Override
+		public void handleChunk(Message msg, byte[] chunk, int offset, boolean last) {
+			assertEquals(body.size(), offset);
+			assertFalse(this.last);
+			body.write(chunk, 0, chunk.length);
+			this.last = last;
+			++calls;
+		}
+	}
+	
+	@Test
+	public void testAssembledDownload() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		
+		download(transfer, new GETRequest());
+		
+		assertEquals(1, delivered.size());
+		assertArrayEquals(body(), delivered.get(0).getPayload());
+	}
+	
+	@Test
+	public void testStreamedDownload() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		
+		Request request = new GETRequest();
+		Collector collector = new Collector();
+		request.setChunkHandler(collector);
+		
+		download(transfer, request);
+		
+		assertEquals(BLOCKS, collector.calls);
+		assertTrue(collector.last);
+		assertArrayEquals(body(), collector.body.toByteArray());
+		
+		// delivered on completion, but without the body
+		assertEquals(1, delivered.size());
+		assertEquals(0, delivered.get(0).payloadSize());
+	}
+	
+	@Test
+	public void testStreamedUpload() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		
+		final Collector collector = new Collector();
+		transfer.setChunkHandlerProvider(new ChunkHandler.Provider() {
+			@Override
+			public ChunkHandler getChunkHandler(Request request) {
+				return "/firmware".equals(request.getUriPath()) ? collector : null;
+			}
+		});
+		
+		byte[] body = body();
+		for (int num = 0; num < BLOCKS; ++num) {
+			Request block = new PUTRequest();
+			block.setURI("coap://127.0.0.1:5683/firmware");
+			block.setMID(num);
+			block.setToken(new byte[] {0x42});
+			block.setOption(new BlockOption(OptionNumberRegistry.BLOCK1, num, 0, num < BLOCKS - 1));
+			block.setPayload(slice(body, num));
+			transfer.receiveMessage(block);
+		}
+		
+		assertEquals(BLOCKS, collector.calls);
+		assertArrayEquals(body, collector.body.toByteArray());
+		assertEquals(1, delivered.size());
+		assertEquals(0, delivered.get(0).payloadSize());
+	}
+	
+	@Test
+	public void testFailedUpload() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		transfer.setChunkHandlerProvider(new ChunkHandler.Provider() {
+			@Override
+			public ChunkHandler getChunkHandler(Request request) {
+				return new ChunkHandler() {
+					@Override
+					public void handleChunk(Message msg, byte[] chunk, int offset, boolean last) {
+						if (offset > 0) {
+							throw new IllegalStateException("Disk full");
+						}
+					}
+				};
+			}
+		});
+		
+		byte[] body = body();
+		for (int num = 0; num < 2; ++num) {
+			Request block = new PUTRequest();
+			block.setURI("coap://127.0.0.1:5683/firmware");
+			block.setMID(num);
+			block.setToken(new byte[] {0x43});
+			block.setOption(new BlockOption(OptionNumberRegistry.BLOCK1, num, 0, true));
+			block.setPayload(slice(body, num));
+			transfer.receiveMessage(block);
+		}
+		
+		// the client learns about the failure instead of timing out
+		Message reply = lower.sent.get(lower.sent.size() - 1);
+		assertEquals(CodeRegistry.RESP_INTERNAL_SERVER_ERROR, reply.getCode());
+		assertEquals(1, reply.getMID());
+		assertArrayEquals(new byte[] {0x43}, reply.getToken());
+		assertEquals(0, delivered.size());
+		assertEquals(0, transfer.getTransferStore().getBytes());
+	}
+	
+	@Test
+	public void testTunedDemand() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		Request request = new GETRequest();
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setToken(new byte[] {0x31});
+		
+		// a lossy path to the peer halves the block size of 128 bytes
+		CongestionControl cc = new CongestionControl(2000, 1.5, 1, 10, 60000);
+		cc.updateRTT(request.getPeerAddress(), 10, 0);
+		cc.blockSZX(request.getPeerAddress(), 3);
+		for (int i = 0; i < 8; ++i) {
+			cc.updateLoss(request.getPeerAddress(), 2, true);
+		}
+		assertEquals(2, cc.getPeerState(request.getPeerAddress()).getBlockSZX());
+		transfer.setCongestionControl(cc);
+		
+		byte[] body = new byte[192];
+		Arrays.fill(body, 128, 192, (byte) 1);
+		
+		Response first = new Response(CodeRegistry.RESP_CONTENT);
+		first.setType(messageType.ACK);
+		first.setMID(1);
+		first.setPeerAddress(request.getPeerAddress());
+		first.setToken(request.getToken());
+		first.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 0, 3, true));
+		first.setPayload(Arrays.copyOf(body, 128));
+		first.setRequest(request);
+		transfer.receiveMessage(first);
+		
+		// the next block is demanded at the offset of 128 bytes in 64-byte blocks
+		BlockOption demand = (BlockOption) lower.sent.get(0).getFirstOption(OptionNumberRegistry.BLOCK2);
+		assertEquals(2, demand.getNUM());
+		assertEquals(2, demand.getSZX());
+		
+		Response last = new Response(CodeRegistry.RESP_CONTENT);
+		last.setType(messageType.ACK);
+		last.setMID(2);
+		last.setPeerAddress(request.getPeerAddress());
+		last.setToken(request.getToken());
+		last.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 2, 2, false));
+		last.setPayload(Arrays.copyOfRange(body, 128, 192));
+		transfer.receiveMessage(last);
+		
+		assertEquals(1, delivered.size());
+		assertArrayEquals(body, delivered.get(0).getPayload());
+	}
+	
+	@Test
+	public void testWindowedDownload() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		Request request = new GETRequest();
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setToken(new byte[] {0x29});
+		request.setBlockWindow(3);
+		
+		// the first block opens a window of three block requests
+		transfer.receiveMessage(newBlock(request, 0));
+		assertDemanded(lower, 1, 2, 3);
+		
+		// blocks arriving out of order keep the window full until the end
+		transfer.receiveMessage(newBlock(request, 3));
+		transfer.receiveMessage(newBlock(request, 2));
+		transfer.receiveMessage(newBlock(request, 2));
+		transfer.receiveMessage(newBlock(request, 4));
+		assertDemanded(lower, 1, 2, 3, 4, 5);
+		
+		// the error for the block beyond the end is not a client abort
+		transfer.receiveMessage(newOutOfScope(request));
+		assertEquals(0, delivered.size());
+		
+		transfer.receiveMessage(newBlock(request, 1));
+		
+		assertEquals(1, delivered.size());
+		assertArrayEquals(body(), delivered.get(0).getPayload());
+		assertEquals(0, transfer.getTransferStore().getBytes());
+	}
+	
+	@Test
+	public void testDelayedWindowErrors() {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		Request request = new GETRequest();
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setToken(new byte[] {0x2A});
+		request.setBlockWindow(3);
+		
+		for (int num = 0; num < BLOCKS; ++num) {
+			transfer.receiveMessage(newBlock(request, num));
+		}
+		assertDemanded(lower, 1, 2, 3, 4, 5, 6);
+		
+		// completed before the errors for blocks 5 and 6 arrived
+		assertEquals(1, delivered.size());
+		assertArrayEquals(body(), delivered.get(0).getPayload());
+		assertEquals(0, transfer.getTransferStore().getBytes());
+		
+		transfer.receiveMessage(newOutOfScope(request));
+		assertEquals(1, transfer.getTransferStore().size());
+		transfer.receiveMessage(newOutOfScope(request));
+		assertEquals(0, transfer.getTransferStore().size());
+		assertEquals(1, delivered.size());
+		
+		// further errors belong to another exchange
+		transfer.receiveMessage(newOutOfScope(request));
+		assertEquals(2, delivered.size());
+	}
+	
+	@Test
+	public void testResumedDownload() throws Exception {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		Request request = new GETRequest();
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setToken(new byte[] {0x2B});
+		request.setBlockOffset(40);
+		
+		// the block with the offset is demanded with the request
+		transfer.sendMessage(request);
+		assertDemanded(lower, 2);
+		
+		for (int num = 2; num < BLOCKS; ++num) {
+			transfer.receiveMessage(newBlock(request, num));
+		}
+		
+		assertEquals(1, delivered.size());
+		assertArrayEquals(Arrays.copyOfRange(body(), 40, BLOCKS * 16), delivered.get(0).getPayload());
+	}
+	
+	@Test
+	public void testBlockEncoding() {
+		
+		// a single Block2 option needs a fencepost
+		assertBlocksEncodedAsCopies(newResponse(false));
+		assertBlocksEncodedAsCopies(newResponse(true));
+	}
+	
+	@Test
+	public void testServedBlocks() throws Exception {
+		
+		List<Message> delivered = new ArrayList<Message>();
+		TransferLayer transfer = newTransferLayer(delivered);
+		RecordingLayer lower = (RecordingLayer) transfer.getLowerLayer();
+		
+		Request request = new GETRequest();
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setMID(100);
+		request.setToken(new byte[] {0x17});
+		
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setPeerAddress(request.getPeerAddress());
+		response.setType(messageType.ACK);
+		response.setMID(100);
+		response.setToken(request.getToken());
+		response.setRequest(request);
+		response.setPayload(body());
+		
+		transfer.sendMessage(response);
+		
+		for (int num = 1; num < BLOCKS; ++num) {
+			Request demand = new GETRequest();
+			demand.setURI("coap://127.0.0.1:5683/large");
+			demand.setMID(100 + num);
+			demand.setToken(request.getToken());
+			demand.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, num, 0, false));
+			transfer.receiveMessage(demand);
+		}
+		
+		assertEquals(BLOCKS, lower.sent.size());
+		for (int num = 0; num < BLOCKS; ++num) {
+			Message block = Message.fromByteArray(lower.sent.get(num).toByteArray());
+			assertEquals(100 + num, block.getMID());
+			assertArrayEquals(request.getToken(), block.getToken());
+			assertArrayEquals(slice(body(), num), block.getPayload());
+			
+			BlockOption option = (BlockOption) block.getFirstOption(OptionNumberRegistry.BLOCK2);
+			assertEquals(num, option.getNUM());
+			assertEquals(num < BLOCKS - 1, option.getM());
+		}
+		
+		// the transfer is freed after the last block
+		assertEquals(0, delivered.size());
+	}
+	
+	/*
+	 * Compares the encoding of blocks with the one of a response that carries
+	 * a copy of the options and payload
+	 */
+	private static void assertBlocksEncodedAsCopies(Response response) {
+		
+		BlockResponse.Template template = BlockResponse.Template.create(response);
+		assertNotNull(template);
+		
+		for (int num = 0; num < BLOCKS; ++num) {
+			BlockResponse block = BlockResponse.create(template, num, 0);
+			block.setType(messageType.ACK);
+			block.setMID(0x1234 + num);
+			
+			Response copy = new Response(response.getCode());
+			copy.setType(messageType.ACK);
+			copy.setMID(0x1234 + num);
+			for (Option opt : response.getOptions()) {
+				copy.addOption(opt);
+			}
+			copy.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, num, 0, num < BLOCKS - 1));
+			copy.setPayload(slice(response.getPayload(), num));
+			
+			assertArrayEquals(copy.toByteArray(), block.toByteArray());
+			assertEquals(copy.getEncodedLength(), block.getEncodedLength());
+			assertArrayEquals(copy.getPayload(), block.getPayload());
+		}
+		
+		assertNull(BlockResponse.create(template, BLOCKS, 0));
+	}
+	
+	private static Response newResponse(boolean options) {
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		if (options) {
+			response.setContentType(MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+			response.setMaxAge(30);
+			response.setOption(new Option(new byte[] {1, 2, 3, 4}, OptionNumberRegistry.ETAG));
+			response.setToken(new byte[] {0x0A, 0x0B, 0x0C});
+		}
+		response.setPayload(body());
+		return response;
+	}
+	
+	/*
+	 * Receives a body of BLOCKS blocks of 16 bytes for the request
+	 */
+	private static void download(TransferLayer transfer, Request request) {
+		
+		request.setURI("coap://127.0.0.1:5683/large");
+		request.setToken(new byte[] {0x23});
+		
+		for (int num = 0; num < BLOCKS; ++num) {
+			transfer.receiveMessage(newBlock(request, num));
+		}
+	}
+	
+	/*
+	 * Returns the response with the block of 16 bytes of the body
+	 */
+	private static Response newBlock(Request request, int num) {
+		
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(messageType.ACK);
+		response.setMID(num);
+		response.setPeerAddress(request.getPeerAddress());
+		response.setToken(request.getToken());
+		response.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, num, 0, num < BLOCKS - 1));
+		response.setPayload(slice(body(), num));
+		
+		// as matched by the MatchingLayer
+		response.setRequest(request);
+		
+		return response;
+	}
+	
+	/*
+	 * Returns the error of the server for a request beyond the end of the body
+	 */
+	private static Response newOutOfScope(Request request) {
+		Response error = new Response(CodeRegistry.RESP_BAD_REQUEST);
+		error.setType(messageType.ACK);
+		error.setPeerAddress(request.getPeerAddress());
+		error.setToken(request.getToken());
+		error.setRequest(request);
+		return error;
+	}
+	
+	/*
+	 * Checks the NUMs of the Block2 options of the sent requests
+	 */
+	private static void assertDemanded(RecordingLayer lower, int... nums) {
+		
+		assertEquals(nums.length, lower.sent.size());
+		for (int i = 0; i < nums.length; ++i) {
+			BlockOption demand = (BlockOption) lower.sent.get(i).getFirstOption(OptionNumberRegistry.BLOCK2);
+			assertEquals(nums[i], demand.getNUM());
+			assertEquals(0, demand.getSZX());
+		}
+	}
+	
+	private static TransferLayer newTransferLayer(final List<Message> delivered) {
+		
+		TransferLayer transfer = new TransferLayer(16);
+		transfer.setLowerLayer(new RecordingLayer());
+		transfer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				delivered.add(msg);
+			}
+		});
+		return transfer;
+	}
+	
+	private static byte[] body() {
+		byte[] body = new byte[BLOCKS * 16];
+		for (int i = 0; i < body.length; ++i) {
+			body[i] = (byte) i;
+		}
+		return body;
+	}
+	
+	private static byte[] slice(byte[] body, int num) {
+		byte[] chunk = new byte[16];
+		System.arraycopy(body, num * 16, chunk, 0, 16);
+		return chunk;
+	}
+}
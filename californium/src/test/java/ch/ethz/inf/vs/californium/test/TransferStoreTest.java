@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.MessageKey;
+import ch.ethz.inf.vs.californium.layers.TransferStore;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+public class TransferStoreTest {
+
+	@Test
+	public void testEvictLeastRecentlyUsed() throws UnknownHostException {
+		
+		TransferStore<String> store = new TransferStore<String>(60000, 1000, 16);
+		TransferStore.Table<String> incoming = store.newTable();
+		TransferStore.Table<String> outgoing = store.newTable();
+		
+		assertTrue(incoming.put(key(1, 1), peer(1), "a", 400));
+		assertTrue(outgoing.put(key(2, 1), peer(2), "b", 400));
+		
+		// access makes a the most recently used
+		assertEquals("a", incoming.get(key(1, 1)));
+		
+		// growing a beyond the budget evicts b from the other table
+		assertTrue(incoming.resize(key(1, 1), 700));
+		assertNull(outgoing.get(key(2, 1)));
+		assertEquals(700, store.getBytes());
+		assertEquals(1, store.getNumEvicted());
+		
+		// a transfer alone beyond the budget evicts itself
+		assertFalse(incoming.resize(key(1, 1), 1001));
+		assertNull(incoming.get(key(1, 1)));
+		assertEquals(0, store.getBytes());
+		assertEquals(0, store.size());
+		
+		// as well as a new one
+		assertFalse(incoming.put(key(1, 2), peer(1), "c", 1001));
+		assertEquals(1, store.getNumRejected());
+	}
+	
+	@Test
+	public void testStreamedNotEvicted() throws UnknownHostException {
+		
+		TransferStore<String> store = new TransferStore<String>(60000, 1000, 16);
+		TransferStore.Table<String> incoming = store.newTable();
+		
+		assertTrue(incoming.put(key(1, 1), peer(1), "streamed", 0));
+		assertTrue(incoming.put(key(1, 2), peer(1), "a", 600));
+		assertTrue(incoming.put(key(1, 3), peer(1), "b", 600));
+		
+		assertEquals("streamed", incoming.get(key(1, 1)));
+		assertNull(incoming.get(key(1, 2)));
+		assertEquals("b", incoming.get(key(1, 3)));
+	}
+	
+	@Test
+	public void testPeerLimit() throws UnknownHostException {
+		
+		TransferStore<String> store = new TransferStore<String>(60000, 1000, 2);
+		TransferStore.Table<String> incoming = store.newTable();
+		
+		assertTrue(incoming.put(key(1, 1), peer(1), "a", 10));
+		assertTrue(incoming.put(key(1, 2), peer(1), "b", 10));
+		assertFalse(incoming.put(key(1, 3), peer(1), "c", 10));
+		
+		// other peers are not affected
+		assertTrue(incoming.put(key(2, 1), peer(2), "d", 10));
+		
+		// completion frees a slot
+		assertEquals("a", incoming.complete(key(1, 1)));
+		assertTrue(incoming.put(key(1, 3), peer(1), "c", 10));
+		
+		assertEquals(3, store.size());
+		assertEquals(2, store.getPeerCount());
+		assertEquals(1, store.getNumCompleted());
+		assertEquals(1, store.getNumRejected());
+	}
+	
+	@Test
+	public void testRejectedReplacement() throws UnknownHostException {
+		
+		TransferStore<String> store = new TransferStore<String>(60000, 1000, 1);
+		TransferStore.Table<String> incoming = store.newTable();
+		
+		assertTrue(incoming.put(key(1, 1), peer(1), "a", 10));
+		
+		// replacing does not count against the peer limit
+		assertTrue(incoming.put(key(1, 1), peer(1), "b", 10));
+		
+		// a rejected replacement keeps the live transfer
+		assertFalse(incoming.put(key(1, 1), peer(1), "c", 1001));
+		assertEquals("b", incoming.get(key(1, 1)));
+		assertEquals(10, store.getBytes());
+		assertEquals(1, store.size());
+	}
+	
+	@Test
+	public void testCancelPurge() throws Exception {
+		
+		HashedWheelTimer timer = new HashedWheelTimer("PurgeTest", 10, 64);
+		try {
+			TransferStore<String> store = new TransferStore<String>(100, 1000, 16);
+			TransferStore.Table<String> incoming = store.newTable();
+			
+			store.schedulePurge(timer);
+			store.schedulePurge(timer);
+			assertEquals(1, timer.getPending());
+			
+			assertTrue(incoming.put(key(1, 1), peer(1), "a", 100));
+			Thread.sleep(300);
+			assertEquals(0, store.size());
+			
+			store.cancelPurge();
+			Thread.sleep(100);
+			assertEquals(0, timer.getPending());
+		} finally {
+			timer.stop();
+		}
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		
+		TransferStore<String> store = new TransferStore<String>(200, 1000, 16);
+		TransferStore.Table<String> incoming = store.newTable();
+		
+		assertTrue(incoming.put(key(1, 1), peer(1), "a", 100));
+		assertTrue(incoming.put(key(1, 2), peer(1), "b", 100));
+		
+		Thread.sleep(120);
+		assertEquals("b", incoming.get(key(1, 2)));
+		Thread.sleep(120);
+		
+		// only the idle transfer expired
+		assertNull(incoming.get(key(1, 1)));
+		assertEquals("b", incoming.get(key(1, 2)));
+		assertEquals(100, store.getBytes());
+		assertEquals(1, store.getNumExpired());
+		
+		Thread.sleep(250);
+		store.purge();
+		assertEquals(0, store.size());
+		assertEquals(0, store.getPeerCount());
+	}
+	
+	private static EndpointAddress peer(int port) throws UnknownHostException {
+		return new EndpointAddress(InetAddress.getByName("127.0.0.1"), port);
+	}
+	
+	private static MessageKey key(int port, int token) throws UnknownHostException {
+		return MessageKey.sequenceKey(peer(port), new byte[] {(byte) token});
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.BlockResponse;
+
+/*
+ * Measures serving one 1 KiB block of a cached 64 KiB response into a
+ * datagram buffer:
+ * 
+ * copiedBlock   - the former TransferLayer.getBlock, which copies the
+ *                 options and the payload slice into a new response
+ * templateBlock - a BlockResponse encoded from the pre-encoded options and
+ *                 the cached payload
+ * 
+ * Run with "-prof gc" to see the allocation per block (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockServingBenchmark {
+
+	private static final int SZX = 6;
+	private static final int BLOCKS = 64;
+	
+	private Response cached;
+	private BlockResponse.Template template;
+	private byte[] datagram = new byte[2048];
+	private int num;
+
+	@Setup
+	public void setup() {
+		cached = new Response(CodeRegistry.RESP_CONTENT);
+		cached.setType(messageType.ACK);
+		cached.setMID(4711);
+		cached.setContentType(MediaTypeRegistry.IMAGE_JPEG);
+		cached.setMaxAge(30);
+		cached.setOption(new Option(new byte[] {1, 2, 3, 4}, OptionNumberRegistry.ETAG));
+		cached.setToken(new byte[] {0x0A, 0x0B, 0x0C, 0x0D});
+		cached.setPayload(new byte[BLOCKS * 1024]);
+		
+		template = BlockResponse.Template.create(cached);
+	}
+	
+	private int nextNum() {
+		if (++num == BLOCKS) {
+			num = 0;
+		}
+		return num;
+	}
+
+	@Benchmark
+	public int copiedBlock() {
+		return copyBlock(cached, nextNum(), SZX).toByteArray(datagram, 0, datagram.length);
+	}
+
+	@Benchmark
+	public int templateBlock() {
+		BlockResponse block = BlockResponse.create(template, nextNum(), SZX);
+		block.setType(messageType.ACK);
+		block.setMID(cached.getMID());
+		return block.toByteArray(datagram, 0, datagram.length);
+	}
+	
+	/*
+	 * The former TransferLayer.getBlock for responses
+	 */
+	private static Message copyBlock(Message msg, int num, int szx) {
+		
+		int blockSize = 1 << (szx + 4);
+		int payloadOffset = num * blockSize;
+		int payloadLeft = msg.payloadSize() - payloadOffset;
+		
+		Message block = new Response(msg.getCode());
+		block.setType(messageType.ACK);
+		block.setMID(msg.getMID());
+		block.setPeerAddress(msg.getPeerAddress());
+		
+		for (Option opt : msg.getOptions()) {
+			block.addOption(opt);
+		}
+		
+		boolean m = blockSize < payloadLeft;
+		if (!m) {
+			blockSize = payloadLeft;
+		}
+		
+		byte[] blockPayload = new byte[blockSize];
+		System.arraycopy(msg.getPayload(), payloadOffset, blockPayload, 0, blockSize);
+		block.setPayload(blockPayload);
+		
+		block.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, num, szx, m));
+		
+		return block;
+	}
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.layers.CongestionControl;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.LoopbackLayer;
+import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.layers.TransferLayer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/*
+ * Measures the completion time of a blockwise download of 8 KiB between two
+ * stacks on the LoopbackLayer, which loses each 127-byte frame of a datagram
+ * with the given probability, like a fragmenting IEEE 802.15.4 link:
+ * 
+ * fixedBlockSize - the client demands blocks of DEFAULT_BLOCK_SIZE
+ * tunedBlockSize - the client tunes the block size from the loss and RTT
+ *                  learned by its TransactionLayer
+ * 
+ * The server offers 1024-byte blocks. Downloads that fail after the last
+ * retransmission of a block are counted as "failed" instead of waiting for
+ * them to time out. EXCHANGE_LIFETIME is shortened, as the message IDs of a
+ * peer would run out at this rate otherwise, and TRANSFER_PEER_LIMIT is
+ * raised, as the client cannot tell its TransferLayer about failed downloads,
+ * which then keep their slots until TRANSFER_IDLE_TIMEOUT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BlockTuningBenchmark {
+
+	private static final int FRAME_SIZE = 127;
+	private static final int EXCHANGE_LIFETIME = 500;
+	private static final long DEADLINE = TimeUnit.SECONDS.toNanos(60);
+	private static final byte[] BODY = new byte[8 * 1024];
+	
+	@Param({"0", "0.01", "0.02", "0.05"})
+	public double loss;
+	
+	/*
+	 * Counts the outcome of the downloads per iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Outcome {
+		public long completed;
+		public long failed;
+	}
+	
+	private LoopbackLayer serverTransport;
+	private LoopbackLayer clientTransport;
+	private TransferLayer clientTransfer;
+	private TransactionLayer clientTransaction;
+	private EndpointAddress server;
+	
+	private volatile CountDownLatch done;
+	private volatile byte[] token;
+	private int nextToken;
+
+	@Setup
+	public void setup() throws IOException {
+		
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		
+		// the message IDs are set up with the first TransactionLayer, the
+		// client keeps them longer than the server detects duplicates
+		Properties.std.set("EXCHANGE_LIFETIME", 2 * EXCHANGE_LIFETIME);
+		clientTransaction = new TransactionLayer();
+		Properties.std.set("EXCHANGE_LIFETIME", EXCHANGE_LIFETIME);
+		Properties.std.set("TRANSFER_PEER_LIMIT", 1 << 16);
+		
+		// server answers every request with the whole body
+		serverTransport = new LoopbackLayer();
+		final TransferLayer serverTransfer = new TransferLayer(1024);
+		TransactionLayer serverTransaction = new TransactionLayer();
+		serverTransfer.setLowerLayer(serverTransaction);
+		serverTransaction.setLowerLayer(serverTransport);
+		serverTransfer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				if (msg instanceof Request) {
+					Response response = new Response(CodeRegistry.RESP_CONTENT);
+					response.setType(messageType.ACK);
+					response.setMID(msg.getMID());
+					response.setPeerAddress(msg.getPeerAddress());
+					response.setToken(msg.getToken());
+					response.setRequest((Request) msg);
+					response.setPayload(BODY);
+					try {
+						serverTransfer.sendMessage(response);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		});
+		
+		// client
+		clientTransport = new LoopbackLayer();
+		ExchangeStore exchangeStore = new ExchangeStore();
+		clientTransfer = new TransferLayer(0);
+		MatchingLayer clientMatching = new MatchingLayer(exchangeStore);
+		clientTransfer.setLowerLayer(clientMatching);
+		clientMatching.setLowerLayer(clientTransaction);
+		clientTransaction.setLowerLayer(clientTransport);
+		clientTransfer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				if (msg instanceof Response && Arrays.equals(msg.getToken(), token) && msg.payloadSize() == BODY.length) {
+					done.countDown();
+				}
+			}
+		});
+		
+		serverTransport.setLossProbability(loss);
+		serverTransport.setFrameSize(FRAME_SIZE);
+		clientTransport.setLossProbability(loss);
+		clientTransport.setFrameSize(FRAME_SIZE);
+		
+		server = serverTransport.getLocalAddress();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		
+		CongestionControl.PeerState peer = clientTransaction.getCongestionControl().getPeerState(server);
+		if (peer != null) {
+			System.out.printf("%nLoss estimate: %.3f, block size: %d bytes, retransmissions: %d, failures: %d%n",
+				peer.getLoss(), peer.getBlockSZX() >= 0 ? 16 << peer.getBlockSZX() : -1, peer.getNumRetransmissions(), peer.getNumFailures());
+		}
+		
+		clientTransport.close();
+		serverTransport.close();
+	}
+
+	@Benchmark
+	public void fixedBlockSize(Outcome outcome) throws Exception {
+		clientTransfer.setCongestionControl(null);
+		download(outcome);
+	}
+
+	@Benchmark
+	public void tunedBlockSize(Outcome outcome) throws Exception {
+		clientTransfer.setCongestionControl(clientTransaction.getCongestionControl());
+		download(outcome);
+	}
+	
+	private void download(Outcome outcome) throws Exception {
+		
+		CongestionControl cc = clientTransaction.getCongestionControl();
+		long failures = getNumFailures(cc);
+		
+		++nextToken;
+		token = new byte[] {(byte) (nextToken >> 8), (byte) nextToken};
+		done = new CountDownLatch(1);
+		
+		Request request = new GETRequest();
+		request.setURI(String.format("coap://127.0.0.1:%d/large", server.getPort()));
+		request.setToken(token);
+		clientTransfer.sendMessage(request);
+		
+		// stop waiting once an exchange of the download failed
+		long start = System.nanoTime();
+		while (!done.await(10, TimeUnit.MILLISECONDS)) {
+			if (getNumFailures(cc) > failures || System.nanoTime() - start > DEADLINE) {
+				++outcome.failed;
+				return;
+			}
+		}
+		++outcome.completed;
+	}
+	
+	private long getNumFailures(CongestionControl cc) {
+		CongestionControl.PeerState peer = cc.getPeerState(server);
+		return peer != null ? peer.getNumFailures() : 0;
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import static ch.ethz.inf.vs.californium.coap.Message.*;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.util.DatagramReader;
+import ch.ethz.inf.vs.californium.util.DatagramWriter;
+
+/*
+ * The bit-oriented Message codec that was used before the byte-oriented one,
+ * kept as a baseline for the benchmarks. It encodes the options with a
+ * separate DatagramWriter and reads and writes every field bit by bit.
+ */
+public class LegacyCodec {
+
+	public static byte[] toByteArray(Message msg) {
+		
+		// create datagram writer to encode options
+		DatagramWriter optWriter = new DatagramWriter(); 
+		
+		int optionCount = 0;
+		int lastOptionNumber = 0;
+		for (Option opt : msg.getOptions()) {
+			
+			// do not encode options with default values
+			if (opt.isDefaultValue()) continue;
+			
+			// calculate option delta
+			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+			
+			// ensure that option delta value can be encoded correctly
+			while (optionDelta > MAX_OPTIONDELTA) {
+				
+				// get fencepost option that is next to the last option
+				int fencepostNumber = OptionNumberRegistry.nextFencepost(lastOptionNumber);
+				
+				// calculate fencepost delta
+				int fencepostDelta = fencepostNumber - lastOptionNumber;
+
+				// write fencepost option delta
+				optWriter.write(fencepostDelta, OPTIONDELTA_BITS);
+				
+				// fencepost have an empty value
+				optWriter.write(0, OPTIONLENGTH_BASE_BITS);
+				
+				++optionCount;
+				lastOptionNumber = fencepostNumber;
+				optionDelta -= fencepostDelta;
+			}
+			
+			// write option delta
+			optWriter.write(optionDelta, OPTIONDELTA_BITS);
+			
+			// write option length
+			int length = opt.getLength();
+			if (length <= MAX_OPTIONLENGTH_BASE) {
+				optWriter.write(length, OPTIONLENGTH_BASE_BITS);
+			} else {
+				int baseLength = MAX_OPTIONLENGTH_BASE + 1;
+				optWriter.write(baseLength, OPTIONLENGTH_BASE_BITS);
+				
+				int extLength = length - baseLength;
+				optWriter.write(extLength, OPTIONLENGTH_EXTENDED_BITS);
+			}
+
+			// write option value
+			optWriter.writeBytes(opt.getRawValue());
+			
+			++optionCount;
+			lastOptionNumber = opt.getOptionNumber();
+		}
+		
+		// create datagram writer to encode message data
+		DatagramWriter writer = new DatagramWriter();
+		
+		// write fixed-size CoAP header
+		writer.write(msg.getVersion(), VERSION_BITS);
+		writer.write(msg.getType().ordinal(), TYPE_BITS);
+		writer.write(optionCount, OPTIONCOUNT_BITS);
+		writer.write(msg.getCode(), CODE_BITS);
+		writer.write(msg.getMID(), ID_BITS);
+	
+		// write options
+		writer.writeBytes(optWriter.toByteArray());
+		
+		//write payload
+		writer.writeBytes(msg.getPayload());
+
+		// return encoded message
+		return writer.toByteArray();
+	}
+
+	public static Message fromByteArray(byte[] byteArray) {
+
+		DatagramReader datagram = new DatagramReader(byteArray);
+		
+		datagram.read(VERSION_BITS);
+		messageType type = getTypeByValue(datagram.read(TYPE_BITS));
+		int optionCount = datagram.read(OPTIONCOUNT_BITS);
+		
+		int code = datagram.read(CODE_BITS);
+		if (!CodeRegistry.isValid(code)) {
+			return null;
+		}
+
+		// create new message with subtype according to code number
+		Message msg;
+		try {
+			msg = CodeRegistry.getMessageClass(code).newInstance();
+		} catch (Exception e) {
+			return null;
+		}
+		
+		msg.setType(type);
+		msg.setCode(code);
+		msg.setMID(datagram.read(ID_BITS));
+		
+		int currentOption = 0;
+		for (int i=0; i < optionCount; i++) {
+			
+			int optionDelta = datagram.read(OPTIONDELTA_BITS);
+			
+			currentOption += optionDelta;
+			if (OptionNumberRegistry.isFencepost(currentOption)) {
+				
+				datagram.read(OPTIONLENGTH_BASE_BITS);
+				
+			} else {
+				
+				int length = datagram.read(OPTIONLENGTH_BASE_BITS);
+				if (length > MAX_OPTIONLENGTH_BASE) {
+					length += datagram.read(OPTIONLENGTH_EXTENDED_BITS);
+				}
+				
+				// Option.fromNumber() is package-private, block options are not benchmarked
+				msg.addOption(new Option(datagram.readBytes(length), currentOption));
+			}
+		}
+
+		msg.setPayload(datagram.readBytesLeft());
+		
+		return msg;
+	}
+}
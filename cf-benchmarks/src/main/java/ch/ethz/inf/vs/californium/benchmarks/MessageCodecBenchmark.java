@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.Option;
+
+/*
+ * Compares the byte-oriented Message codec with the bit-oriented
+ * {@link LegacyCodec}, using the messages from MessageTest:
+ * 
+ * payload  - no options, short payload (testMessage)
+ * options  - two short options, short payload (testOptionMessage)
+ * extended - options 1 and 197, which requires fencepost options
+ *            (testExtendedOptionMessage)
+ * long     - an option longer than 14 bytes, i.e., with extended length,
+ *            and a 64-byte payload
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+	@Param({"payload", "options", "extended", "long"})
+	public String message;
+	
+	private Message msg;
+	private byte[] encoded;
+	private byte[] array;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		
+		msg = new Message();
+		msg.setCode(CodeRegistry.METHOD_GET);
+		msg.setType(messageType.CON);
+		msg.setMID(12345);
+		
+		if (message.equals("payload")) {
+			msg.setPayload("some payload".getBytes());
+		} else if (message.equals("options")) {
+			msg.setPayload("hallo".getBytes());
+			msg.addOption(new Option("a".getBytes(), 1));
+			msg.addOption(new Option("b".getBytes(), 2));
+		} else if (message.equals("extended")) {
+			msg.addOption(new Option("a".getBytes(), 1));
+			msg.addOption(new Option("ab".getBytes(), 197));
+		} else if (message.equals("long")) {
+			msg.setPayload(new byte[64]);
+			msg.addOption(new Option("a".getBytes(), 1));
+			msg.addOption(new Option("a long value of more than 14 bytes".getBytes(), 9));
+		} else {
+			throw new IllegalArgumentException(message);
+		}
+		
+		encoded = msg.toByteArray();
+		array = new byte[1024];
+		direct = ByteBuffer.allocateDirect(1024);
+	}
+
+	@Benchmark
+	public byte[] encodeLegacy() {
+		return LegacyCodec.toByteArray(msg);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return msg.toByteArray();
+	}
+
+	@Benchmark
+	public int encodeIntoArray() {
+		return msg.toByteArray(array, 0, array.length);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeIntoDirectBuffer() {
+		direct.clear();
+		msg.toByteBuffer(direct);
+		return direct;
+	}
+
+	@Benchmark
+	public Message decodeLegacy() {
+		return LegacyCodec.fromByteArray(encoded);
+	}
+
+	@Benchmark
+	public Message decode() {
+		return Message.fromByteArray(encoded);
+	}
+
+	@Benchmark
+	public Message decodeFromDirectBuffer() {
+		direct.clear();
+		direct.put(encoded);
+		direct.flip();
+		return Message.fromByteBuffer(direct);
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.layers.MessageIdProvider;
+
+/*
+ * Measures message ID allocation by many concurrent senders:
+ * 
+ * globalCounter - the former single AtomicInteger for all peers
+ * samePeer      - all threads send to one peer and share its MID space
+ * ownPeer       - each thread sends to its own peer
+ * 
+ * The provider uses a lifetime of 0, so that it never runs out of IDs and
+ * the benchmark measures the allocation itself. Change the thread count
+ * with -t.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class MessageIdBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		
+		final AtomicInteger counter = new AtomicInteger();
+		final MessageIdProvider provider = new MessageIdProvider(0);
+		EndpointAddress peer;
+		
+		@Setup
+		public void setup() throws IOException {
+			peer = new EndpointAddress(InetAddress.getByName("10.0.0.1"), 5683);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Sender {
+		
+		private static final AtomicInteger nextPort = new AtomicInteger(10000);
+		
+		EndpointAddress peer;
+		
+		@Setup
+		public void setup() throws IOException {
+			peer = new EndpointAddress(InetAddress.getByName("10.0.0.2"), nextPort.getAndIncrement());
+		}
+	}
+
+	@Benchmark
+	public int globalCounter(Shared shared) {
+		return shared.counter.incrementAndGet() & 0xFFFF;
+	}
+
+	@Benchmark
+	public int samePeer(Shared shared) {
+		return shared.provider.nextMessageID(shared.peer);
+	}
+
+	@Benchmark
+	public int ownPeer(Shared shared, Sender sender) {
+		return shared.provider.nextMessageID(sender.peer);
+	}
+}
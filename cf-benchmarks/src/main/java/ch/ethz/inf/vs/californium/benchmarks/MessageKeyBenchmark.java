@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageKey;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+
+/*
+ * Measures the sequence key handling of an incoming response, which the
+ * layers formerly built with String.format in every table access:
+ * 
+ * stringKeys - four String keys as built by MatchingLayer, TransferLayer,
+ *              and TokenLayer before, each looked up in a table
+ * cachedKeys - the binary key of the message, computed once and used for
+ *              four lookups
+ * 
+ * Each invocation uses a new response, as parsed from a datagram. Run with
+ * "-prof gc" to see the allocation per operation (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageKeyBenchmark {
+
+	private static final byte[] TOKEN = {0x12, 0x34, 0x56, 0x78};
+	
+	private EndpointAddress peer;
+	
+	private ConcurrentHashMap<String, Object> stringTable = new ConcurrentHashMap<String, Object>();
+	private ConcurrentHashMap<MessageKey, Object> keyTable = new ConcurrentHashMap<MessageKey, Object>();
+
+	@Setup
+	public void setup() throws IOException {
+		peer = new EndpointAddress(InetAddress.getByName("10.0.0.1"), 5683);
+		
+		Message request = newResponse();
+		stringTable.put(stringKey(request), request);
+		keyTable.put(request.sequenceKey(), request);
+	}
+	
+	private Message newResponse() {
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(messageType.ACK);
+		response.setPeerAddress(new EndpointAddress(peer.getAddress(), peer.getPort()));
+		response.setToken(TOKEN);
+		return response;
+	}
+	
+	/*
+	 * The former Message.sequenceKey(), built on every call
+	 */
+	private static String stringKey(Message msg) {
+		return String.format("%s#%s", msg.getPeerAddress().toString(), Option.hex(msg.getToken()));
+	}
+
+	@Benchmark
+	public int stringKeys() {
+		Message msg = newResponse();
+		int found = 0;
+		for (int i = 0; i < 4; ++i) {
+			if (stringTable.get(stringKey(msg)) != null) ++found;
+		}
+		return found;
+	}
+
+	@Benchmark
+	public int cachedKeys() {
+		Message msg = newResponse();
+		int found = 0;
+		for (int i = 0; i < 4; ++i) {
+			if (keyTable.get(msg.sequenceKey()) != null) ++found;
+		}
+		return found;
+	}
+}
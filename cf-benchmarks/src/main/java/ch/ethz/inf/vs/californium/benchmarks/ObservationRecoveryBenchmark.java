@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.FileObservationStore;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.ObservationRecord;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+/*
+ * Measures the recovery of the observing relationships after a restart from
+ * a FileObservationStore that holds the given number of relationships of
+ * clients observing 10 sensor resources each:
+ * 
+ * readStore        - replays and compacts the log
+ * restoreObservers - additionally registers the relationships with the
+ *                    ObservingManager when the resources are added
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ObservationRecoveryBenchmark {
+	
+	private static final int RESOURCES = 10;
+	
+	@Param({"100000", "1000000"})
+	public int relationships;
+	
+	private static class SensorResource extends LocalResource {
+		
+		SensorResource(String identifier) {
+			super(identifier);
+			isObservable(true);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "21.5");
+		}
+	}
+	
+	private File file;
+	private LocalResource sensors;
+	
+	@Setup
+	public void setup() throws IOException {
+		
+		sensors = new SensorResource("sensors");
+		for (int r = 0; r < RESOURCES; ++r) {
+			sensors.add(new SensorResource("s" + r));
+		}
+		
+		file = File.createTempFile("observations", ".log");
+		file.delete();
+		
+		FileObservationStore store = new FileObservationStore(file, 100);
+		store.restore();
+		
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < relationships; ++i) {
+			int client = i / RESOURCES;
+			EndpointAddress peer = new EndpointAddress(InetAddress.getByAddress(new byte[] {10, (byte) (client >> 16), (byte) (client >> 8), (byte) client}), 5683);
+			String path = sensors.getPath() + "/s" + (i % RESOURCES);
+			store.add(new ObservationRecord(peer, path, "", new byte[] {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i}, -1, now));
+		}
+		store.close();
+		
+		System.out.printf("%nStore of %d relationships: %d bytes%n", relationships, file.length());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		ObservingManager.getInstance().setObservationStore(null);
+		file.delete();
+	}
+	
+	@Benchmark
+	public int readStore() throws IOException {
+		FileObservationStore store = new FileObservationStore(file, 100);
+		int count = store.restore().size();
+		store.close();
+		return count;
+	}
+	
+	@Benchmark
+	public int restoreObservers() {
+		ObservingManager.getInstance().setObservationStore(new FileObservationStore(file, 100));
+		return ObservingManager.getInstance().restoreObservers(sensors);
+	}
+}
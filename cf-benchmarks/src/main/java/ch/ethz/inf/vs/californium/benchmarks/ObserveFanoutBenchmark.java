@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.layers.TransportLayer;
+
+/*
+ * Measures one notification of all observers of a sensor resource through
+ * the Communicator stack on a transport that only encodes the notifications:
+ * 
+ * notifyObservers - ObservingManager.notifyObservers(), which performs the
+ *                   GET once and encodes the representation once
+ * perObserver     - a GET and a complete response for every observer, like
+ *                   ObservingManager before shared notifications
+ * 
+ * All notifications are non-confirmable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ObserveFanoutBenchmark {
+
+	@Param({"1000", "50000"})
+	public int observers;
+	
+	/*
+	 * Formats its reading as SenML for every GET.
+	 */
+	private static class SensorResource extends LocalResource {
+		
+		private double value = 21.5;
+		
+		SensorResource() {
+			super("sensor");
+			isObservable(true);
+		}
+		
+		void update() {
+			value += 0.01;
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT,
+					String.format("{\"bn\":\"urn:dev:mac:0024befffe804ff1/\",\"e\":[{\"n\":\"temperature\",\"v\":%.2f,\"u\":\"Cel\"}]}", value),
+					MediaTypeRegistry.APPLICATION_JSON);
+			request.getResponse().setMaxAge(5);
+		}
+	}
+	
+	/*
+	 * Encodes outgoing messages like a datagram transport, but drops them.
+	 */
+	private static class EncodingTransport extends TransportLayer {
+		
+		private final byte[] buffer = new byte[1152];
+		
+		@Override
+		protected void doSendMessage(Message msg) {
+			msg.toByteArray(buffer, 0, buffer.length);
+		}
+		
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+		
+		@Override
+		public int getPort() {
+			return 5683;
+		}
+		
+		@Override
+		public String getStats() {
+			return "";
+		}
+	}
+	
+	private SensorResource resource;
+	private List<GETRequest> requests;
+
+	@Setup
+	public void setup() throws IOException {
+		
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		
+		Communicator.setupTransport(new EncodingTransport());
+		Communicator.getInstance();
+		
+		ObservingManager.getInstance().setRefreshInterval(Integer.MAX_VALUE);
+		
+		resource = new SensorResource();
+		requests = new ArrayList<GETRequest>(observers);
+		
+		for (int i = 0; i < observers; ++i) {
+			GETRequest request = new GETRequest();
+			request.setType(messageType.NON);
+			request.setURI("/sensor");
+			request.setPeerAddress(new EndpointAddress(InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}), 5683));
+			request.setToken(new byte[] {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+			request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+			
+			resource.performGET(request);
+			ObservingManager.getInstance().addObserver(request, resource);
+			requests.add(request);
+		}
+	}
+
+	@Benchmark
+	public void notifyObservers() {
+		resource.update();
+		ObservingManager.getInstance().notifyObservers(resource);
+	}
+	
+	@Benchmark
+	public void perObserver() {
+		resource.update();
+		for (GETRequest request : requests) {
+			request.setType(messageType.NON);
+			resource.performGET(request);
+			
+			request.getResponse().setMID(TransactionLayer.nextMessageID(request.getPeerAddress()));
+			int secs = (int) ((System.currentTimeMillis() - request.startTime) / 1000) & 0xFFFF;
+			request.getResponse().setOption(new Option(secs, OptionNumberRegistry.OBSERVE));
+			ObservingManager.getInstance().updateLastMID(request.getPeerAddress().toString(), request.getUriPath(), request.getResponse().getMID());
+			
+			request.sendResponse();
+		}
+	}
+}
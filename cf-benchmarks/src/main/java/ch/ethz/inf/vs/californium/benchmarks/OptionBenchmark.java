@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+
+/*
+ * Measures the conversion of option values from and to integers and strings,
+ * as done for every Max-Age, Content-Type, Observe, and Uri-Path option.
+ * The integer values need 1, 2, and 4 bytes; the strings are a typical path
+ * segment and a long query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptionBenchmark {
+
+	@State(Scope.Thread)
+	public static class IntState {
+		
+		@Param({"42", "1000", "2147483647"})
+		public int intValue;
+		
+		Option option;
+
+		@Setup
+		public void setup() {
+			option = new Option(intValue, OptionNumberRegistry.MAX_AGE);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class StringState {
+		
+		@Param({"sensors", "a-rather-long-query-parameter=with-a-long-value"})
+		public String stringValue;
+		
+		Option option;
+
+		@Setup
+		public void setup() {
+			option = new Option(stringValue, OptionNumberRegistry.URI_PATH);
+		}
+	}
+
+	@Benchmark
+	public Option setIntValue(IntState state) {
+		state.option.setIntValue(state.intValue);
+		return state.option;
+	}
+
+	@Benchmark
+	public int getIntValue(IntState state) {
+		return state.option.getIntValue();
+	}
+
+	@Benchmark
+	public Option setStringValue(StringState state) {
+		state.option.setStringValue(state.stringValue);
+		return state.option;
+	}
+
+	@Benchmark
+	public String getStringValue(StringState state) {
+		return state.option.getStringValue();
+	}
+}
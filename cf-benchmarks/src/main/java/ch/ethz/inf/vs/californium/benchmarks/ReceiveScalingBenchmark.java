@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+import ch.ethz.inf.vs.californium.layers.TokenLayer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.layers.TransferLayer;
+import ch.ethz.inf.vs.californium.layers.UDPLayer;
+import ch.ethz.inf.vs.californium.util.Log;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/*
+ * Measures how inbound throughput scales with the number of UDP sockets
+ * sharing the server port through SO_REUSEPORT.
+ * 
+ * For each socket count, a stack of TokenLayer, TransferLayer, MatchingLayer,
+ * and TransactionLayer is put on a UDPLayer and flooded with NON requests from
+ * several client sockets for a fixed time. Messages are processed directly on
+ * the receiver threads (DISPATCH_THREADS = 0), so the stack runs concurrently
+ * on as many threads as there are sockets. The result is the number of
+ * requests that made it through the stack per second.
+ * 
+ * SO_REUSEPORT requires Java 9 or later at runtime; on older JVMs, the
+ * UDPLayer falls back to a single socket.
+ */
+public class ReceiveScalingBenchmark {
+
+	static int seconds = 5;
+	static int maxSockets = Runtime.getRuntime().availableProcessors();
+	static int numSenders = 8;
+
+	/*
+	 * Main method of this benchmark.
+	 * 
+	 * Arguments: [seconds per run] [max sockets] [sender threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		Log.setLevel(Level.WARNING);
+		Log.init();
+		
+		try {
+			if (args.length > 0) seconds = Integer.parseInt(args[0]);
+			if (args.length > 1) maxSockets = Integer.parseInt(args[1]);
+			if (args.length > 2) numSenders = Integer.parseInt(args[2]);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number: " + e.getMessage());
+			System.out.println("Usage: " + ReceiveScalingBenchmark.class.getSimpleName() + " [seconds] [max sockets] [sender threads]");
+			System.exit(-1);
+		}
+		
+		// run the stack on the receiver threads
+		Properties.std.set("DISPATCH_THREADS", 0);
+		
+		System.out.printf("Receive scaling, %d s per run, %d senders, %d cores\n", seconds, numSenders, Runtime.getRuntime().availableProcessors());
+		System.out.println("sockets    requests/s");
+		
+		for (int n = 1; n <= maxSockets; n *= 2) {
+			
+			double rate = run(n);
+			System.out.printf("%7d  %12.0f\n", n, rate);
+		}
+	}
+	
+	private static double run(int numSockets) throws IOException, InterruptedException {
+		
+		final AtomicInteger received = new AtomicInteger();
+		
+		UDPLayer udpLayer = new UDPLayer(0, true, numSockets);
+		if (udpLayer.getNumSockets() != numSockets) {
+			System.out.println("SO_REUSEPORT not available, using one socket");
+		}
+		
+		ExchangeStore exchangeStore = new ExchangeStore();
+		TokenLayer tokenLayer = new TokenLayer(exchangeStore);
+		TransferLayer transferLayer = new TransferLayer(0);
+		MatchingLayer matchingLayer = new MatchingLayer(exchangeStore);
+		TransactionLayer transactionLayer = new TransactionLayer();
+		
+		tokenLayer.setLowerLayer(transferLayer);
+		transferLayer.setLowerLayer(matchingLayer);
+		matchingLayer.setLowerLayer(transactionLayer);
+		transactionLayer.setLowerLayer(udpLayer);
+		
+		tokenLayer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				received.incrementAndGet();
+			}
+		});
+		
+		// encode one request, the senders only patch the message ID
+		Request request = new Request(CodeRegistry.METHOD_GET, false);
+		request.setMID(0);
+		request.setOption(new Option("benchmark", OptionNumberRegistry.URI_PATH));
+		final byte[] template = request.toByteArray();
+		
+		final InetAddress address = InetAddress.getByName("127.0.0.1");
+		final int port = udpLayer.getPort();
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		
+		Thread[] senders = new Thread[numSenders];
+		for (int i = 0; i < numSenders; ++i) {
+			senders[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						// each sender has its own source port, which selects the server socket
+						DatagramSocket socket = new DatagramSocket();
+						byte[] data = template.clone();
+						DatagramPacket datagram = new DatagramPacket(data, data.length, address, port);
+						int mid = 0;
+						while (System.currentTimeMillis() < end) {
+							mid = (mid + 1) & 0xFFFF;
+							data[2] = (byte) (mid >>> 8);
+							data[3] = (byte) mid;
+							socket.send(datagram);
+						}
+						socket.close();
+					} catch (IOException e) {
+						System.err.println("Sender failed: " + e.getMessage());
+					}
+				}
+			};
+		}
+		
+		long start = System.nanoTime();
+		for (Thread sender : senders) {
+			sender.start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		
+		// free the port and threads for the next run
+		transferLayer.close();
+		udpLayer.close();
+		
+		return received.get() / elapsed;
+	}
+}
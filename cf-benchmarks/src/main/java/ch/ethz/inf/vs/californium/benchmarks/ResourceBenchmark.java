@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
+
+/*
+ * Measures Resource.getResource() path lookups on deep trees. Every level
+ * has a number of siblings, of which the last one leads to the next level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceBenchmark {
+
+	@Param({"4", "16", "64"})
+	public int depth;
+
+	@Param({"16"})
+	public int width;
+	
+	private Resource root;
+	private Resource leaf;
+	private String absolutePath;
+	private String relativePath;
+	private String missingPath;
+
+	@Setup
+	public void setup() {
+		
+		root = new LocalResource("", true);
+		
+		StringBuilder path = new StringBuilder();
+		Resource parent = root;
+		for (int level = 0; level < depth; ++level) {
+			Resource next = null;
+			for (int i = 0; i < width; ++i) {
+				next = new LocalResource("res-" + level + "-" + i);
+				parent.add(next);
+			}
+			path.append('/').append(next.getName());
+			parent = next;
+		}
+		
+		leaf = parent;
+		absolutePath = path.toString();
+		relativePath = absolutePath.substring(1);
+		missingPath = relativePath + "/missing";
+		
+		if (root.getResource(relativePath) != leaf) {
+			throw new IllegalStateException("Lookup failed: " + relativePath);
+		}
+	}
+
+	@Benchmark
+	public Resource lookupRelative() {
+		return root.getResource(relativePath);
+	}
+
+	@Benchmark
+	public Resource lookupAbsoluteFromLeaf() {
+		return leaf.getResource(absolutePath);
+	}
+
+	@Benchmark
+	public Resource lookupMissing() {
+		return root.getResource(missingPath);
+	}
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+
+/*
+ * Measures an acquire/release cycle of a token by 64 concurrent requesters:
+ * 
+ * legacy     - the former synchronized HashSet<byte[]> with tokens built
+ *              through a ByteArrayOutputStream
+ * sequential - the lock-free set of packed tokens with consecutive tokens
+ * random     - the same with random 8-byte tokens
+ * 
+ * Change the thread count with -t.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class TokenManagerBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		final LegacyTokenManager legacy = new LegacyTokenManager();
+		final TokenManager sequential = new TokenManager(false, 1 << 12);
+		final TokenManager random = new TokenManager(true, 1 << 12);
+	}
+
+	@Benchmark
+	public byte[] legacy(Shared shared) {
+		byte[] token = shared.legacy.acquireToken();
+		shared.legacy.releaseToken(token);
+		return token;
+	}
+
+	@Benchmark
+	public byte[] sequential(Shared shared) {
+		byte[] token = shared.sequential.acquireToken();
+		shared.sequential.releaseToken(token);
+		return token;
+	}
+
+	@Benchmark
+	public byte[] random(Shared shared) {
+		byte[] token = shared.random.acquireToken();
+		shared.random.releaseToken(token);
+		return token;
+	}
+	
+	/*
+	 * The token handling of TokenManager before the packed token set
+	 */
+	static class LegacyTokenManager {
+		
+		private Set<byte[]> acquiredTokens = new HashSet<byte[]>();
+		
+		private long currentToken = (long) (Math.random() * 0x100l);
+		
+		private byte[] nextToken() {
+			++currentToken;
+			long temp = currentToken;
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream(8);
+			while (temp > 0 && byteStream.size() < 8) {
+				byteStream.write((int) (temp & 0xff));
+				temp >>>= 8;
+			}
+			return byteStream.toByteArray();
+		}
+		
+		public synchronized byte[] acquireToken() {
+			byte[] token;
+			do {
+				token = nextToken();
+			} while (!acquiredTokens.add(token));
+			return token;
+		}
+		
+		public synchronized void releaseToken(byte[] token) {
+			acquiredTokens.remove(token);
+		}
+	}
+}
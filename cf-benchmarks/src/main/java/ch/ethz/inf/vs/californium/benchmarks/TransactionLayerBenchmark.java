@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+
+/*
+ * Measures the TransactionLayer on top of an in-memory loopback layer,
+ * which takes the place of the UDPLayer and plays the peer:
+ * 
+ * sendConfirmable     - a CON is sent and immediately acknowledged, which
+ *                       adds and removes a transaction and its retransmission
+ *                       timer task; the peer changes before its message IDs
+ *                       run out, as they are not reused within
+ *                       EXCHANGE_LIFETIME
+ * receiveNonConfirmable - a NON with a new MID passes the duplicate detection
+ *                       and is delivered to the layer above
+ * receiveDuplicate    - the same NON is received again and dropped
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionLayerBenchmark {
+
+	/*
+	 * Acknowledges confirmables right away by passing an empty ACK up again.
+	 */
+	static class LoopbackLayer extends Layer {
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			if (msg.isConfirmable()) {
+				receiveMessage(msg.newAccept());
+			}
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+	
+	private LoopbackLayer loopback;
+	private TransactionLayer transactionLayer;
+	private EndpointAddress peer;
+	private Message incoming;
+	private Message duplicate;
+	private int mid;
+	private int port = 10000;
+	private EndpointAddress sendPeer;
+	private int sendPort = 10000;
+	private int sent;
+	private int delivered;
+
+	@Setup
+	public void setup() throws IOException {
+		
+		Logger.getLogger("").setLevel(Level.WARNING);
+		
+		loopback = new LoopbackLayer();
+		transactionLayer = new TransactionLayer();
+		transactionLayer.setLowerLayer(loopback);
+		transactionLayer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				++delivered;
+			}
+		});
+		
+		peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 5683);
+		sendPeer = peer;
+		
+		incoming = new Message(messageType.NON, CodeRegistry.METHOD_GET);
+		incoming.setPeerAddress(peer);
+		
+		duplicate = new Message(messageType.NON, CodeRegistry.METHOD_GET);
+		duplicate.setPeerAddress(peer);
+		duplicate.setMID(0);
+		loopback.receiveMessage(duplicate);
+	}
+
+	@Benchmark
+	public Message sendConfirmable() throws IOException {
+		// stay below the 64512 IDs a peer gets at least per EXCHANGE_LIFETIME
+		if (++sent == 60000) {
+			sent = 0;
+			sendPort = sendPort < 60000 ? sendPort + 1 : 10000;
+			sendPeer = new EndpointAddress(peer.getAddress(), sendPort);
+		}
+		Message msg = new Message(messageType.CON, CodeRegistry.METHOD_GET);
+		msg.setPeerAddress(sendPeer);
+		transactionLayer.sendMessage(msg);
+		return msg;
+	}
+
+	@Benchmark
+	public int receiveNonConfirmable() {
+		// skip MID 0, which is the duplicate
+		mid = (mid % 0xFFFF) + 1;
+		if (mid == 1) {
+			// MIDs stay known for EXCHANGE_LIFETIME, continue with a new peer
+			port = port < 60000 ? port + 1 : 10000;
+			incoming.setPeerAddress(new EndpointAddress(peer.getAddress(), port));
+		}
+		incoming.setMID(mid);
+		loopback.receiveMessage(incoming);
+		return delivered;
+	}
+
+	@Benchmark
+	public int receiveDuplicate() {
+		loopback.receiveMessage(duplicate);
+		return delivered;
+	}
+}
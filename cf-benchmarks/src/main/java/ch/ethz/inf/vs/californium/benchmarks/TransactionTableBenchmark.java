@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+
+/*
+ * Compares the former String-keyed transaction table with the primitive
+ * keys of the TransactionLayer, for looking up the transaction of an
+ * incoming ACK and for adding and removing a transaction. Run with
+ * "-prof gc" to see the allocation per operation (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionTableBenchmark {
+
+	private static final int PEERS = 1024;
+	
+	/** The number of open transactions. */
+	@Param({"1000", "100000"})
+	public int open;
+	
+	private ConcurrentHashMap<String, Message> stringTable;
+	private ConcurrentLongMap<Message> longTable;
+	
+	private Message[] acks;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		
+		stringTable = new ConcurrentHashMap<String, Message>();
+		longTable = new ConcurrentLongMap<Message>();
+		
+		InetAddress[] addresses = new InetAddress[PEERS];
+		for (int i = 0; i < PEERS; ++i) {
+			addresses[i] = InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+		}
+		
+		acks = new Message[open];
+		for (int i = 0; i < open; ++i) {
+			Message msg = new Message(messageType.CON, CodeRegistry.METHOD_GET);
+			msg.setPeerAddress(new EndpointAddress(addresses[i % PEERS], 5683));
+			msg.setMID(i / PEERS);
+			
+			stringTable.put(stringKey(msg), msg);
+			longTable.put(TransactionLayer.transactionKey(msg), msg);
+			
+			// each ACK arrives as a new message with a new peer address object
+			Message ack = msg.newAccept();
+			ack.setPeerAddress(new EndpointAddress(addresses[i % PEERS], 5683));
+			acks[i] = ack;
+		}
+	}
+	
+	/*
+	 * The former Message.transactionKey(), built on every call
+	 */
+	private static String stringKey(Message msg) {
+		return String.format("%s|%d", msg.getPeerAddress().toString(), msg.getMID());
+	}
+	
+	private Message nextAck() {
+		if (++next == acks.length) {
+			next = 0;
+		}
+		return acks[next];
+	}
+
+	@Benchmark
+	public Message stringKeyLookup() {
+		return stringTable.get(stringKey(nextAck()));
+	}
+
+	@Benchmark
+	public Message primitiveKeyLookup() {
+		return longTable.get(TransactionLayer.transactionKey(nextAck()));
+	}
+
+	@Benchmark
+	public Message stringKeyRemoveAdd() {
+		Message ack = nextAck();
+		Message msg = stringTable.remove(stringKey(ack));
+		stringTable.put(stringKey(msg), msg);
+		return msg;
+	}
+
+	@Benchmark
+	public Message primitiveKeyRemoveAdd() {
+		Message ack = nextAck();
+		Message msg = longTable.remove(TransactionLayer.transactionKey(ack));
+		longTable.put(TransactionLayer.transactionKey(msg), msg);
+		return msg;
+	}
+}
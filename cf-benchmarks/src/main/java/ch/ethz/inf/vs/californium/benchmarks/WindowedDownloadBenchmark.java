@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.LoopbackLayer;
+import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+import ch.ethz.inf.vs.californium.layers.TokenLayer;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.layers.TransferLayer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/*
+ * Measures the completion time of a blockwise download of 64 KiB in 512-byte
+ * blocks between two stacks on the LoopbackLayer, which delays each datagram
+ * by DELAY milliseconds, for a window of 1 (one block after the other) and
+ * more block requests in flight. NSTART is raised to the largest window.
+ * EXCHANGE_LIFETIME is shortened, as the message IDs of a peer would run out
+ * at this rate otherwise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WindowedDownloadBenchmark {
+
+	private static final int DELAY = 10;
+	private static final int NSTART = 16;
+	private static final int EXCHANGE_LIFETIME = 500;
+	private static final byte[] BODY = new byte[64 * 1024];
+	
+	@Param({"1", "4", "16"})
+	public int window;
+	
+	private LoopbackLayer serverTransport;
+	private LoopbackLayer clientTransport;
+	private TokenLayer clientToken;
+	private EndpointAddress server;
+	
+	private volatile CountDownLatch done;
+	private volatile byte[] token;
+	private int nextToken;
+
+	@Setup
+	public void setup() throws IOException {
+		
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		
+		// the message IDs are set up with the first TransactionLayer, the
+		// client keeps them longer than the server detects duplicates
+		Properties.std.set("EXCHANGE_LIFETIME", 2 * EXCHANGE_LIFETIME);
+		Properties.std.set("NSTART", NSTART);
+		TransactionLayer clientTransaction = new TransactionLayer();
+		Properties.std.set("EXCHANGE_LIFETIME", EXCHANGE_LIFETIME);
+		
+		// server answers every request with the whole body
+		serverTransport = new LoopbackLayer();
+		final TransferLayer serverTransfer = new TransferLayer(512);
+		TransactionLayer serverTransaction = new TransactionLayer();
+		serverTransfer.setLowerLayer(serverTransaction);
+		serverTransaction.setLowerLayer(serverTransport);
+		serverTransfer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				if (msg instanceof Request) {
+					Response response = new Response(CodeRegistry.RESP_CONTENT);
+					response.setType(messageType.ACK);
+					response.setMID(msg.getMID());
+					response.setPeerAddress(msg.getPeerAddress());
+					response.setToken(msg.getToken());
+					response.setRequest((Request) msg);
+					response.setPayload(BODY);
+					try {
+						serverTransfer.sendMessage(response);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		});
+		
+		// client, with the TokenLayer keeping the exchange open for all blocks
+		clientTransport = new LoopbackLayer();
+		ExchangeStore exchangeStore = new ExchangeStore();
+		clientToken = new TokenLayer(exchangeStore);
+		TransferLayer clientTransfer = new TransferLayer(512);
+		MatchingLayer clientMatching = new MatchingLayer(exchangeStore);
+		clientToken.setLowerLayer(clientTransfer);
+		clientTransfer.setLowerLayer(clientMatching);
+		clientMatching.setLowerLayer(clientTransaction);
+		clientTransaction.setLowerLayer(clientTransport);
+		clientToken.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				if (msg instanceof Response && Arrays.equals(msg.getToken(), token) && msg.payloadSize() == BODY.length) {
+					done.countDown();
+				}
+			}
+		});
+		
+		serverTransport.setDelay(DELAY);
+		clientTransport.setDelay(DELAY);
+		
+		server = serverTransport.getLocalAddress();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		clientTransport.close();
+		serverTransport.close();
+	}
+
+	@Benchmark
+	public void download() throws Exception {
+		
+		++nextToken;
+		token = new byte[] {(byte) (nextToken >> 8), (byte) nextToken};
+		done = new CountDownLatch(1);
+		
+		Request request = new GETRequest();
+		request.setURI(String.format("coap://127.0.0.1:%d/large", server.getPort()));
+		request.setToken(token);
+		request.setBlockWindow(window);
+		clientToken.sendMessage(request);
+		
+		if (!done.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Download timed out");
+		}
+	}
+}